@@ -0,0 +1,138 @@
+package org.nikkii.mapdownloader.benchmark;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the read/write loop the downloader and decompressor are built around at different buffer sizes, to see where
+ * larger buffers stop paying off.
+ *
+ * The plain source copies a map from disk, which shows the cost of the loop itself. The bzip2 source reads through the
+ * decoder, as the sequential decompressor does.
+ *
+ * @author Nikki
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CopyLoopBenchmark {
+
+	/**
+	 * The map size in megabytes.
+	 */
+	@Param({"16", "64"})
+	public int size;
+
+	/**
+	 * The buffer size. 10240 is what the decompressor and streamed downloads use.
+	 */
+	@Param({"4096", "10240", "65536", "262144", "1048576"})
+	public int bufferSize;
+
+	/**
+	 * What's read: "plain" for the map itself, "bzip2" for its archive.
+	 */
+	@Param({"plain", "bzip2"})
+	public String source;
+
+	/**
+	 * The file read.
+	 */
+	private File input;
+
+	/**
+	 * The file written to.
+	 */
+	private File output;
+
+	/**
+	 * The progress counter, bumped as the engine does.
+	 */
+	private final AtomicLong progress = new AtomicLong();
+
+	/**
+	 * Find the payload.
+	 *
+	 * @throws IOException If the payload can't be generated.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		input = source.equals("bzip2") ? Payloads.archive(size) : Payloads.map(size);
+		output = File.createTempFile("copy", ".bsp");
+	}
+
+	/**
+	 * Remove the output.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		output.delete();
+	}
+
+	/**
+	 * Copy the input to the output.
+	 *
+	 * @return The amount of bytes copied.
+	 * @throws IOException If the copy fails.
+	 */
+	@Benchmark
+	public long copy() throws IOException {
+		progress.set(0);
+
+		try (InputStream in = open(); OutputStream out = new FileOutputStream(output)) {
+			byte[] buffer = new byte[bufferSize];
+
+			while (true) {
+				int read = in.read(buffer, 0, buffer.length);
+
+				if (read < 0) {
+					break;
+				}
+
+				progress.addAndGet(read);
+
+				out.write(buffer, 0, read);
+			}
+		}
+
+		return progress.get();
+	}
+
+	/**
+	 * Open the input.
+	 *
+	 * @return The input stream.
+	 * @throws IOException If the input can't be opened.
+	 */
+	private InputStream open() throws IOException {
+		InputStream in = new FileInputStream(input);
+
+		// The decoder reads a byte at a time, so it gets a buffer of its own like in the decompressor.
+		return source.equals("bzip2") ? new BZip2CompressorInputStream(new BufferedInputStream(in, 64 * 1024)) : in;
+	}
+}
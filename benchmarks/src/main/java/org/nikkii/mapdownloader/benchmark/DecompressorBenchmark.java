@@ -0,0 +1,96 @@
+package org.nikkii.mapdownloader.benchmark;
+
+import org.nikkii.mapdownloader.download.Decompressor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decompresses a map with {@link Decompressor}, the way installs do.
+ *
+ * @author Nikki
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class DecompressorBenchmark {
+
+	/**
+	 * The map size in megabytes.
+	 */
+	@Param({"16", "64"})
+	public int size;
+
+	/**
+	 * Whether the archive may be decoded on every core.
+	 */
+	@Param({"false", "true"})
+	public boolean parallel;
+
+	/**
+	 * The archive.
+	 */
+	private File archive;
+
+	/**
+	 * The file decompressed to.
+	 */
+	private File output;
+
+	/**
+	 * Find the payload.
+	 *
+	 * @throws IOException If the payload can't be generated.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		archive = Payloads.archive(size);
+		output = File.createTempFile("decompressed", ".bsp");
+	}
+
+	/**
+	 * Remove the output.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		output.delete();
+	}
+
+	/**
+	 * Decompress the archive.
+	 *
+	 * @return The amount of bytes decompressed.
+	 * @throws IOException If decompression fails.
+	 */
+	@Benchmark
+	public long decompress() throws IOException {
+		Decompressor decompressor = new Decompressor(archive, output);
+
+		decompressor.setParallel(parallel);
+
+		decompressor.run();
+
+		if (decompressor.getError() != null) {
+			throw decompressor.getError();
+		}
+
+		return decompressor.getDecompressed();
+	}
+}
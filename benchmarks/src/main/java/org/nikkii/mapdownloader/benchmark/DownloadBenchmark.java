@@ -0,0 +1,132 @@
+package org.nikkii.mapdownloader.benchmark;
+
+import org.nikkii.mapdownloader.download.MapDownloader;
+import org.nikkii.mapdownloader.download.RetryPolicy;
+import org.nikkii.mapdownloader.maps.Map;
+import org.nikkii.mapdownloader.maps.MapSource;
+import org.nikkii.mapdownloader.server.FastDlServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a map from a loopback server through {@link MapDownloader}, so the whole path from socket to installed
+ * file is measured without the network getting in the way.
+ *
+ * @author Nikki
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class DownloadBenchmark {
+
+	/**
+	 * The map size in megabytes.
+	 */
+	@Param({"16", "64"})
+	public int size;
+
+	/**
+	 * How the map is downloaded: "plain" for an uncompressed map, "staged" for an archive saved then decompressed,
+	 * "streamed" for an archive decompressed as it arrives.
+	 */
+	@Param({"plain", "staged", "streamed"})
+	public String mode;
+
+	/**
+	 * The amount of bytes moved from the connection to the file at once. Streamed downloads don't use it.
+	 */
+	@Param({"8192", "65536", "1048576"})
+	public int chunkSize;
+
+	/**
+	 * The loopback server.
+	 */
+	private FastDlServer server;
+
+	/**
+	 * The map served.
+	 */
+	private Map map;
+
+	/**
+	 * The directory maps are installed into.
+	 */
+	private File directory;
+
+	/**
+	 * Start the server.
+	 *
+	 * @throws IOException If the server can't be started.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		File payload = mode.equals("plain") ? Payloads.map(size) : Payloads.archive(size);
+
+		server = new FastDlServer(payload.getParentFile(), FastDlServer.Style.NGINX);
+		server.start();
+
+		MapSource source = new MapSource("loopback", server.getUrl(), 0);
+
+		map = new Map(source, payload.getName(), "payload", !mode.equals("plain"));
+
+		directory = Files.createTempDirectory("maps").toFile();
+	}
+
+	/**
+	 * Stop the server and remove the installed map.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.stop();
+
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+
+		directory.delete();
+	}
+
+	/**
+	 * Download and install the map.
+	 *
+	 * @return The amount of bytes downloaded.
+	 * @throws IOException If the download fails.
+	 */
+	@Benchmark
+	public long download() throws IOException {
+		MapDownloader downloader = new MapDownloader(map, new File(directory, "payload.bsp"));
+
+		downloader.setSegments(1);
+		downloader.setRaceMirrors(1);
+		downloader.setRetryPolicy(RetryPolicy.NONE);
+		downloader.setChunkSize(chunkSize);
+		downloader.setStreamDecompression(mode.equals("streamed"));
+
+		downloader.run();
+
+		if (downloader.getError() != null) {
+			throw downloader.getError();
+		}
+
+		return downloader.getDownloaded();
+	}
+}
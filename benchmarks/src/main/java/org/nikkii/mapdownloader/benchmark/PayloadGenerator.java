@@ -0,0 +1,329 @@
+package org.nikkii.mapdownloader.benchmark;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates synthetic maps shaped like Source engine BSP files.
+ *
+ * Real maps are a 1036 byte header followed by lumps of very different kinds: entity text, geometry made of floats
+ * and indices, lighting samples, and an embedded pak of already compressed textures and sounds. Each kind compresses
+ * differently, so the mix decides how hard bzip2 has to work. The generated maps follow the mix of a typical custom
+ * map and compress to a bit over half their size, like the real ones. The same size always gives the same bytes.
+ *
+ * @author Nikki
+ */
+public class PayloadGenerator {
+
+	/**
+	 * The BSP magic, "VBSP" read as a little endian int.
+	 */
+	private static final int IDENT = ('P' << 24) + ('S' << 16) + ('B' << 8) + 'V';
+
+	/**
+	 * The BSP version used by Team Fortress 2.
+	 */
+	private static final int VERSION = 20;
+
+	/**
+	 * The amount of lumps in the header.
+	 */
+	private static final int LUMPS = 64;
+
+	/**
+	 * The size of the header.
+	 */
+	private static final int HEADER_SIZE = 4 + 4 + LUMPS * 16 + 4;
+
+	/**
+	 * The lumps generated, with their share of the file in percent. Lumps left out are empty.
+	 */
+	private static final Lump[] LAYOUT = new Lump[] {
+		new Lump(0, Kind.ENTITIES, 2),
+		new Lump(1, Kind.STRUCTS, 3),
+		new Lump(3, Kind.FLOATS, 8),
+		new Lump(7, Kind.STRUCTS, 9),
+		new Lump(8, Kind.LIGHTING, 19),
+		new Lump(12, Kind.INDICES, 5),
+		new Lump(13, Kind.INDICES, 4),
+		new Lump(35, Kind.STRUCTS, 5),
+		new Lump(40, Kind.PAK, 45)
+	};
+
+	/**
+	 * Entity class names.
+	 */
+	private static final String[] CLASSNAMES = new String[] {
+		"prop_static", "light", "info_player_teamspawn", "trigger_capture_area", "func_respawnroom", "item_healthkit_medium"
+	};
+
+	/**
+	 * Material surface properties.
+	 */
+	private static final String[] SURFACES = new String[] {
+		"concrete", "metal", "wood", "dirt", "grass", "glass"
+	};
+
+	/**
+	 * Generate maps of the given sizes into a directory, skipping any that already exist.
+	 *
+	 * @param args The directory, then the sizes in megabytes.
+	 * @throws IOException If a map can't be written.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: PayloadGenerator <directory> <megabytes> ...");
+			System.exit(2);
+		}
+
+		File directory = new File(args[0]);
+
+		for (int i = 1; i < args.length; i++) {
+			int size = Integer.parseInt(args[i]);
+
+			if (!Payloads.getMap(directory, size).exists() || !Payloads.getArchive(directory, size).exists()) {
+				System.out.println("Generating " + size + " MB payload in " + directory);
+
+				generate(directory, size);
+			}
+		}
+	}
+
+	/**
+	 * Generate a map and its bzip2 archive.
+	 *
+	 * @param directory The directory to write to.
+	 * @param megabytes The map size in megabytes.
+	 * @throws IOException If the files can't be written.
+	 */
+	public static void generate(File directory, int megabytes) throws IOException {
+		directory.mkdirs();
+
+		File map = Payloads.getMap(directory, megabytes);
+		File archive = Payloads.getArchive(directory, megabytes);
+
+		// Write to temporary names first, so an interrupted build doesn't leave a payload which looks finished.
+		File mapTemp = new File(directory, map.getName() + ".tmp");
+		File archiveTemp = new File(directory, archive.getName() + ".tmp");
+
+		writeMap(mapTemp, (long) megabytes * 1024 * 1024);
+
+		try (InputStream input = new FileInputStream(mapTemp); OutputStream output = new BZip2CompressorOutputStream(new BufferedOutputStream(new FileOutputStream(archiveTemp), 1024 * 1024))) {
+			byte[] buffer = new byte[1024 * 1024];
+
+			int read;
+
+			while ((read = input.read(buffer)) != -1) {
+				output.write(buffer, 0, read);
+			}
+		}
+
+		if (!mapTemp.renameTo(map) || !archiveTemp.renameTo(archive)) {
+			throw new IOException("Unable to move payloads into place in " + directory);
+		}
+	}
+
+	/**
+	 * Write a map.
+	 *
+	 * @param file The file.
+	 * @param size The map size in bytes.
+	 * @throws IOException If the file can't be written.
+	 */
+	private static void writeMap(File file, long size) throws IOException {
+		Random random = new Random(size);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		header.putInt(IDENT);
+		header.putInt(VERSION);
+
+		long body = size - HEADER_SIZE;
+
+		long[] offsets = new long[LUMPS];
+		long[] lengths = new long[LUMPS];
+
+		long offset = HEADER_SIZE;
+
+		for (int i = 0; i < LAYOUT.length; i++) {
+			Lump lump = LAYOUT[i];
+
+			// The last lump takes whatever is left, so the file comes out at exactly the requested size.
+			long length = i == LAYOUT.length - 1 ? size - offset : body * lump.share / 100 & ~3L;
+
+			offsets[lump.index] = offset;
+			lengths[lump.index] = length;
+
+			offset += length;
+		}
+
+		for (int i = 0; i < LUMPS; i++) {
+			header.putInt((int) offsets[i]);
+			header.putInt((int) lengths[i]);
+			header.putInt(0);
+			header.putInt(0);
+		}
+
+		// Map revision.
+		header.putInt(1);
+
+		try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+			output.setLength(0);
+			output.write(header.array());
+
+			byte[] chunk = new byte[1024 * 1024];
+
+			for (Lump lump : LAYOUT) {
+				long remaining = lengths[lump.index];
+
+				while (remaining > 0) {
+					int length = (int) Math.min(chunk.length, remaining);
+
+					fill(lump.kind, random, chunk, length);
+
+					output.write(chunk, 0, length);
+
+					remaining -= length;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fill a buffer with lump data.
+	 *
+	 * @param kind The kind of lump.
+	 * @param random The random source.
+	 * @param buffer The buffer.
+	 * @param length The amount of bytes to fill.
+	 */
+	private static void fill(Kind kind, Random random, byte[] buffer, int length) {
+		ByteBuffer out = ByteBuffer.wrap(buffer, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+
+		switch (kind) {
+			case ENTITIES:
+				while (out.hasRemaining()) {
+					String entity = "{\n\"origin\" \"" + (random.nextInt(8192) - 4096) + " " + (random.nextInt(8192) - 4096) + " " + random.nextInt(1024)
+						+ "\"\n\"targetname\" \"ent_" + random.nextInt(512) + "\"\n\"classname\" \"" + CLASSNAMES[random.nextInt(CLASSNAMES.length)] + "\"\n}\n";
+
+					byte[] bytes = entity.getBytes(StandardCharsets.US_ASCII);
+
+					out.put(bytes, 0, Math.min(bytes.length, out.remaining()));
+				}
+				break;
+			case FLOATS:
+				// Vertices on a coarse grid with a little noise, like brush geometry.
+				while (out.remaining() >= 4) {
+					out.putFloat((random.nextInt(512) - 256) * 16 + (random.nextInt(8) == 0 ? random.nextFloat() : 0));
+				}
+				break;
+			case INDICES:
+				// Mostly increasing indices, as edges and surfedges are.
+				int index = random.nextInt(65536);
+
+				while (out.remaining() >= 4) {
+					index += random.nextInt(4) - 1;
+					out.putInt(random.nextInt(16) == 0 ? -index : index);
+				}
+				break;
+			case STRUCTS:
+				// Records of a few small fields each.
+				while (out.remaining() >= 16) {
+					out.putShort((short) random.nextInt(4096));
+					out.putShort((short) random.nextInt(64));
+					out.putInt(random.nextInt(1 << 16));
+					out.putInt(random.nextInt(32));
+					out.putInt(0);
+				}
+				break;
+			case LIGHTING:
+				// Smooth gradients of RGBE samples.
+				int r = random.nextInt(256), g = random.nextInt(256), b = random.nextInt(256);
+
+				byte exponent = (byte) -random.nextInt(3);
+
+				while (out.remaining() >= 4) {
+					r = (r + random.nextInt(3) - 1) & 0xFF;
+					g = (g + random.nextInt(3) - 1) & 0xFF;
+					b = (b + random.nextInt(3) - 1) & 0xFF;
+
+					out.put((byte) r).put((byte) g).put((byte) b).put(exponent);
+				}
+				break;
+			case PAK:
+				// Already compressed textures and sounds, with a few stored material files between them.
+				if (random.nextInt(6) == 0) {
+					while (out.hasRemaining()) {
+						String material = "\"VertexLitGeneric\"\n{\n\t\"$basetexture\" \"maps/custom/tex_" + random.nextInt(4096) + "\"\n\t\"$surfaceprop\" \""
+							+ SURFACES[random.nextInt(SURFACES.length)] + "\"\n}\n";
+
+						byte[] bytes = material.getBytes(StandardCharsets.US_ASCII);
+
+						out.put(bytes, 0, Math.min(bytes.length, out.remaining()));
+					}
+				} else {
+					random.nextBytes(buffer);
+					out.position(length);
+				}
+				break;
+		}
+
+		// Whatever the pattern couldn't fill.
+		while (out.hasRemaining()) {
+			out.put((byte) 0);
+		}
+	}
+
+	/**
+	 * The kinds of lump data.
+	 */
+	private enum Kind {
+		ENTITIES, FLOATS, INDICES, STRUCTS, LIGHTING, PAK
+	}
+
+	/**
+	 * A lump in the generated layout.
+	 */
+	private static class Lump {
+
+		/**
+		 * The lump index in the header.
+		 */
+		private final int index;
+
+		/**
+		 * The kind of data in the lump.
+		 */
+		private final Kind kind;
+
+		/**
+		 * The lump's share of the file, in percent.
+		 */
+		private final int share;
+
+		/**
+		 * Construct a new lump.
+		 *
+		 * @param index The lump index in the header.
+		 * @param kind The kind of data in the lump.
+		 * @param share The lump's share of the file, in percent.
+		 */
+		private Lump(int index, Kind kind, int share) {
+			this.index = index;
+			this.kind = kind;
+			this.share = share;
+		}
+	}
+}
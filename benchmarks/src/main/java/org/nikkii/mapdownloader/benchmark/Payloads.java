@@ -0,0 +1,93 @@
+package org.nikkii.mapdownloader.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Finds the generated payloads, generating them if the build didn't.
+ *
+ * @author Nikki
+ */
+public class Payloads {
+
+	/**
+	 * The system property holding the payload directory.
+	 */
+	public static final String DIRECTORY_PROPERTY = "mapdownloader.benchmark.payloads";
+
+	/**
+	 * The payload directory used if the property isn't set.
+	 */
+	public static final String DEFAULT_DIRECTORY = "target/payloads";
+
+	/**
+	 * Get the payload directory.
+	 *
+	 * @return The directory.
+	 */
+	public static File getDirectory() {
+		return new File(System.getProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY));
+	}
+
+	/**
+	 * Get a map, generating it if needed.
+	 *
+	 * @param megabytes The map size in megabytes.
+	 * @return The map.
+	 * @throws IOException If the map can't be generated.
+	 */
+	public static File map(int megabytes) throws IOException {
+		ensure(megabytes);
+
+		return getMap(getDirectory(), megabytes);
+	}
+
+	/**
+	 * Get a map's bzip2 archive, generating it if needed.
+	 *
+	 * @param megabytes The map size in megabytes.
+	 * @return The archive.
+	 * @throws IOException If the archive can't be generated.
+	 */
+	public static File archive(int megabytes) throws IOException {
+		ensure(megabytes);
+
+		return getArchive(getDirectory(), megabytes);
+	}
+
+	/**
+	 * Get where a map is kept.
+	 *
+	 * @param directory The payload directory.
+	 * @param megabytes The map size in megabytes.
+	 * @return The map file.
+	 */
+	public static File getMap(File directory, int megabytes) {
+		return new File(directory, "payload_" + megabytes + "m.bsp");
+	}
+
+	/**
+	 * Get where a map's bzip2 archive is kept.
+	 *
+	 * @param directory The payload directory.
+	 * @param megabytes The map size in megabytes.
+	 * @return The archive file.
+	 */
+	public static File getArchive(File directory, int megabytes) {
+		return new File(directory, "payload_" + megabytes + "m.bsp.bz2");
+	}
+
+	/**
+	 * Generate a payload if it's missing.
+	 *
+	 * @param megabytes The map size in megabytes.
+	 * @throws IOException If the payload can't be generated.
+	 */
+	private static synchronized void ensure(int megabytes) throws IOException {
+		File directory = getDirectory();
+
+		if (!getMap(directory, megabytes).exists() || !getArchive(directory, megabytes).exists()) {
+			PayloadGenerator.generate(directory, megabytes);
+		}
+	}
+}
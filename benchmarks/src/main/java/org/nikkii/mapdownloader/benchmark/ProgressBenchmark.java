@@ -0,0 +1,94 @@
+package org.nikkii.mapdownloader.benchmark;
+
+import org.nikkii.mapdownloader.maps.MapSource;
+import org.nikkii.mapdownloader.metrics.Metrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures what the read loops pay per chunk to report progress. Listeners are called from the progress hub's timer,
+ * so all a read does is bump the download's counter and the source's metrics. The contended variants run four
+ * threads against the same counters, as parallel segments of one download do.
+ *
+ * @author Nikki
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProgressBenchmark {
+
+	/**
+	 * The bytes counted per read, the size of a streamed download's buffer.
+	 */
+	private static final int READ = 10240;
+
+	/**
+	 * The source counted against.
+	 */
+	private final MapSource source = new MapSource("benchmark", "http://127.0.0.1/", 0);
+
+	/**
+	 * The download's progress counter.
+	 */
+	private final AtomicLong downloaded = new AtomicLong();
+
+	/**
+	 * Bump the progress counter.
+	 *
+	 * @return The new count.
+	 */
+	@Benchmark
+	public long counter() {
+		return downloaded.addAndGet(READ);
+	}
+
+	/**
+	 * Bump the progress counter and the source's metrics, as every read does.
+	 *
+	 * @return The new count.
+	 */
+	@Benchmark
+	public long counterAndMetrics() {
+		Metrics.getDefault().getSource(source).recordBytes(READ);
+
+		return downloaded.addAndGet(READ);
+	}
+
+	/**
+	 * Bump the progress counter from several threads.
+	 *
+	 * @return The new count.
+	 */
+	@Benchmark
+	@Threads(4)
+	public long counterContended() {
+		return downloaded.addAndGet(READ);
+	}
+
+	/**
+	 * Bump the progress counter and the source's metrics from several threads.
+	 *
+	 * @return The new count.
+	 */
+	@Benchmark
+	@Threads(4)
+	public long counterAndMetricsContended() {
+		Metrics.getDefault().getSource(source).recordBytes(READ);
+
+		return downloaded.addAndGet(READ);
+	}
+}
@@ -0,0 +1,164 @@
+package org.nikkii.mapdownloader.benchmark;
+
+import org.nikkii.mapdownloader.download.MapDownloader;
+import org.nikkii.mapdownloader.download.RetryPolicy;
+import org.nikkii.mapdownloader.maps.Map;
+import org.nikkii.mapdownloader.maps.MapSource;
+import org.nikkii.mapdownloader.server.FastDlServer;
+import org.nikkii.mapdownloader.server.Faults;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a map from a misbehaving {@link FastDlServer}, to see what slow and flaky servers cost on top of a clean
+ * download and that the engine still finishes.
+ *
+ * @author Nikki
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ResilienceBenchmark {
+
+	/**
+	 * Retries as the default policy does, with delays short enough not to drown out the download itself.
+	 */
+	private static final RetryPolicy RETRY_POLICY = new RetryPolicy(3, 10, 100);
+
+	/**
+	 * The map size in megabytes.
+	 */
+	@Param({"16"})
+	public int size;
+
+	/**
+	 * Whether the archive is decompressed as it arrives, instead of being staged first.
+	 */
+	@Param({"false", "true"})
+	public boolean streamed;
+
+	/**
+	 * The fault injected: "none", "latency" for 50ms before every response, "throttled" for 32 MB/s, "drop" to cut
+	 * the first response off halfway, "dropNoRange" to also ignore the range request resuming it.
+	 */
+	@Param({"none", "latency", "throttled", "drop", "dropNoRange"})
+	public String fault;
+
+	/**
+	 * The server.
+	 */
+	private FastDlServer server;
+
+	/**
+	 * The map served.
+	 */
+	private Map map;
+
+	/**
+	 * The archive served.
+	 */
+	private File archive;
+
+	/**
+	 * The directory maps are installed into.
+	 */
+	private File directory;
+
+	/**
+	 * Start the server.
+	 *
+	 * @throws IOException If the server can't be started.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		archive = Payloads.archive(size);
+
+		server = new FastDlServer(archive.getParentFile(), FastDlServer.Style.NGINX);
+		server.start();
+
+		map = new Map(new MapSource("loopback", server.getUrl(), 0), archive.getName(), "payload", true);
+
+		directory = Files.createTempDirectory("maps").toFile();
+	}
+
+	/**
+	 * Set the faults up again, since drops are used up by the download before.
+	 */
+	@Setup(Level.Invocation)
+	public void setUpFaults() {
+		Faults faults = server.getFaults().reset();
+
+		switch (fault) {
+			case "latency":
+				faults.setLatency(50);
+				break;
+			case "throttled":
+				faults.setBandwidth(32 * 1024 * 1024);
+				break;
+			case "drop":
+				faults.setDrop(archive.length() / 2, 1);
+				break;
+			case "dropNoRange":
+				faults.setDrop(archive.length() / 2, 1).setIgnoreRange(true);
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Stop the server and remove the installed map.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.stop();
+
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+
+		directory.delete();
+	}
+
+	/**
+	 * Download and install the map.
+	 *
+	 * @return The amount of bytes downloaded.
+	 * @throws IOException If the download fails despite the retries.
+	 */
+	@Benchmark
+	public long download() throws IOException {
+		MapDownloader downloader = new MapDownloader(map, new File(directory, "payload.bsp"));
+
+		downloader.setRaceMirrors(1);
+		downloader.setRetryPolicy(RETRY_POLICY);
+		downloader.setStreamDecompression(streamed);
+
+		downloader.run();
+
+		if (downloader.getError() != null) {
+			throw downloader.getError();
+		}
+
+		return downloader.getDownloaded();
+	}
+}
@@ -1,25 +1,31 @@
 package org.nikkii.mapdownloader;
 
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import org.nikkii.mapdownloader.download.BandwidthLimiter;
 import org.nikkii.mapdownloader.maps.Map;
+import org.nikkii.mapdownloader.maps.MapCatalog;
 import org.nikkii.mapdownloader.maps.MapSource;
+import org.nikkii.mapdownloader.metrics.PrometheusExporter;
+import org.nikkii.mapdownloader.net.HttpClient;
+import org.nikkii.mapdownloader.util.FormatUtil;
 import org.nikkii.mapdownloader.util.WinRegistry;
 
 import javax.swing.Box;
+import javax.swing.ButtonGroup;
 import javax.swing.JButton;
 import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
+import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
+import javax.swing.JRadioButtonMenuItem;
 import javax.swing.UIManager;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -36,16 +42,22 @@ public class MapDownloader {
 	};
 
 	/**
-	 * The download sources.
+	 * The download sources, which can be overridden with the {@link MapCatalog#SOURCES_PROPERTY} system property.
 	 */
-	private static final MapSource[] SOURCES = new MapSource[] {
-		new MapSource("ProbablyAServer", "http://cdn.probablyaserver.com/tf/maps/", 0),
-		new MapSource("FakkelBrigade", "http://fakkelbrigade.eu/maps/", 1)
+	private static final MapSource[] SOURCES = MapCatalog.getSources();
+
+	/**
+	 * The download speed limits to choose from, in bytes per second. 0 is unlimited.
+	 */
+	private static final long[] SPEED_LIMITS = new long[] {
+		0, 512 * 1024, 1024 * 1024, 5 * 1024 * 1024, 10 * 1024 * 1024
 	};
 
 	public static void main(String[] args) throws Exception {
 		UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
 
+		PrometheusExporter.fromSystemProperties();
+
 		new MapDownloader();
 	}
 
@@ -92,6 +104,8 @@ public class MapDownloader {
 	 * Initialize the JMenu.
 	 */
 	private void initFrame() {
+		final JFrame frame = new JFrame("Map Downloader");
+
 		JMenuBar menu = new JMenuBar();
 
 		final JMenu sources = new JMenu("Sources");
@@ -102,8 +116,69 @@ public class MapDownloader {
 			sources.add(sourceItem);
 		}
 
+		// Show what each source has been measured at, so it's clear why one is picked over another.
+		sources.addMenuListener(new MenuListener() {
+			@Override
+			public void menuSelected(MenuEvent e) {
+				for (int i = 0; i < SOURCES.length; i++) {
+					MapSource source = SOURCES[i];
+
+					String statistics = mapPanel.getSourceStatistics().describe(source);
+
+					JMenuItem item = sources.getItem(i);
+
+					item.setText(statistics != null ? source.getName() + " (" + statistics + ")" : source.getName() + " (no downloads yet)");
+				}
+			}
+
+			@Override
+			public void menuDeselected(MenuEvent e) {
+
+			}
+
+			@Override
+			public void menuCanceled(MenuEvent e) {
+
+			}
+		});
+
 		menu.add(sources);
 
+		JMenu speed = new JMenu("Speed");
+
+		addSpeedItems(speed, BandwidthLimiter.getDefault());
+
+		speed.addSeparator();
+
+		// Each source can be limited on top of the overall limit, to go easy on a small community server.
+		for (MapSource source : SOURCES) {
+			JMenu sourceSpeed = new JMenu(source.getName());
+
+			addSpeedItems(sourceSpeed, BandwidthLimiter.getDefault().getSourceLimiter(source));
+
+			speed.add(sourceSpeed);
+		}
+
+		speed.addSeparator();
+
+		JMenuItem schedule = new JMenuItem("Schedule...");
+		schedule.addActionListener(e -> editSchedule(frame));
+		speed.add(schedule);
+
+		menu.add(speed);
+
+		JMenu maps = new JMenu("Maps");
+
+		JMenuItem sync = new JMenuItem("Sync installed maps");
+		sync.addActionListener(e -> mapPanel.syncInstalledMaps());
+		maps.add(sync);
+
+		JMenuItem verify = new JMenuItem("Verify installed maps");
+		verify.addActionListener(e -> mapPanel.verifyInstalledMaps());
+		maps.add(verify);
+
+		menu.add(maps);
+
 		menu.add(Box.createHorizontalGlue());
 
 		JButton downloadSelected = new JButton("Download");
@@ -114,7 +189,6 @@ public class MapDownloader {
 
 		menu.add(downloadSelected);
 
-		JFrame frame = new JFrame("Map Downloader");
 		frame.add(mapPanel);
 		frame.setJMenuBar(menu);
 		frame.setResizable(false);
@@ -123,12 +197,65 @@ public class MapDownloader {
 		frame.setVisible(true);
 	}
 
+	/**
+	 * Add a choice of every speed limit to a menu.
+	 *
+	 * @param menu The menu.
+	 * @param limiter The limiter the chosen limit is set on.
+	 */
+	private static void addSpeedItems(JMenu menu, final BandwidthLimiter limiter) {
+		ButtonGroup speedGroup = new ButtonGroup();
+
+		for (int i = 0; i < SPEED_LIMITS.length; i++) {
+			final long limit = SPEED_LIMITS[i];
+
+			JRadioButtonMenuItem speedItem = new JRadioButtonMenuItem(limit > 0 ? FormatUtil.humanReadableByteCount(limit, false) + "/s" : "Unlimited", limit == limiter.getRate());
+
+			// Running downloads pick up the new limit right away.
+			speedItem.addActionListener(e -> limiter.setRate(limit));
+
+			speedGroup.add(speedItem);
+			menu.add(speedItem);
+		}
+	}
+
+	/**
+	 * Ask for the speed limits to use during certain times of day, replacing the current ones.
+	 *
+	 * @param frame The frame to show the dialog over.
+	 */
+	private static void editSchedule(JFrame frame) {
+		String current = BandwidthLimiter.getDefault().getSchedule();
+
+		while (true) {
+			String schedule = (String) JOptionPane.showInputDialog(frame,
+				"Speed limits by time of day, in bytes per second with k and m suffixes, 0 for unlimited.\n" +
+				"Separate times with commas, like 18:00-23:30=512k,23:30-06:00=0. Leave empty for none.",
+				"Schedule", JOptionPane.PLAIN_MESSAGE, null, null, current);
+
+			if (schedule == null) {
+				return;
+			}
+
+			try {
+				BandwidthLimiter.getDefault().setSchedule(schedule);
+				return;
+			} catch (IllegalArgumentException e) {
+				JOptionPane.showMessageDialog(frame, e.getMessage(), "Schedule", JOptionPane.ERROR_MESSAGE);
+
+				current = schedule;
+			}
+		}
+	}
+
 	/**
 	 * Load the maps from the directory listings.
 	 */
 	public void loadMaps() {
 		List<Map> maps = new ArrayList<>();
 
+		MapCatalog catalog = new MapCatalog(HttpClient.getDefault());
+
 		mapPanel.setStatusLabelText("Downloading map lists...");
 
 		mapPanel.getProgressBar().setIndeterminate(true);
@@ -137,26 +264,13 @@ public class MapDownloader {
 			try {
 				mapPanel.setStatusLabelText("Downloading map list for " + source.getName() + "...");
 
-				Document document = Jsoup.connect(source.getUrl()).get();
-
-				Elements links = document.select("a");
-
-				int count = 0;
+				List<Map> sourceMaps = catalog.load(source);
 
-				for (Element link : links) {
-					String href = link.attr("href");
-
-					if (href.endsWith(".bsp") || href.endsWith(".bsp.bz2")) {
-						String mapName = href.substring(0, href.indexOf('.'));
-
-						maps.add(new Map(source, href, mapName, href.indexOf(".bz2") != -1));
-						count++;
-					}
-				}
+				maps.addAll(sourceMaps);
 
 				mapPanel.setSourceEnabled(source, true);
 
-				System.out.println("Loaded " + count + " maps from " + source.getName());
+				System.out.println("Loaded " + sourceMaps.size() + " maps from " + source.getName());
 			} catch (IOException e) {
 				// Skip
 			}
@@ -166,22 +280,7 @@ public class MapDownloader {
 
 		mapPanel.setStatusLabelText("Status: Idle.");
 
-		Collections.sort(maps, new Comparator<Map>() {
-			@Override
-			public int compare(Map map1, Map map2) {
-				int comp = map1.getName().compareToIgnoreCase(map2.getName());
-
-				if (comp == 0) {
-					if (map1.getSource().getPriority() < map2.getSource().getPriority()) {
-						return -1;
-					} else if(map1.getSource().getPriority() > map2.getSource().getPriority()) {
-						return 1;
-					}
-				}
-
-				return comp;
-			}
-		});
+		Collections.sort(maps, MapCatalog.ORDER);
 
 		mapPanel.addMaps(maps.toArray(new Map[maps.size()]));
 	}
@@ -1,15 +1,26 @@
 package org.nikkii.mapdownloader;
 
+import org.nikkii.mapdownloader.download.ArchiveCache;
+import org.nikkii.mapdownloader.download.BspValidator;
 import org.nikkii.mapdownloader.download.DecompressProgressListener;
+import org.nikkii.mapdownloader.download.DownloadJob;
 import org.nikkii.mapdownloader.download.DownloadProgressListener;
+import org.nikkii.mapdownloader.download.DownloadScheduler;
 import org.nikkii.mapdownloader.download.MapDownloader;
+import org.nikkii.mapdownloader.download.MapSync;
+import org.nikkii.mapdownloader.download.MapVerifier;
+import org.nikkii.mapdownloader.download.ProgressSummary;
 import org.nikkii.mapdownloader.maps.Map;
+import org.nikkii.mapdownloader.maps.MapIndex;
 import org.nikkii.mapdownloader.maps.MapSource;
+import org.nikkii.mapdownloader.maps.SourceStatistics;
 import org.nikkii.mapdownloader.maps.filter.DuplicateMapFilter;
 import org.nikkii.mapdownloader.maps.filter.MapNameFilter;
 import org.nikkii.mapdownloader.maps.filter.MapSourceFilter;
 import org.nikkii.mapdownloader.maps.filter.StockMapFilter;
+import org.nikkii.mapdownloader.net.HttpClient;
 import org.nikkii.mapdownloader.util.InstalledListWatcher;
+import org.nikkii.mapdownloader.util.TaskExecutors;
 import org.nikkii.mapdownloader.util.WatcherCallback;
 import org.nikkii.mapdownloader.util.ui.FilteredListModel;
 import org.nikkii.mapdownloader.util.ui.PlaceholderTextField;
@@ -22,6 +33,7 @@ import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JProgressBar;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Point;
@@ -31,9 +43,9 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 
 /**
  * @author Nikki
@@ -85,25 +97,50 @@ public class MapDownloaderPanel extends javax.swing.JPanel {
 	private final DuplicateMapFilter duplicateFilter = new DuplicateMapFilter();
 
 	/**
-	 * The downloader instance. This'll be null unless we already have a download going.
+	 * The download scheduler, which queues and runs every download.
 	 */
-	private MapDownloader downloader;
+	private final DownloadScheduler scheduler = new DownloadScheduler();
 
 	/**
-	 * The download queue.
+	 * The archive cache, if one is configured.
 	 */
-	private Queue<Map> queue = new LinkedList<>();
+	private final ArchiveCache archiveCache = ArchiveCache.fromSystemProperties();
+
+	/**
+	 * The index of installed maps, for the map folder.
+	 */
+	private MapIndex mapIndex;
+
+	/**
+	 * How well each source performed, used to pick the source to download from.
+	 */
+	private final SourceStatistics sourceStatistics = new SourceStatistics(SourceStatistics.getDefaultFile());
+
+	/**
+	 * The jobs which haven't finished yet.
+	 */
+	private final List<DownloadJob> jobs = new LinkedList<>();
 
 	/**
 	 * A list of preloaded installed maps.
 	 */
 	private List<String> installedMaps = new LinkedList<>();
 
+	/**
+	 * Shows the progress of the running downloads on the status label and progress bar.
+	 */
+	private ProgressSummary progressSummary;
+
 	/**
 	 * Creates new form MapDownloader
 	 */
 	public MapDownloaderPanel() {
 		initComponents();
+
+		progressSummary = new ProgressSummary(currentFileLabel, progressBar);
+
+		// Stop the downloads on exit, so their partial files can be resumed next time.
+		TaskExecutors.addShutdownTask(scheduler::shutdown);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -193,10 +230,6 @@ public class MapDownloaderPanel extends javax.swing.JPanel {
 						return;
 					}
 
-					if (downloader != null) {
-						return;
-					}
-
 					Map map = (Map) filteredModel.getElementAt(index);
 
 					if (mapFolder == null || !mapFolder.exists()) {
@@ -210,6 +243,7 @@ public class MapDownloaderPanel extends javax.swing.JPanel {
 
 						if (confirm == JOptionPane.YES_OPTION) {
 							mapFile.delete();
+							mapIndex.remove(map.getName());
 						}
 					} else {
 						int confirm = JOptionPane.showConfirmDialog(MapDownloaderPanel.this, "Do you wish to download " + map + "?", "Download map", JOptionPane.YES_NO_OPTION);
@@ -295,7 +329,7 @@ public class MapDownloaderPanel extends javax.swing.JPanel {
 	 * @param map The map to download.
 	 */
 	private void downloadMap(Map map) {
-		if (!installPath.exists() || downloader != null) {
+		if (!installPath.exists() || isQueued(map)) {
 			return;
 		}
 
@@ -305,37 +339,78 @@ public class MapDownloaderPanel extends javax.swing.JPanel {
 			mapFolder.mkdirs();
 		}
 
-		downloader = new MapDownloader(map, new File(mapFolder, map.getName() + ".bsp"));
+		List<Map> mirrors = getMirrors(map);
 
-		downloader.addListener(new DownloadProgressListener(currentFileLabel, progressBar, map));
+		// Start from the source expected to finish first, the mirror race may still pick another.
+		Map preferred = mirrors.isEmpty() ? map : mirrors.get(0);
 
-		downloader.addListener(new ProgressAdaptor() {
-			@Override
-			public void progressFinished() {
-				downloader = null;
+		MapDownloader downloader = new MapDownloader(preferred, new File(mapFolder, map.getName() + ".bsp"));
 
-				if (!queue.isEmpty()) {
-					downloadMap(queue.poll());
-				} else {
-					downloadButton.setText("Download");
-				}
+		downloader.setMirrors(mirrors);
+		downloader.setStatistics(sourceStatistics);
+		downloader.setIndex(mapIndex);
+		downloader.setCache(archiveCache);
+
+		// Every job gets its own entry, the summary combines the running ones.
+		final ProgressSummary.Entry entry = progressSummary.add(map.getName());
+
+		downloader.addListener(new DownloadProgressListener(entry, map));
+
+		downloader.addDecompressorListener(new DecompressProgressListener(entry, DECOMPRESS_FORMAT.replace("{map}", map.getName())));
+
+		final DownloadJob job = scheduler.submit(downloader);
+
+		jobs.add(job);
+
+		job.addCompletionListener(() -> SwingUtilities.invokeLater(() -> {
+			jobs.remove(job);
+
+			entry.remove(null);
+
+			if (jobs.isEmpty()) {
+				downloadButton.setText("Download");
 			}
-		});
+		}));
 
-		downloader.addDecompressorListener(new ProgressAdaptor() {
-			@Override
-			public void progressStarted(long fileSize) {
-				downloadButton.setEnabled(false);
+		downloadButton.setText("Cancel");
+	}
+
+	/**
+	 * Find the map on every enabled source.
+	 *
+	 * @param map The map.
+	 * @return The maps with the same name, fastest expected source first.
+	 */
+	private List<Map> getMirrors(Map map) {
+		List<Map> mirrors = new ArrayList<>();
+
+		synchronized (mapListModel) {
+			for (int i = 0; i < mapListModel.getSize(); i++) {
+				Map other = (Map) mapListModel.getElementAt(i);
+
+				if (other.getName().equals(map.getName()) && sourceFilter.accept(other)) {
+					mirrors.add(other);
+				}
 			}
+		}
 
-			@Override
-			public void progressFinished() {
-				downloadButton.setEnabled(true);
+		return sourceStatistics.rank(mirrors);
+	}
+
+	/**
+	 * Check whether a map is already queued or downloading.
+	 *
+	 * @param map The map.
+	 * @return Whether a job for the map exists.
+	 */
+	private boolean isQueued(Map map) {
+		for (DownloadJob job : jobs) {
+			if (job.getMap().getName().equals(map.getName())) {
+				return true;
 			}
-		});
-		downloader.addDecompressorListener(new DecompressProgressListener(currentFileLabel, progressBar, DECOMPRESS_FORMAT.replace("{map}", map.getName())));
+		}
 
-		downloader.start();
+		return false;
 	}
 
 
@@ -391,16 +466,21 @@ public class MapDownloaderPanel extends javax.swing.JPanel {
 			mapFolder.mkdirs();
 		}
 
+		this.mapIndex = new MapIndex(new File(mapFolder, MapIndex.FILE_NAME));
+
 		for (File file : mapFolder.listFiles()) {
 			String f = file.getName();
 
-			if (!f.contains("bsp")) continue;
+			// Only finished maps, not .part files still being downloaded.
+			if (!f.endsWith(".bsp")) continue;
 
 			f = f.substring(0, f.indexOf('.'));
 
 			installedMaps.add(f);
 		}
 
+		scanInstalledMaps();
+
 		File stockFolder = new File("tf/maps");
 
 		if (stockFolder.exists()) {
@@ -435,12 +515,50 @@ public class MapDownloaderPanel extends javax.swing.JPanel {
 					}
 				}
 			});
-			new Thread(watcher).start();
+			TaskExecutors.execute("map-watcher", watcher);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Check the headers of the installed maps in the background. Damaged maps aren't shown as installed anymore, so
+	 * they can be downloaded again.
+	 */
+	private void scanInstalledMaps() {
+		final BspValidator validator = new BspValidator(mapFolder);
+
+		TaskExecutors.execute("map-scan", () -> {
+			BspValidator.Result result;
+
+			try {
+				result = validator.scan();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			System.out.println("Scan: " + result);
+
+			final java.util.Map<String, String> damaged = result.getDamaged();
+
+			if (damaged.isEmpty()) {
+				return;
+			}
+
+			for (java.util.Map.Entry<String, String> entry : damaged.entrySet()) {
+				System.out.println("Damaged map " + entry.getKey() + ": " + entry.getValue());
+			}
+
+			SwingUtilities.invokeLater(() -> {
+				installedMaps.removeAll(damaged.keySet());
+
+				filteredModel.doFilter();
+
+				setStatusLabelText("Found " + damaged.size() + " damaged maps, download them again to repair them.");
+			});
+		});
+	}
+
 	/**
 	 * Enable/Disable a source.
 	 *
@@ -461,6 +579,15 @@ public class MapDownloaderPanel extends javax.swing.JPanel {
 		currentFileLabel.setText(text);
 	}
 
+	/**
+	 * Get the source statistics.
+	 *
+	 * @return The statistics.
+	 */
+	public SourceStatistics getSourceStatistics() {
+		return sourceStatistics;
+	}
+
 	/**
 	 * Get the progress bar.
 	 *
@@ -470,13 +597,104 @@ public class MapDownloaderPanel extends javax.swing.JPanel {
 		return progressBar;
 	}
 
+	/**
+	 * Check every installed map against its source and download the ones which changed.
+	 */
+	public void syncInstalledMaps() {
+		if (mapIndex == null) {
+			return;
+		}
+
+		final List<Map> maps = new ArrayList<>();
+
+		synchronized (mapListModel) {
+			for (int i = 0; i < mapListModel.getSize(); i++) {
+				maps.add((Map) mapListModel.getElementAt(i));
+			}
+		}
+
+		final MapSync sync = new MapSync(HttpClient.getDefault(), mapIndex, mapFolder, MapSync.DEFAULT_CONCURRENCY);
+
+		setStatusLabelText("Checking installed maps for updates...");
+
+		progressBar.setIndeterminate(true);
+
+		TaskExecutors.execute("map-sync", () -> {
+			MapSync.Result result;
+
+			try {
+				result = sync.sync(maps);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			System.out.println("Sync: " + result);
+
+			SwingUtilities.invokeLater(() -> {
+				progressBar.setIndeterminate(false);
+
+				setStatusLabelText("Sync: " + result);
+
+				for (Map map : result.getChanged()) {
+					downloadMap(map);
+				}
+			});
+		});
+	}
+
+	/**
+	 * Verify every installed map against the digest recorded when it was installed, in the background, and download
+	 * the damaged ones again.
+	 */
+	public void verifyInstalledMaps() {
+		if (mapIndex == null) {
+			return;
+		}
+
+		final MapVerifier verifier = new MapVerifier(mapIndex, mapFolder);
+
+		setStatusLabelText("Verifying installed maps...");
+
+		progressBar.setIndeterminate(true);
+
+		TaskExecutors.execute("map-verify", () -> {
+			MapVerifier.Result result;
+
+			try {
+				result = verifier.verify();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			System.out.println("Verify: " + result);
+
+			SwingUtilities.invokeLater(() -> {
+				progressBar.setIndeterminate(false);
+
+				setStatusLabelText("Verify: " + result);
+
+				List<String> corrupt = result.getCorrupt();
+
+				synchronized (mapListModel) {
+					for (int i = 0; i < mapListModel.getSize(); i++) {
+						Map map = (Map) mapListModel.getElementAt(i);
+
+						MapIndex.Entry entry = mapIndex.get(map.getName());
+
+						// Fetch it again from the source it came from.
+						if (corrupt.contains(map.getName()) && entry != null && entry.getUrl().equals(map.getUrl())) {
+							downloadMap(map);
+						}
+					}
+				}
+			});
+		});
+	}
+
 	public void downloadSelectedMaps() {
 		if (downloadButton.getText().equals("Cancel")) {
-			queue.clear();
-			// Cancel the current download if possible.
-			if (downloader != null) {
-				downloader.cancel();
-			}
+			// Drop anything queued and stop the running downloads.
+			scheduler.cancelAll();
 			return;
 		}
 
@@ -494,18 +712,11 @@ public class MapDownloaderPanel extends javax.swing.JPanel {
 			if (delete) {
 				if (mapExists(map)) {
 					new File(mapFolder, map.getName() + ".bsp").delete();
+					mapIndex.remove(map.getName());
 				}
 			} else {
-				queue.add(map);
+				downloadMap(map);
 			}
 		}
-
-		if (!queue.isEmpty()) {
-			if (downloader == null) {
-				downloadMap(queue.poll());
-			}
-
-			downloadButton.setText("Cancel");
-		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,567 @@
+package org.nikkii.mapdownloader.cli;
+
+import org.nikkii.mapdownloader.download.ArchiveCache;
+import org.nikkii.mapdownloader.download.BandwidthLimiter;
+import org.nikkii.mapdownloader.download.BspValidator;
+import org.nikkii.mapdownloader.download.DownloadJob;
+import org.nikkii.mapdownloader.download.DownloadScheduler;
+import org.nikkii.mapdownloader.download.MapDownloader;
+import org.nikkii.mapdownloader.download.MapSync;
+import org.nikkii.mapdownloader.maps.Map;
+import org.nikkii.mapdownloader.maps.MapCatalog;
+import org.nikkii.mapdownloader.maps.MapIndex;
+import org.nikkii.mapdownloader.maps.MapSource;
+import org.nikkii.mapdownloader.maps.SourceStatistics;
+import org.nikkii.mapdownloader.metrics.Metrics;
+import org.nikkii.mapdownloader.metrics.PrometheusExporter;
+import org.nikkii.mapdownloader.net.HttpClient;
+import org.nikkii.mapdownloader.util.TaskExecutors;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads maps without a GUI, for servers and scripts.
+ *
+ * Maps are named on the command line or read from mapcycle files, resolved against the source listings and
+ * downloaded through the same engine the GUI uses. Everything printed to standard output is one event per line, tab
+ * separated, with the event name first:
+ *
+ * <pre>
+ * source    name  maps
+ * missing   map
+ * damaged   map   problem
+ * skipped   map   installed
+ * queued    map   source
+ * progress  map   bytes  total  bytesPerSecond
+ * finished  map   source  size
+ * failed    map   message
+ * summary   requested=n  changed=n  finished=n  skipped=n  missing=n  failed=n
+ * </pre>
+ *
+ * A queued line names the source the download starts on, its finished line the source the map came from, which
+ * differs if another mirror won the race or the download failed over to one. Requested counts the maps named, changed
+ * the installed maps downloaded again while syncing without being named, so every map either was skipped, is missing,
+ * finished or failed: finished + failed = requested + changed - skipped - missing.
+ *
+ * The exit code is 0 if every map was installed, 1 if any map is missing or failed, and 2 for bad arguments.
+ *
+ * @author Nikki
+ */
+public class MapDownloaderCli {
+
+	/**
+	 * The exit code for a run where every map was installed.
+	 */
+	public static final int EXIT_OK = 0;
+
+	/**
+	 * The exit code for a run where a map is missing or failed.
+	 */
+	public static final int EXIT_FAILED = 1;
+
+	/**
+	 * The exit code for bad arguments.
+	 */
+	public static final int EXIT_USAGE = 2;
+
+	/**
+	 * The usage text.
+	 */
+	private static final String USAGE = String.join(System.lineSeparator(),
+		"Usage: mapdownloader --dir <map folder> [options] [map ...]",
+		"  --dir <folder>        Folder maps are installed into, like tf/download/maps.",
+		"  --mapcycle <file>     Read map names from a mapcycle file. May be repeated.",
+		"  --source <name=url>   Download from this source instead of the defaults. May be repeated, earlier is preferred.",
+		"  --workers <n>         Maps downloaded at once, default " + DownloadScheduler.DEFAULT_WORKERS + ".",
+		"  --limit <rate>        Bandwidth limit in bytes per second, k and m suffixes allowed. 0 is unlimited.",
+		"  --source-limit <name=rate>",
+		"                        Bandwidth limit for a single source, on top of the others. May be repeated.",
+		"  --schedule <HH:MM-HH:MM=rate>",
+		"                        Bandwidth limit during a time of day, instead of --limit. May be repeated.",
+		"  --sync                Also download every installed map which changed on its source or is damaged.",
+		"  --force               Download maps even if they're already installed.",
+		"  --no-delta            Download changed maps whole, even if their source publishes block signatures.",
+		"  --interval <seconds>  Time between progress lines, default 1.",
+		"  --every <minutes>     Keep running as a daemon, syncing again every n minutes.",
+		"  --metrics-port <port> Serve Prometheus metrics on http://localhost:<port>/metrics.");
+
+	/**
+	 * Where events are printed.
+	 */
+	private final PrintStream out;
+
+	/**
+	 * The folder maps are installed into.
+	 */
+	private File mapFolder;
+
+	/**
+	 * The map names to download, in the order given.
+	 */
+	private final Set<String> names = new LinkedHashSet<>();
+
+	/**
+	 * The sources to download from.
+	 */
+	private final List<MapSource> sources = new ArrayList<>();
+
+	/**
+	 * The bandwidth limit of each source by source name, applied once the sources are known.
+	 */
+	private final java.util.Map<String, Long> sourceLimits = new LinkedHashMap<>();
+
+	/**
+	 * The amount of maps downloaded at once.
+	 */
+	private int workers = DownloadScheduler.DEFAULT_WORKERS;
+
+	/**
+	 * Whether installed maps are checked for updates.
+	 */
+	private boolean sync = false;
+
+	/**
+	 * Whether installed maps are downloaded again.
+	 */
+	private boolean force = false;
+
+	/**
+	 * Whether changed maps are updated by downloading only the blocks which changed.
+	 */
+	private boolean delta = true;
+
+	/**
+	 * The time between progress lines, in milliseconds.
+	 */
+	private long interval = 1000;
+
+	/**
+	 * The time between runs in daemon mode, in milliseconds, or 0 to run once.
+	 */
+	private long every = 0;
+
+	/**
+	 * The port metrics are served on, or -1 to leave it to the system properties.
+	 */
+	private int metricsPort = -1;
+
+	/**
+	 * Construct a new command line downloader.
+	 *
+	 * @param out Where events are printed.
+	 */
+	public MapDownloaderCli(PrintStream out) {
+		this.out = out;
+	}
+
+	public static void main(String[] args) {
+		MapDownloaderCli cli = new MapDownloaderCli(System.out);
+
+		// The engine logs to standard output, which is reserved for events here.
+		System.setOut(System.err);
+
+		int code;
+
+		try {
+			cli.parse(args);
+
+			code = cli.run();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+
+			code = EXIT_USAGE;
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+
+			code = EXIT_USAGE;
+		} catch (InterruptedException e) {
+			code = EXIT_FAILED;
+		}
+
+		System.exit(code);
+	}
+
+	/**
+	 * Parse the command line.
+	 *
+	 * @param args The arguments.
+	 * @throws IOException If a mapcycle file can't be read.
+	 * @throws IllegalArgumentException If the arguments are wrong.
+	 */
+	public void parse(String[] args) throws IOException {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+
+			if (!arg.startsWith("--")) {
+				names.add(stripExtension(arg));
+				continue;
+			}
+
+			if (arg.equals("--sync")) {
+				sync = true;
+				continue;
+			}
+
+			if (arg.equals("--force")) {
+				force = true;
+				continue;
+			}
+
+			if (arg.equals("--no-delta")) {
+				delta = false;
+				continue;
+			}
+
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+
+			String value = args[++i];
+
+			try {
+				switch (arg) {
+					case "--dir":
+						mapFolder = new File(value);
+						break;
+					case "--mapcycle":
+						readMapcycle(new File(value));
+						break;
+					case "--source":
+						sources.add(MapCatalog.parseSource(value, sources.size()));
+						break;
+					case "--workers":
+						workers = Math.max(1, Integer.parseInt(value));
+						break;
+					case "--limit":
+						BandwidthLimiter.getDefault().setRate(BandwidthLimiter.parseRate(value));
+						break;
+					case "--source-limit":
+						int split = value.indexOf('=');
+
+						if (split < 1) {
+							throw new IllegalArgumentException("Source limits look like name=rate: " + value);
+						}
+
+						sourceLimits.put(value.substring(0, split), BandwidthLimiter.parseRate(value.substring(split + 1)));
+						break;
+					case "--schedule":
+						BandwidthLimiter.getDefault().addScheduledRate(value);
+						break;
+					case "--interval":
+						interval = Math.max(100, (long) (Double.parseDouble(value) * 1000));
+						break;
+					case "--every":
+						every = TimeUnit.MINUTES.toMillis(Math.max(1, Long.parseLong(value)));
+						break;
+					case "--metrics-port":
+						metricsPort = Integer.parseInt(value);
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad value for " + arg + ": " + value);
+			}
+		}
+
+		if (mapFolder == null) {
+			throw new IllegalArgumentException("No map folder given");
+		}
+
+		if (names.isEmpty() && !sync) {
+			throw new IllegalArgumentException("No maps given");
+		}
+
+		if (sources.isEmpty()) {
+			Collections.addAll(sources, MapCatalog.getSources());
+		}
+
+		for (java.util.Map.Entry<String, Long> limit : sourceLimits.entrySet()) {
+			BandwidthLimiter.getDefault().getSourceLimiter(findSource(limit.getKey())).setRate(limit.getValue());
+		}
+	}
+
+	/**
+	 * Find a source by name.
+	 *
+	 * @param name The source name, in any case.
+	 * @return The source.
+	 * @throws IllegalArgumentException If there's no such source.
+	 */
+	private MapSource findSource(String name) {
+		for (MapSource source : sources) {
+			if (source.getName().equalsIgnoreCase(name)) {
+				return source;
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown source " + name);
+	}
+
+	/**
+	 * Download the maps, once or repeatedly in daemon mode.
+	 *
+	 * @return The exit code of the last run.
+	 * @throws IOException If the metrics port can't be bound.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public int run() throws IOException, InterruptedException {
+		PrometheusExporter exporter;
+
+		if (metricsPort >= 0) {
+			exporter = new PrometheusExporter(Metrics.getDefault(), metricsPort);
+			exporter.start();
+		} else {
+			exporter = PrometheusExporter.fromSystemProperties();
+		}
+
+		DownloadScheduler scheduler = new DownloadScheduler(workers, DownloadScheduler.DEFAULT_SOURCE_LIMIT);
+
+		TaskExecutors.addShutdownTask(scheduler::shutdown);
+
+		try {
+			while (true) {
+				int code = runOnce(scheduler);
+
+				if (every <= 0) {
+					return code;
+				}
+
+				Thread.sleep(every);
+			}
+		} finally {
+			scheduler.shutdown();
+
+			if (exporter != null) {
+				exporter.stop();
+			}
+		}
+	}
+
+	/**
+	 * Load the listings, then download every requested map which isn't installed, and every changed map if syncing.
+	 *
+	 * @param scheduler The scheduler to download with.
+	 * @return The exit code.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	private int runOnce(DownloadScheduler scheduler) throws InterruptedException {
+		mapFolder.mkdirs();
+
+		HttpClient client = HttpClient.getDefault();
+
+		SourceStatistics statistics = new SourceStatistics(SourceStatistics.getDefaultFile());
+
+		MapIndex index = new MapIndex(new File(mapFolder, MapIndex.FILE_NAME));
+
+		ArchiveCache cache = ArchiveCache.fromSystemProperties();
+
+		List<Map> catalog = loadCatalog(client);
+
+		// Every mirror of each map, by name.
+		java.util.Map<String, List<Map>> mirrors = new LinkedHashMap<>();
+
+		for (Map map : catalog) {
+			mirrors.computeIfAbsent(map.getName(), name -> new ArrayList<>()).add(map);
+		}
+
+		Set<String> changed = new HashSet<>();
+
+		// Damaged maps count as not installed, so they're downloaded again.
+		java.util.Map<String, String> damaged = new BspValidator(mapFolder).scan().getDamaged();
+
+		for (java.util.Map.Entry<String, String> entry : damaged.entrySet()) {
+			print("damaged", entry.getKey(), entry.getValue());
+		}
+
+		if (sync) {
+			MapSync.Result result = new MapSync(client, index, mapFolder, MapSync.DEFAULT_CONCURRENCY).sync(catalog);
+
+			for (Map map : result.getChanged()) {
+				changed.add(map.getName());
+			}
+
+			for (String name : damaged.keySet()) {
+				if (mirrors.containsKey(name)) {
+					changed.add(name);
+				}
+			}
+		}
+
+		Set<String> wanted = new LinkedHashSet<>();
+
+		int skipped = 0, missing = 0;
+
+		for (String name : names) {
+			if (!mirrors.containsKey(name)) {
+				print("missing", name);
+				missing++;
+			} else if (!force && !changed.contains(name) && !damaged.containsKey(name) && new File(mapFolder, name + ".bsp").exists()) {
+				print("skipped", name, "installed");
+				skipped++;
+			} else {
+				wanted.add(name);
+			}
+		}
+
+		// Changed maps which weren't named are counted on their own, named ones were counted above.
+		int changedOnly = 0;
+
+		for (String name : changed) {
+			if (!names.contains(name) && wanted.add(name)) {
+				changedOnly++;
+			}
+		}
+
+		List<DownloadJob> jobs = new ArrayList<>();
+
+		for (String name : wanted) {
+			List<Map> ranked = statistics.rank(mirrors.get(name));
+
+			MapDownloader downloader = new MapDownloader(ranked.get(0), new File(mapFolder, name + ".bsp"));
+
+			downloader.setMirrors(ranked);
+			downloader.setStatistics(statistics);
+			downloader.setIndex(index);
+			downloader.setCache(cache);
+			downloader.setDeltaUpdates(delta);
+
+			jobs.add(scheduler.submit(downloader));
+
+			print("queued", name, ranked.get(0).getSource());
+		}
+
+		int finished = 0, failed = 0;
+
+		// The time and byte count of each job's last progress line.
+		java.util.Map<DownloadJob, long[]> last = new HashMap<>();
+
+		List<DownloadJob> pending = new ArrayList<>(jobs);
+
+		while (!pending.isEmpty()) {
+			DownloadJob first = pending.get(0);
+
+			first.await(interval, TimeUnit.MILLISECONDS);
+
+			for (DownloadJob job : new ArrayList<>(pending)) {
+				MapDownloader downloader = job.getDownloader();
+
+				if (job.isDone()) {
+					pending.remove(job);
+
+					if (job.getState() == DownloadJob.State.FINISHED) {
+						print("finished", downloader.getMap().getName(), downloader.getMap().getSource(), new File(mapFolder, downloader.getMap().getName() + ".bsp").length());
+						finished++;
+					} else {
+						IOException error = downloader.getError();
+
+						print("failed", downloader.getMap().getName(), error != null ? error.toString() : job.getState());
+						failed++;
+					}
+				} else if (job.getState() == DownloadJob.State.RUNNING) {
+					long now = System.currentTimeMillis(), bytes = downloader.getDownloaded();
+
+					long[] previous = last.get(job);
+
+					if (previous == null || (previous[1] != bytes && now > previous[0])) {
+						long speed = previous != null ? Math.max(0, bytes - previous[1]) * 1000 / (now - previous[0]) : 0;
+
+						print("progress", downloader.getMap().getName(), bytes, downloader.getFileSize(), speed);
+
+						last.put(job, new long[] { now, bytes });
+					}
+				}
+			}
+		}
+
+		print("summary", "requested=" + names.size(), "changed=" + changedOnly, "finished=" + finished, "skipped=" + skipped, "missing=" + missing, "failed=" + failed);
+
+		return missing > 0 || failed > 0 ? EXIT_FAILED : EXIT_OK;
+	}
+
+	/**
+	 * Load the listings of every source.
+	 *
+	 * @param client The client listings are requested through.
+	 * @return Every map, sorted by name and source priority.
+	 */
+	private List<Map> loadCatalog(HttpClient client) {
+		MapCatalog catalog = new MapCatalog(client);
+
+		List<Map> maps = new ArrayList<>();
+
+		for (MapSource source : sources) {
+			try {
+				List<Map> sourceMaps = catalog.load(source);
+
+				maps.addAll(sourceMaps);
+
+				print("source", source.getName(), sourceMaps.size());
+			} catch (IOException e) {
+				print("source-failed", source.getName(), e.toString());
+			}
+		}
+
+		Collections.sort(maps, MapCatalog.ORDER);
+
+		return maps;
+	}
+
+	/**
+	 * Read the map names from a mapcycle file, skipping blank lines and comments.
+	 *
+	 * @param file The file.
+	 * @throws IOException If the file can't be read.
+	 */
+	private void readMapcycle(File file) throws IOException {
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			line = line.trim();
+
+			if (line.isEmpty() || line.startsWith("//") || line.startsWith("#")) {
+				continue;
+			}
+
+			names.add(stripExtension(line));
+		}
+	}
+
+	/**
+	 * Print an event line.
+	 *
+	 * @param event The event name.
+	 * @param fields The event's fields.
+	 */
+	private void print(String event, Object... fields) {
+		StringBuilder line = new StringBuilder(event);
+
+		for (Object field : fields) {
+			line.append('\t').append(field);
+		}
+
+		out.println(line);
+	}
+
+	/**
+	 * Strip the file extension off a map name, if it has one.
+	 *
+	 * @param name The map name or file name.
+	 * @return The map name.
+	 */
+	private static String stripExtension(String name) {
+		return name.endsWith(".bsp") ? name.substring(0, name.length() - ".bsp".length()) : name;
+	}
+}
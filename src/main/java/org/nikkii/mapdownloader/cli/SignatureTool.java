@@ -0,0 +1,200 @@
+package org.nikkii.mapdownloader.cli;
+
+import org.nikkii.mapdownloader.download.MapSignature;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the block signatures clients use to update maps by downloading only the blocks which changed.
+ *
+ * Run it over the maps folder of a fastdl server after adding or replacing maps. Every uncompressed map gets a
+ * signature file next to it, named after the map with {@link MapSignature#SUFFIX} appended. Signatures newer than
+ * their map are left alone. Everything printed is one event per line, tab separated:
+ *
+ * <pre>
+ * signed   file  blocks
+ * current  file
+ * failed   file  message
+ * </pre>
+ *
+ * @author Nikki
+ */
+public class SignatureTool {
+
+	/**
+	 * The usage text.
+	 */
+	private static final String USAGE = String.join(System.lineSeparator(),
+		"Usage: mapsignature [options] <map or folder> ...",
+		"  --block-size <bytes>  Block size, default " + MapSignature.DEFAULT_BLOCK_SIZE + ". Smaller finds more reusable blocks but makes bigger signatures.",
+		"  --force               Sign maps even if their signature is newer than them.");
+
+	/**
+	 * Where events are printed.
+	 */
+	private final PrintStream out;
+
+	/**
+	 * The block size.
+	 */
+	private int blockSize = MapSignature.DEFAULT_BLOCK_SIZE;
+
+	/**
+	 * Whether maps with a current signature are signed again.
+	 */
+	private boolean force = false;
+
+	/**
+	 * The maps to sign.
+	 */
+	private final List<File> maps = new ArrayList<>();
+
+	/**
+	 * Construct a new signature tool.
+	 *
+	 * @param out Where events are printed.
+	 */
+	public SignatureTool(PrintStream out) {
+		this.out = out;
+	}
+
+	public static void main(String[] args) {
+		SignatureTool tool = new SignatureTool(System.out);
+
+		int code;
+
+		try {
+			tool.parse(args);
+
+			code = tool.run();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+
+			code = MapDownloaderCli.EXIT_USAGE;
+		}
+
+		System.exit(code);
+	}
+
+	/**
+	 * Parse the command line arguments.
+	 *
+	 * @param args The arguments.
+	 * @throws IllegalArgumentException If the arguments are wrong.
+	 */
+	public void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+
+			if (!arg.startsWith("--")) {
+				addMaps(new File(arg));
+				continue;
+			}
+
+			if (arg.equals("--force")) {
+				force = true;
+				continue;
+			}
+
+			if (!arg.equals("--block-size")) {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+
+			String value = args[++i];
+
+			try {
+				blockSize = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad value for " + arg + ": " + value);
+			}
+
+			if (blockSize < MapSignature.MIN_BLOCK_SIZE || blockSize > MapSignature.MAX_BLOCK_SIZE) {
+				throw new IllegalArgumentException("Block size must be between " + MapSignature.MIN_BLOCK_SIZE + " and " + MapSignature.MAX_BLOCK_SIZE);
+			}
+		}
+
+		if (maps.isEmpty()) {
+			throw new IllegalArgumentException("No maps given");
+		}
+	}
+
+	/**
+	 * Sign the maps.
+	 *
+	 * @return The exit code, {@link MapDownloaderCli#EXIT_FAILED} if any map couldn't be signed.
+	 */
+	public int run() {
+		int code = MapDownloaderCli.EXIT_OK;
+
+		for (File map : maps) {
+			File signature = new File(map.getPath() + MapSignature.SUFFIX);
+
+			if (!force && signature.lastModified() > map.lastModified()) {
+				print("current", map);
+				continue;
+			}
+
+			try {
+				MapSignature created = MapSignature.create(map, blockSize);
+
+				created.write(signature);
+
+				print("signed", map, created.getBlockCount());
+			} catch (IOException e) {
+				print("failed", map, e.getMessage());
+
+				code = MapDownloaderCli.EXIT_FAILED;
+			}
+		}
+
+		return code;
+	}
+
+	/**
+	 * Add a map, or every map in a folder.
+	 *
+	 * @param file The map or folder.
+	 * @throws IllegalArgumentException If it doesn't exist.
+	 */
+	private void addMaps(File file) {
+		if (file.isDirectory()) {
+			File[] files = file.listFiles((dir, name) -> name.endsWith(".bsp"));
+
+			if (files != null) {
+				Arrays.sort(files);
+
+				maps.addAll(Arrays.asList(files));
+			}
+		} else if (file.isFile()) {
+			maps.add(file);
+		} else {
+			throw new IllegalArgumentException("No such map or folder: " + file);
+		}
+	}
+
+	/**
+	 * Print an event line.
+	 *
+	 * @param event The event name.
+	 * @param fields The event's fields.
+	 */
+	private void print(String event, Object... fields) {
+		StringBuilder line = new StringBuilder(event);
+
+		for (Object field : fields) {
+			line.append('\t').append(field);
+		}
+
+		out.println(line);
+	}
+}
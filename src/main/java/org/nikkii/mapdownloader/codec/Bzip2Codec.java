@@ -0,0 +1,52 @@
+package org.nikkii.mapdownloader.codec;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongConsumer;
+
+/**
+ * The bzip2 format, what fastdl servers have always served.
+ *
+ * @author Nikki
+ */
+public class Bzip2Codec implements Codec {
+
+	@Override
+	public String getName() {
+		return "bzip2";
+	}
+
+	@Override
+	public String getExtension() {
+		return ".bz2";
+	}
+
+	@Override
+	public boolean matches(byte[] header, int length) {
+		return Codecs.startsWith(header, length, 'B', 'Z', 'h') && length > 3 && header[3] >= '1' && header[3] <= '9';
+	}
+
+	/**
+	 * Wrap a compressed stream. Concatenated streams, which parallel compressors like pbzip2 write, are decoded whole.
+	 *
+	 * @param input The compressed stream.
+	 * @return The decoded stream.
+	 * @throws IOException If the stream isn't bzip2.
+	 */
+	@Override
+	public InputStream decode(InputStream input) throws IOException {
+		return new BZip2CompressorInputStream(input, true);
+	}
+
+	@Override
+	public boolean decodeParallel(File file, OutputStream output, LongConsumer progress, ForkJoinPool pool) throws IOException {
+		new ParallelBZip2Decoder(pool).decode(file, output, progress);
+
+		return true;
+	}
+}
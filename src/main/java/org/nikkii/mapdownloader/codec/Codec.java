@@ -0,0 +1,76 @@
+package org.nikkii.mapdownloader.codec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongConsumer;
+
+/**
+ * A compression format maps can be served in.
+ *
+ * Codecs are found with {@link java.util.ServiceLoader}, so one can be added by putting a jar listing it in
+ * META-INF/services/org.nikkii.mapdownloader.codec.Codec on the class path. {@link Codecs} picks the codec for a file
+ * from its first bytes, the file name is only used to tell which files in a listing are maps.
+ *
+ * @author Nikki
+ */
+public interface Codec {
+
+	/**
+	 * Get the format name.
+	 *
+	 * @return The name, like "bzip2".
+	 */
+	String getName();
+
+	/**
+	 * Get the file extension archives in this format use.
+	 *
+	 * @return The extension with its dot, like ".bz2".
+	 */
+	String getExtension();
+
+	/**
+	 * Check whether data starts with this format's magic number.
+	 *
+	 * @param header The first bytes of the data.
+	 * @param length The amount of bytes in the header, which may be less than {@link Codecs#HEADER_LENGTH} for short
+	 * data.
+	 * @return Whether the data is in this format.
+	 */
+	boolean matches(byte[] header, int length);
+
+	/**
+	 * Check whether everything the codec needs is on the class path. Unavailable codecs are skipped.
+	 *
+	 * @return Whether the codec can be used.
+	 */
+	default boolean isAvailable() {
+		return true;
+	}
+
+	/**
+	 * Wrap a compressed stream.
+	 *
+	 * @param input The compressed stream.
+	 * @return The decoded stream.
+	 * @throws IOException If the stream isn't in this format.
+	 */
+	InputStream decode(InputStream input) throws IOException;
+
+	/**
+	 * Decode a file on multiple cores, if the format and the file's layout allow it. Nothing is written if it doesn't.
+	 *
+	 * @param file The compressed file.
+	 * @param output The stream to write the decoded data to.
+	 * @param progress Called with the total amount of bytes written as decoding goes.
+	 * @param pool The pool to decode on.
+	 * @return Whether the file was decoded, false if it should be decoded sequentially instead.
+	 * @throws IOException If decoding fails part way, the output should be discarded.
+	 */
+	default boolean decodeParallel(File file, OutputStream output, LongConsumer progress, ForkJoinPool pool) throws IOException {
+		return false;
+	}
+}
@@ -0,0 +1,222 @@
+package org.nikkii.mapdownloader.codec;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * The codecs on the class path.
+ *
+ * @author Nikki
+ */
+public class Codecs {
+
+	/**
+	 * The amount of bytes read to detect a format, enough for every magic number.
+	 */
+	public static final int HEADER_LENGTH = 16;
+
+	/**
+	 * The available codecs, in class path order.
+	 */
+	private static final List<Codec> CODECS = load();
+
+	/**
+	 * Load the available codecs. A codec which fails to load, usually because a library it needs is missing, is
+	 * skipped.
+	 *
+	 * @return The codecs.
+	 */
+	private static List<Codec> load() {
+		List<Codec> codecs = new ArrayList<>();
+
+		Iterator<Codec> iterator = ServiceLoader.load(Codec.class, Codecs.class.getClassLoader()).iterator();
+
+		while (true) {
+			try {
+				if (!iterator.hasNext()) {
+					break;
+				}
+
+				Codec codec = iterator.next();
+
+				if (codec.isAvailable()) {
+					codecs.add(codec);
+				} else {
+					System.out.println("Codec " + codec.getName() + " is unavailable, its library is missing");
+				}
+			} catch (ServiceConfigurationError | LinkageError e) {
+				System.out.println("Unable to load codec: " + e.getMessage());
+			}
+		}
+
+		return Collections.unmodifiableList(codecs);
+	}
+
+	/**
+	 * Get the available codecs.
+	 *
+	 * @return The codecs.
+	 */
+	public static List<Codec> getCodecs() {
+		return CODECS;
+	}
+
+	/**
+	 * Find the codec for a file name by its extension.
+	 *
+	 * @param name The file name.
+	 * @return The codec, or null if the name has no known extension.
+	 */
+	public static Codec forFileName(String name) {
+		for (Codec codec : CODECS) {
+			if (name.endsWith(codec.getExtension())) {
+				return codec;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Find the codec for data by its magic number.
+	 *
+	 * @param header The first bytes of the data.
+	 * @param length The amount of bytes in the header.
+	 * @return The codec, or null if the format isn't known.
+	 */
+	public static Codec detect(byte[] header, int length) {
+		for (Codec codec : CODECS) {
+			if (codec.matches(header, length)) {
+				return codec;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Find the codec for a file by its magic number.
+	 *
+	 * @param file The file.
+	 * @return The codec, or null if the format isn't known.
+	 * @throws IOException If the file can't be read.
+	 */
+	public static Codec detect(File file) throws IOException {
+		try (InputStream input = new FileInputStream(file)) {
+			byte[] header = new byte[HEADER_LENGTH];
+
+			return detect(header, readHeader(input, header));
+		}
+	}
+
+	/**
+	 * Wrap a compressed stream in the codec its magic number names. The stream belongs to the decoded stream from
+	 * then on, and is closed right away if it can't be decoded.
+	 *
+	 * @param input The compressed stream.
+	 * @return The decoded stream.
+	 * @throws IOException If the format isn't known, or the stream can't be read.
+	 */
+	public static InputStream decode(InputStream input) throws IOException {
+		try {
+			if (!input.markSupported()) {
+				input = new BufferedInputStream(input);
+			}
+
+			byte[] header = new byte[HEADER_LENGTH];
+
+			input.mark(HEADER_LENGTH);
+
+			int length = readHeader(input, header);
+
+			input.reset();
+
+			Codec codec = detect(header, length);
+
+			if (codec == null) {
+				throw new IOException("Unknown compression format");
+			}
+
+			return codec.decode(input);
+		} catch (IOException | RuntimeException e) {
+			try {
+				input.close();
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Check whether data starts with a magic number.
+	 *
+	 * @param header The first bytes of the data.
+	 * @param length The amount of bytes in the header.
+	 * @param magic The magic number, one byte per element.
+	 * @return Whether the data starts with it.
+	 */
+	public static boolean startsWith(byte[] header, int length, int... magic) {
+		if (length < magic.length) {
+			return false;
+		}
+
+		for (int i = 0; i < magic.length; i++) {
+			if ((header[i] & 0xFF) != magic[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Check whether a class is on the class path, for codecs depending on optional libraries.
+	 *
+	 * @param name The class name.
+	 * @return Whether the class can be loaded.
+	 */
+	static boolean isPresent(String name) {
+		try {
+			Class.forName(name, false, Codecs.class.getClassLoader());
+
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Read as much of the header as the stream has.
+	 *
+	 * @param input The stream.
+	 * @param header The array to read into.
+	 * @return The amount of bytes read.
+	 * @throws IOException If the stream can't be read.
+	 */
+	private static int readHeader(InputStream input, byte[] header) throws IOException {
+		int length = 0;
+
+		while (length < header.length) {
+			int read = input.read(header, length, header.length - length);
+
+			if (read < 0) {
+				break;
+			}
+
+			length += read;
+		}
+
+		return length;
+	}
+}
@@ -0,0 +1,38 @@
+package org.nikkii.mapdownloader.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The gzip format. Deflate has no block boundaries to split on, so it's always decoded on one core.
+ *
+ * @author Nikki
+ */
+public class GzipCodec implements Codec {
+
+	/**
+	 * The size of the buffer the compressed data is read through.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	@Override
+	public String getName() {
+		return "gzip";
+	}
+
+	@Override
+	public String getExtension() {
+		return ".gz";
+	}
+
+	@Override
+	public boolean matches(byte[] header, int length) {
+		return Codecs.startsWith(header, length, 0x1F, 0x8B);
+	}
+
+	@Override
+	public InputStream decode(InputStream input) throws IOException {
+		return new GZIPInputStream(input, BUFFER_SIZE);
+	}
+}
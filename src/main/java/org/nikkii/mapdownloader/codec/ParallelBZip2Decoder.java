@@ -0,0 +1,500 @@
+package org.nikkii.mapdownloader.codec;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+
+/**
+ * Decodes a bzip2 file on multiple cores.
+ *
+ * Every bzip2 block starts with a 48 bit magic number and carries its own CRC, so blocks can be found by scanning the
+ * file bit by bit and decoded independently. Each block is wrapped into a stream of its own (header, the block, and an
+ * end of stream marker with the block's CRC as the stream CRC) and handed to {@link BZip2CompressorInputStream}, then
+ * the results are written out in order.
+ *
+ * Files made of several streams, like the ones pbzip2 writes, are decoded whole. Each stream's blocks are checked
+ * against that stream's combined CRC.
+ *
+ * Anything unexpected fails with an {@link IOException}, and the caller should fall back to decoding the file
+ * sequentially. That covers a block which isn't where it should be, a combined CRC which doesn't match, and data after
+ * the last stream.
+ *
+ * The file is read with positional reads into heap buffers, a scan chunk or a block at a time, rather than mapped.
+ * The caller deletes the archive right after decoding, and Windows won't delete a mapped file until the mapping is
+ * garbage collected.
+ *
+ * @author Nikki
+ */
+public class ParallelBZip2Decoder {
+
+	/**
+	 * The magic number starting every block.
+	 */
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+
+	/**
+	 * The magic number ending a stream.
+	 */
+	private static final long EOS_MAGIC = 0x177245385090L;
+
+	/**
+	 * The mask for a 48 bit magic number.
+	 */
+	private static final long MAGIC_MASK = 0xFFFFFFFFFFFFL;
+
+	/**
+	 * The amount of bytes each scanning task covers.
+	 */
+	private static final int SCAN_CHUNK = 4 * 1024 * 1024;
+
+	/**
+	 * The pool to decode on.
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * Construct a new decoder.
+	 *
+	 * @param pool The pool to scan and decode on.
+	 */
+	public ParallelBZip2Decoder(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Decode a bzip2 file.
+	 *
+	 * @param file The compressed file.
+	 * @param output The stream to write the decoded data to.
+	 * @param progress Called with the total amount of bytes written after every block.
+	 * @throws IOException If the file can't be decoded in parallel, or an I/O error occurs.
+	 */
+	public void decode(File file, OutputStream output, LongConsumer progress) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+
+			if (!isHeader(channel, 0, size)) {
+				throw new IOException("Not a bzip2 stream");
+			}
+
+			List<Long> markers = scan(channel, size);
+
+			List<Block> blocks = new ArrayList<>();
+
+			// The stream being read: its level, where its first marker must be, its first block and its combined CRC.
+			byte level = read(channel, 3, 1).get(0);
+
+			long expected = 32;
+
+			int first = 0, combined = 0;
+
+			boolean finished = false;
+
+			for (long marker : markers) {
+				long position = marker >>> 1;
+
+				if (finished) {
+					throw new IOException("Data after the end of the last stream");
+				}
+
+				if (position + 80 > size * 8) {
+					throw new IOException("Marker cut off by the end of the file");
+				}
+
+				if (blocks.size() == first && position != expected) {
+					throw new IOException("First block not found after the header");
+				}
+
+				if (blocks.size() > first) {
+					blocks.get(blocks.size() - 1).end = position;
+				}
+
+				if ((marker & 1) == 0) {
+					Block block = new Block(position, (int) readBits(channel, position + 48, 32), level);
+
+					combined = ((combined << 1) | (combined >>> 31)) ^ block.crc;
+
+					blocks.add(block);
+					continue;
+				}
+
+				if (combined != (int) readBits(channel, position + 48, 32)) {
+					throw new IOException("Combined CRC mismatch, block boundaries are ambiguous");
+				}
+
+				// Streams are padded to a whole byte, the next one starts right after.
+				long next = (position + 80 + 7) / 8;
+
+				if (next == size) {
+					finished = true;
+				} else if (isHeader(channel, next, size)) {
+					level = read(channel, next + 3, 1).get(0);
+					expected = next * 8 + 32;
+					first = blocks.size();
+					combined = 0;
+				} else {
+					throw new IOException("Data after the end of the last stream");
+				}
+			}
+
+			if (!finished) {
+				throw new IOException("No end of stream marker found");
+			}
+
+			decodeBlocks(channel, size, blocks, output, progress);
+		}
+	}
+
+	/**
+	 * Read part of the file into a heap buffer.
+	 *
+	 * @param channel The file.
+	 * @param offset The first byte.
+	 * @param length The amount of bytes, which must all be in the file.
+	 * @return The buffer, its first byte being the one at the offset.
+	 * @throws IOException If the file can't be read.
+	 */
+	private static ByteBuffer read(FileChannel channel, long offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+
+		// Positional reads don't move the channel's position, so the tasks can share it.
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new EOFException("Archive shrank while decoding it");
+			}
+		}
+
+		buffer.flip();
+
+		return buffer;
+	}
+
+	/**
+	 * Check whether a stream header starts at a byte.
+	 *
+	 * @param channel The file.
+	 * @param offset The byte offset.
+	 * @param size The file size.
+	 * @return Whether "BZh" and a block size level are there.
+	 * @throws IOException If the file can't be read.
+	 */
+	private static boolean isHeader(FileChannel channel, long offset, long size) throws IOException {
+		if (offset + 4 > size) {
+			return false;
+		}
+
+		ByteBuffer data = read(channel, offset, 4);
+
+		return data.get(0) == 'B' && data.get(1) == 'Z' && data.get(2) == 'h' && data.get(3) >= '1' && data.get(3) <= '9';
+	}
+
+	/**
+	 * Decode the blocks in parallel, keeping a limited amount of decoded blocks in memory, and write them in order.
+	 *
+	 * @param channel The file.
+	 * @param size The file size.
+	 * @param blocks The blocks.
+	 * @param output The stream to write to.
+	 * @param progress Called with the total amount of bytes written after every block.
+	 * @throws IOException If a block fails to decode, or writing fails.
+	 */
+	private void decodeBlocks(FileChannel channel, long size, List<Block> blocks, OutputStream output, LongConsumer progress) throws IOException {
+		int window = pool.getParallelism() * 2;
+
+		LinkedList<Future<byte[]>> pending = new LinkedList<>();
+
+		int next = 0;
+
+		long written = 0;
+
+		try {
+			while (next < blocks.size() || !pending.isEmpty()) {
+				while (next < blocks.size() && pending.size() < window) {
+					final Block block = blocks.get(next++);
+
+					pending.add(pool.submit(() -> decodeBlock(channel, size, block)));
+				}
+
+				byte[] decoded = pending.poll().get();
+
+				output.write(decoded);
+
+				written += decoded.length;
+
+				progress.accept(written);
+			}
+		} catch (ExecutionException e) {
+			// The pool wraps checked exceptions thrown by tasks, find the original.
+			Throwable cause = e.getCause();
+
+			while (!(cause instanceof IOException) && cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+
+			throw new IOException(cause);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} finally {
+			for (Future<byte[]> future : pending) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Find every block and end of stream marker in the file, scanning chunks of it in parallel.
+	 *
+	 * @param channel The file.
+	 * @param size The file size.
+	 * @return The bit positions of the markers in order, shifted left by one, with the low bit set for end of stream
+	 * markers.
+	 * @throws IOException If scanning fails.
+	 */
+	private List<Long> scan(final FileChannel channel, final long size) throws IOException {
+		List<Future<List<Long>>> chunks = new ArrayList<>();
+
+		for (long start = 0; start < size; start += SCAN_CHUNK) {
+			final long from = start, to = Math.min(start + SCAN_CHUNK, size);
+
+			// Read up to 6 bytes past the chunk, so markers starting near its end are seen whole.
+			chunks.add(pool.submit(() -> scan(read(channel, from, (int) (Math.min(to + 6, size) - from)), from, to)));
+		}
+
+		List<Long> markers = new ArrayList<>();
+
+		try {
+			for (Future<List<Long>> chunk : chunks) {
+				markers.addAll(chunk.get());
+			}
+		} catch (ExecutionException | InterruptedException e) {
+			throw new IOException(e);
+		}
+
+		Collections.sort(markers);
+
+		return markers;
+	}
+
+	/**
+	 * Find the markers starting within a range of bytes.
+	 *
+	 * @param data The bytes of the range, followed by up to 6 more.
+	 * @param from The file offset of the first byte.
+	 * @param to The file offset of the byte after the last one a marker may start in.
+	 * @return The bit positions of the markers, shifted left by one, with the low bit set for end of stream markers.
+	 */
+	private static List<Long> scan(ByteBuffer data, long from, long to) {
+		List<Long> markers = new ArrayList<>();
+
+		long register = 0, first = from * 8, last = to * 8;
+
+		for (int i = 0; i < data.limit(); i++) {
+			int value = data.get(i) & 0xFF;
+
+			for (int bit = 7; bit >= 0; bit--) {
+				register = (register << 1) | ((value >>> bit) & 1);
+
+				long start = (from + i) * 8 + (7 - bit) - 47;
+
+				if (start < first || start >= last) {
+					continue;
+				}
+
+				long candidate = register & MAGIC_MASK;
+
+				if (candidate == BLOCK_MAGIC) {
+					markers.add(start << 1);
+				} else if (candidate == EOS_MAGIC) {
+					markers.add((start << 1) | 1);
+				}
+			}
+		}
+
+		return markers;
+	}
+
+	/**
+	 * Decode a single block by wrapping it in a stream of its own.
+	 *
+	 * @param channel The file.
+	 * @param size The file size.
+	 * @param block The block.
+	 * @return The decoded block.
+	 * @throws IOException If the block fails to decode.
+	 */
+	private static byte[] decodeBlock(FileChannel channel, long size, Block block) throws IOException {
+		long bits = block.end - block.start;
+
+		// The block's bytes, plus the one after its last bit if there is one.
+		long first = block.start >>> 3;
+
+		ByteBuffer data = read(channel, first, (int) (Math.min((block.end + 7) / 8 + 1, size) - first));
+
+		byte[] stream = new byte[4 + (int) ((bits + 80 + 7) / 8)];
+
+		stream[0] = 'B';
+		stream[1] = 'Z';
+		stream[2] = 'h';
+		stream[3] = block.level;
+
+		copyBits(data, block.start & 7, bits, stream, 4);
+
+		// A single block stream's combined CRC is just the block's CRC.
+		long position = 32 + bits;
+		position = writeBits(stream, position, EOS_MAGIC, 48);
+		writeBits(stream, position, block.crc & 0xFFFFFFFFL, 32);
+
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream(1024 * 1024);
+
+		try (InputStream input = new BZip2CompressorInputStream(new ByteArrayInputStream(stream))) {
+			byte[] buffer = new byte[65536];
+
+			int read;
+
+			while ((read = input.read(buffer)) != -1) {
+				decoded.write(buffer, 0, read);
+			}
+		}
+
+		return decoded.toByteArray();
+	}
+
+	/**
+	 * Copy a run of bits to the start of a byte in another array.
+	 *
+	 * @param data The source data.
+	 * @param start The first bit to copy.
+	 * @param bits The amount of bits to copy.
+	 * @param dest The destination array.
+	 * @param offset The destination byte offset.
+	 */
+	private static void copyBits(ByteBuffer data, long start, long bits, byte[] dest, int offset) {
+		int source = (int) (start >>> 3), shift = (int) (start & 7), count = (int) ((bits + 7) >>> 3);
+
+		for (int i = 0; i < count; i++) {
+			int high = data.get(source + i) & 0xFF;
+			int low = source + i + 1 < data.limit() ? data.get(source + i + 1) & 0xFF : 0;
+
+			dest[offset + i] = (byte) ((high << shift) | (low >>> (8 - shift)));
+		}
+
+		int remainder = (int) (bits & 7);
+
+		if (remainder != 0) {
+			// Clear whatever followed the last bit, the end of stream marker goes there.
+			dest[offset + count - 1] &= (byte) (0xFF << (8 - remainder));
+		}
+	}
+
+	/**
+	 * Write the low bits of a value, most significant first.
+	 *
+	 * @param dest The destination array, with the bits to write cleared.
+	 * @param position The bit position to write at.
+	 * @param value The value.
+	 * @param count The amount of bits to write.
+	 * @return The bit position after the written bits.
+	 */
+	private static long writeBits(byte[] dest, long position, long value, int count) {
+		for (int i = count - 1; i >= 0; i--, position++) {
+			if (((value >>> i) & 1) != 0) {
+				dest[(int) (position >>> 3)] |= 0x80 >>> (position & 7);
+			}
+		}
+
+		return position;
+	}
+
+	/**
+	 * Read bits from the file, most significant first.
+	 *
+	 * @param channel The file.
+	 * @param position The bit position to read at.
+	 * @param count The amount of bits to read, at most 64.
+	 * @return The value.
+	 * @throws IOException If the file can't be read.
+	 */
+	private static long readBits(FileChannel channel, long position, int count) throws IOException {
+		long first = position >>> 3;
+
+		return readBits(read(channel, first, (int) ((position + count + 7) / 8 - first)), position & 7, count);
+	}
+
+	/**
+	 * Read bits, most significant first.
+	 *
+	 * @param data The data.
+	 * @param position The bit position to read at.
+	 * @param count The amount of bits to read, at most 64.
+	 * @return The value.
+	 */
+	private static long readBits(ByteBuffer data, long position, int count) {
+		long value = 0;
+
+		for (int i = 0; i < count; i++, position++) {
+			value = (value << 1) | ((data.get((int) (position >>> 3)) >>> (7 - (position & 7))) & 1);
+		}
+
+		return value;
+	}
+
+	/**
+	 * A compressed block's location and CRC.
+	 */
+	private static class Block {
+
+		/**
+		 * The bit position of the block magic.
+		 */
+		private final long start;
+
+		/**
+		 * The bit position after the block, where the next marker starts.
+		 */
+		private long end;
+
+		/**
+		 * The block CRC.
+		 */
+		private final int crc;
+
+		/**
+		 * The block size level from the header of the block's stream.
+		 */
+		private final byte level;
+
+		/**
+		 * Construct a new block.
+		 *
+		 * @param start The bit position of the block magic.
+		 * @param crc The block CRC.
+		 * @param level The block size level from the header of the block's stream.
+		 */
+		public Block(long start, int crc, byte level) {
+			this.start = start;
+			this.crc = crc;
+			this.level = level;
+		}
+	}
+}
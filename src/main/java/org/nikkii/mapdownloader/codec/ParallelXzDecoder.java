@@ -0,0 +1,154 @@
+package org.nikkii.mapdownloader.codec;
+
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+
+/**
+ * Decodes an xz file on multiple cores.
+ *
+ * The index at the end of an xz file lists every block with its compressed and uncompressed size, and blocks don't
+ * share any state, so each one can be decoded on its own by seeking straight to it. The results are written out in
+ * order. Files written by a single-threaded xz are one big block, those are left to the sequential decoder.
+ *
+ * @author Nikki
+ */
+public class ParallelXzDecoder {
+
+	/**
+	 * The most decoded data kept in memory at once. Multi-threaded xz writes blocks of several megabytes each, so the
+	 * window is bounded by size as well as by count.
+	 */
+	private static final long MAX_BUFFERED = 256L * 1024 * 1024;
+
+	/**
+	 * The pool to decode on.
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * Construct a new decoder.
+	 *
+	 * @param pool The pool to decode on.
+	 */
+	public ParallelXzDecoder(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Decode an xz file.
+	 *
+	 * @param file The compressed file.
+	 * @param output The stream to write the decoded data to.
+	 * @param progress Called with the total amount of bytes written after every block.
+	 * @return Whether the file was decoded, false if it has a single block and nothing was written.
+	 * @throws IOException If a block fails to decode, or an I/O error occurs.
+	 */
+	public boolean decode(File file, OutputStream output, LongConsumer progress) throws IOException {
+		int blocks;
+
+		long largest = 0;
+
+		try (SeekableXZInputStream index = new SeekableXZInputStream(new SeekableFileInputStream(file))) {
+			blocks = index.getBlockCount();
+
+			for (int i = 0; i < blocks; i++) {
+				largest = Math.max(largest, index.getBlockSize(i));
+			}
+		}
+
+		if (blocks < 2) {
+			return false;
+		}
+
+		if (largest > Integer.MAX_VALUE - 8) {
+			throw new IOException("Block too large to decode in memory");
+		}
+
+		int window = (int) Math.max(1, Math.min(pool.getParallelism() * 2L, MAX_BUFFERED / Math.max(1, largest)));
+
+		LinkedList<Future<byte[]>> pending = new LinkedList<>();
+
+		int next = 0;
+
+		long written = 0;
+
+		try {
+			while (next < blocks || !pending.isEmpty()) {
+				while (next < blocks && pending.size() < window) {
+					final int block = next++;
+
+					pending.add(pool.submit(() -> decodeBlock(file, block)));
+				}
+
+				byte[] decoded = pending.poll().get();
+
+				output.write(decoded);
+
+				written += decoded.length;
+
+				progress.accept(written);
+			}
+		} catch (ExecutionException e) {
+			// The pool wraps checked exceptions thrown by tasks, find the original.
+			Throwable cause = e.getCause();
+
+			while (!(cause instanceof IOException) && cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+
+			throw new IOException(cause);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} finally {
+			for (Future<byte[]> future : pending) {
+				future.cancel(true);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Decode a single block. Every task opens the file itself, reading the index again is cheap next to decoding.
+	 *
+	 * @param file The compressed file.
+	 * @param block The block number.
+	 * @return The decoded block.
+	 * @throws IOException If the block fails to decode or its check doesn't match.
+	 */
+	private static byte[] decodeBlock(File file, int block) throws IOException {
+		try (SeekableXZInputStream input = new SeekableXZInputStream(new SeekableFileInputStream(file))) {
+			input.seekToBlock(block);
+
+			byte[] decoded = new byte[(int) input.getBlockSize(block)];
+
+			int length = 0;
+
+			while (length < decoded.length) {
+				int read = input.read(decoded, length, decoded.length - length);
+
+				if (read < 0) {
+					throw new EOFException("Block " + block + " ended early");
+				}
+
+				length += read;
+			}
+
+			return decoded;
+		}
+	}
+}
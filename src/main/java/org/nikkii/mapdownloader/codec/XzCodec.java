@@ -0,0 +1,66 @@
+package org.nikkii.mapdownloader.codec;
+
+import org.tukaani.xz.XZInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongConsumer;
+
+/**
+ * The xz format, through XZ for Java. Files written by a multi-threaded xz are split into independent blocks and can be
+ * decoded on multiple cores.
+ *
+ * @author Nikki
+ */
+public class XzCodec implements Codec {
+
+	@Override
+	public String getName() {
+		return "xz";
+	}
+
+	@Override
+	public String getExtension() {
+		return ".xz";
+	}
+
+	@Override
+	public boolean matches(byte[] header, int length) {
+		return Codecs.startsWith(header, length, 0xFD, '7', 'z', 'X', 'Z', 0x00);
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return Codecs.isPresent("org.tukaani.xz.XZInputStream");
+	}
+
+	@Override
+	public InputStream decode(InputStream input) throws IOException {
+		return Library.open(input);
+	}
+
+	@Override
+	public boolean decodeParallel(File file, OutputStream output, LongConsumer progress, ForkJoinPool pool) throws IOException {
+		return new ParallelXzDecoder(pool).decode(file, output, progress);
+	}
+
+	/**
+	 * Touches the library, kept in its own class so the codec loads and reports itself unavailable without it.
+	 */
+	private static class Library {
+
+		/**
+		 * Wrap a compressed stream.
+		 *
+		 * @param input The compressed stream.
+		 * @return The decoded stream.
+		 * @throws IOException If the stream isn't xz.
+		 */
+		private static InputStream open(InputStream input) throws IOException {
+			return new XZInputStream(input);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.nikkii.mapdownloader.codec;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.util.Native;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The Zstandard format, through zstd-jni. It decodes several times faster than bzip2 on a single core, so it's never
+ * split across cores.
+ *
+ * @author Nikki
+ */
+public class ZstdCodec implements Codec {
+
+	@Override
+	public String getName() {
+		return "zstd";
+	}
+
+	@Override
+	public String getExtension() {
+		return ".zst";
+	}
+
+	/**
+	 * Check whether data starts with a frame, or with a skippable frame, which some tools put in front to carry
+	 * metadata.
+	 *
+	 * @param header The first bytes of the data.
+	 * @param length The amount of bytes in the header.
+	 * @return Whether the data is zstd.
+	 */
+	@Override
+	public boolean matches(byte[] header, int length) {
+		if (Codecs.startsWith(header, length, 0x28, 0xB5, 0x2F, 0xFD)) {
+			return true;
+		}
+
+		return length >= 4 && (header[0] & 0xF0) == 0x50 && Codecs.startsWith(header, length, header[0] & 0xFF, 0x2A, 0x4D, 0x18);
+	}
+
+	/**
+	 * Check whether zstd-jni is on the class path and has a native library for this platform.
+	 *
+	 * @return Whether the codec can be used.
+	 */
+	@Override
+	public boolean isAvailable() {
+		return Codecs.isPresent("com.github.luben.zstd.ZstdInputStream") && Library.isLoaded();
+	}
+
+	@Override
+	public InputStream decode(InputStream input) throws IOException {
+		return Library.open(input);
+	}
+
+	/**
+	 * Touches the library, kept in its own class so the codec loads and reports itself unavailable without it.
+	 */
+	private static class Library {
+
+		/**
+		 * Load the native library.
+		 *
+		 * @return Whether it loaded.
+		 */
+		private static boolean isLoaded() {
+			try {
+				Native.load();
+
+				return true;
+			} catch (LinkageError e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Wrap a compressed stream. Streams of several frames are decoded whole.
+		 *
+		 * @param input The compressed stream.
+		 * @return The decoded stream.
+		 * @throws IOException If the stream isn't zstd.
+		 */
+		private static InputStream open(InputStream input) throws IOException {
+			return new ZstdInputStream(input);
+		}
+	}
+}
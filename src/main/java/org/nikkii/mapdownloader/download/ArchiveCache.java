@@ -0,0 +1,438 @@
+package org.nikkii.mapdownloader.download;
+
+import org.nikkii.mapdownloader.util.DigestUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+/**
+ * A local cache of downloaded map archives, so reinstalling a map doesn't mean fetching it again.
+ *
+ * Archives are stored by the SHA-256 of their content, and each source url points at the archive it last served along
+ * with the validators the server sent, so an archive is only used while the server still describes the same file.
+ * Everything is kept in plain files which are replaced atomically, so several instances can share one cache.
+ *
+ * Once the cache grows past its size cap the least recently used archives are evicted.
+ *
+ * @author Nikki
+ */
+public class ArchiveCache {
+
+	/**
+	 * The system property naming the cache directory.
+	 */
+	public static final String DIRECTORY_PROPERTY = "mapdownloader.cache.dir";
+
+	/**
+	 * The system property setting the cache size cap, in megabytes.
+	 */
+	public static final String SIZE_PROPERTY = "mapdownloader.cache.size";
+
+	/**
+	 * The default size cap, in megabytes.
+	 */
+	public static final long DEFAULT_SIZE = 2048;
+
+	/**
+	 * The directory holding the archives, named by content hash.
+	 */
+	private final File objects;
+
+	/**
+	 * The directory holding the url entries, named by the hash of the url.
+	 */
+	private final File urls;
+
+	/**
+	 * The size cap in bytes.
+	 */
+	private final long maxSize;
+
+	/**
+	 * Construct a new cache.
+	 *
+	 * @param directory The cache directory.
+	 * @param maxSize The size cap in bytes.
+	 */
+	public ArchiveCache(File directory, long maxSize) {
+		this.objects = new File(directory, "objects");
+		this.urls = new File(directory, "urls");
+		this.maxSize = maxSize;
+
+		objects.mkdirs();
+		urls.mkdirs();
+	}
+
+	/**
+	 * Create the cache configured by system properties.
+	 *
+	 * @return The cache, or null if no cache directory is set.
+	 */
+	public static ArchiveCache fromSystemProperties() {
+		String directory = System.getProperty(DIRECTORY_PROPERTY);
+
+		if (directory == null) {
+			return null;
+		}
+
+		long size = DEFAULT_SIZE;
+
+		try {
+			size = Long.parseLong(System.getProperty(SIZE_PROPERTY, Long.toString(DEFAULT_SIZE)));
+		} catch (NumberFormatException e) {
+			// Keep the default.
+		}
+
+		return new ArchiveCache(new File(directory), size * 1024 * 1024);
+	}
+
+	/**
+	 * Check whether the cache has an archive for a url, without checking whether it's still current.
+	 *
+	 * @param url The source url.
+	 * @return Whether an archive is cached.
+	 */
+	public boolean contains(String url) {
+		Properties entry = loadEntry(url);
+
+		return entry != null && new File(objects, entry.getProperty("hash")).exists();
+	}
+
+	/**
+	 * Find the archive for a url, if the server still describes the same file. Validators the server didn't send are
+	 * ignored, and if it sent none at all the cached archive is trusted.
+	 *
+	 * @param url The source url.
+	 * @param length The length the server reported, or -1.
+	 * @param etag The ETag the server sent, or null.
+	 * @param lastModified The Last-Modified date the server sent, or null.
+	 * @return The cached archive, or null if there isn't a current one.
+	 */
+	public File lookup(String url, long length, String etag, String lastModified) {
+		Properties entry = loadEntry(url);
+
+		if (entry == null) {
+			return null;
+		}
+
+		if (!matches(entry.getProperty("etag"), etag) || !matches(entry.getProperty("lastModified"), lastModified)) {
+			return null;
+		}
+
+		File archive = new File(objects, entry.getProperty("hash"));
+
+		if (!archive.exists() || (length >= 0 && archive.length() != length)) {
+			return null;
+		}
+
+		try {
+			// The content is its own name, so a damaged archive is easy to spot.
+			if (!DigestUtil.sha256(archive).equals(archive.getName())) {
+				archive.delete();
+				return null;
+			}
+		} catch (IOException e) {
+			return null;
+		}
+
+		// Mark it as recently used.
+		archive.setLastModified(System.currentTimeMillis());
+
+		return archive;
+	}
+
+	/**
+	 * Add a downloaded archive to the cache. The file is copied into the cache, so it can be deleted, moved or
+	 * installed afterwards.
+	 *
+	 * @param file The archive.
+	 * @param url The source url.
+	 * @param etag The ETag the server sent, or null.
+	 * @param lastModified The Last-Modified date the server sent, or null.
+	 * @throws IOException If the archive can't be cached.
+	 */
+	public void store(File file, String url, String etag, String lastModified) throws IOException {
+		store(file, DigestUtil.sha256(file), url, etag, lastModified);
+	}
+
+	/**
+	 * Add a downloaded archive to the cache, when its hash was already computed while it downloaded.
+	 *
+	 * @param file The archive.
+	 * @param hash The SHA-256 of the archive, in hex.
+	 * @param url The source url.
+	 * @param etag The ETag the server sent, or null.
+	 * @param lastModified The Last-Modified date the server sent, or null.
+	 * @throws IOException If the archive can't be cached.
+	 */
+	public void store(File file, String hash, String url, String etag, String lastModified) throws IOException {
+		File archive = new File(objects, hash);
+
+		if (!archive.exists()) {
+			File temp = createTempFile();
+
+			// Never a hard link: the file may become the installed map, and marking the archive as used would change the
+			// map's modification time along with it.
+			Files.copy(file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			moveIntoCache(temp, archive);
+		}
+
+		commit(archive, url, etag, lastModified);
+	}
+
+	/**
+	 * Start writing an archive as it downloads.
+	 *
+	 * @return The writer.
+	 * @throws IOException If the temporary file can't be created.
+	 */
+	public Writer newWriter() throws IOException {
+		return new Writer(createTempFile());
+	}
+
+	/**
+	 * Point a url at an archive, and evict old archives if the cache is too big.
+	 *
+	 * @param archive The archive.
+	 * @param url The source url.
+	 * @param etag The ETag the server sent, or null.
+	 * @param lastModified The Last-Modified date the server sent, or null.
+	 * @throws IOException If the entry can't be written.
+	 */
+	private void commit(File archive, String url, String etag, String lastModified) throws IOException {
+		archive.setLastModified(System.currentTimeMillis());
+
+		Properties entry = new Properties();
+		entry.setProperty("url", url);
+		entry.setProperty("hash", archive.getName());
+
+		if (etag != null) {
+			entry.setProperty("etag", etag);
+		}
+
+		if (lastModified != null) {
+			entry.setProperty("lastModified", lastModified);
+		}
+
+		File temp = createTempFile();
+
+		try (OutputStream output = new FileOutputStream(temp)) {
+			entry.store(output, null);
+		}
+
+		moveIntoCache(temp, getEntryFile(url));
+
+		evict();
+	}
+
+	/**
+	 * Delete the least recently used archives until the cache fits its size cap. Url entries pointing at deleted
+	 * archives are left behind and simply miss.
+	 */
+	private synchronized void evict() {
+		File[] archives = objects.listFiles((dir, name) -> !name.endsWith(".tmp"));
+
+		if (archives == null) {
+			return;
+		}
+
+		long total = 0;
+
+		for (File archive : archives) {
+			total += archive.length();
+		}
+
+		if (total <= maxSize) {
+			return;
+		}
+
+		Arrays.sort(archives, Comparator.comparingLong(File::lastModified));
+
+		for (File archive : archives) {
+			if (total <= maxSize) {
+				break;
+			}
+
+			long size = archive.length();
+
+			if (archive.delete()) {
+				total -= size;
+			}
+		}
+	}
+
+	/**
+	 * Load the entry for a url.
+	 *
+	 * @param url The url.
+	 * @return The entry, or null if there isn't a readable one.
+	 */
+	private Properties loadEntry(String url) {
+		File file = getEntryFile(url);
+
+		if (!file.exists()) {
+			return null;
+		}
+
+		Properties entry = new Properties();
+
+		try (InputStream input = new FileInputStream(file)) {
+			entry.load(input);
+		} catch (IOException e) {
+			return null;
+		}
+
+		// Guard against hash collisions in the entry names, however unlikely.
+		if (!url.equals(entry.getProperty("url")) || entry.getProperty("hash") == null) {
+			return null;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Get the entry file for a url.
+	 *
+	 * @param url The url.
+	 * @return The entry file.
+	 */
+	private File getEntryFile(String url) {
+		return new File(urls, DigestUtil.toHex(DigestUtil.newSha256().digest(url.getBytes(StandardCharsets.UTF_8))) + ".properties");
+	}
+
+	/**
+	 * Create a temporary file in the cache, on the same filesystem so it can be moved into place atomically.
+	 *
+	 * @return The file.
+	 * @throws IOException If the file can't be created.
+	 */
+	private File createTempFile() throws IOException {
+		return File.createTempFile("cache", ".tmp", objects);
+	}
+
+	/**
+	 * Move a finished file into place. If another instance stored the same archive meanwhile, theirs is kept.
+	 *
+	 * @param temp The finished file.
+	 * @param target The target.
+	 * @throws IOException If the file can't be moved.
+	 */
+	private static void moveIntoCache(File temp, File target) throws IOException {
+		try {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (FileAlreadyExistsException e) {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Check a cached validator against the server's.
+	 *
+	 * @param cached The cached value, or null.
+	 * @param current The server's value, or null.
+	 * @return Whether they don't contradict each other.
+	 */
+	private static boolean matches(String cached, String current) {
+		return cached == null || current == null || cached.equals(current);
+	}
+
+	/**
+	 * Writes an archive into the cache as it downloads, hashing it on the way.
+	 */
+	public class Writer extends OutputStream {
+
+		/**
+		 * The temporary file being written.
+		 */
+		private final File temp;
+
+		/**
+		 * The stream to the temporary file.
+		 */
+		private final OutputStream output;
+
+		/**
+		 * The running hash.
+		 */
+		private final MessageDigest digest = DigestUtil.newSha256();
+
+		/**
+		 * Construct a new writer.
+		 *
+		 * @param temp The temporary file to write.
+		 * @throws IOException If the file can't be opened.
+		 */
+		private Writer(File temp) throws IOException {
+			this.temp = temp;
+			this.output = new FileOutputStream(temp);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			output.write(b);
+			digest.update((byte) b);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			output.write(buffer, offset, length);
+			digest.update(buffer, offset, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			output.close();
+		}
+
+		/**
+		 * Finish the archive and add it to the cache.
+		 *
+		 * @param url The source url.
+		 * @param etag The ETag the server sent, or null.
+		 * @param lastModified The Last-Modified date the server sent, or null.
+		 * @throws IOException If the archive can't be cached.
+		 */
+		public void commit(String url, String etag, String lastModified) throws IOException {
+			output.close();
+
+			File archive = new File(objects, DigestUtil.toHex(digest.digest()));
+
+			if (archive.exists()) {
+				temp.delete();
+			} else {
+				moveIntoCache(temp, archive);
+			}
+
+			ArchiveCache.this.commit(archive, url, etag, lastModified);
+		}
+
+		/**
+		 * Throw the archive away, after a failed or cancelled download.
+		 */
+		public void abort() {
+			try {
+				output.close();
+			} catch (IOException e) {
+				// Deleting it anyway.
+			}
+
+			temp.delete();
+		}
+	}
+}
@@ -0,0 +1,442 @@
+package org.nikkii.mapdownloader.download;
+
+import org.nikkii.mapdownloader.maps.MapSource;
+
+import java.io.InterruptedIOException;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting how fast downloads may read.
+ *
+ * Downloads take tokens for what they read after reading it, and wait once the bucket runs dry until it's paid back.
+ * The global limiter is shared by every download, and each source can have a limiter of its own below it, so both
+ * limits apply. Rates can be changed at any time, and scheduled rates take over during their time of day, so running
+ * downloads slow down or speed up without being restarted.
+ *
+ * @author Nikki
+ */
+public class BandwidthLimiter {
+
+	/**
+	 * How much reading may happen at once after a quiet period, in seconds of the rate.
+	 */
+	private static final double BURST = 0.25;
+
+	/**
+	 * The longest a download sleeps before checking the rate again.
+	 */
+	private static final long MAX_SLEEP = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * How often the schedule is checked.
+	 */
+	private static final long SCHEDULE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * The smallest amount of bytes read at once.
+	 */
+	private static final int MIN_CHUNK = 1024;
+
+	/**
+	 * The limiter shared by every download.
+	 */
+	private static final BandwidthLimiter DEFAULT = new BandwidthLimiter(null, 0);
+
+	/**
+	 * The limiter above this one, or null for the global limiter.
+	 */
+	private final BandwidthLimiter parent;
+
+	/**
+	 * The per source limiters below this one.
+	 */
+	private final Map<MapSource, BandwidthLimiter> sources = new ConcurrentHashMap<>();
+
+	/**
+	 * The rates which apply during certain times of day.
+	 */
+	private final List<ScheduledRate> schedule = new CopyOnWriteArrayList<>();
+
+	/**
+	 * The rate outside of scheduled times, in bytes per second. 0 means unlimited.
+	 */
+	private volatile long rate;
+
+	/**
+	 * The rate in effect, from the schedule or the base rate.
+	 */
+	private volatile long currentRate;
+
+	/**
+	 * When the schedule was last checked.
+	 */
+	private long scheduleChecked;
+
+	/**
+	 * The tokens in the bucket, negative while in debt.
+	 */
+	private double tokens = 0;
+
+	/**
+	 * When the bucket was last refilled.
+	 */
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * Construct a new limiter.
+	 *
+	 * @param parent The limiter above this one, or null.
+	 * @param rate The rate in bytes per second, 0 for unlimited.
+	 */
+	private BandwidthLimiter(BandwidthLimiter parent, long rate) {
+		this.parent = parent;
+		this.rate = rate;
+		this.currentRate = rate;
+		this.scheduleChecked = System.nanoTime();
+	}
+
+	/**
+	 * Get the limiter shared by every download.
+	 *
+	 * @return The global limiter.
+	 */
+	public static BandwidthLimiter getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Get the limiter for a source, below this one.
+	 *
+	 * @param source The source.
+	 * @return The source's limiter, unlimited unless given a rate.
+	 */
+	public BandwidthLimiter getSourceLimiter(MapSource source) {
+		return sources.computeIfAbsent(source, key -> new BandwidthLimiter(this, 0));
+	}
+
+	/**
+	 * Set the rate outside of scheduled times. Takes effect right away.
+	 *
+	 * @param rate The rate in bytes per second, 0 for unlimited.
+	 */
+	public synchronized void setRate(long rate) {
+		this.rate = Math.max(0, rate);
+
+		updateRate(System.nanoTime());
+	}
+
+	/**
+	 * Get the rate outside of scheduled times.
+	 *
+	 * @return The rate in bytes per second, 0 for unlimited.
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Get the rate in effect right now.
+	 *
+	 * @return The rate in bytes per second, 0 for unlimited.
+	 */
+	public long getCurrentRate() {
+		return currentRate;
+	}
+
+	/**
+	 * Use a different rate during a time of day, like capping downloads during match hours.
+	 *
+	 * @param from The time the rate starts.
+	 * @param to The time the rate ends. If before {@code from}, the rate runs past midnight.
+	 * @param rate The rate in bytes per second, 0 for unlimited.
+	 */
+	public synchronized void addScheduledRate(LocalTime from, LocalTime to, long rate) {
+		schedule.add(new ScheduledRate(from, to, Math.max(0, rate)));
+
+		updateRate(System.nanoTime());
+	}
+
+	/**
+	 * Use a different rate during a time of day, given as from-to=rate, like 18:00-23:30=512k.
+	 *
+	 * @param window The time window and its rate.
+	 * @throws IllegalArgumentException If the window is malformed.
+	 */
+	public void addScheduledRate(String window) {
+		int split = window.indexOf('=');
+		int dash = window.indexOf('-');
+
+		if (split < 0 || dash < 0 || dash > split) {
+			throw new IllegalArgumentException("Scheduled rates look like 18:00-23:30=512k: " + window);
+		}
+
+		try {
+			addScheduledRate(LocalTime.parse(window.substring(0, dash).trim()), LocalTime.parse(window.substring(dash + 1, split).trim()), parseRate(window.substring(split + 1)));
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Bad time in " + window);
+		}
+	}
+
+	/**
+	 * Replace the schedule with comma separated windows, like 18:00-23:30=512k,23:30-06:00=0.
+	 *
+	 * @param windows The windows, or an empty string for no schedule.
+	 * @throws IllegalArgumentException If a window is malformed, in which case the schedule is left alone.
+	 */
+	public synchronized void setSchedule(String windows) {
+		List<ScheduledRate> previous = new ArrayList<>(schedule);
+
+		schedule.clear();
+
+		try {
+			for (String window : windows.split(",")) {
+				if (!window.trim().isEmpty()) {
+					addScheduledRate(window.trim());
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			schedule.clear();
+			schedule.addAll(previous);
+
+			updateRate(System.nanoTime());
+
+			throw e;
+		}
+
+		updateRate(System.nanoTime());
+	}
+
+	/**
+	 * Get the schedule in the form {@link #setSchedule(String)} takes.
+	 *
+	 * @return The comma separated windows, empty if there are none.
+	 */
+	public String getSchedule() {
+		StringBuilder windows = new StringBuilder();
+
+		for (ScheduledRate scheduled : schedule) {
+			if (windows.length() > 0) {
+				windows.append(',');
+			}
+
+			windows.append(scheduled);
+		}
+
+		return windows.toString();
+	}
+
+	/**
+	 * Parse a rate in bytes per second, with an optional k or m suffix.
+	 *
+	 * @param value The rate.
+	 * @return The rate in bytes per second.
+	 * @throws IllegalArgumentException If the rate isn't a number.
+	 */
+	public static long parseRate(String value) {
+		String lower = value.trim().toLowerCase();
+
+		long multiplier = 1;
+
+		if (lower.endsWith("k")) {
+			multiplier = 1024;
+		} else if (lower.endsWith("m")) {
+			multiplier = 1024 * 1024;
+		}
+
+		if (multiplier > 1) {
+			lower = lower.substring(0, lower.length() - 1);
+		}
+
+		try {
+			return Long.parseLong(lower) * multiplier;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad rate " + value);
+		}
+	}
+
+	/**
+	 * Remove every scheduled rate.
+	 */
+	public synchronized void clearSchedule() {
+		schedule.clear();
+
+		updateRate(System.nanoTime());
+	}
+
+	/**
+	 * Get the largest read which keeps downloads smooth at the current rate, about a tenth of a second's worth.
+	 *
+	 * @param chunkSize The chunk size the download would like to use.
+	 * @return The chunk size to use.
+	 */
+	public int getChunkSize(int chunkSize) {
+		long limit = currentRate;
+
+		if (limit > 0) {
+			chunkSize = (int) Math.max(MIN_CHUNK, Math.min(chunkSize, limit / 10));
+		}
+
+		return parent != null ? parent.getChunkSize(chunkSize) : chunkSize;
+	}
+
+	/**
+	 * Take tokens for bytes which were read, waiting while the bucket is in debt.
+	 *
+	 * @param bytes The amount of bytes read.
+	 * @throws InterruptedIOException If interrupted while waiting.
+	 */
+	public void consume(long bytes) throws InterruptedIOException {
+		long wait;
+
+		synchronized (this) {
+			long now = System.nanoTime();
+
+			refill(now);
+
+			if (currentRate > 0) {
+				tokens -= bytes;
+			}
+
+			wait = getWait();
+		}
+
+		while (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(Math.min(wait, MAX_SLEEP));
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+
+			synchronized (this) {
+				refill(System.nanoTime());
+
+				wait = getWait();
+			}
+		}
+
+		if (parent != null) {
+			parent.consume(bytes);
+		}
+	}
+
+	/**
+	 * Add the tokens earned since the last refill.
+	 *
+	 * @param now The current time.
+	 */
+	private void refill(long now) {
+		if (now - scheduleChecked >= SCHEDULE_INTERVAL) {
+			updateRate(now);
+		}
+
+		long limit = currentRate;
+
+		if (limit <= 0) {
+			// Unlimited, forget any debt so a limit set later starts fresh.
+			tokens = 0;
+		} else {
+			tokens = Math.min(limit * BURST, tokens + (now - lastRefill) * limit / 1e9);
+		}
+
+		lastRefill = now;
+	}
+
+	/**
+	 * Get how long until the debt is paid back.
+	 *
+	 * @return The time to wait in nanoseconds, 0 if not in debt.
+	 */
+	private long getWait() {
+		long limit = currentRate;
+
+		if (limit <= 0 || tokens >= 0) {
+			return 0;
+		}
+
+		return (long) (-tokens * 1e9 / limit);
+	}
+
+	/**
+	 * Work out which rate is in effect.
+	 *
+	 * @param now The current time.
+	 */
+	private void updateRate(long now) {
+		scheduleChecked = now;
+
+		long limit = rate;
+
+		if (!schedule.isEmpty()) {
+			LocalTime time = LocalTime.now();
+
+			for (ScheduledRate scheduled : schedule) {
+				if (scheduled.contains(time)) {
+					limit = scheduled.rate;
+					break;
+				}
+			}
+		}
+
+		currentRate = limit;
+	}
+
+	/**
+	 * A rate which applies during a time of day.
+	 */
+	private static class ScheduledRate {
+
+		/**
+		 * The time the rate starts.
+		 */
+		private final LocalTime from;
+
+		/**
+		 * The time the rate ends.
+		 */
+		private final LocalTime to;
+
+		/**
+		 * The rate in bytes per second, 0 for unlimited.
+		 */
+		private final long rate;
+
+		/**
+		 * Construct a new scheduled rate.
+		 *
+		 * @param from The time the rate starts.
+		 * @param to The time the rate ends.
+		 * @param rate The rate in bytes per second.
+		 */
+		public ScheduledRate(LocalTime from, LocalTime to, long rate) {
+			this.from = from;
+			this.to = to;
+			this.rate = rate;
+		}
+
+		/**
+		 * Check whether the rate applies at a time.
+		 *
+		 * @param time The time.
+		 * @return Whether the time is within the rate's window.
+		 */
+		public boolean contains(LocalTime time) {
+			if (from.isAfter(to)) {
+				return !time.isBefore(from) || time.isBefore(to);
+			}
+
+			return !time.isBefore(from) && time.isBefore(to);
+		}
+
+		@Override
+		public String toString() {
+			return from + "-" + to + "=" + rate;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package org.nikkii.mapdownloader.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pipe between two threads, holding at most a fixed amount of chunks.
+ *
+ * The writer blocks while the pipe is full, so a slow reader holds back the writer instead of buffering the whole
+ * file in memory. Unlike {@link java.io.PipedInputStream} it doesn't care which threads are on either end, and errors
+ * on either end are passed on to the other.
+ *
+ * @author Nikki
+ */
+public class BoundedPipe {
+
+	/**
+	 * The chunk marking the end of the stream.
+	 */
+	private static final byte[] EOF = new byte[0];
+
+	/**
+	 * The chunks waiting to be read.
+	 */
+	private final BlockingQueue<byte[]> chunks;
+
+	/**
+	 * The error which stopped the writer, passed on to the reader.
+	 */
+	private volatile IOException writeError;
+
+	/**
+	 * The error which stopped the reader, passed on to the writer.
+	 */
+	private volatile IOException readError;
+
+	/**
+	 * Set once the reader is closed, so the writer stops waiting for space.
+	 */
+	private volatile boolean readerClosed = false;
+
+	/**
+	 * The reading end.
+	 */
+	private final InputStream input = new PipeInputStream();
+
+	/**
+	 * The writing end.
+	 */
+	private final OutputStream output = new PipeOutputStream();
+
+	/**
+	 * Construct a new pipe.
+	 *
+	 * @param capacity The maximum amount of chunks held at once.
+	 */
+	public BoundedPipe(int capacity) {
+		this.chunks = new ArrayBlockingQueue<>(capacity);
+	}
+
+	/**
+	 * Get the reading end of the pipe.
+	 *
+	 * @return The input stream.
+	 */
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	/**
+	 * Get the writing end of the pipe.
+	 *
+	 * @return The output stream.
+	 */
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	/**
+	 * End the stream with an error, which the reader will see once it reaches it.
+	 *
+	 * @param error The error.
+	 */
+	public void fail(IOException error) {
+		this.writeError = error;
+
+		try {
+			put(EOF);
+		} catch (IOException e) {
+			// The reader is gone already.
+		}
+	}
+
+	/**
+	 * Close the reading end because the reader failed. The writer sees the error instead of a plain closed pipe.
+	 *
+	 * @param error The error.
+	 */
+	public void failReader(IOException error) {
+		this.readError = error;
+
+		readerClosed = true;
+		chunks.clear();
+	}
+
+	/**
+	 * Build the error thrown at the writer once the reader is closed.
+	 *
+	 * @return The error.
+	 */
+	private IOException readerClosedError() {
+		IOException error = readError;
+
+		return error != null ? new IOException("Pipe reader failed: " + error.getMessage(), error) : new IOException("Pipe closed");
+	}
+
+	/**
+	 * Add a chunk, waiting for space if the pipe is full.
+	 *
+	 * @param chunk The chunk.
+	 * @throws IOException If the reader closed, or the thread is interrupted.
+	 */
+	private void put(byte[] chunk) throws IOException {
+		if (readerClosed) {
+			throw readerClosedError();
+		}
+
+		try {
+			while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+				if (readerClosed) {
+					throw readerClosedError();
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * The reading end of the pipe.
+	 */
+	private class PipeInputStream extends InputStream {
+
+		/**
+		 * The chunk being read.
+		 */
+		private byte[] current;
+
+		/**
+		 * The read position in the current chunk.
+		 */
+		private int position;
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+
+			if (current == null || position == current.length) {
+				if (current == EOF) {
+					return end();
+				}
+
+				try {
+					current = chunks.take();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+
+				position = 0;
+
+				if (current == EOF) {
+					return end();
+				}
+			}
+
+			int count = Math.min(length, current.length - position);
+
+			System.arraycopy(current, position, buffer, offset, count);
+
+			position += count;
+
+			return count;
+		}
+
+		/**
+		 * Signal the end of the stream, or the writer's error if it failed.
+		 *
+		 * @return -1.
+		 * @throws IOException The writer's error.
+		 */
+		private int end() throws IOException {
+			if (writeError != null) {
+				throw writeError;
+			}
+
+			return -1;
+		}
+
+		@Override
+		public void close() {
+			readerClosed = true;
+			chunks.clear();
+		}
+	}
+
+	/**
+	 * The writing end of the pipe.
+	 */
+	private class PipeOutputStream extends OutputStream {
+
+		/**
+		 * Whether the stream has been closed.
+		 */
+		private boolean closed = false;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			if (closed) {
+				throw new IOException("Pipe closed");
+			}
+
+			if (length > 0) {
+				put(Arrays.copyOfRange(buffer, offset, offset + length));
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				put(EOF);
+			}
+		}
+	}
+}
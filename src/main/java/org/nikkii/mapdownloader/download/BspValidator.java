@@ -0,0 +1,282 @@
+package org.nikkii.mapdownloader.download;
+
+import org.nikkii.mapdownloader.util.TaskExecutors;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that map files are whole by looking at their BSP header alone.
+ *
+ * The header holds the magic number, the version and the offset and length of all 64 lumps, so a map cut short by a
+ * failed download or a full disk has lumps pointing past its end. Only the header is read, about a kilobyte, so a
+ * folder of thousands of maps is checked in seconds. It can't find damage inside the lumps, the digests in the index
+ * are for that.
+ *
+ * The header is read with a single positional read rather than mapped, since Windows won't move or delete a mapped
+ * file until the mapping is garbage collected.
+ *
+ * @author Nikki
+ */
+public class BspValidator {
+
+	/**
+	 * The magic number starting every BSP file, "VBSP" read little endian.
+	 */
+	private static final int IDENT = 'V' | 'B' << 8 | 'S' << 16 | 'P' << 24;
+
+	/**
+	 * The oldest BSP version the game loads.
+	 */
+	public static final int MIN_VERSION = 19;
+
+	/**
+	 * The newest BSP version the game loads.
+	 */
+	public static final int MAX_VERSION = 20;
+
+	/**
+	 * The amount of lumps in the lump directory.
+	 */
+	private static final int LUMP_COUNT = 64;
+
+	/**
+	 * The size of the header: the magic number, the version, the lump directory and the map revision.
+	 */
+	public static final int HEADER_LENGTH = 4 + 4 + LUMP_COUNT * 16 + 4;
+
+	/**
+	 * The amount of maps read at once while scanning a folder.
+	 */
+	private static final int SCAN_CONCURRENCY = 16;
+
+	/**
+	 * The folder the maps are installed in.
+	 */
+	private final File mapFolder;
+
+	/**
+	 * Construct a new validator.
+	 *
+	 * @param mapFolder The folder the maps are installed in.
+	 */
+	public BspValidator(File mapFolder) {
+		this.mapFolder = mapFolder;
+	}
+
+	/**
+	 * Check a map's header.
+	 *
+	 * @param file The map.
+	 * @return What's wrong with the map, or null if its header is sound.
+	 * @throws IOException If the map can't be read.
+	 */
+	public static String check(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long length = channel.size();
+
+			if (length < HEADER_LENGTH) {
+				return "truncated to " + length + " bytes, shorter than the header";
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position()) < 0) {
+					throw new EOFException("Map shrank while reading its header");
+				}
+			}
+
+			header.flip();
+
+			if (header.getInt() != IDENT) {
+				return "not a BSP file";
+			}
+
+			int version = header.getInt();
+
+			if (version < MIN_VERSION || version > MAX_VERSION) {
+				return "unsupported BSP version " + version;
+			}
+
+			for (int i = 0; i < LUMP_COUNT; i++) {
+				int offset = header.getInt();
+				int size = header.getInt();
+
+				// Skip the lump version and its four character code.
+				header.position(header.position() + 8);
+
+				if (offset < 0 || size < 0) {
+					return "lump " + i + " has a negative offset or length";
+				}
+
+				if (size == 0) {
+					continue;
+				}
+
+				if (offset < HEADER_LENGTH) {
+					return "lump " + i + " overlaps the header";
+				}
+
+				if ((long) offset + size > length) {
+					return "truncated to " + length + " bytes, lump " + i + " ends at " + ((long) offset + size);
+				}
+			}
+
+			return null;
+		}
+	}
+
+	/**
+	 * Check a map's header, failing if it isn't sound.
+	 *
+	 * @param file The map.
+	 * @throws IOException If the map is damaged or can't be read.
+	 */
+	public static void validate(File file) throws IOException {
+		String problem = check(file);
+
+		if (problem != null) {
+			throw new IOException(file.getName() + " is damaged: " + problem);
+		}
+	}
+
+	/**
+	 * Check every map in the folder. The maps are spread over a few tasks on the I/O executor, which is plenty since
+	 * each map is a single small read. Blocks until every map is checked.
+	 *
+	 * @return The result.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public Result scan() throws InterruptedException {
+		final Result result = new Result();
+
+		final File[] files = mapFolder.listFiles((dir, name) -> name.endsWith(".bsp"));
+
+		if (files == null) {
+			return result;
+		}
+
+		final AtomicInteger next = new AtomicInteger();
+
+		List<Future<?>> futures = new ArrayList<>();
+
+		try {
+			for (int i = 0; i < Math.min(SCAN_CONCURRENCY, files.length); i++) {
+				futures.add(TaskExecutors.getIo().submit(TaskExecutors.named("map-scan-" + i, () -> {
+					int index;
+
+					while ((index = next.getAndIncrement()) < files.length && !Thread.currentThread().isInterrupted()) {
+						File file = files[index];
+
+						String name = file.getName().substring(0, file.getName().indexOf('.'));
+
+						try {
+							String problem = check(file);
+
+							if (problem == null) {
+								result.valid.incrementAndGet();
+							} else {
+								result.damaged(name, problem);
+							}
+						} catch (IOException e) {
+							result.failed.incrementAndGet();
+						}
+					}
+				})));
+			}
+
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					result.failed.incrementAndGet();
+				}
+			}
+		} finally {
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * The outcome of a scan.
+	 */
+	public static class Result {
+
+		/**
+		 * What's wrong with each damaged map, by map name.
+		 */
+		private final SortedMap<String, String> damaged = Collections.synchronizedSortedMap(new TreeMap<String, String>());
+
+		/**
+		 * The amount of maps with a sound header.
+		 */
+		private final AtomicInteger valid = new AtomicInteger();
+
+		/**
+		 * The amount of maps which couldn't be read.
+		 */
+		private final AtomicInteger failed = new AtomicInteger();
+
+		/**
+		 * Record a damaged map.
+		 *
+		 * @param name The map name.
+		 * @param problem What's wrong with it.
+		 */
+		private void damaged(String name, String problem) {
+			damaged.put(name, problem);
+		}
+
+		/**
+		 * Get the damaged maps.
+		 *
+		 * @return What's wrong with each damaged map, by map name.
+		 */
+		public SortedMap<String, String> getDamaged() {
+			synchronized (damaged) {
+				return new TreeMap<>(damaged);
+			}
+		}
+
+		/**
+		 * Get the amount of maps with a sound header.
+		 *
+		 * @return The valid count.
+		 */
+		public int getValid() {
+			return valid.get();
+		}
+
+		/**
+		 * Get the amount of maps which couldn't be read.
+		 *
+		 * @return The failed count.
+		 */
+		public int getFailed() {
+			return failed.get();
+		}
+
+		@Override
+		public String toString() {
+			return getValid() + " valid, " + damaged.size() + " damaged, " + getFailed() + " failed";
+		}
+	}
+}
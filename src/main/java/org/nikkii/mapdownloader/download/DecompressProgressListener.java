@@ -1,24 +1,19 @@
 package org.nikkii.mapdownloader.download;
 
-import javax.swing.JLabel;
-import javax.swing.JProgressBar;
+import java.io.IOException;
 
 /**
- * A listener to change the progress bar to the "no value" sliding version until done.
+ * A listener to show a download as decompressing until done. The progress bar switches to the "no value" sliding
+ * version once nothing else is left downloading.
  *
  * @author Nikki
  */
 public class DecompressProgressListener implements ProgressListener {
 
 	/**
-	 * The JLabel to update.
+	 * The entry to update.
 	 */
-	private final JLabel label;
-
-	/**
-	 * The ProgressBar to update.
-	 */
-	private final JProgressBar progressBar;
+	private final ProgressSummary.Entry entry;
 
 	/**
 	 * The text to set.
@@ -28,30 +23,26 @@ public class DecompressProgressListener implements ProgressListener {
 	/**
 	 * Construct a new progress listener for decompression.
 	 *
-	 * @param label The JLabel.
-	 * @param progressBar The ProgressBar.
+	 * @param entry The download's entry in the progress summary.
 	 * @param text The text.
 	 */
-	public DecompressProgressListener(JLabel label, JProgressBar progressBar, String text) {
-		this.label = label;
-		this.progressBar = progressBar;
+	public DecompressProgressListener(ProgressSummary.Entry entry, String text) {
+		this.entry = entry;
 		this.text = text;
 	}
 
 	@Override
 	public void progressStarted(long fileSize) {
-		label.setText(text);
-		progressBar.setIndeterminate(true);
+		entry.decompressing(text);
 	}
 
 	@Override
-	public void progressUpdated(int percent, long bytes) {
-
+	public void progressFinished() {
+		entry.decompressing(null);
 	}
 
 	@Override
-	public void progressFinished() {
-		progressBar.setIndeterminate(false);
-		progressBar.setValue(0);
+	public void progressFailed(IOException error) {
+		progressFinished();
 	}
 }
@@ -1,14 +1,21 @@
 package org.nikkii.mapdownloader.download;
 
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.nikkii.mapdownloader.codec.Codec;
+import org.nikkii.mapdownloader.codec.Codecs;
+import org.nikkii.mapdownloader.metrics.Metrics;
+import org.nikkii.mapdownloader.util.DigestUtil;
+import org.nikkii.mapdownloader.util.PreallocatedOutputStream;
+import org.nikkii.mapdownloader.util.TaskExecutors;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -20,8 +27,27 @@ import java.util.List;
  */
 public class Decompressor implements Runnable {
 
+	/**
+	 * The minimum compressed size worth decoding in parallel.
+	 */
+	private static final long MIN_PARALLEL_LENGTH = 1024 * 1024;
+
+	/**
+	 * The read buffer for compressed files. Some decoders read a byte at a time, which would otherwise be a system call
+	 * each.
+	 */
+	private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The compressed file, or null if decompressing a stream.
+	 */
 	private final File inputFile;
 
+	/**
+	 * The compressed stream, or null if decompressing a file.
+	 */
+	private final InputStream inputStream;
+
 	private final File outputFile;
 	/**
 	 * The list of download listeners to inform for status updates
@@ -36,18 +62,38 @@ public class Decompressor implements Runnable {
 	/**
 	 * Count of amount decompressed so far
 	 */
-	private long decompressed = 0;
+	private volatile long decompressed = 0;
 
 	/**
-	 * Current percentage
+	 * Reports the progress to the listeners, created once decompression starts.
 	 */
-	private int percent = 0;
+	private ProgressHub.Tracker tracker;
 
 	/**
 	 * Download start time
 	 */
 	private long startTime = 0;
 
+	/**
+	 * The error which stopped decompression, if any.
+	 */
+	private volatile IOException error;
+
+	/**
+	 * Whether files may be decoded on multiple cores.
+	 */
+	private boolean parallel = true;
+
+	/**
+	 * The SHA-256 of the decompressed file, set once it's finished.
+	 */
+	private volatile String digest;
+
+	/**
+	 * The expected size of the decompressed file, or -1 if unknown.
+	 */
+	private long expectedSize = -1;
+
 	/**
 	 * Construct a new Downloader
 	 * @param inputFile
@@ -55,6 +101,21 @@ public class Decompressor implements Runnable {
 	 */
 	public Decompressor(File inputFile, File outputFile) {
 		this.inputFile = inputFile;
+		this.inputStream = null;
+		this.outputFile = outputFile;
+	}
+
+	/**
+	 * Construct a new decompressor reading from a stream, for decompressing while the file is still downloading.
+	 *
+	 * @param inputStream The compressed stream.
+	 * @param length The compressed length, or -1 if unknown.
+	 * @param outputFile The file to write to.
+	 */
+	public Decompressor(InputStream inputStream, long length, File outputFile) {
+		this.inputFile = null;
+		this.inputStream = inputStream;
+		this.length = length;
 		this.outputFile = outputFile;
 	}
 	
@@ -63,17 +124,31 @@ public class Decompressor implements Runnable {
 	 */
 	@Override
 	public void run() {
+		long started = System.nanoTime();
+
 		try {
-			try (InputStream input = new BZip2CompressorInputStream(new FileInputStream(inputFile)); OutputStream output = new FileOutputStream(outputFile)) {
-				length = inputFile.length();
+			if (parallel && inputFile != null && inputFile.length() >= MIN_PARALLEL_LENGTH && TaskExecutors.getCpu().getParallelism() > 1 && decompressParallel()) {
+				recordMetrics(started);
+				decompressionFinished();
+				return;
+			}
 
-				byte[] buffer = new byte[10240];
+			MessageDigest outputDigest = DigestUtil.newSha256();
+
+			// The source is closed even if no decoder can be built for it, a streaming download waits on it otherwise.
+			// The format is told by the magic number, an archive named for the wrong format still decodes.
+			try (InputStream source = inputFile != null ? new BufferedInputStream(new FileInputStream(inputFile), INPUT_BUFFER_SIZE) : inputStream; InputStream input = Codecs.decode(source); OutputStream output = new DigestOutputStream(new PreallocatedOutputStream(outputFile, expectedSize), outputDigest)) {
+				if (inputFile != null) {
+					length = inputFile.length();
+				}
 
-				int lastPercent = 0;
+				byte[] buffer = new byte[10240];
 
-				decompressionStarted(length);
+				if (startTime == 0) {
+					decompressionStarted(length);
 
-				startTime = System.currentTimeMillis();
+					startTime = System.currentTimeMillis();
+				}
 
 				try {
 					while (true) {
@@ -83,11 +158,6 @@ public class Decompressor implements Runnable {
 						}
 						decompressed += read;
 
-						percent = (int) (((double) decompressed / (double) length) * 100);
-						if (percent > lastPercent) {
-							progressEvent(percent, decompressed);
-							lastPercent = percent;
-						}
 						output.write(buffer, 0, read);
 					}
 				} finally {
@@ -95,12 +165,91 @@ public class Decompressor implements Runnable {
 					output.close();
 				}
 			}
+
+			digest = DigestUtil.toHex(outputDigest.digest());
+
+			recordMetrics(started);
 			
 			decompressionFinished();
 		} catch (FileNotFoundException e) {
+			error = e;
+			getTracker().fail(e);
+		} catch (IOException e) {
+			error = e;
+			getTracker().fail(e);
+		}
+	}
+	
+	/**
+	 * Decode the file on multiple cores.
+	 *
+	 * @return Whether the file was decoded, false if the sequential decoder should be used instead.
+	 */
+	private boolean decompressParallel() {
+		length = inputFile.length();
+
+		decompressionStarted(length);
+
+		startTime = System.currentTimeMillis();
+
+		MessageDigest outputDigest = DigestUtil.newSha256();
+
+		try {
+			Codec codec = Codecs.detect(inputFile);
+
+			if (codec == null) {
+				// The sequential decoder reports the unknown format.
+				return false;
+			}
+
+			try (OutputStream output = new DigestOutputStream(new PreallocatedOutputStream(outputFile, expectedSize), outputDigest)) {
+				if (!codec.decodeParallel(inputFile, output, bytes -> decompressed = bytes, TaskExecutors.getCpu())) {
+					return false;
+				}
+			}
+
+			digest = DigestUtil.toHex(outputDigest.digest());
+
+			return true;
 		} catch (IOException e) {
+			System.out.println("Unable to decompress " + inputFile.getName() + " in parallel, falling back: " + e.getMessage());
+
+			decompressed = 0;
+
+			return false;
 		}
 	}
+
+	/**
+	 * Record the decompression in the metrics. Streams are left out, they spend most of their time waiting for the
+	 * download and would drag the measured speed down to the download speed.
+	 *
+	 * @param started When decompression started, from {@link System#nanoTime()}.
+	 */
+	private void recordMetrics(long started) {
+		if (inputFile != null) {
+			Metrics.getDefault().recordDecompression(decompressed, System.nanoTime() - started);
+		}
+	}
+
+	/**
+	 * Set whether files may be decoded on multiple cores. The output is the same either way.
+	 *
+	 * @param parallel The parallel flag.
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+	
+	/**
+	 * Set the expected size of the decompressed file, so the output can be allocated in one piece. The output is
+	 * trimmed to its real size either way.
+	 *
+	 * @param expectedSize The expected size, or -1 if unknown.
+	 */
+	public void setExpectedSize(long expectedSize) {
+		this.expectedSize = expectedSize;
+	}
 	
 	/**
 	 * Add a listener to the list
@@ -116,7 +265,25 @@ public class Decompressor implements Runnable {
 	 * Start a new thread to download
 	 */
 	public void start() {
-		new Thread(this).start();
+		TaskExecutors.execute("decompress-" + outputFile.getName(), this);
+	}
+	
+	/**
+	 * Get the error which stopped decompression.
+	 *
+	 * @return The error, or null if decompression didn't fail.
+	 */
+	public IOException getError() {
+		return error;
+	}
+	
+	/**
+	 * Get the SHA-256 of the decompressed file, computed as it was written.
+	 *
+	 * @return The digest in hex, or null if decompression didn't finish.
+	 */
+	public String getDigest() {
+		return digest;
 	}
 	
 	/**
@@ -143,7 +310,7 @@ public class Decompressor implements Runnable {
 	 * 		The percentage
 	 */
 	public int getPercentage() {
-		return percent;
+		return length > 0 ? (int) (decompressed * 100 / length) : 0;
 	}
 	
 	/**
@@ -162,31 +329,26 @@ public class Decompressor implements Runnable {
 	 * 			The file size parsed off the header
 	 */
 	private void decompressionStarted(long fileSize) {
-		for(ProgressListener listener : listeners) {
-			listener.progressStarted(fileSize);
-		}
-	}
-	
-	/**
-	 * Called whenever percent > lastPercent (Like 80 -> 81)
-	 *
-	 * @param percent
-	 * 			The current percentage
-	 * @param bytes
-	 * 			The amount of bytes decompressed since start
-	 */
-	private void progressEvent(int percent, long bytes) {
-		for(ProgressListener listener : listeners) {
-			listener.progressUpdated(percent, bytes);
-		}
+		getTracker().start(fileSize);
 	}
 	
 	/**
 	 * Called when the download finishes.
 	 */
 	private void decompressionFinished() {
-		for(ProgressListener listener : listeners) {
-			listener.progressFinished();
+		getTracker().finish();
+	}
+
+	/**
+	 * Get the tracker reporting the progress, creating it with the listeners added so far.
+	 *
+	 * @return The tracker.
+	 */
+	private ProgressHub.Tracker getTracker() {
+		if (tracker == null) {
+			tracker = ProgressHub.getDefault().track(listeners, () -> decompressed);
 		}
+
+		return tracker;
 	}
 }
@@ -0,0 +1,450 @@
+package org.nikkii.mapdownloader.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Which blocks of a new map version can be copied from the installed version, and which have to be downloaded.
+ *
+ * The installed map is read through a window rather than mapped, since a mapped file can't be replaced on Windows
+ * until the mapping is collected.
+ *
+ * @author Nikki
+ */
+public class DeltaPlan {
+
+	/**
+	 * The size of the window the installed map is read through.
+	 */
+	private static final int WINDOW_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Reused runs shorter than this between two downloaded ones are downloaded too, another request costs more.
+	 */
+	private static final long MIN_REUSED_RUN = 32 * 1024;
+
+	/**
+	 * The signature of the new version.
+	 */
+	private final MapSignature signature;
+
+	/**
+	 * The installed file.
+	 */
+	private final File local;
+
+	/**
+	 * The offset in the installed file every block can be copied from, or -1 if it has to be downloaded.
+	 */
+	private final long[] sources;
+
+	/**
+	 * Construct a new plan.
+	 *
+	 * @param signature The signature of the new version.
+	 * @param local The installed file.
+	 * @param sources The offset in the installed file every block can be copied from, or -1.
+	 */
+	private DeltaPlan(MapSignature signature, File local, long[] sources) {
+		this.signature = signature;
+		this.local = local;
+		this.sources = sources;
+	}
+
+	/**
+	 * Find the blocks of the new version the installed file already has, wherever they moved to.
+	 *
+	 * @param signature The signature of the new version.
+	 * @param local The installed file.
+	 * @return The plan.
+	 * @throws IOException If the installed file can't be read.
+	 */
+	public static DeltaPlan create(MapSignature signature, File local) throws IOException {
+		int blocks = signature.getBlockCount();
+		int size = signature.getBlockSize();
+
+		long[] sources = new long[blocks];
+		Arrays.fill(sources, -1);
+
+		// Chain the blocks by weak checksum in an open hash table, so the scan doesn't box a key for every byte.
+		int buckets = Integer.highestOneBit(Math.max(1, blocks) * 2 - 1) << 1;
+		int mask = buckets - 1;
+
+		int[] heads = new int[buckets];
+		int[] next = new int[blocks];
+
+		for (int i = blocks - 1; i >= 0; i--) {
+			int bucket = bucket(signature.getWeak(i), mask);
+
+			next[i] = heads[bucket] - 1;
+			heads[bucket] = i + 1;
+		}
+
+		MessageDigest md5 = MapSignature.newMd5();
+
+		int remaining = blocks;
+
+		try (FileChannel channel = FileChannel.open(local.toPath(), StandardOpenOption.READ)) {
+			long fileLength = channel.size();
+
+			if (fileLength < size || blocks == 0) {
+				return new DeltaPlan(signature, local, sources);
+			}
+
+			Window window = new Window(channel, Math.max(WINDOW_SIZE, size * 2));
+
+			long position = 0;
+
+			window.ensure(position, size);
+
+			int a = 0, b = 0;
+			boolean fresh = true;
+
+			while (remaining > 0) {
+				if (fresh) {
+					int offset = window.offset(position);
+
+					a = 0;
+					b = 0;
+
+					for (int i = 0; i < size; i++) {
+						int value = window.buffer[offset + i] & 0xFF;
+
+						a += value;
+						b += (size - i) * value;
+					}
+
+					fresh = false;
+				}
+
+				int weak = MapSignature.combine(a, b);
+
+				boolean matched = false;
+
+				int candidate = heads[bucket(weak, mask)] - 1;
+
+				if (candidate >= 0) {
+					long strong = 0;
+					boolean computed = false;
+
+					for (; candidate >= 0; candidate = next[candidate]) {
+						if (sources[candidate] >= 0 || signature.getWeak(candidate) != weak) {
+							continue;
+						}
+
+						if (!computed) {
+							strong = MapSignature.strongChecksum(md5, window.buffer, window.offset(position), size);
+							computed = true;
+						}
+
+						if (signature.getStrong(candidate) == strong) {
+							// Identical blocks, like runs of zeros, can all come from the same place.
+							sources[candidate] = position;
+							remaining--;
+							matched = true;
+						}
+					}
+				}
+
+				if (matched) {
+					position += size;
+
+					if (position + size > fileLength) {
+						break;
+					}
+
+					window.ensure(position, size);
+
+					fresh = true;
+				} else {
+					if (position + size >= fileLength) {
+						break;
+					}
+
+					window.ensure(position, size + 1);
+
+					int offset = window.offset(position);
+
+					int out = window.buffer[offset] & 0xFF;
+					int in = window.buffer[offset + size] & 0xFF;
+
+					a += in - out;
+					b += a - size * out;
+
+					position++;
+				}
+			}
+		}
+
+		return new DeltaPlan(signature, local, sources);
+	}
+
+	/**
+	 * Get the hash table bucket for a weak checksum.
+	 *
+	 * @param weak The checksum.
+	 * @param mask The bucket mask.
+	 * @return The bucket.
+	 */
+	private static int bucket(int weak, int mask) {
+		// The low half is a plain byte sum, mix the bits so similar blocks spread out.
+		int hash = weak * 0x45D9F3B;
+
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * Get the signature of the new version.
+	 *
+	 * @return The signature.
+	 */
+	public MapSignature getSignature() {
+		return signature;
+	}
+
+	/**
+	 * Get the amount of bytes which can be copied from the installed file.
+	 *
+	 * @return The byte count.
+	 */
+	public long getReusedBytes() {
+		long reused = 0;
+
+		for (int i = 0; i < sources.length; i++) {
+			if (sources[i] >= 0) {
+				reused += signature.getBlockLength(i);
+			}
+		}
+
+		return reused;
+	}
+
+	/**
+	 * Split the new version into the ranges to copy and the ranges to download. Copied ranges are already complete,
+	 * so only the downloaded ones are requested. Short copied runs are downloaded along with their neighbours, and the
+	 * shortest are merged away until at most the given amount of ranges has to be downloaded.
+	 *
+	 * @param maxDownloads The most ranges to download.
+	 * @return The ranges, covering the whole file in order.
+	 */
+	public List<PartialDownload.Range> getRanges(int maxDownloads) {
+		int blocks = sources.length;
+
+		boolean[] download = new boolean[blocks];
+
+		for (int i = 0; i < blocks; i++) {
+			download[i] = sources[i] < 0;
+		}
+
+		// Reused runs between two downloads, as start and length. Downloading one joins its neighbours into a single
+		// request.
+		List<int[]> gaps = new ArrayList<>();
+
+		int downloads = 0;
+
+		for (int i = 0; i < blocks; ) {
+			int j = i;
+
+			while (j < blocks && download[j] == download[i]) {
+				j++;
+			}
+
+			if (download[i]) {
+				downloads++;
+			} else if (i > 0 && j < blocks) {
+				gaps.add(new int[] { i, j - i });
+			}
+
+			i = j;
+		}
+
+		gaps.sort((gap1, gap2) -> Integer.compare(gap1[1], gap2[1]));
+
+		for (int[] gap : gaps) {
+			if (downloads <= maxDownloads && (long) gap[1] * signature.getBlockSize() >= MIN_REUSED_RUN) {
+				break;
+			}
+
+			Arrays.fill(download, gap[0], gap[0] + gap[1], true);
+
+			downloads--;
+		}
+
+		List<PartialDownload.Range> ranges = new ArrayList<>();
+
+		for (int i = 0; i < blocks; ) {
+			int j = i;
+
+			while (j < blocks && download[j] == download[i]) {
+				j++;
+			}
+
+			long start = (long) i * signature.getBlockSize();
+			long end = Math.min((long) j * signature.getBlockSize(), signature.getLength()) - 1;
+
+			PartialDownload.Range range = new PartialDownload.Range(start, end);
+
+			if (!download[i]) {
+				range.setPosition(end + 1);
+			}
+
+			ranges.add(range);
+
+			i = j;
+		}
+
+		return ranges;
+	}
+
+	/**
+	 * Copy the reused blocks from the installed file into the new one, at their new offsets.
+	 *
+	 * @param ranges The ranges from {@link #getRanges(int)}, only the complete ones are copied.
+	 * @param output The new file, already sized.
+	 * @throws IOException If either file can't be accessed.
+	 */
+	public void copyReused(List<PartialDownload.Range> ranges, FileChannel output) throws IOException {
+		int size = signature.getBlockSize();
+
+		try (FileChannel input = FileChannel.open(local.toPath(), StandardOpenOption.READ)) {
+			for (PartialDownload.Range range : ranges) {
+				if (!range.isComplete()) {
+					continue;
+				}
+
+				int first = (int) (range.getStart() / size), last = (int) (range.getEnd() / size);
+
+				// Copy runs of blocks which were next to each other in the installed file in one go.
+				for (int i = first; i <= last; ) {
+					int j = i + 1;
+
+					while (j <= last && sources[j] == sources[j - 1] + size) {
+						j++;
+					}
+
+					long length = Math.min((long) j * size, signature.getLength()) - (long) i * size;
+
+					copy(input, sources[i], output, (long) i * size, length);
+
+					i = j;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy bytes from one file to another.
+	 *
+	 * @param input The file to copy from.
+	 * @param from The offset to copy from.
+	 * @param output The file to copy to.
+	 * @param to The offset to copy to.
+	 * @param length The amount of bytes to copy.
+	 * @throws IOException If either file can't be accessed.
+	 */
+	private static void copy(FileChannel input, long from, FileChannel output, long to, long length) throws IOException {
+		output.position(to);
+
+		long copied = 0;
+
+		while (copied < length) {
+			long count = input.transferTo(from + copied, length - copied, output);
+
+			if (count <= 0) {
+				throw new IOException("Installed map shrank while copying from it");
+			}
+
+			copied += count;
+		}
+	}
+
+	/**
+	 * A window over a file, refilled as the scan moves forward.
+	 */
+	private static class Window {
+
+		/**
+		 * The file.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * The buffered bytes.
+		 */
+		private final byte[] buffer;
+
+		/**
+		 * The file offset of the first buffered byte.
+		 */
+		private long start = 0;
+
+		/**
+		 * The amount of buffered bytes.
+		 */
+		private int length = 0;
+
+		/**
+		 * Construct a new window.
+		 *
+		 * @param channel The file.
+		 * @param size The window size.
+		 */
+		public Window(FileChannel channel, int size) {
+			this.channel = channel;
+			this.buffer = new byte[size];
+		}
+
+		/**
+		 * Make sure a range of the file is buffered, dropping everything before it if there's no room.
+		 *
+		 * @param position The first byte.
+		 * @param count The amount of bytes, which must exist in the file.
+		 * @throws IOException If the file can't be read.
+		 */
+		public void ensure(long position, int count) throws IOException {
+			if (position >= start && position + count <= start + length) {
+				return;
+			}
+
+			int keep = position >= start && position < start + length ? (int) (start + length - position) : 0;
+
+			if (keep > 0) {
+				System.arraycopy(buffer, (int) (position - start), buffer, 0, keep);
+			}
+
+			start = position;
+			length = keep;
+
+			ByteBuffer target = ByteBuffer.wrap(buffer);
+
+			while (length < count) {
+				target.limit(buffer.length).position(length);
+
+				int read = channel.read(target, start + length);
+
+				if (read < 0) {
+					throw new IOException("Installed map shrank while reading it");
+				}
+
+				length += read;
+			}
+		}
+
+		/**
+		 * Get the buffer offset of a buffered file offset.
+		 *
+		 * @param position The file offset.
+		 * @return The buffer offset.
+		 */
+		public int offset(long position) {
+			return (int) (position - start);
+		}
+	}
+}
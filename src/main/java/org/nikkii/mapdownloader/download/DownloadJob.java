@@ -0,0 +1,195 @@
+package org.nikkii.mapdownloader.download;
+
+import org.nikkii.mapdownloader.maps.Map;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A map download submitted to a {@link DownloadScheduler}.
+ *
+ * @author Nikki
+ */
+public class DownloadJob {
+
+	/**
+	 * The job states.
+	 */
+	public enum State {
+		QUEUED, RUNNING, FINISHED, CANCELLED, FAILED
+	}
+
+	/**
+	 * The scheduler running this job.
+	 */
+	private final DownloadScheduler scheduler;
+
+	/**
+	 * The downloader doing the work.
+	 */
+	private final MapDownloader downloader;
+
+	/**
+	 * Released once the job is done, whatever the outcome.
+	 */
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	/**
+	 * The listeners to run once the job is done.
+	 */
+	private final List<Runnable> completionListeners = new LinkedList<>();
+
+	/**
+	 * The current state.
+	 */
+	private volatile State state = State.QUEUED;
+
+	/**
+	 * Construct a new job.
+	 *
+	 * @param scheduler The scheduler running the job.
+	 * @param downloader The downloader doing the work.
+	 */
+	DownloadJob(DownloadScheduler scheduler, MapDownloader downloader) {
+		this.scheduler = scheduler;
+		this.downloader = downloader;
+	}
+
+	/**
+	 * Run the download on the calling thread.
+	 *
+	 * @return The state the job finished in.
+	 */
+	State run() {
+		synchronized (this) {
+			if (state != State.QUEUED) {
+				return state;
+			}
+
+			state = State.RUNNING;
+		}
+
+		downloader.run();
+
+		if (downloader.isCancelled()) {
+			return State.CANCELLED;
+		}
+
+		return downloader.getError() != null ? State.FAILED : State.FINISHED;
+	}
+
+	/**
+	 * Mark the job as done and notify anyone waiting on it.
+	 *
+	 * @param state The final state.
+	 */
+	void complete(State state) {
+		List<Runnable> listeners;
+
+		synchronized (this) {
+			if (isDone()) {
+				return;
+			}
+
+			this.state = state;
+
+			listeners = new LinkedList<>(completionListeners);
+			completionListeners.clear();
+		}
+
+		done.countDown();
+
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Cancel the job. Queued jobs are dropped, running jobs stop at the next read.
+	 */
+	public void cancel() {
+		scheduler.cancel(this);
+	}
+
+	/**
+	 * Wait for the job to finish.
+	 *
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void await() throws InterruptedException {
+		done.await();
+	}
+
+	/**
+	 * Wait for the job to finish, up to the specified time.
+	 *
+	 * @param timeout The time to wait.
+	 * @param unit The time unit.
+	 * @return Whether the job finished in time.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return done.await(timeout, unit);
+	}
+
+	/**
+	 * Add a listener to run once the job is done. It runs right away if the job already is.
+	 *
+	 * The listener is called on the thread finishing the job, not the event dispatch thread.
+	 *
+	 * @param listener The listener.
+	 */
+	public void addCompletionListener(Runnable listener) {
+		synchronized (this) {
+			if (!isDone()) {
+				completionListeners.add(listener);
+				return;
+			}
+		}
+
+		listener.run();
+	}
+
+	/**
+	 * Check whether the job is done, whatever the outcome.
+	 *
+	 * @return Whether the job is done.
+	 */
+	public boolean isDone() {
+		return state != State.QUEUED && state != State.RUNNING;
+	}
+
+	/**
+	 * Get the job state.
+	 *
+	 * @return The state.
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Get the map being downloaded.
+	 *
+	 * @return The map.
+	 */
+	public Map getMap() {
+		return downloader.getMap();
+	}
+
+	/**
+	 * Get the downloader doing the work.
+	 *
+	 * @return The downloader.
+	 */
+	public MapDownloader getDownloader() {
+		return downloader;
+	}
+
+	@Override
+	public String toString() {
+		return getMap() + " (" + state + ")";
+	}
+}
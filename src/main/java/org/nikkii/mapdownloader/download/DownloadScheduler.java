@@ -0,0 +1,504 @@
+package org.nikkii.mapdownloader.download;
+
+import org.nikkii.mapdownloader.maps.MapSource;
+import org.nikkii.mapdownloader.metrics.Metrics;
+import org.nikkii.mapdownloader.util.TaskExecutors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs map downloads, a bounded amount at a time.
+ *
+ * Each source has its own queue and a cap on how many of its downloads may run at once. Free workers take the next job
+ * from the sources in turn, so a long queue from one source can't starve the others.
+ *
+ * @author Nikki
+ */
+public class DownloadScheduler {
+
+	/**
+	 * The default amount of downloads to run at once.
+	 */
+	public static final int DEFAULT_WORKERS = 4;
+
+	/**
+	 * The default amount of downloads to run at once per source.
+	 */
+	public static final int DEFAULT_SOURCE_LIMIT = 2;
+
+	/**
+	 * How long shutting down waits for running downloads to stop.
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 3000;
+
+	/**
+	 * The executor downloads run on.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The maximum amount of downloads to run at once.
+	 */
+	private final int workers;
+
+	/**
+	 * The default cap for sources without their own limit.
+	 */
+	private final int defaultSourceLimit;
+
+	/**
+	 * The queued jobs for each source, in the order sources are served.
+	 */
+	private final LinkedHashMap<MapSource, Queue<DownloadJob>> queues = new LinkedHashMap<>();
+
+	/**
+	 * The per source caps.
+	 */
+	private final Map<MapSource, Integer> sourceLimits = new HashMap<>();
+
+	/**
+	 * The amount of running downloads per source.
+	 */
+	private final Map<MapSource, Integer> running = new HashMap<>();
+
+	/**
+	 * The amount of running downloads per source waiting to move onto it. Queued jobs leave them the next free slots.
+	 */
+	private final Map<MapSource, Integer> waiting = new HashMap<>();
+
+	/**
+	 * The jobs currently running.
+	 */
+	private final List<DownloadJob> active = new LinkedList<>();
+
+	/**
+	 * The source to look at first on the next dispatch.
+	 */
+	private int nextSource = 0;
+
+	/**
+	 * Set once the scheduler is shut down.
+	 */
+	private boolean shutdown = false;
+
+	/**
+	 * Construct a new scheduler.
+	 *
+	 * @param workers The maximum amount of downloads to run at once.
+	 * @param defaultSourceLimit The maximum amount of downloads to run at once per source.
+	 */
+	public DownloadScheduler(int workers, int defaultSourceLimit) {
+		this(TaskExecutors.getIo(), workers, defaultSourceLimit);
+	}
+
+	/**
+	 * Construct a new scheduler running its downloads on a specific executor. The scheduler limits how many downloads
+	 * run at once itself, so the executor doesn't need to.
+	 *
+	 * @param executor The executor downloads run on.
+	 * @param workers The maximum amount of downloads to run at once.
+	 * @param defaultSourceLimit The maximum amount of downloads to run at once per source.
+	 */
+	public DownloadScheduler(ExecutorService executor, int workers, int defaultSourceLimit) {
+		this.executor = executor;
+		this.workers = workers;
+		this.defaultSourceLimit = defaultSourceLimit;
+
+		Metrics.getDefault().addScheduler(this);
+	}
+
+	/**
+	 * Construct a new scheduler with the default limits.
+	 */
+	public DownloadScheduler() {
+		this(DEFAULT_WORKERS, DEFAULT_SOURCE_LIMIT);
+	}
+
+	/**
+	 * Queue a download.
+	 *
+	 * @param downloader The downloader, with any listeners already added.
+	 * @return The job.
+	 */
+	public DownloadJob submit(MapDownloader downloader) {
+		DownloadJob job = new DownloadJob(this, downloader);
+
+		synchronized (this) {
+			if (shutdown) {
+				job.complete(DownloadJob.State.CANCELLED);
+				return job;
+			}
+
+			Queue<DownloadJob> queue = queues.get(downloader.getMap().getSource());
+
+			if (queue == null) {
+				queues.put(downloader.getMap().getSource(), queue = new LinkedList<>());
+			}
+
+			queue.add(job);
+
+			dispatch();
+		}
+
+		return job;
+	}
+
+	/**
+	 * Cancel a job, dropping it from the queue or stopping its download.
+	 *
+	 * @param job The job to cancel.
+	 */
+	public void cancel(DownloadJob job) {
+		boolean queued;
+
+		synchronized (this) {
+			Queue<DownloadJob> queue = queues.get(job.getMap().getSource());
+
+			queued = queue != null && queue.remove(job);
+		}
+
+		if (queued) {
+			job.complete(DownloadJob.State.CANCELLED);
+		} else {
+			job.getDownloader().cancel();
+
+			wakeWaiting();
+		}
+	}
+
+	/**
+	 * Cancel every queued and running job.
+	 */
+	public void cancelAll() {
+		List<DownloadJob> cancelled = new ArrayList<>();
+
+		synchronized (this) {
+			for (Queue<DownloadJob> queue : queues.values()) {
+				cancelled.addAll(queue);
+				queue.clear();
+			}
+
+			for (DownloadJob job : active) {
+				job.getDownloader().cancel();
+			}
+
+			notifyAll();
+		}
+
+		for (DownloadJob job : cancelled) {
+			job.complete(DownloadJob.State.CANCELLED);
+		}
+	}
+
+	/**
+	 * Set the cap for a specific source.
+	 *
+	 * @param source The source.
+	 * @param limit The maximum amount of downloads to run at once from it.
+	 */
+	public synchronized void setSourceLimit(MapSource source, int limit) {
+		sourceLimits.put(source, Math.max(1, limit));
+		dispatch();
+	}
+
+	/**
+	 * Get the amount of jobs waiting to run.
+	 *
+	 * @return The queued job count.
+	 */
+	public synchronized int getQueued() {
+		int queued = 0;
+
+		for (Queue<DownloadJob> queue : queues.values()) {
+			queued += queue.size();
+		}
+
+		return queued;
+	}
+
+	/**
+	 * Get the amount of jobs running.
+	 *
+	 * @return The running job count.
+	 */
+	public synchronized int getActive() {
+		return active.size();
+	}
+
+	/**
+	 * Check whether any job is queued or running.
+	 *
+	 * @return Whether the scheduler is busy.
+	 */
+	public synchronized boolean isBusy() {
+		return !active.isEmpty() || getQueued() > 0;
+	}
+
+	/**
+	 * Stop accepting work and cancel everything still queued or running, then wait a moment for the running downloads to
+	 * save their progress.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			shutdown = true;
+		}
+
+		Metrics.getDefault().removeScheduler(this);
+
+		cancelAll();
+
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+
+		synchronized (this) {
+			long remaining;
+
+			while (!active.isEmpty() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start as many queued jobs as the limits allow, taking one job from each source in turn.
+	 */
+	private void dispatch() {
+		if (shutdown) {
+			return;
+		}
+
+		List<MapSource> sources = new ArrayList<>(queues.keySet());
+
+		boolean started = true;
+
+		while (active.size() < workers && started) {
+			started = false;
+
+			for (int i = 0; i < sources.size() && active.size() < workers; i++) {
+				MapSource source = sources.get((nextSource + i) % sources.size());
+
+				Queue<DownloadJob> queue = queues.get(source);
+
+				if (queue.isEmpty() || getRunning(source) + getWaiting(source) >= getLimit(source)) {
+					continue;
+				}
+
+				start(queue.poll());
+
+				nextSource = (nextSource + i + 1) % sources.size();
+				started = true;
+				break;
+			}
+		}
+
+		// Forget sources with nothing left, so the rotation only covers sources with work.
+		for (Iterator<Map.Entry<MapSource, Queue<DownloadJob>>> it = queues.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<MapSource, Queue<DownloadJob>> entry = it.next();
+
+			if (entry.getValue().isEmpty() && getRunning(entry.getKey()) == 0) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Hand a job to the worker pool.
+	 *
+	 * @param job The job to start.
+	 */
+	private void start(final DownloadJob job) {
+		MapSource source = job.getMap().getSource();
+
+		active.add(job);
+		running.put(source, getRunning(source) + 1);
+
+		// The download may move to another source, the slot follows it so the cap holds for the source it ends up on.
+		final Slot slot = new Slot(job, source);
+
+		job.getDownloader().setSourceSlot(slot);
+
+		executor.execute(TaskExecutors.named("download-" + job.getMap().getName(), () -> {
+			DownloadJob.State state = DownloadJob.State.FAILED;
+
+			try {
+				state = job.run();
+			} finally {
+				// Free the slot first, so completion listeners see an up to date scheduler.
+				finished(job, slot.getSource());
+				job.complete(state);
+			}
+		}));
+	}
+
+	/**
+	 * Release a finished job's slot and start whatever can run next.
+	 *
+	 * @param job The finished job.
+	 * @param source The source the job holds its slot on, or null if it holds none.
+	 */
+	private synchronized void finished(DownloadJob job, MapSource source) {
+		active.remove(job);
+
+		// A job cancelled while waiting to move holds no slot.
+		if (source != null) {
+			running.put(source, getRunning(source) - 1);
+		}
+
+		notifyAll();
+
+		dispatch();
+	}
+
+	/**
+	 * Get the amount of running downloads from a source.
+	 *
+	 * @param source The source.
+	 * @return The running count.
+	 */
+	private int getRunning(MapSource source) {
+		Integer count = running.get(source);
+
+		return count != null ? count : 0;
+	}
+
+	/**
+	 * Get the amount of running downloads waiting to move onto a source.
+	 *
+	 * @param source The source.
+	 * @return The waiting count.
+	 */
+	private int getWaiting(MapSource source) {
+		Integer count = waiting.get(source);
+
+		return count != null ? count : 0;
+	}
+
+	/**
+	 * Wake the downloads waiting to move, so cancelled ones stop waiting.
+	 */
+	private synchronized void wakeWaiting() {
+		notifyAll();
+	}
+
+	/**
+	 * Get the cap for a source.
+	 *
+	 * @param source The source.
+	 * @return The maximum amount of downloads to run at once from it.
+	 */
+	private int getLimit(MapSource source) {
+		Integer limit = sourceLimits.get(source);
+
+		return limit != null ? limit : defaultSourceLimit;
+	}
+
+	/**
+	 * The slot a running job holds on its source.
+	 */
+	private class Slot implements SourceSlot {
+
+		/**
+		 * The job holding the slot.
+		 */
+		private final DownloadJob job;
+
+		/**
+		 * The source the slot is held on, or null while waiting to move.
+		 */
+		private MapSource source;
+
+		/**
+		 * Construct a new slot, already counted against its source.
+		 *
+		 * @param job The job holding the slot.
+		 * @param source The source the slot is held on.
+		 */
+		Slot(DownloadJob job, MapSource source) {
+			this.job = job;
+			this.source = source;
+		}
+
+		@Override
+		public boolean tryMoveTo(MapSource to) {
+			synchronized (DownloadScheduler.this) {
+				if (to == source) {
+					return true;
+				}
+
+				if (getRunning(to) + getWaiting(to) >= getLimit(to)) {
+					return false;
+				}
+
+				running.put(source, getRunning(source) - 1);
+				running.put(to, getRunning(to) + 1);
+
+				source = to;
+
+				// A job queued on the old source can have the slot given back.
+				dispatch();
+
+				return true;
+			}
+		}
+
+		@Override
+		public boolean moveTo(MapSource to) throws InterruptedException {
+			synchronized (DownloadScheduler.this) {
+				if (to == source) {
+					return true;
+				}
+
+				if (source != null) {
+					running.put(source, getRunning(source) - 1);
+
+					source = null;
+
+					dispatch();
+				}
+
+				waiting.put(to, getWaiting(to) + 1);
+
+				try {
+					while (getRunning(to) >= getLimit(to)) {
+						if (shutdown || job.getDownloader().isCancelled()) {
+							return false;
+						}
+
+						DownloadScheduler.this.wait();
+					}
+				} finally {
+					waiting.put(to, getWaiting(to) - 1);
+				}
+
+				running.put(to, getRunning(to) + 1);
+
+				source = to;
+
+				return true;
+			}
+		}
+
+		/**
+		 * Get the source the slot is held on.
+		 *
+		 * @return The source, or null while waiting to move.
+		 */
+		MapSource getSource() {
+			synchronized (DownloadScheduler.this) {
+				return source;
+			}
+		}
+	}
+}
@@ -1,17 +1,45 @@
 package org.nikkii.mapdownloader.download;
 
 import org.nikkii.mapdownloader.maps.Map;
+import org.nikkii.mapdownloader.maps.MapIndex;
+import org.nikkii.mapdownloader.maps.MapSource;
+import org.nikkii.mapdownloader.maps.SourceStatistics;
+import org.nikkii.mapdownloader.metrics.Metrics;
+import org.nikkii.mapdownloader.net.HttpClient;
+import org.nikkii.mapdownloader.net.HttpConnection;
+import org.nikkii.mapdownloader.util.DigestUtil;
+import org.nikkii.mapdownloader.util.TaskExecutors;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
+import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A simple wrapper to provide percentage updates and other asynchronous functions for downloading files from URLs.
@@ -24,9 +52,65 @@ import java.util.List;
 public class MapDownloader implements Runnable {
 
 	/**
-	 * The map to download.
+	 * The default amount of segments to split ranged downloads into.
 	 */
-	private final Map map;
+	public static final int DEFAULT_SEGMENTS = 4;
+
+	/**
+	 * The minimum size of a single segment. Files smaller than two segments are downloaded over a single stream.
+	 */
+	static final long MIN_SEGMENT_LENGTH = 1024 * 1024;
+
+	/**
+	 * How many bytes a range writes between saving the resume state.
+	 */
+	private static final long SAVE_INTERVAL = 4 * 1024 * 1024;
+
+	/**
+	 * The default amount of bytes moved from the connection to the file at once.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * The amount of chunks the streaming decompressor may fall behind the download.
+	 */
+	private static final int PIPE_CAPACITY = 256;
+
+	/**
+	 * The most ranges a delta update downloads, each is a request of its own.
+	 */
+	private static final int MAX_DELTA_RANGES = 64;
+
+	/**
+	 * The smallest file worth racing mirrors for. Every raced mirror costs a connection and a probe, which only pays off
+	 * when the download is many times larger.
+	 */
+	static final long MIN_RACE_LENGTH = 32L * MirrorRace.DEFAULT_PROBE_LENGTH;
+
+	/**
+	 * The map to download. Replaced by the winning mirror if mirrors are raced.
+	 */
+	private volatile Map map;
+
+	/**
+	 * The same map on other sources, best priority first, including the map itself.
+	 */
+	private List<Map> mirrors = Collections.emptyList();
+
+	/**
+	 * The amount of mirrors to race before downloading, 1 to always use the map as given.
+	 */
+	private int raceMirrors = MirrorRace.DEFAULT_MIRRORS;
+
+	/**
+	 * The slot the download holds on its source, when run by a scheduler capping each source.
+	 */
+	private SourceSlot slot;
+
+	/**
+	 * The map the file details were last asked for, so the first attempt doesn't ask again right after the race did.
+	 */
+	private Map probed;
 
 	/**
 	 * The output file.
@@ -37,6 +121,11 @@ public class MapDownloader implements Runnable {
 	 * The list of download listeners to inform for status updates
 	 */
 	private List<ProgressListener> listeners = new LinkedList<ProgressListener>();
+	/**
+	 * Reports the download's progress to the listeners, created once the download starts.
+	 */
+	private ProgressHub.Tracker tracker;
+
 	/**
 	 * The list of download listeners to inform for status updates
 	 */
@@ -48,109 +137,1189 @@ public class MapDownloader implements Runnable {
 	private long length = 0;
 	
 	/**
-	 * Count of amount downloaded so far
+	 * Count of amount downloaded so far, shared between segments.
 	 */
-	private long downloaded = 0;
+	private final AtomicLong downloaded = new AtomicLong();
 	
 	/**
-	 * Current percentage
+	 * Download start time
+	 */
+	private long startTime = 0;
+
+	/**
+	 * The time the first byte arrived.
+	 */
+	private volatile long firstByteTime = 0;
+
+	/**
+	 * The time the last byte arrived.
+	 */
+	private long transferEndTime = 0;
+
+	/**
+	 * The amount of bytes which were already downloaded when this run started.
+	 */
+	private long resumedFrom = 0;
+
+	/**
+	 * The statistics each download's outcome is recorded in, or null to record nothing.
+	 */
+	private SourceStatistics statistics;
+
+	/**
+	 * The amount of segments to download at once when the server supports ranges.
+	 */
+	private int segments = DEFAULT_SEGMENTS;
+
+	/**
+	 * The directory partial files are kept in until they're finished, null to use the output file's directory.
+	 */
+	private File stagingDirectory;
+
+	/**
+	 * The amount of bytes moved from the connection to the file at once. Progress and cancellation are checked
+	 * between chunks.
+	 */
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+	/**
+	 * Whether compressed maps downloaded over a single stream are decompressed as they download.
+	 */
+	private boolean streamDecompression = true;
+
+	/**
+	 * Whether an installed map is updated by downloading only the blocks which changed, when the server publishes a
+	 * signature for it.
+	 */
+	private boolean deltaUpdates = true;
+
+	/**
+	 * Set once a delta update produced the wrong file, so the next attempt downloads the whole map.
+	 */
+	private boolean deltaFailed = false;
+
+	/**
+	 * Whether the server accepts range requests for the file.
+	 */
+	private boolean acceptRanges = false;
+
+	/**
+	 * The ETag header sent by the server.
+	 */
+	private String etag;
+
+	/**
+	 * The Last-Modified header sent by the server.
+	 */
+	private String lastModified;
+
+	/**
+	 * The SHA-256 of the installed file, computed while it was written.
+	 */
+	private String digest;
+
+	/**
+	 * The client requests are made through.
+	 */
+	private HttpClient client = HttpClient.getDefault();
+
+	/**
+	 * The index finished maps are recorded in, or null to record nothing.
+	 */
+	private MapIndex index;
+
+	/**
+	 * The cache archives are read from and added to, or null to always download.
+	 */
+	private ArchiveCache cache;
+
+	/**
+	 * The limiter every read goes through.
+	 */
+	private BandwidthLimiter limiter = BandwidthLimiter.getDefault();
+
+	/**
+	 * How failed attempts are retried.
+	 */
+	private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+	/**
+	 * The amount of failed attempts on the current mirror.
+	 */
+	private int failures = 0;
+
+	/**
+	 * The amount of retries made so far, which the backoff grows with.
+	 */
+	private int retries = 0;
+
+	/**
+	 * The mirrors which failed too often.
+	 */
+	private final List<Map> tried = new ArrayList<>();
+
+	/**
+	 * Whether the download moved to another mirror, which may continue a partial download started elsewhere.
+	 */
+	private boolean failedOver = false;
+
+	/**
+	 * Set once every mirror failed too often.
+	 */
+	private boolean exhausted = false;
+
+	/**
+	 * Whether the last attempt already decided against trying again. A streamed download retries mid-stream on its
+	 * own, so its failure has been through {@link #retry(IOException)} once already.
+	 */
+	private boolean gaveUp = false;
+
+	/**
+	 * Cancel flag.
+	 */
+	private volatile boolean cancel = false;
+
+	/**
+	 * Set when a segment fails, so the other segments stop early.
+	 */
+	private volatile boolean failed = false;
+
+	/**
+	 * Hashes the file as it arrives when it comes in a single stream from the start, null when it comes in segments.
 	 */
-	private int percent = 0;
+	private MessageDigest streamDigest;
+
+	/**
+	 * The error which stopped the download, if any.
+	 */
+	private volatile IOException error;
+
+	/**
+	 * Construct a new Downloader
+	 * @param map
+	 * 			The Download
+	 */
+	public MapDownloader(Map map, File outputFile) {
+		this.map = map;
+		this.outputFile = outputFile;
+	}
 	
 	/**
-	 * Download start time
+	 * Download the file.
 	 */
-	private long startTime = 0;
+	@Override
+	public void run() {
+		if (mirrors.size() > 1 && raceMirrors > 1 && !hasPartial() && !hasCached() && isWorthRacing()) {
+			MirrorRace.Result winner = new MirrorRace(client, MirrorRace.DEFAULT_PROBE_LENGTH).race(mirrors, raceMirrors);
+
+			if (winner != null) {
+				MapSource source = winner.getMirror().getSource();
+
+				if (slot == null || slot.tryMoveTo(source)) {
+					System.out.println("Mirror race for " + map + " won by " + winner);
+
+					map = winner.getMirror();
+				} else {
+					System.out.println("Mirror race for " + map + " won by " + winner + ", which is busy, staying on " + map.getSource());
+				}
+			}
+		}
+
+		while (true) {
+			PartialDownload partial = PartialDownload.load(getStagingFile(map.getFile()));
+
+			try {
+				download(partial);
+
+				// Earlier attempts may have failed.
+				error = null;
+
+				progressFinished();
+				return;
+			} catch (IOException e) {
+				error = e;
+				savePartial(partial);
+
+				if (gaveUp || !retry(e)) {
+					progressFailed(e);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Make a single attempt at downloading the map.
+	 *
+	 * @param partial The partial download left by earlier attempts, if any.
+	 * @throws IOException If the attempt fails.
+	 */
+	private void download(PartialDownload partial) throws IOException {
+		digest = null;
+
+		gaveUp = false;
+
+		// Every path times itself, and a cache install mustn't record the times of an earlier attempt.
+		startTime = 0;
+		firstByteTime = 0;
+		transferEndTime = 0;
+
+		DeltaPlan delta = null;
+
+		URL url = new URL(map.getUrl());
+
+		if (probed != map) {
+			probe(url);
+		}
+
+		probed = null;
+
+		File cached = null;
+
+		if (cache != null) {
+			cached = cache.lookup(map.getUrl(), length, etag, lastModified);
+
+			Metrics.getDefault().recordCacheLookup(cached != null);
+		}
+
+		if (cached != null) {
+			System.out.println("Installing " + map + " from the cache");
+
+			partial.discard();
+
+			installCached(cached);
+		} else if (acceptRanges && partial.canResume(map.getUrl(), length, etag, lastModified)) {
+			System.out.println("Resuming " + partial);
+
+			downloadStaged(url, partial);
+		} else if (acceptRanges && failedOver && partial.canFailOver(length)) {
+			System.out.println("Continuing " + partial + " from " + map.getSource());
+
+			partial.failOver(map.getUrl(), etag, lastModified);
+
+			downloadStaged(url, partial);
+		} else if ((delta = planDelta()) != null) {
+			partial.reset(map.getUrl(), length, etag, lastModified, delta.getRanges(MAX_DELTA_RANGES));
+			partial.setDigest(delta.getSignature().getDigest());
+
+			System.out.println("Updating " + map + " from the installed version, reusing " + delta.getReusedBytes() + "/" + length + " bytes");
+
+			try (RandomAccessFile output = new RandomAccessFile(partial.getFile(), "rw")) {
+				output.setLength(length);
+
+				delta.copyReused(partial.getRanges(), output.getChannel());
+
+				// The copied ranges are recorded as complete as soon as the state is saved.
+				output.getChannel().force(false);
+			}
+
+			downloadStaged(url, partial);
+		} else if (streamDecompression && map.isCompressed() && planRanges().size() == 1) {
+			// A single stream gains nothing from staging the file first, decompress it as it arrives instead.
+			partial.discard();
+
+			downloadStreaming(url);
+		} else {
+			partial.reset(map.getUrl(), length, etag, lastModified, planRanges());
+
+			downloadStaged(url, partial);
+		}
+
+		if (!cancel) {
+			recordSuccess();
+
+			if (delta != null) {
+				Metrics.getDefault().recordDeltaUpdate(delta.getReusedBytes());
+			}
+
+			if (index != null) {
+				// Remember what the server said about the map, so a sync can ask whether it changed.
+				index.put(map.getName(), new MapIndex.Entry(map.getUrl(), etag, lastModified, length, outputFile.length(), digest));
+			}
+		}
+	}
+
+	/**
+	 * Decide whether to try again after a failure. Waits out the backoff first, and fails over to the next mirror
+	 * with the same file once the current one failed too often.
+	 *
+	 * @param e The failure.
+	 * @return Whether to try again.
+	 */
+	private boolean retry(IOException e) {
+		if (cancel || exhausted) {
+			return false;
+		}
+
+		recordFailure();
+
+		MapSource failedSource = map.getSource();
+
+		// A missing file won't come back by asking again.
+		failures = e instanceof FileNotFoundException ? retryPolicy.getAttemptsPerMirror() : failures + 1;
+
+		if (failures >= retryPolicy.getAttemptsPerMirror()) {
+			Map next = nextMirror();
+
+			if (next == null) {
+				exhausted = true;
+				return false;
+			}
+
+			System.out.println("Failing over " + map + " from " + map.getSource() + " to " + next.getSource() + " at " + downloaded.get() + " bytes");
+
+			try {
+				// The new source's cap applies, so this waits if it's busy.
+				if (slot != null && !slot.moveTo(next.getSource())) {
+					return false;
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+
+			map = next;
+			failures = 0;
+			failedOver = true;
+
+			Metrics.getDefault().recordFailover();
+		}
+
+		Metrics.getDefault().getSource(failedSource).recordRetry();
+
+		long delay = retryPolicy.getDelay(retries++);
+
+		System.out.println("Retrying " + map + " in " + delay + "ms after " + e);
+
+		try {
+			long until = System.currentTimeMillis() + delay;
+
+			// Sleep in steps, so cancelling doesn't have to wait out the delay.
+			while (!cancel && System.currentTimeMillis() < until) {
+				Thread.sleep(Math.min(100, Math.max(1, until - System.currentTimeMillis())));
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		return !cancel;
+	}
+
+	/**
+	 * Find the next mirror to fail over to. Only mirrors serving the same file qualify, so a partial download can be
+	 * continued where it stopped.
+	 *
+	 * @return The mirror, or null if every mirror was tried.
+	 */
+	private Map nextMirror() {
+		tried.add(map);
+
+		for (Map mirror : mirrors) {
+			if (!tried.contains(mirror) && mirror.getFile().equals(map.getFile())) {
+				return mirror;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Record how quickly the map's source delivered it.
+	 */
+	private void recordSuccess() {
+		if (statistics == null || firstByteTime == 0) {
+			return;
+		}
+
+		long elapsed = Math.max(1, transferEndTime - firstByteTime);
+
+		statistics.recordSuccess(map.getSource(), firstByteTime - startTime, (downloaded.get() - resumedFrom) * 1000 / elapsed);
+	}
+
+	/**
+	 * Record that the map's source failed to deliver it.
+	 */
+	private void recordFailure() {
+		if (statistics != null && !cancel) {
+			statistics.recordFailure(map.getSource());
+		}
+	}
+
+	/**
+	 * Check whether the map is large enough to be worth racing its mirrors for. Its details are kept for the first
+	 * attempt if it isn't raced or its own source wins.
+	 *
+	 * @return Whether the map is known to be at least {@link #MIN_RACE_LENGTH} long.
+	 */
+	private boolean isWorthRacing() {
+		try {
+			probe(new URL(map.getUrl()));
+		} catch (IOException e) {
+			// The download runs into it too, and fails over if it has to.
+			return false;
+		}
+
+		probed = map;
+
+		return length >= MIN_RACE_LENGTH;
+	}
+
+	/**
+	 * Check whether a partial download from one of the mirrors is waiting to be resumed. Resuming it beats racing, so
+	 * that mirror is used instead.
+	 *
+	 * @return Whether a partial download exists.
+	 */
+	private boolean hasPartial() {
+		for (Map mirror : mirrors) {
+			PartialDownload partial = PartialDownload.load(getStagingFile(mirror.getFile()));
+
+			if (!partial.getRanges().isEmpty() && mirror.getUrl().equals(partial.getUrl())) {
+				map = mirror;
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Check whether one of the mirrors has an archive in the cache. Installing it beats racing, so that mirror is used
+	 * instead. Whether it's still current is checked once the server is asked about the file.
+	 *
+	 * @return Whether a cached archive exists.
+	 */
+	private boolean hasCached() {
+		if (cache == null) {
+			return false;
+		}
+
+		for (Map mirror : mirrors) {
+			if (cache.contains(mirror.getUrl())) {
+				map = mirror;
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Install the map from a cached archive instead of downloading it.
+	 *
+	 * @param archive The cached archive, which is left in the cache.
+	 * @throws IOException If the archive can't be decompressed or copied.
+	 */
+	private void installCached(File archive) throws IOException {
+		progressStarted(archive.length());
+
+		startTime = System.currentTimeMillis();
+
+		if (map.isCompressed()) {
+			moveIntoPlace(decompress(archive));
+		} else {
+			File staged = getStagingFile(outputFile.getName());
+
+			Files.copy(archive.toPath(), staged.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			validate(staged);
+
+			// Cached archives are named by their content, and an uncompressed map is its own archive.
+			digest = archive.getName();
+
+			moveIntoPlace(staged);
+		}
+
+		downloaded.set(archive.length());
+	}
+
+	/**
+	 * Decompress an archive to the staging file for the output file, keeping the digest of the decompressed file.
+	 *
+	 * @param archive The archive.
+	 * @return The staged, decompressed file.
+	 * @throws IOException If decompression fails.
+	 */
+	private File decompress(File archive) throws IOException {
+		File decompressed = getStagingFile(outputFile.getName());
+
+		Decompressor decompressor = new Decompressor(archive, decompressed);
+
+		decompressor.setExpectedSize(getExpectedSize());
+
+		for (ProgressListener listener : decompressorListeners) {
+			decompressor.addListener(listener);
+		}
+
+		decompressor.run();
+
+		if (decompressor.getError() != null) {
+			decompressed.delete();
+			throw decompressor.getError();
+		}
+
+		validate(decompressed);
+
+		digest = decompressor.getDigest();
+
+		return decompressed;
+	}
+
+	/**
+	 * Get the size the decompressed map is expected to have, from the last time it was installed.
+	 *
+	 * @return The size, or -1 if unknown.
+	 */
+	private long getExpectedSize() {
+		MapIndex.Entry entry = index != null ? index.get(map.getName()) : null;
+
+		return entry != null ? entry.getSize() : -1;
+	}
+
+	/**
+	 * Add a finished download to the cache. The download doesn't fail if it can't be cached.
+	 *
+	 * @param archive The downloaded file.
+	 * @param hash The SHA-256 of the file if it's already known, or null.
+	 */
+	private void cacheArchive(File archive, String hash) {
+		if (cache == null) {
+			return;
+		}
+
+		try {
+			if (hash != null) {
+				cache.store(archive, hash, map.getUrl(), etag, lastModified);
+			} else {
+				cache.store(archive, map.getUrl(), etag, lastModified);
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to cache " + map + ": " + e);
+		}
+	}
+
+	/**
+	 * Download the file to the staging file, then decompress or move it into place.
+	 *
+	 * @param url The file url.
+	 * @param partial The partial download, with the ranges to download.
+	 * @throws IOException If an error occurs while downloading or decompressing.
+	 */
+	private void downloadStaged(URL url, PartialDownload partial) throws IOException {
+		downloaded.set(partial.getCompleted());
+
+		resumedFrom = downloaded.get();
+
+		progressStarted(length);
+
+		startTime = System.currentTimeMillis();
+		firstByteTime = 0;
+
+		if (!downloadRanges(url, partial)) {
+			// The server ignored our ranges, start over with a single stream.
+			partial.reset(map.getUrl(), length, etag, lastModified, Collections.singletonList(new PartialDownload.Range(0, length - 1)));
+
+			downloaded.set(0);
+			resumedFrom = 0;
+
+			downloadRanges(url, partial);
+		}
+
+		transferEndTime = System.currentTimeMillis();
+
+		if (cancel) {
+			savePartial(partial);
+			return;
+		}
+
+		if (length >= 0 && !partial.isComplete()) {
+			throw new IOException("Download of " + map + " ended early at " + downloaded.get() + "/" + length);
+		}
+
+		partial.complete();
+
+		File tempOutput = partial.getFile();
+
+		if (map.isCompressed()) { // If compressed, decompress the map.
+			File decompressed;
+
+			try {
+				decompressed = decompress(tempOutput);
+			} catch (IOException e) {
+				tempOutput.delete();
+				throw e;
+			}
+
+			// Only archives which decompressed cleanly are worth keeping.
+			cacheArchive(tempOutput, null);
+
+			moveIntoPlace(decompressed);
+		} else {
+			if (streamDigest != null) {
+				// The file came in a single stream from the start and was hashed on its way in.
+				digest = DigestUtil.toHex(streamDigest.digest());
+			} else {
+				// SHA-256 only runs front to back, and segments arrive out of order, so the digest of a segmented or
+				// resumed download is taken from the finished file while it's still in the page cache. The cache reuses
+				// it, so it's the only pass.
+				digest = DigestUtil.sha256(tempOutput);
+			}
+
+			if (partial.getDigest() != null && !partial.getDigest().equals(digest)) {
+				// A stale signature, or blocks matched by mistake. Only a full download can tell which.
+				deltaFailed = true;
+
+				partial.reset(map.getUrl(), length, etag, lastModified, Collections.emptyList());
+
+				throw new IOException("Delta update of " + map + " doesn't match its signature");
+			}
+
+			validate(tempOutput);
+
+			cacheArchive(tempOutput, digest);
+
+			moveIntoPlace(tempOutput);
+		}
+
+		// If the output file exists still, delete it.
+		if (tempOutput.exists()) {
+			if (!tempOutput.delete()) tempOutput.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Download the file and decompress it at the same time, passing the downloaded bytes to a decompressor on its own
+	 * thread through a bounded pipe. The compressed file never touches the disk.
+	 *
+	 * A connection failing partway through is retried at the current offset, on the next mirror once the current one
+	 * failed too often, so the decompressor never notices.
+	 *
+	 * @param url The file url.
+	 * @throws IOException If an error occurs while downloading or decompressing.
+	 */
+	private void downloadStreaming(URL url) throws IOException {
+		// Timed from before connecting, like the staged download, so the time to first byte includes the request.
+		startTime = System.currentTimeMillis();
+		firstByteTime = 0;
+
+		HttpConnection connection = client.open(url);
+
+		try {
+			InputStream input = connection.getInputStream();
+
+			if (length < 0) {
+				length = connection.getContentLength();
+			}
+
+			downloaded.set(0);
+
+			resumedFrom = 0;
+
+			progressStarted(length);
+
+			BoundedPipe pipe = new BoundedPipe(PIPE_CAPACITY);
+
+			File decompressed = getStagingFile(outputFile.getName());
+
+			Decompressor decompressor = new Decompressor(pipe.getInputStream(), length, decompressed);
+
+			decompressor.setExpectedSize(getExpectedSize());
+
+			for (ProgressListener listener : decompressorListeners) {
+				decompressor.addListener(listener);
+			}
+
+			Future<?> decompression = TaskExecutors.getIo().submit(TaskExecutors.named("decompress-" + map.getName(), () -> {
+				decompressor.run();
+
+				// A decoder which gave up stops reading, the download must stop writing instead of waiting for room.
+				if (decompressor.getError() != null) {
+					pipe.failReader(decompressor.getError());
+				}
+			}));
+
+			OutputStream output = pipe.getOutputStream();
+
+			// The archive never touches the disk otherwise, so the cache gets a copy as it streams past.
+			ArchiveCache.Writer cacheWriter = null;
+
+			if (cache != null) {
+				try {
+					cacheWriter = cache.newWriter();
+				} catch (IOException e) {
+					System.out.println("Unable to cache " + map + ": " + e);
+				}
+			}
+
+			IOException failure = null;
+
+			try {
+				byte[] buffer = new byte[10240];
+
+				BandwidthLimiter sourceLimiter = limiter.getSourceLimiter(map.getSource());
+
+				while (!cancel) {
+					int read;
+
+					try {
+						if (input == null) {
+							connection = resumeStreaming();
+							input = connection.getInputStream();
+
+							sourceLimiter = limiter.getSourceLimiter(map.getSource());
+						}
+
+						read = input.read(buffer, 0, sourceLimiter.getChunkSize(buffer.length));
+
+						if (read < 0 && length >= 0 && downloaded.get() != length) {
+							// The connection closed cleanly, but short of what the server promised.
+							throw new IOException("Download of " + map + " ended early at " + downloaded.get() + "/" + length);
+						}
+					} catch (IOException e) {
+						if (connection != null) {
+							connection.close();
+						}
+
+						input = null;
+
+						// Without a length there's no telling whether a mirror would continue with the right bytes, so
+						// the download starts over if it's retried at all.
+						if (length < 0) {
+							failure = e;
+							break;
+						}
+
+						if (!retry(e)) {
+							gaveUp = true;
+							failure = e;
+							break;
+						}
+
+						continue;
+					}
+
+					if (read < 0) {
+						break;
+					}
+
+					output.write(buffer, 0, read);
+
+					if (cacheWriter != null) {
+						try {
+							cacheWriter.write(buffer, 0, read);
+						} catch (IOException e) {
+							// Losing the cached copy is no reason to fail the download.
+							cacheWriter.abort();
+							cacheWriter = null;
+						}
+					}
+
+					bytesTransferred(read);
+
+					sourceLimiter.consume(read);
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+
+			transferEndTime = System.currentTimeMillis();
+
+			if (failure != null || cancel) {
+				pipe.fail(failure != null ? failure : new InterruptedIOException("Download cancelled"));
+			} else {
+				output.close();
+			}
+
+			try {
+				decompression.get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+
+			IOException damaged = null;
+
+			if (!cancel && failure == null && decompressor.getError() == null) {
+				try {
+					// Checked before the archive is cached, a broken map must not be installed from the cache later.
+					BspValidator.validate(decompressed);
+				} catch (IOException e) {
+					damaged = e;
+				}
+			}
+
+			if (cancel || failure != null || decompressor.getError() != null || damaged != null) {
+				decompressed.delete();
+
+				if (cacheWriter != null) {
+					cacheWriter.abort();
+				}
+			} else if (cacheWriter != null) {
+				try {
+					cacheWriter.commit(map.getUrl(), etag, lastModified);
+				} catch (IOException e) {
+					System.out.println("Unable to cache " + map + ": " + e);
+				}
+			}
+
+			// The decompressor's error explains a closed pipe better than the pipe does.
+			if (!cancel && decompressor.getError() != null) {
+				throw decompressor.getError();
+			}
+
+			if (failure != null) {
+				throw failure;
+			}
+
+			if (damaged != null) {
+				throw damaged;
+			}
+
+			if (!cancel) {
+				digest = decompressor.getDigest();
+
+				moveIntoPlace(decompressed);
+			}
+		} finally {
+			if (connection != null) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Ask the current mirror for the rest of the file, after a streamed download's connection failed.
+	 *
+	 * @return The connection, positioned at the current offset.
+	 * @throws IOException If the mirror can't continue the download.
+	 */
+	private HttpConnection resumeStreaming() throws IOException {
+		long offset = downloaded.get();
+
+		HttpConnection connection = client.open(new URL(map.getUrl()));
+
+		try {
+			connection.setHeader("Range", "bytes=" + offset + "-");
+
+			if (!failedOver && (etag != null || lastModified != null)) {
+				// Have the server refuse the range if the file changed since we started.
+				connection.setHeader("If-Range", etag != null ? etag : lastModified);
+			}
+
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+				throw new IOException(map.getSource() + " can't continue " + map + " at " + offset);
+			}
+
+			String range = connection.getHeader("Content-Range");
+
+			if (range == null || !range.startsWith("bytes " + offset + "-") || !range.endsWith("/" + length)) {
+				throw new IOException(map.getSource() + " sent the wrong range for " + map + ": " + range);
+			}
+
+			if (failedOver) {
+				// The validators belong to the first mirror, and this one's are unknown.
+				etag = null;
+				lastModified = null;
+			}
+
+			return connection;
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Ask the server about the file, storing its length, validators and whether it accepts range requests.
+	 *
+	 * @param url The file url.
+	 * @throws IOException If the server can't be reached at all.
+	 */
+	private void probe(URL url) throws IOException {
+		try (HttpConnection connection = client.open(url)) {
+			connection.setMethod("HEAD");
+
+			int code = connection.getResponseCode();
+
+			length = -1;
+			acceptRanges = false;
+
+			if (code != HttpURLConnection.HTTP_OK) {
+				return;
+			}
+
+			length = connection.getContentLength();
+			etag = connection.getHeader("ETag");
+			lastModified = connection.getHeader("Last-Modified");
+			acceptRanges = "bytes".equalsIgnoreCase(connection.getHeader("Accept-Ranges"));
+		} catch (ConnectException | UnknownHostException e) {
+			// The download can't reach it either. What's known about the file is kept, so the partial download is too.
+			throw e;
+		} catch (IOException e) {
+			// Some servers don't like HEAD requests, let the normal download handle it.
+			length = -1;
+			acceptRanges = false;
+		}
+	}
+
+	/**
+	 * Plan updating the installed map by downloading only the blocks which changed. Needs the server to publish a
+	 * signature next to the map and accept range requests. Compressed archives don't line up with the installed map's
+	 * blocks, so they're always downloaded whole.
+	 *
+	 * @return The plan, or null to download the whole map.
+	 */
+	private DeltaPlan planDelta() {
+		if (!deltaUpdates || deltaFailed || !acceptRanges || map.isCompressed() || length <= 0 || !outputFile.isFile()) {
+			return null;
+		}
+
+		MapSignature signature;
+
+		try (HttpConnection connection = client.open(new URL(map.getUrl() + MapSignature.SUFFIX))) {
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				return null;
+			}
+
+			if (isOlder(connection.getHeader("Last-Modified"), lastModified)) {
+				// The map was replaced without signing it again. Blocks the signature wrongly says are unchanged would
+				// never be downloaded, and the final digest check can't tell.
+				System.out.println("Ignoring the signature of " + map + ", it's older than the map");
+				return null;
+			}
+
+			signature = MapSignature.read(connection.getInputStream());
+		} catch (IOException e) {
+			System.out.println("Unable to read the signature of " + map + ": " + e);
+			return null;
+		}
+
+		if (signature.getLength() != length) {
+			// Left over from an older version of the map.
+			return null;
+		}
+
+		DeltaPlan plan;
+
+		try {
+			plan = DeltaPlan.create(signature, outputFile);
+		} catch (IOException e) {
+			System.out.println("Unable to compare " + map + " to the installed version: " + e);
+			return null;
+		}
+
+		return plan.getReusedBytes() > 0 ? plan : null;
+	}
 
 	/**
-	 * Cancel flag.
+	 * Check whether one Last-Modified date is before another.
+	 *
+	 * @param date The date.
+	 * @param other The date to compare to.
+	 * @return Whether both dates are known and the first is earlier.
 	 */
-	private boolean cancel = false;
+	private static boolean isOlder(String date, String other) {
+		if (date == null || other == null) {
+			return false;
+		}
+
+		try {
+			return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).isBefore(ZonedDateTime.parse(other, DateTimeFormatter.RFC_1123_DATE_TIME));
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
 
 	/**
-	 * Construct a new Downloader
-	 * @param map
-	 * 			The Download
+	 * Split the file into the ranges to download.
+	 *
+	 * @return The ranges, a single range if the file won't be downloaded in segments.
 	 */
-	public MapDownloader(Map map, File outputFile) {
-		this.map = map;
-		this.outputFile = outputFile;
+	private List<PartialDownload.Range> planRanges() {
+		return planRanges(length, segments, acceptRanges);
 	}
-	
+
 	/**
-	 * Download the file.
+	 * Split a file into the ranges to download.
+	 *
+	 * @param length The file length, or -1 if unknown.
+	 * @param segments The most segments to split it into.
+	 * @param acceptRanges Whether the server accepts range requests.
+	 * @return The ranges, a single range if the file won't be downloaded in segments. The range is open ended if the
+	 * length is unknown.
 	 */
-	@Override
-	public void run() {
-		try {
-			File tempOutput = File.createTempFile(map.getName(), ".bsp.tmp");
+	static List<PartialDownload.Range> planRanges(long length, int segments, boolean acceptRanges) {
+		if (segments < 2 || !acceptRanges || length < MIN_SEGMENT_LENGTH * 2) {
+			return Collections.singletonList(new PartialDownload.Range(0, length > 0 ? length - 1 : -1));
+		}
 
-			try (OutputStream output = new FileOutputStream(tempOutput)) {
-				URLConnection connection = new URL(map.getUrl()).openConnection();
+		long segmentLength = Math.max(length / segments, MIN_SEGMENT_LENGTH);
 
-				connection.setRequestProperty("User-Agent", "Java Downloader");
+		int count = (int) Math.min(segments, (length + segmentLength - 1) / segmentLength);
 
-				length = connection.getContentLength();
+		List<PartialDownload.Range> ranges = new ArrayList<>(count);
 
-				InputStream input = connection.getInputStream();
+		for (int i = 0; i < count; i++) {
+			long start = i * segmentLength;
+			long end = i == count - 1 ? length - 1 : start + segmentLength - 1;
 
-				byte[] buffer = new byte[10240];
+			ranges.add(new PartialDownload.Range(start, end));
+		}
+
+		return ranges;
+	}
+
+	/**
+	 * Download every unfinished range of the file at once, writing each range straight into its place in the file.
+	 *
+	 * @param url The file url.
+	 * @param partial The partial download.
+	 * @return Whether the ranges were downloaded, false if the server ignored the range requests.
+	 * @throws IOException If an error occurs while downloading.
+	 */
+	private boolean downloadRanges(URL url, PartialDownload partial) throws IOException {
+		List<PartialDownload.Range> pending = new ArrayList<>();
 
-				int lastPercent = 0;
+		for (PartialDownload.Range range : partial.getRanges()) {
+			if (!range.isComplete()) {
+				pending.add(range);
+			}
+		}
 
-				progressStarted(length);
+		if (pending.isEmpty()) {
+			return true;
+		}
 
-				startTime = System.currentTimeMillis();
+		// A lone range starting at 0 can be read from a plain request, anything else needs the server to cooperate.
+		boolean ranged = partial.getRanges().size() > 1 || pending.get(0).getPosition() > 0;
 
-				try {
-					while (true) {
-						if (cancel) {
-							break;
-						}
+		// The whole file in one stream, in order, can be hashed on its way to the disk.
+		streamDigest = ranged ? null : DigestUtil.newSha256();
 
-						int read = input.read(buffer, 0, buffer.length);
+		failed = false;
 
-						if (read < 0) {
-							break;
-						}
+		List<Future<Boolean>> futures = new ArrayList<>();
 
-						downloaded += read;
+		try (RandomAccessFile output = new RandomAccessFile(partial.getFile(), "rw")) {
+			if (length > 0 && output.length() != length) {
+				// Allocate the full file so every segment can write at its own offset.
+				output.setLength(length);
+			}
 
-						percent = (int) (((double) downloaded / (double) length) * 100);
-						if (percent > lastPercent) {
-							progressEvent(percent, downloaded);
-							lastPercent = percent;
-						}
-						output.write(buffer, 0, read);
-					}
-				} finally {
-					input.close();
-					output.close();
-				}
+			FileChannel channel = output.getChannel();
+
+			for (PartialDownload.Range range : pending) {
+				Segment segment = new Segment(url, channel, partial, range, ranged);
+
+				futures.add(TaskExecutors.getIo().submit(TaskExecutors.named("segment-" + map.getName() + "-" + range.getStart(), segment)));
 			}
 
-			if (!cancel) {
-				if (map.isCompressed()) { // If compressed, decompress the map.
-					Decompressor decompressor = new Decompressor(tempOutput, outputFile);
+			boolean accepted = true;
 
-					for (ProgressListener listener : decompressorListeners) {
-						decompressor.addListener(listener);
+			for (Future<Boolean> future : futures) {
+				try {
+					accepted &= future.get();
+				} catch (ExecutionException e) {
+					failed = true;
+
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
 					}
 
-					decompressor.run();
-				} else { // Otherwise, move the file.
-					tempOutput.renameTo(outputFile);
+					throw new IOException(e.getCause());
+				} catch (InterruptedException e) {
+					failed = true;
+					throw new IOException(e);
 				}
 			}
 
-			// If the output file exists still, delete it.
-			if (tempOutput.exists()) {
-				if (!tempOutput.delete()) tempOutput.deleteOnExit();
+			return accepted;
+		} finally {
+			// Stop any segments still running after a failure.
+			for (Future<Boolean> future : futures) {
+				future.cancel(true);
 			}
-			
-			progressFinished();
-		} catch (FileNotFoundException e) {
+		}
+	}
+
+	/**
+	 * Save the partial download state so it can be resumed later. Downloads of unknown length can't be resumed, so
+	 * they're thrown away instead.
+	 *
+	 * @param partial The partial download.
+	 */
+	private void savePartial(PartialDownload partial) {
+		if (partial.getRanges().isEmpty() || partial.getLength() < 0 || !acceptRanges) {
+			partial.discard();
+			return;
+		}
+
+		try {
+			partial.save();
+		} catch (IOException e) {
+			partial.discard();
+		}
+	}
+
+	/**
+	 * Get the staging file for a file name, which is where the file is written until it's complete.
+	 *
+	 * @param name The file name.
+	 * @return The staging file.
+	 */
+	private File getStagingFile(String name) {
+		File directory = stagingDirectory != null ? stagingDirectory : outputFile.getAbsoluteFile().getParentFile();
+
+		return new File(directory, name + ".part");
+	}
+
+	/**
+	 * Check a finished map's header before it's cached or installed, deleting it if it's damaged. A server serving a
+	 * truncated map fails the download like a broken connection would, so it's retried and failed over.
+	 *
+	 * @param staged The finished, decompressed map.
+	 * @throws IOException If the map is damaged or can't be read.
+	 */
+	private void validate(File staged) throws IOException {
+		try {
+			BspValidator.validate(staged);
 		} catch (IOException e) {
+			staged.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Move a finished staging file to the output file in one step, so the game never sees a half written map.
+	 *
+	 * Staging files live next to the output file by default, so this is a rename on the same filesystem. If the staging
+	 * directory is on another filesystem the move falls back to a copy.
+	 *
+	 * @param staged The finished staging file.
+	 * @throws IOException If the file can't be moved.
+	 */
+	private void moveIntoPlace(File staged) throws IOException {
+		try {
+			Files.move(staged.toPath(), outputFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(staged.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Count transferred bytes. The listeners hear about them when the progress hub next samples the count.
+	 *
+	 * @param count The amount of bytes transferred.
+	 */
+	private void bytesTransferred(long count) {
+		downloaded.addAndGet(count);
+
+		Metrics.getDefault().getSource(map.getSource()).recordBytes(count);
+
+		if (firstByteTime == 0) {
+			firstByteTime = System.currentTimeMillis();
 		}
 	}
 	
@@ -167,12 +1336,172 @@ public class MapDownloader implements Runnable {
 	 * Start a new thread to download
 	 */
 	public void start() {
-		new Thread(this).start();
+		TaskExecutors.execute("download-" + map.getName(), this);
 	}
 
+	/**
+	 * Cancel the download.
+	 */
 	public void cancel() {
 		this.cancel = true;
 	}
+
+	/**
+	 * Set the directory partial files are kept in until they're finished. This should be on the same filesystem as the
+	 * output file, so finished files can be renamed into place instead of copied.
+	 *
+	 * @param stagingDirectory The staging directory, or null to use the output file's directory.
+	 */
+	public void setStagingDirectory(File stagingDirectory) {
+		this.stagingDirectory = stagingDirectory;
+	}
+
+	/**
+	 * Set whether installed maps are updated by downloading only the blocks which changed, when the server publishes
+	 * a signature for them. The installed map is the same either way.
+	 *
+	 * @param deltaUpdates The delta updates flag.
+	 */
+	public void setDeltaUpdates(boolean deltaUpdates) {
+		this.deltaUpdates = deltaUpdates;
+	}
+
+	/**
+	 * Set the amount of bytes moved from the connection to the file at once. Larger chunks mean fewer calls per
+	 * gigabyte, smaller chunks mean more frequent progress updates and quicker cancellation.
+	 *
+	 * @param chunkSize The chunk size in bytes.
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = Math.max(8192, chunkSize);
+	}
+
+	/**
+	 * Set whether compressed maps downloaded over a single stream are decompressed as they download, instead of being
+	 * staged on disk first. Staged downloads can be resumed, streamed ones can't.
+	 *
+	 * @param streamDecompression The stream flag.
+	 */
+	public void setStreamDecompression(boolean streamDecompression) {
+		this.streamDecompression = streamDecompression;
+	}
+
+	/**
+	 * Set the same map on other sources, which are raced against each other before downloading.
+	 *
+	 * @param mirrors The mirrors, best priority first, including the map itself.
+	 */
+	public void setMirrors(List<Map> mirrors) {
+		this.mirrors = new ArrayList<>(mirrors);
+	}
+
+	/**
+	 * Set the slot the download holds on its source, which has to move along when the download does.
+	 *
+	 * @param slot The slot.
+	 */
+	void setSourceSlot(SourceSlot slot) {
+		this.slot = slot;
+	}
+
+	/**
+	 * Set the amount of mirrors to race before downloading.
+	 *
+	 * @param raceMirrors The mirror count, 1 to always download from the map's own source.
+	 */
+	public void setRaceMirrors(int raceMirrors) {
+		this.raceMirrors = Math.max(1, raceMirrors);
+	}
+
+	/**
+	 * Set the statistics each download's outcome is recorded in.
+	 *
+	 * @param statistics The statistics, or null to record nothing.
+	 */
+	public void setStatistics(SourceStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Set the index finished maps are recorded in.
+	 *
+	 * @param index The index, or null to record nothing.
+	 */
+	public void setIndex(MapIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Set the cache archives are read from before going to the network, and added to after downloading.
+	 *
+	 * @param cache The cache, or null to always download.
+	 */
+	public void setCache(ArchiveCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Set the limiter every read goes through. The map's source limiter below it is used.
+	 *
+	 * @param limiter The global limiter.
+	 */
+	public void setBandwidthLimiter(BandwidthLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Set how failed attempts are retried, and how soon the download fails over to the next mirror.
+	 *
+	 * @param retryPolicy The policy, {@link RetryPolicy#NONE} to give up on the first failure.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Set the client requests are made through.
+	 *
+	 * @param client The client.
+	 */
+	public void setClient(HttpClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Check whether the download was cancelled.
+	 *
+	 * @return Whether the download was cancelled.
+	 */
+	public boolean isCancelled() {
+		return cancel;
+	}
+
+	/**
+	 * Get the error which stopped the download.
+	 *
+	 * @return The error, or null if the download didn't fail.
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Get the map being downloaded.
+	 *
+	 * @return The map.
+	 */
+	public Map getMap() {
+		return map;
+	}
+
+	/**
+	 * Set the amount of segments to download at once when the server supports range requests.
+	 *
+	 * @param segments The segment count, 1 to always use a single stream.
+	 */
+	public void setSegments(int segments) {
+		this.segments = Math.max(1, segments);
+	}
 	
 	/**
 	 * Get the download's full size
@@ -189,7 +1518,7 @@ public class MapDownloader implements Runnable {
 	 * 		The byte count downloaded
 	 */
 	public long getDownloaded() {
-		return downloaded;
+		return downloaded.get();
 	}
 	
 	/**
@@ -198,7 +1527,7 @@ public class MapDownloader implements Runnable {
 	 * 		The percentage
 	 */
 	public int getPercentage() {
-		return percent;
+		return length > 0 ? (int) (downloaded.get() * 100 / length) : 0;
 	}
 	
 	/**
@@ -216,31 +1545,36 @@ public class MapDownloader implements Runnable {
 	 * 			The file size parsed off the header
 	 */
 	private void progressStarted(long fileSize) {
-		for(ProgressListener listener : listeners) {
-			listener.progressStarted(fileSize);
-		}
+		getTracker().start(fileSize);
 	}
 	
 	/**
-	 * Called whenever percent > lastPercent (Like 80 -> 81)
-	 * @param percent
-	 * 			The current percentage
-	 * @param bytes
-	 * 			The amount of bytes downloaded since start
+	 * Called when the download finishes.
 	 */
-	private void progressEvent(int percent, long bytes) {
-		for(ProgressListener listener : listeners) {
-			listener.progressUpdated(percent, bytes);
-		}
+	private void progressFinished() {
+		getTracker().finish();
 	}
-	
+
 	/**
-	 * Called when the download finishes.
+	 * Called when the download gave up.
+	 *
+	 * @param error The last error.
 	 */
-	private void progressFinished() {
-		for(ProgressListener listener : listeners) {
-			listener.progressFinished();
+	private void progressFailed(IOException error) {
+		getTracker().fail(error);
+	}
+
+	/**
+	 * Get the tracker reporting the download's progress, creating it with the listeners added so far.
+	 *
+	 * @return The tracker.
+	 */
+	private ProgressHub.Tracker getTracker() {
+		if (tracker == null) {
+			tracker = ProgressHub.getDefault().track(listeners, downloaded::get);
 		}
+
+		return tracker;
 	}
 
 	/**
@@ -251,4 +1585,135 @@ public class MapDownloader implements Runnable {
 	public void addDecompressorListener(ProgressListener listener) {
 		decompressorListeners.add(listener);
 	}
+
+	/**
+	 * A single byte range of the file, downloaded over its own connection.
+	 */
+	private class Segment implements Callable<Boolean> {
+
+		/**
+		 * The file url.
+		 */
+		private final URL url;
+
+		/**
+		 * The channel to write to.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * The download the range belongs to.
+		 */
+		private final PartialDownload partial;
+
+		/**
+		 * The range to download.
+		 */
+		private final PartialDownload.Range range;
+
+		/**
+		 * Whether to send a range request.
+		 */
+		private final boolean ranged;
+
+		/**
+		 * Construct a new segment.
+		 *
+		 * @param url The file url.
+		 * @param channel The channel to write to.
+		 * @param partial The download the range belongs to.
+		 * @param range The range to download.
+		 * @param ranged Whether to send a range request.
+		 */
+		public Segment(URL url, FileChannel channel, PartialDownload partial, PartialDownload.Range range, boolean ranged) {
+			this.url = url;
+			this.channel = channel;
+			this.partial = partial;
+			this.range = range;
+			this.ranged = ranged;
+		}
+
+		@Override
+		public Boolean call() throws IOException {
+			long end = range.getEnd();
+
+			try (HttpConnection connection = client.open(url)) {
+				if (ranged) {
+					connection.setHeader("Range", "bytes=" + range.getPosition() + "-" + (end >= 0 ? end : ""));
+
+					// Have the server send the whole file instead if it changed since we started.
+					if (etag != null || lastModified != null) {
+						connection.setHeader("If-Range", etag != null ? etag : lastModified);
+					}
+				}
+
+				if (ranged && connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+					return false;
+				}
+
+				if (!ranged && length < 0) {
+					// The server didn't answer our HEAD request, use what the download tells us instead.
+					length = connection.getContentLength();
+				}
+
+				if (end < 0 && length > 0) {
+					// Planned before the length was known, close the range so it can complete.
+					end = length - 1;
+
+					range.setEnd(end);
+				}
+
+				long position = range.getPosition(), lastSave = position;
+
+				BandwidthLimiter sourceLimiter = limiter.getSourceLimiter(map.getSource());
+
+				InputStream stream = connection.getInputStream();
+
+				if (streamDigest != null) {
+					stream = new DigestInputStream(stream, streamDigest);
+				}
+
+				try (ReadableByteChannel input = Channels.newChannel(stream)) {
+					while (!cancel && !failed && (end < 0 || position <= end)) {
+						// Let the file channel pull straight from the connection, a chunk at a time so we can still cancel.
+						int size = sourceLimiter.getChunkSize(chunkSize);
+
+						long count = end < 0 ? size : Math.min(size, end - position + 1);
+
+						long transferred = channel.transferFrom(input, position, count);
+
+						if (transferred <= 0) {
+							break;
+						}
+
+						position += transferred;
+
+						range.setPosition(position);
+
+						bytesTransferred(transferred);
+
+						sourceLimiter.consume(transferred);
+
+						if (position - lastSave >= SAVE_INTERVAL) {
+							// Make sure the data is on disk before recording that it is.
+							channel.force(false);
+							partial.save();
+							lastSave = position;
+						}
+					}
+				}
+
+				if (!cancel && !failed && end >= 0 && position <= end) {
+					throw new IOException("Range " + range.getStart() + "-" + end + " ended early at " + position);
+				}
+
+				if (!cancel && !failed && end < 0 && position > range.getStart()) {
+					// No length was sent at all, so the end of the stream is the end of the file.
+					range.setEnd(position - 1);
+				}
+
+				return true;
+			}
+		}
+	}
 }
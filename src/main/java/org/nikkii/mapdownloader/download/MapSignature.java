@@ -0,0 +1,413 @@
+package org.nikkii.mapdownloader.download;
+
+import org.nikkii.mapdownloader.util.DigestUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The block signature of a map, published next to it so clients holding an older version can download only the
+ * blocks which changed.
+ *
+ * The map is cut into fixed size blocks, the last one padded with zeros, and every block gets a weak rolling checksum
+ * and a strong one. A client slides a window over its own copy of the map, cheaply rolling the weak checksum one byte
+ * at a time and only computing the strong one when the weak one matches, the same way rsync and zsync do. The SHA-256
+ * of the whole map is included, so a wrongly matched block can't go unnoticed.
+ *
+ * The file is big endian: the magic "MDSG", a version byte, the block size, the map length, the SHA-256, then the weak
+ * checksum and the first 8 bytes of the MD5 of every block.
+ *
+ * @author Nikki
+ */
+public class MapSignature {
+
+	/**
+	 * The suffix of signature files, which sit next to the map they describe.
+	 */
+	public static final String SUFFIX = ".bsig";
+
+	/**
+	 * The default block size.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+	/**
+	 * The smallest block size allowed.
+	 */
+	public static final int MIN_BLOCK_SIZE = 512;
+
+	/**
+	 * The largest block size allowed.
+	 */
+	public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+	/**
+	 * The magic number starting every signature file.
+	 */
+	private static final int MAGIC = 0x4D445347;
+
+	/**
+	 * The signature format version.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * The amount of bytes read from the map at once while signing it.
+	 */
+	private static final int READ_SIZE = 1024 * 1024;
+
+	/**
+	 * The block size.
+	 */
+	private final int blockSize;
+
+	/**
+	 * The map length.
+	 */
+	private final long length;
+
+	/**
+	 * The SHA-256 of the map, in hex.
+	 */
+	private final String digest;
+
+	/**
+	 * The weak checksum of every block.
+	 */
+	private final int[] weak;
+
+	/**
+	 * The strong checksum of every block.
+	 */
+	private final long[] strong;
+
+	/**
+	 * Construct a new signature.
+	 *
+	 * @param blockSize The block size.
+	 * @param length The map length.
+	 * @param digest The SHA-256 of the map, in hex.
+	 * @param weak The weak checksum of every block.
+	 * @param strong The strong checksum of every block.
+	 */
+	private MapSignature(int blockSize, long length, String digest, int[] weak, long[] strong) {
+		this.blockSize = blockSize;
+		this.length = length;
+		this.digest = digest;
+		this.weak = weak;
+		this.strong = strong;
+	}
+
+	/**
+	 * Sign a map.
+	 *
+	 * @param file The map.
+	 * @param blockSize The block size.
+	 * @return The signature.
+	 * @throws IOException If the map can't be read.
+	 */
+	public static MapSignature create(File file, int blockSize) throws IOException {
+		checkBlockSize(blockSize);
+
+		long length = file.length();
+
+		int blocks = getBlockCount(length, blockSize);
+
+		int[] weak = new int[blocks];
+		long[] strong = new long[blocks];
+
+		MessageDigest sha256 = DigestUtil.newSha256();
+		MessageDigest md5 = newMd5();
+
+		byte[] block = new byte[blockSize];
+
+		try (InputStream input = new BufferedInputStream(new FileInputStream(file), READ_SIZE)) {
+			for (int i = 0; i < blocks; i++) {
+				int read = 0;
+
+				while (read < blockSize) {
+					int count = input.read(block, read, blockSize - read);
+
+					if (count < 0) {
+						break;
+					}
+
+					read += count;
+				}
+
+				sha256.update(block, 0, read);
+
+				// The last block is checksummed with zero padding, clients pad it the same way.
+				Arrays.fill(block, read, blockSize, (byte) 0);
+
+				weak[i] = weakChecksum(block, 0, blockSize);
+				strong[i] = strongChecksum(md5, block, 0, blockSize);
+			}
+		}
+
+		return new MapSignature(blockSize, length, DigestUtil.toHex(sha256.digest()), weak, strong);
+	}
+
+	/**
+	 * Read a signature.
+	 *
+	 * @param input The stream to read from.
+	 * @return The signature.
+	 * @throws IOException If the signature is malformed or can't be read.
+	 */
+	public static MapSignature read(InputStream input) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(input));
+
+		if (data.readInt() != MAGIC) {
+			throw new IOException("Not a map signature");
+		}
+
+		int version = data.readUnsignedByte();
+
+		if (version != VERSION) {
+			throw new IOException("Unsupported signature version " + version);
+		}
+
+		int blockSize = data.readInt();
+
+		try {
+			checkBlockSize(blockSize);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+
+		long length = data.readLong();
+
+		if (length < 0 || length / blockSize >= Integer.MAX_VALUE) {
+			throw new IOException("Bad map length " + length);
+		}
+
+		byte[] digest = new byte[32];
+		data.readFully(digest);
+
+		int blocks = getBlockCount(length, blockSize);
+
+		int[] weak = new int[blocks];
+		long[] strong = new long[blocks];
+
+		for (int i = 0; i < blocks; i++) {
+			weak[i] = data.readInt();
+			strong[i] = data.readLong();
+		}
+
+		return new MapSignature(blockSize, length, DigestUtil.toHex(digest), weak, strong);
+	}
+
+	/**
+	 * Write the signature.
+	 *
+	 * @param output The stream to write to.
+	 * @throws IOException If the signature can't be written.
+	 */
+	public void write(OutputStream output) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output));
+
+		data.writeInt(MAGIC);
+		data.writeByte(VERSION);
+		data.writeInt(blockSize);
+		data.writeLong(length);
+
+		for (int i = 0; i < digest.length(); i += 2) {
+			data.writeByte(Integer.parseInt(digest.substring(i, i + 2), 16));
+		}
+
+		for (int i = 0; i < weak.length; i++) {
+			data.writeInt(weak[i]);
+			data.writeLong(strong[i]);
+		}
+
+		data.flush();
+	}
+
+	/**
+	 * Write the signature to a file, replacing it in one step so a server never serves half of it.
+	 *
+	 * @param file The file.
+	 * @throws IOException If the signature can't be written.
+	 */
+	public void write(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+
+		try (OutputStream output = new FileOutputStream(temp)) {
+			write(output);
+		}
+
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Compute the weak checksum of a block, the rsync rolling checksum.
+	 *
+	 * @param data The data.
+	 * @param offset The block offset.
+	 * @param length The block length.
+	 * @return The checksum.
+	 */
+	public static int weakChecksum(byte[] data, int offset, int length) {
+		int a = 0, b = 0;
+
+		for (int i = 0; i < length; i++) {
+			int value = data[offset + i] & 0xFF;
+
+			a += value;
+			b += (length - i) * value;
+		}
+
+		return combine(a, b);
+	}
+
+	/**
+	 * Combine the two halves of the weak checksum.
+	 *
+	 * @param a The sum of the bytes.
+	 * @param b The sum of the bytes weighted by their distance from the end of the block.
+	 * @return The checksum.
+	 */
+	static int combine(int a, int b) {
+		return (b << 16) | (a & 0xFFFF);
+	}
+
+	/**
+	 * Compute the strong checksum of a block.
+	 *
+	 * @param md5 The digest to use, which is reset.
+	 * @param data The data.
+	 * @param offset The block offset.
+	 * @param length The block length.
+	 * @return The first 8 bytes of the block's MD5.
+	 */
+	static long strongChecksum(MessageDigest md5, byte[] data, int offset, int length) {
+		md5.reset();
+		md5.update(data, offset, length);
+
+		byte[] hash = md5.digest();
+
+		long value = 0;
+
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (hash[i] & 0xFF);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Create a new MD5 digest. Every JVM has one, so failing is a broken JVM.
+	 *
+	 * @return The digest.
+	 */
+	static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Check that a block size is allowed.
+	 *
+	 * @param blockSize The block size.
+	 * @throws IllegalArgumentException If it isn't.
+	 */
+	private static void checkBlockSize(int blockSize) {
+		if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Block size must be between " + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE + ": " + blockSize);
+		}
+	}
+
+	/**
+	 * Get the amount of blocks a map is cut into.
+	 *
+	 * @param length The map length.
+	 * @param blockSize The block size.
+	 * @return The block count.
+	 */
+	private static int getBlockCount(long length, int blockSize) {
+		return (int) ((length + blockSize - 1) / blockSize);
+	}
+
+	/**
+	 * Get the block size.
+	 *
+	 * @return The block size.
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Get the map length.
+	 *
+	 * @return The length.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Get the SHA-256 of the map.
+	 *
+	 * @return The digest in hex.
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * Get the amount of blocks.
+	 *
+	 * @return The block count.
+	 */
+	public int getBlockCount() {
+		return weak.length;
+	}
+
+	/**
+	 * Get the length of a block, which is the block size except for the last block.
+	 *
+	 * @param block The block number.
+	 * @return The length.
+	 */
+	public int getBlockLength(int block) {
+		return (int) Math.min(blockSize, length - (long) block * blockSize);
+	}
+
+	/**
+	 * Get a block's weak checksum.
+	 *
+	 * @param block The block number.
+	 * @return The checksum.
+	 */
+	public int getWeak(int block) {
+		return weak[block];
+	}
+
+	/**
+	 * Get a block's strong checksum.
+	 *
+	 * @param block The block number.
+	 * @return The checksum.
+	 */
+	public long getStrong(int block) {
+		return strong[block];
+	}
+}
@@ -0,0 +1,260 @@
+package org.nikkii.mapdownloader.download;
+
+import org.nikkii.mapdownloader.maps.Map;
+import org.nikkii.mapdownloader.maps.MapIndex;
+import org.nikkii.mapdownloader.net.HttpClient;
+import org.nikkii.mapdownloader.net.HttpConnection;
+import org.nikkii.mapdownloader.util.TaskExecutors;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the installed maps which changed on the server.
+ *
+ * Every indexed map gets a HEAD request carrying its stored validators, so an unchanged map costs a 304 and no body.
+ * Servers which ignore conditional HEAD requests still answer with their current validators, which are compared to
+ * the stored ones instead. Requests go out in parallel, over kept alive connections.
+ *
+ * @author Nikki
+ */
+public class MapSync {
+
+	/**
+	 * The default amount of maps checked at once.
+	 */
+	public static final int DEFAULT_CONCURRENCY = 16;
+
+	/**
+	 * The client requests are made through.
+	 */
+	private final HttpClient client;
+
+	/**
+	 * The index of installed maps.
+	 */
+	private final MapIndex index;
+
+	/**
+	 * The folder the maps are installed in.
+	 */
+	private final File mapFolder;
+
+	/**
+	 * The maximum amount of maps checked at once.
+	 */
+	private final int concurrency;
+
+	/**
+	 * Construct a new sync.
+	 *
+	 * @param client The client requests are made through.
+	 * @param index The index of installed maps.
+	 * @param mapFolder The folder the maps are installed in.
+	 * @param concurrency The maximum amount of maps checked at once.
+	 */
+	public MapSync(HttpClient client, MapIndex index, File mapFolder, int concurrency) {
+		this.client = client;
+		this.index = index;
+		this.mapFolder = mapFolder;
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Check every installed map against the server it came from. Blocks until every map is checked.
+	 *
+	 * @param maps The maps the sources list. Installed maps are matched to these by the url they came from.
+	 * @return The result.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public Result sync(List<Map> maps) throws InterruptedException {
+		final Result result = new Result();
+
+		final Semaphore permits = new Semaphore(concurrency);
+
+		Set<String> unknown = new HashSet<>();
+
+		for (final Map map : maps) {
+			final File installed = new File(mapFolder, map.getName() + ".bsp");
+
+			if (!installed.exists()) {
+				continue;
+			}
+
+			final MapIndex.Entry entry = index.get(map.getName());
+
+			if (entry == null) {
+				// Installed before the index existed, or by hand. There's nothing to compare against.
+				if (unknown.add(map.getName())) {
+					result.unknown.incrementAndGet();
+				}
+
+				continue;
+			}
+
+			if (!entry.getUrl().equals(map.getUrl())) {
+				// Another source's copy, the one the map came from is checked instead.
+				continue;
+			}
+
+			if (entry.getSize() >= 0 && installed.length() != entry.getSize()) {
+				// The installed file isn't what was downloaded, no need to ask the server.
+				result.changed(map);
+				continue;
+			}
+
+			permits.acquire();
+
+			TaskExecutors.execute("sync-" + map.getName(), () -> {
+				try {
+					if (hasChanged(map, entry)) {
+						result.changed(map);
+					} else {
+						result.unchanged.incrementAndGet();
+					}
+				} catch (IOException | RuntimeException e) {
+					result.failed.incrementAndGet();
+				} finally {
+					permits.release();
+				}
+			});
+		}
+
+		// Wait for the last checks.
+		permits.acquire(concurrency);
+		permits.release(concurrency);
+
+		return result;
+	}
+
+	/**
+	 * Ask the server whether a map changed.
+	 *
+	 * @param map The map.
+	 * @param entry The map's index entry.
+	 * @return Whether the map changed.
+	 * @throws IOException If the request fails, or the map is gone from the server.
+	 */
+	private boolean hasChanged(Map map, MapIndex.Entry entry) throws IOException {
+		try (HttpConnection connection = client.open(new URL(map.getUrl()))) {
+			connection.setMethod("HEAD");
+
+			if (entry.getEtag() != null) {
+				connection.setHeader("If-None-Match", entry.getEtag());
+			}
+
+			if (entry.getLastModified() != null) {
+				connection.setHeader("If-Modified-Since", entry.getLastModified());
+			}
+
+			int code = connection.getResponseCode();
+
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				return false;
+			}
+
+			if (code != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Server answered " + code + " for " + map.getUrl());
+			}
+
+			if (entry.getEtag() != null && connection.getHeader("ETag") != null) {
+				return !entry.getEtag().equals(connection.getHeader("ETag"));
+			}
+
+			if (entry.getLastModified() != null && !entry.getLastModified().equals(connection.getHeader("Last-Modified"))) {
+				return true;
+			}
+
+			long length = connection.getContentLength();
+
+			return entry.getLength() >= 0 && length >= 0 && entry.getLength() != length;
+		}
+	}
+
+	/**
+	 * The outcome of a sync.
+	 */
+	public static class Result {
+
+		/**
+		 * The maps which changed.
+		 */
+		private final List<Map> changed = Collections.synchronizedList(new ArrayList<Map>());
+
+		/**
+		 * The amount of maps which didn't change.
+		 */
+		private final AtomicInteger unchanged = new AtomicInteger();
+
+		/**
+		 * The amount of installed maps without index entries.
+		 */
+		private final AtomicInteger unknown = new AtomicInteger();
+
+		/**
+		 * The amount of maps which couldn't be checked.
+		 */
+		private final AtomicInteger failed = new AtomicInteger();
+
+		/**
+		 * Record a changed map.
+		 *
+		 * @param map The map.
+		 */
+		private void changed(Map map) {
+			changed.add(map);
+		}
+
+		/**
+		 * Get the maps which changed.
+		 *
+		 * @return The changed maps.
+		 */
+		public List<Map> getChanged() {
+			synchronized (changed) {
+				return new ArrayList<>(changed);
+			}
+		}
+
+		/**
+		 * Get the amount of maps which didn't change.
+		 *
+		 * @return The unchanged count.
+		 */
+		public int getUnchanged() {
+			return unchanged.get();
+		}
+
+		/**
+		 * Get the amount of installed maps without index entries, which couldn't be compared.
+		 *
+		 * @return The unknown count.
+		 */
+		public int getUnknown() {
+			return unknown.get();
+		}
+
+		/**
+		 * Get the amount of maps which couldn't be checked.
+		 *
+		 * @return The failed count.
+		 */
+		public int getFailed() {
+			return failed.get();
+		}
+
+		@Override
+		public String toString() {
+			return changed.size() + " changed, " + getUnchanged() + " unchanged, " + getUnknown() + " unknown, " + getFailed() + " failed";
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package org.nikkii.mapdownloader.download;
+
+import org.nikkii.mapdownloader.maps.MapIndex;
+import org.nikkii.mapdownloader.util.DigestUtil;
+import org.nikkii.mapdownloader.util.TaskExecutors;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks installed maps against the digests recorded in the index when they were installed.
+ *
+ * Every map is hashed as its own task on the CPU pool, so the whole folder is verified across all cores. A map whose
+ * size already differs from the index is reported without being hashed.
+ *
+ * @author Nikki
+ */
+public class MapVerifier {
+
+	/**
+	 * The index of installed maps.
+	 */
+	private final MapIndex index;
+
+	/**
+	 * The folder the maps are installed in.
+	 */
+	private final File mapFolder;
+
+	/**
+	 * Construct a new verifier.
+	 *
+	 * @param index The index of installed maps.
+	 * @param mapFolder The folder the maps are installed in.
+	 */
+	public MapVerifier(MapIndex index, File mapFolder) {
+		this.index = index;
+		this.mapFolder = mapFolder;
+	}
+
+	/**
+	 * Verify every indexed map. Blocks until every map is checked.
+	 *
+	 * @return The result.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public Result verify() throws InterruptedException {
+		final Result result = new Result();
+
+		List<Future<?>> futures = new ArrayList<>();
+
+		try {
+			for (final java.util.Map.Entry<String, MapIndex.Entry> e : index.getEntries().entrySet()) {
+				final String name = e.getKey();
+
+				final MapIndex.Entry entry = e.getValue();
+
+				final File installed = new File(mapFolder, name + ".bsp");
+
+				if (!installed.exists()) {
+					result.missing.incrementAndGet();
+					continue;
+				}
+
+				if (entry.getSha256() == null) {
+					// Indexed before digests were recorded.
+					result.unknown.incrementAndGet();
+					continue;
+				}
+
+				if (entry.getSize() >= 0 && installed.length() != entry.getSize()) {
+					result.corrupt(name);
+					continue;
+				}
+
+				futures.add(TaskExecutors.getCpu().submit(() -> {
+					try {
+						if (DigestUtil.sha256(installed).equals(entry.getSha256())) {
+							result.verified.incrementAndGet();
+						} else {
+							result.corrupt(name);
+						}
+					} catch (IOException ex) {
+						result.failed.incrementAndGet();
+					}
+				}));
+			}
+
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException ex) {
+					result.failed.incrementAndGet();
+				}
+			}
+		} finally {
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * The outcome of a verification.
+	 */
+	public static class Result {
+
+		/**
+		 * The names of the maps which don't match their digests.
+		 */
+		private final List<String> corrupt = Collections.synchronizedList(new ArrayList<String>());
+
+		/**
+		 * The amount of maps which matched their digests.
+		 */
+		private final AtomicInteger verified = new AtomicInteger();
+
+		/**
+		 * The amount of indexed maps which aren't installed anymore.
+		 */
+		private final AtomicInteger missing = new AtomicInteger();
+
+		/**
+		 * The amount of maps without a recorded digest.
+		 */
+		private final AtomicInteger unknown = new AtomicInteger();
+
+		/**
+		 * The amount of maps which couldn't be read.
+		 */
+		private final AtomicInteger failed = new AtomicInteger();
+
+		/**
+		 * Record a corrupt map.
+		 *
+		 * @param name The map name.
+		 */
+		private void corrupt(String name) {
+			corrupt.add(name);
+		}
+
+		/**
+		 * Get the names of the maps which don't match their digests.
+		 *
+		 * @return The corrupt map names.
+		 */
+		public List<String> getCorrupt() {
+			synchronized (corrupt) {
+				return new ArrayList<>(corrupt);
+			}
+		}
+
+		/**
+		 * Get the amount of maps which matched their digests.
+		 *
+		 * @return The verified count.
+		 */
+		public int getVerified() {
+			return verified.get();
+		}
+
+		/**
+		 * Get the amount of indexed maps which aren't installed anymore.
+		 *
+		 * @return The missing count.
+		 */
+		public int getMissing() {
+			return missing.get();
+		}
+
+		/**
+		 * Get the amount of maps without a recorded digest, which couldn't be verified.
+		 *
+		 * @return The unknown count.
+		 */
+		public int getUnknown() {
+			return unknown.get();
+		}
+
+		/**
+		 * Get the amount of maps which couldn't be read.
+		 *
+		 * @return The failed count.
+		 */
+		public int getFailed() {
+			return failed.get();
+		}
+
+		@Override
+		public String toString() {
+			return getVerified() + " verified, " + corrupt.size() + " corrupt, " + getMissing() + " missing, " + getUnknown() + " unknown, " + getFailed() + " failed";
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package org.nikkii.mapdownloader.download;
+
+import org.nikkii.mapdownloader.maps.Map;
+import org.nikkii.mapdownloader.net.HttpClient;
+import org.nikkii.mapdownloader.net.HttpConnection;
+import org.nikkii.mapdownloader.util.TaskExecutors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races the mirrors of a map against each other and picks the one which starts sending fastest.
+ *
+ * Every mirror is asked for the first bytes of the file at once. The first mirror to deliver all of them wins, and
+ * the others are cancelled. Since the winner's probe is read to the end, its connection is kept alive for the real
+ * download.
+ *
+ * @author Nikki
+ */
+public class MirrorRace {
+
+	/**
+	 * The default amount of mirrors raced at once.
+	 */
+	public static final int DEFAULT_MIRRORS = 3;
+
+	/**
+	 * The default amount of bytes each mirror has to deliver.
+	 */
+	public static final int DEFAULT_PROBE_LENGTH = 256 * 1024;
+
+	/**
+	 * How long to wait for any mirror to finish before giving up on the race.
+	 */
+	private static final long DEADLINE = 10000;
+
+	/**
+	 * The client requests are made through.
+	 */
+	private final HttpClient client;
+
+	/**
+	 * The amount of bytes each mirror has to deliver.
+	 */
+	private final int probeLength;
+
+	/**
+	 * Set once a winner is picked, so the losing probes stop reading.
+	 */
+	private volatile boolean finished = false;
+
+	/**
+	 * Construct a new race.
+	 *
+	 * @param client The client requests are made through.
+	 * @param probeLength The amount of bytes each mirror has to deliver.
+	 */
+	public MirrorRace(HttpClient client, int probeLength) {
+		this.client = client;
+		this.probeLength = probeLength;
+	}
+
+	/**
+	 * Race the mirrors.
+	 *
+	 * @param mirrors The mirrors, best priority first. Only the first {@code count} are raced.
+	 * @param count The amount of mirrors to race.
+	 * @return The result for the winner, or null if no mirror finished in time.
+	 */
+	public Result race(List<Map> mirrors, int count) {
+		List<Map> racing = mirrors.subList(0, Math.min(count, mirrors.size()));
+
+		CompletionService<Result> completion = new ExecutorCompletionService<>(TaskExecutors.getIo());
+
+		List<Future<Result>> futures = new ArrayList<>();
+
+		try {
+			for (Map mirror : racing) {
+				futures.add(completion.submit(TaskExecutors.named("race-" + mirror.getName() + "-" + mirror.getSource(), new Probe(mirror))));
+			}
+
+			long deadline = System.currentTimeMillis() + DEADLINE;
+
+			for (int i = 0; i < racing.size(); i++) {
+				long remaining = deadline - System.currentTimeMillis();
+
+				Future<Result> future = completion.poll(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+
+				if (future == null) {
+					break;
+				}
+
+				try {
+					return future.get();
+				} catch (ExecutionException e) {
+					// This mirror failed, wait for the next one.
+				}
+			}
+
+			return null;
+		} catch (InterruptedException e) {
+			return null;
+		} finally {
+			finished = true;
+
+			for (Future<Result> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Fetches the first bytes from a single mirror.
+	 */
+	private class Probe implements Callable<Result> {
+
+		/**
+		 * The mirror.
+		 */
+		private final Map mirror;
+
+		/**
+		 * Construct a new probe.
+		 *
+		 * @param mirror The mirror.
+		 */
+		public Probe(Map mirror) {
+			this.mirror = mirror;
+		}
+
+		@Override
+		public Result call() throws IOException {
+			long start = System.nanoTime();
+
+			try (HttpConnection connection = client.open(new URL(mirror.getUrl()))) {
+				connection.setHeader("Range", "bytes=0-" + (probeLength - 1));
+
+				int code = connection.getResponseCode();
+
+				if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+					throw new IOException("Mirror " + mirror.getSource() + " answered " + code);
+				}
+
+				InputStream input = connection.getInputStream();
+
+				byte[] buffer = new byte[8192];
+
+				long firstByte = -1;
+
+				int total = 0;
+
+				while (!finished && total < probeLength) {
+					int read = input.read(buffer, 0, Math.min(buffer.length, probeLength - total));
+
+					if (read < 0) {
+						break;
+					}
+
+					if (firstByte < 0) {
+						firstByte = System.nanoTime();
+					}
+
+					total += read;
+				}
+
+				if (finished) {
+					throw new IOException("Race already decided");
+				}
+
+				long end = System.nanoTime();
+
+				return new Result(mirror, firstByte >= 0 ? firstByte - start : end - start, total, end - start);
+			}
+		}
+	}
+
+	/**
+	 * The measurements for a mirror which finished its probe.
+	 */
+	public static class Result {
+
+		/**
+		 * The mirror.
+		 */
+		private final Map mirror;
+
+		/**
+		 * The time until the first byte arrived, in nanoseconds.
+		 */
+		private final long timeToFirstByte;
+
+		/**
+		 * The amount of bytes received.
+		 */
+		private final long bytes;
+
+		/**
+		 * The time the whole probe took, in nanoseconds.
+		 */
+		private final long elapsed;
+
+		/**
+		 * Construct a new result.
+		 *
+		 * @param mirror The mirror.
+		 * @param timeToFirstByte The time until the first byte arrived, in nanoseconds.
+		 * @param bytes The amount of bytes received.
+		 * @param elapsed The time the whole probe took, in nanoseconds.
+		 */
+		public Result(Map mirror, long timeToFirstByte, long bytes, long elapsed) {
+			this.mirror = mirror;
+			this.timeToFirstByte = timeToFirstByte;
+			this.bytes = bytes;
+			this.elapsed = elapsed;
+		}
+
+		/**
+		 * Get the mirror.
+		 *
+		 * @return The mirror.
+		 */
+		public Map getMirror() {
+			return mirror;
+		}
+
+		/**
+		 * Get the time until the first byte arrived.
+		 *
+		 * @return The time in milliseconds.
+		 */
+		public long getTimeToFirstByte() {
+			return TimeUnit.NANOSECONDS.toMillis(timeToFirstByte);
+		}
+
+		/**
+		 * Get the amount of bytes received.
+		 *
+		 * @return The byte count.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Get the throughput after the first byte arrived.
+		 *
+		 * @return The throughput in bytes per second.
+		 */
+		public long getThroughput() {
+			long transfer = Math.max(1, elapsed - timeToFirstByte);
+
+			return bytes * TimeUnit.SECONDS.toNanos(1) / transfer;
+		}
+
+		@Override
+		public String toString() {
+			return mirror.getSource() + " (" + getTimeToFirstByte() + "ms to first byte, " + getThroughput() / 1024 + " KiB/s)";
+		}
+	}
+}
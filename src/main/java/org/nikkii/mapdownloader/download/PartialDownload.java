@@ -0,0 +1,427 @@
+package org.nikkii.mapdownloader.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * A partially downloaded file, along with the state needed to resume it.
+ *
+ * The state is kept in a small sidecar file next to the data, recording the url, the validators sent by the server
+ * and how far each range has been written.
+ *
+ * @author Nikki
+ */
+public class PartialDownload {
+
+	/**
+	 * The suffix of the state file.
+	 */
+	private static final String STATE_SUFFIX = ".state";
+
+	/**
+	 * The partial data file.
+	 */
+	private final File file;
+
+	/**
+	 * The state sidecar file.
+	 */
+	private final File stateFile;
+
+	/**
+	 * The url the data came from.
+	 */
+	private String url;
+
+	/**
+	 * The full file length, or -1 if unknown.
+	 */
+	private long length = -1;
+
+	/**
+	 * The ETag header sent by the server.
+	 */
+	private String etag;
+
+	/**
+	 * The Last-Modified header sent by the server.
+	 */
+	private String lastModified;
+
+	/**
+	 * The SHA-256 the finished file must have, or null if unknown.
+	 */
+	private String digest;
+
+	/**
+	 * The ranges making up the file.
+	 */
+	private List<Range> ranges = Collections.emptyList();
+
+	/**
+	 * Construct a new partial download.
+	 *
+	 * @param file The partial data file.
+	 */
+	public PartialDownload(File file) {
+		this.file = file;
+		this.stateFile = new File(file.getPath() + STATE_SUFFIX);
+	}
+
+	/**
+	 * Load the partial download state for the specified file, if there is any.
+	 *
+	 * @param file The partial data file.
+	 * @return The partial download, which has no ranges if there's nothing to resume.
+	 */
+	public static PartialDownload load(File file) {
+		PartialDownload partial = new PartialDownload(file);
+
+		if (!file.exists() || !partial.stateFile.exists()) {
+			return partial;
+		}
+
+		Properties properties = new Properties();
+
+		try (InputStream input = new FileInputStream(partial.stateFile)) {
+			properties.load(input);
+
+			partial.url = properties.getProperty("url");
+			partial.length = Long.parseLong(properties.getProperty("length", "-1"));
+			partial.etag = properties.getProperty("etag");
+			partial.lastModified = properties.getProperty("lastModified");
+			partial.digest = properties.getProperty("digest");
+
+			int count = Integer.parseInt(properties.getProperty("ranges", "0"));
+
+			List<Range> ranges = new ArrayList<>(count);
+
+			for (int i = 0; i < count; i++) {
+				String[] parts = properties.getProperty("range." + i).split(",");
+
+				Range range = new Range(Long.parseLong(parts[0]), Long.parseLong(parts[2]));
+				range.position = Long.parseLong(parts[1]);
+
+				ranges.add(range);
+			}
+
+			partial.ranges = ranges;
+		} catch (IOException | RuntimeException e) {
+			// Unreadable state, start over.
+			partial.ranges = Collections.emptyList();
+		}
+
+		return partial;
+	}
+
+	/**
+	 * Check whether this partial data can be resumed for the file the server describes.
+	 *
+	 * A resume needs at least one validator to match, since the length alone can't tell a changed map apart.
+	 *
+	 * @param url The file url.
+	 * @param length The file length sent by the server.
+	 * @param etag The ETag sent by the server.
+	 * @param lastModified The Last-Modified sent by the server.
+	 * @return Whether the download can continue from the saved ranges.
+	 */
+	public boolean canResume(String url, long length, String etag, String lastModified) {
+		if (ranges.isEmpty() || !url.equals(this.url) || length < 0 || length != this.length) {
+			return false;
+		}
+
+		if (etag != null && this.etag != null) {
+			return etag.equals(this.etag);
+		}
+
+		return lastModified != null && lastModified.equals(this.lastModified);
+	}
+
+	/**
+	 * Check whether the download can be continued from another mirror. Mirrors send their own validators, so only the
+	 * length can be compared. The bzip2 block CRCs catch a mirror serving different content for compressed maps.
+	 *
+	 * @param length The file length the mirror reported.
+	 * @return Whether the download can be continued.
+	 */
+	public boolean canFailOver(long length) {
+		return !ranges.isEmpty() && length >= 0 && length == this.length;
+	}
+
+	/**
+	 * Move the download to another mirror, keeping the ranges downloaded so far.
+	 *
+	 * @param url The mirror's file url.
+	 * @param etag The ETag sent by the mirror.
+	 * @param lastModified The Last-Modified sent by the mirror.
+	 */
+	public void failOver(String url, String etag, String lastModified) {
+		this.url = url;
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Throw away any existing data and start a new download with the specified ranges.
+	 *
+	 * @param url The file url.
+	 * @param length The file length, or -1 if unknown.
+	 * @param etag The ETag sent by the server.
+	 * @param lastModified The Last-Modified sent by the server.
+	 * @param ranges The ranges to download.
+	 */
+	public void reset(String url, long length, String etag, String lastModified, List<Range> ranges) {
+		this.url = url;
+		this.length = length;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.digest = null;
+		this.ranges = ranges;
+
+		file.delete();
+		stateFile.delete();
+	}
+
+	/**
+	 * Write the current range positions to the state file.
+	 *
+	 * @throws IOException If the state can't be written.
+	 */
+	public synchronized void save() throws IOException {
+		Properties properties = new Properties();
+
+		properties.setProperty("url", url);
+		properties.setProperty("length", Long.toString(length));
+
+		if (etag != null) {
+			properties.setProperty("etag", etag);
+		}
+
+		if (lastModified != null) {
+			properties.setProperty("lastModified", lastModified);
+		}
+
+		if (digest != null) {
+			properties.setProperty("digest", digest);
+		}
+
+		properties.setProperty("ranges", Integer.toString(ranges.size()));
+
+		for (int i = 0; i < ranges.size(); i++) {
+			Range range = ranges.get(i);
+
+			properties.setProperty("range." + i, range.start + "," + range.position + "," + range.end);
+		}
+
+		File temp = new File(stateFile.getPath() + ".tmp");
+
+		try (OutputStream output = new FileOutputStream(temp)) {
+			properties.store(output, "Partial download state");
+		}
+
+		Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Mark the download as complete, removing the state file. The data file is left for the caller.
+	 */
+	public void complete() {
+		stateFile.delete();
+	}
+
+	/**
+	 * Remove both the data and the state file.
+	 */
+	public void discard() {
+		file.delete();
+		stateFile.delete();
+	}
+
+	/**
+	 * Get the partial data file.
+	 *
+	 * @return The data file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the url the data came from.
+	 *
+	 * @return The url, or null if nothing was downloaded yet.
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Get the full file length.
+	 *
+	 * @return The length, or -1 if unknown.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Get the SHA-256 the finished file must have.
+	 *
+	 * @return The digest in hex, or null if unknown.
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * Set the SHA-256 the finished file must have, when it's known before the download.
+	 *
+	 * @param digest The digest in hex.
+	 */
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
+	/**
+	 * Get the ranges making up the file.
+	 *
+	 * @return The ranges.
+	 */
+	public List<Range> getRanges() {
+		return ranges;
+	}
+
+	/**
+	 * Get the amount of bytes already written over all ranges.
+	 *
+	 * @return The byte count.
+	 */
+	public long getCompleted() {
+		long completed = 0;
+
+		for (Range range : ranges) {
+			completed += range.position - range.start;
+		}
+
+		return completed;
+	}
+
+	/**
+	 * Check whether every range has been fully written.
+	 *
+	 * @return Whether the file is complete.
+	 */
+	public boolean isComplete() {
+		for (Range range : ranges) {
+			if (!range.isComplete()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return file.getName() + " (" + getCompleted() + "/" + length + ", " + Objects.toString(etag, lastModified) + ")";
+	}
+
+	/**
+	 * A byte range of the file and how much of it has been written.
+	 */
+	public static class Range {
+
+		/**
+		 * The first byte of the range.
+		 */
+		private final long start;
+
+		/**
+		 * The last byte of the range (inclusive), or -1 to read until the end of the stream.
+		 */
+		private volatile long end;
+
+		/**
+		 * The next byte to write. Everything before this has been written to the data file.
+		 */
+		private volatile long position;
+
+		/**
+		 * Construct a new range.
+		 *
+		 * @param start The first byte.
+		 * @param end The last byte (inclusive), or -1 to read until the end of the stream.
+		 */
+		public Range(long start, long end) {
+			this.start = start;
+			this.end = end;
+			this.position = start;
+		}
+
+		/**
+		 * Get the first byte of the range.
+		 *
+		 * @return The start offset.
+		 */
+		public long getStart() {
+			return start;
+		}
+
+		/**
+		 * Get the last byte of the range.
+		 *
+		 * @return The end offset (inclusive), or -1 if open ended.
+		 */
+		public long getEnd() {
+			return end;
+		}
+
+		/**
+		 * Close an open ended range once the download tells how long the file is.
+		 *
+		 * @param end The last byte (inclusive).
+		 */
+		public void setEnd(long end) {
+			this.end = end;
+		}
+
+		/**
+		 * Get the next byte to write.
+		 *
+		 * @return The position.
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * Set the next byte to write.
+		 *
+		 * @param position The position.
+		 */
+		public void setPosition(long position) {
+			this.position = position;
+		}
+
+		/**
+		 * Check whether the range has been fully written. Open ended ranges never report complete, only the end of
+		 * their stream can tell.
+		 *
+		 * @return Whether the range is complete.
+		 */
+		public boolean isComplete() {
+			return end >= 0 && position > end;
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package org.nikkii.mapdownloader.download;
+
+import javax.swing.Timer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Reports progress to listeners on the event dispatch thread at a fixed rate.
+ *
+ * Worker threads only bump the byte counters they already keep. A single Swing timer samples every running task's
+ * counter and calls the listeners, so the read loops never dispatch events or build strings no matter how many
+ * downloads are running. Speed is measured over a sliding window of recent samples.
+ *
+ * The timer only runs while there is something to report.
+ *
+ * @author Nikki
+ */
+public class ProgressHub {
+
+	/**
+	 * The default time between samples, in milliseconds.
+	 */
+	public static final int DEFAULT_INTERVAL = 100;
+
+	/**
+	 * The default length of the speed window, in milliseconds.
+	 */
+	public static final int DEFAULT_WINDOW = 3000;
+
+	/**
+	 * The hub used by default.
+	 */
+	private static final ProgressHub DEFAULT = new ProgressHub(DEFAULT_INTERVAL, DEFAULT_WINDOW);
+
+	/**
+	 * The tasks being reported.
+	 */
+	private final List<Tracker> trackers = new CopyOnWriteArrayList<>();
+
+	/**
+	 * The time between samples, in milliseconds.
+	 */
+	private final int interval;
+
+	/**
+	 * The amount of samples kept for the speed window.
+	 */
+	private final int samples;
+
+	/**
+	 * The timer sampling the tasks, created when the first task registers so headless use never touches Swing.
+	 */
+	private Timer timer;
+
+	/**
+	 * Construct a new hub.
+	 *
+	 * @param interval The time between samples, in milliseconds.
+	 * @param window The length of the speed window, in milliseconds.
+	 */
+	public ProgressHub(int interval, int window) {
+		this.interval = interval;
+		this.samples = Math.max(2, window / interval + 1);
+	}
+
+	/**
+	 * Get the hub used by default.
+	 *
+	 * @return The hub.
+	 */
+	public static ProgressHub getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Create a tracker for a task. Nothing is reported until the tracker is started.
+	 *
+	 * @param listeners The listeners to report to. If there are none, the tracker does nothing.
+	 * @param progress Reads the task's current progress in bytes. Called on the event dispatch thread.
+	 * @return The tracker.
+	 */
+	public Tracker track(List<ProgressListener> listeners, LongSupplier progress) {
+		return new Tracker(new ArrayList<>(listeners), progress);
+	}
+
+	/**
+	 * Start reporting a tracker.
+	 *
+	 * @param tracker The tracker.
+	 */
+	private void register(Tracker tracker) {
+		if (tracker.listeners.isEmpty() || !tracker.registered.compareAndSet(false, true)) {
+			return;
+		}
+
+		trackers.add(tracker);
+
+		// Starting a running timer does nothing.
+		getTimer().start();
+	}
+
+	/**
+	 * Get the timer sampling the tasks, creating it if needed.
+	 *
+	 * @return The timer.
+	 */
+	private synchronized Timer getTimer() {
+		if (timer == null) {
+			timer = new Timer(interval, e -> sample());
+			timer.setCoalesce(true);
+		}
+
+		return timer;
+	}
+
+	/**
+	 * Sample every tracker. Runs on the event dispatch thread.
+	 */
+	private void sample() {
+		long now = System.currentTimeMillis();
+
+		for (Tracker tracker : trackers) {
+			tracker.sample(now);
+		}
+
+		if (trackers.isEmpty()) {
+			getTimer().stop();
+
+			// A tracker registered while stopping would otherwise never be sampled.
+			if (!trackers.isEmpty()) {
+				getTimer().start();
+			}
+		}
+	}
+
+	/**
+	 * The progress of a single task. Workers call {@link #start(long)}, {@link #finish()} and {@link #fail}, everything
+	 * else happens on the event dispatch thread.
+	 */
+	public class Tracker {
+
+		/**
+		 * The listeners to report to.
+		 */
+		private final List<ProgressListener> listeners;
+
+		/**
+		 * Reads the task's current progress in bytes.
+		 */
+		private final LongSupplier progress;
+
+		/**
+		 * Whether the tracker is being sampled.
+		 */
+		private final AtomicBoolean registered = new AtomicBoolean();
+
+		/**
+		 * The total the task is working towards, or -1 if unknown.
+		 */
+		private volatile long total = -1;
+
+		/**
+		 * Bumped every time the task starts, so a start between two samples isn't missed.
+		 */
+		private volatile int generation = 0;
+
+		/**
+		 * Whether the task finished.
+		 */
+		private volatile boolean finished = false;
+
+		/**
+		 * The error the task failed with, or null.
+		 */
+		private volatile IOException error;
+
+		/**
+		 * The generation the listeners last heard about.
+		 */
+		private int reportedGeneration = 0;
+
+		/**
+		 * The progress the listeners last heard about.
+		 */
+		private long reportedBytes = -1;
+
+		/**
+		 * The sample times, a ring buffer.
+		 */
+		private final long[] sampleTimes = new long[samples];
+
+		/**
+		 * The sampled progress, a ring buffer.
+		 */
+		private final long[] sampleBytes = new long[samples];
+
+		/**
+		 * The amount of samples in the window.
+		 */
+		private int sampleCount = 0;
+
+		/**
+		 * The index the next sample is written to.
+		 */
+		private int nextSample = 0;
+
+		/**
+		 * Construct a new tracker.
+		 *
+		 * @param listeners The listeners to report to.
+		 * @param progress Reads the task's current progress in bytes.
+		 */
+		private Tracker(List<ProgressListener> listeners, LongSupplier progress) {
+			this.listeners = listeners;
+			this.progress = progress;
+		}
+
+		/**
+		 * Mark the task as started.
+		 *
+		 * @param total The total the task is working towards, or -1 if unknown.
+		 */
+		public void start(long total) {
+			this.total = total;
+			this.error = null;
+			this.finished = false;
+			this.generation++;
+
+			register(this);
+		}
+
+		/**
+		 * Mark the task as finished. The listeners get a last update first.
+		 */
+		public void finish() {
+			finished = true;
+
+			register(this);
+		}
+
+		/**
+		 * Mark the task as failed. The listeners get a last update first.
+		 *
+		 * @param error The error the task failed with.
+		 */
+		public void fail(IOException error) {
+			this.error = error;
+
+			finish();
+		}
+
+		/**
+		 * Report the task's progress.
+		 *
+		 * @param now The sample time.
+		 */
+		private void sample(long now) {
+			// Read the flag first, so the last update includes every byte.
+			boolean done = finished;
+
+			int current = generation;
+
+			if (current != reportedGeneration) {
+				reportedGeneration = current;
+				reportedBytes = -1;
+				sampleCount = 0;
+
+				for (ProgressListener listener : listeners) {
+					listener.progressStarted(total);
+				}
+			}
+
+			long bytes = progress.getAsLong();
+
+			if (sampleCount > 0 && bytes < sampleBytes[(nextSample + samples - 1) % samples]) {
+				// The task started over, the old samples say nothing about the new speed.
+				sampleCount = 0;
+			}
+
+			sampleTimes[nextSample] = now;
+			sampleBytes[nextSample] = bytes;
+			nextSample = (nextSample + 1) % samples;
+			sampleCount = Math.min(sampleCount + 1, samples);
+
+			if (bytes != reportedBytes && reportedGeneration > 0) {
+				reportedBytes = bytes;
+
+				long length = total;
+
+				int percent = length > 0 ? (int) Math.min(100, bytes * 100 / length) : 0;
+
+				long bytesPerSecond = getBytesPerSecond();
+
+				for (ProgressListener listener : listeners) {
+					listener.progressUpdated(percent, bytes, bytesPerSecond);
+				}
+			}
+
+			if (done) {
+				// Unregister first, so a restart racing with this re-registers the tracker instead of being lost.
+				registered.set(false);
+
+				trackers.remove(this);
+
+				IOException failure = error;
+
+				for (ProgressListener listener : listeners) {
+					if (failure != null) {
+						listener.progressFailed(failure);
+					} else {
+						listener.progressFinished();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Get the speed over the sample window.
+		 *
+		 * @return The speed in bytes per second.
+		 */
+		private long getBytesPerSecond() {
+			if (sampleCount < 2) {
+				return 0;
+			}
+
+			int newest = (nextSample + samples - 1) % samples;
+			int oldest = (nextSample + samples - sampleCount) % samples;
+
+			long elapsed = sampleTimes[newest] - sampleTimes[oldest];
+
+			return elapsed > 0 ? (sampleBytes[newest] - sampleBytes[oldest]) * 1000 / elapsed : 0;
+		}
+	}
+}
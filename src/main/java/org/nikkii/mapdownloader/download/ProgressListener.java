@@ -1,7 +1,10 @@
 package org.nikkii.mapdownloader.download;
 
+import java.io.IOException;
+
 /**
- * A listener to provide progress updates
+ * A listener to provide progress updates. Listeners are called on the event dispatch thread by the
+ * {@link ProgressHub}.
  * 
  * @author Nikki
  *
@@ -16,16 +19,40 @@ public interface ProgressListener {
 	public void progressStarted(long fileSize);
 
 	/**
-	 * Called whenever the percentage increases (Like 81% -> 82%).
+	 * Called whenever progress was made since the last sample.
 	 * @param percent
 	 * 			The current percentage.
 	 * @param bytes
 	 * 			The current amount of bytes progressed.
 	 */
-	public void progressUpdated(int percent, long bytes);
+	public default void progressUpdated(int percent, long bytes) {
+
+	}
+
+	/**
+	 * Called whenever progress was made since the last sample, with the recent speed.
+	 * @param percent
+	 * 			The current percentage.
+	 * @param bytes
+	 * 			The current amount of bytes progressed.
+	 * @param bytesPerSecond
+	 * 			The speed over the last few seconds.
+	 */
+	public default void progressUpdated(int percent, long bytes, long bytesPerSecond) {
+		progressUpdated(percent, bytes);
+	}
 	
 	/**
 	 * Called when a progress action finishes.
 	 */
 	public void progressFinished();
+
+	/**
+	 * Called instead of {@link #progressFinished()} when a progress action gives up.
+	 * @param error
+	 * 			The error it gave up on.
+	 */
+	public default void progressFailed(IOException error) {
+
+	}
 }
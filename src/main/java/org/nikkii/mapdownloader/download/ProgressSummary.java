@@ -0,0 +1,266 @@
+package org.nikkii.mapdownloader.download;
+
+import org.nikkii.mapdownloader.util.FormatUtil;
+
+import javax.swing.JLabel;
+import javax.swing.JProgressBar;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows the progress of every running download on a single label and progress bar.
+ *
+ * Each download reports to its own {@link Entry}. A lone download is shown the way it always was, several are shown
+ * as one combined total with a count of the running downloads, so concurrent jobs no longer overwrite each other and
+ * the first one to finish doesn't reset the display under the others. Everything runs on the event dispatch thread.
+ *
+ * @author Nikki
+ */
+public class ProgressSummary {
+
+	/**
+	 * The text format for a single download.
+	 */
+	private static final String FORMAT = "Downloading %s @ %s/s (%s/%s).";
+
+	/**
+	 * The text format for several downloads.
+	 */
+	private static final String COMBINED_FORMAT = "Downloading %d maps @ %s/s (%s/%s).";
+
+	/**
+	 * The text shown when nothing is running.
+	 */
+	private static final String IDLE = "Status: Idle.";
+
+	/**
+	 * The label to update.
+	 */
+	private final JLabel label;
+
+	/**
+	 * The ProgressBar to update.
+	 */
+	private final JProgressBar progressBar;
+
+	/**
+	 * The running downloads, in the order they started.
+	 */
+	private final List<Entry> running = new ArrayList<>();
+
+	/**
+	 * The text shown once nothing is running any more.
+	 */
+	private String idleText = IDLE;
+
+	/**
+	 * Construct a new progress summary.
+	 *
+	 * @param label The label to update.
+	 * @param progressBar The progress bar to update.
+	 */
+	public ProgressSummary(JLabel label, JProgressBar progressBar) {
+		this.label = label;
+		this.progressBar = progressBar;
+	}
+
+	/**
+	 * Create the entry for a download. It isn't shown until it starts.
+	 *
+	 * @param name The map name.
+	 * @return The entry.
+	 */
+	public Entry add(String name) {
+		return new Entry(name);
+	}
+
+	/**
+	 * Get the amount of running downloads.
+	 *
+	 * @return The count.
+	 */
+	public int getRunning() {
+		return running.size();
+	}
+
+	/**
+	 * Update the label and progress bar from the running downloads.
+	 */
+	private void refresh() {
+		if (running.isEmpty()) {
+			label.setText(idleText);
+			progressBar.setIndeterminate(false);
+			progressBar.setValue(0);
+			return;
+		}
+
+		long bytes = 0, total = 0, bytesPerSecond = 0;
+
+		boolean decompressing = true;
+
+		for (Entry entry : running) {
+			bytesPerSecond += entry.bytesPerSecond;
+
+			if (entry.total > 0) {
+				bytes += entry.bytes;
+				total += entry.total;
+			}
+
+			decompressing &= entry.decompressText != null;
+		}
+
+		if (running.size() == 1) {
+			Entry entry = running.get(0);
+
+			if (entry.decompressText != null) {
+				label.setText(entry.decompressText);
+			} else {
+				label.setText(String.format(FORMAT, entry.name, FormatUtil.humanReadableByteCount(entry.bytesPerSecond, false), FormatUtil.humanReadableByteCount(entry.bytes, false), FormatUtil.humanReadableByteCount(entry.total, false)));
+			}
+		} else {
+			label.setText(String.format(COMBINED_FORMAT, running.size(), FormatUtil.humanReadableByteCount(bytesPerSecond, false), FormatUtil.humanReadableByteCount(bytes, false), FormatUtil.humanReadableByteCount(total, false)));
+		}
+
+		// Only spin once nothing is left downloading, a staged decompress has no byte count to show.
+		progressBar.setIndeterminate(decompressing);
+
+		if (!decompressing) {
+			progressBar.setValue(total > 0 ? (int) Math.min(100, bytes * 100 / total) : 0);
+		}
+	}
+
+	/**
+	 * The progress of a single download.
+	 */
+	public class Entry {
+
+		/**
+		 * The map name.
+		 */
+		private final String name;
+
+		/**
+		 * The bytes downloaded.
+		 */
+		private long bytes = 0;
+
+		/**
+		 * The download size, or -1 if unknown.
+		 */
+		private long total = -1;
+
+		/**
+		 * The recent download speed.
+		 */
+		private long bytesPerSecond = 0;
+
+		/**
+		 * The text shown while decompressing, or null if not decompressing.
+		 */
+		private String decompressText;
+
+		/**
+		 * Whether the download is over and may no longer be shown.
+		 */
+		private boolean removed = false;
+
+		/**
+		 * Construct a new entry.
+		 *
+		 * @param name The map name.
+		 */
+		private Entry(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Mark the download as started, showing it from now on.
+		 *
+		 * @param total The download size, or -1 if unknown.
+		 */
+		public void started(long total) {
+			if (removed) {
+				return;
+			}
+
+			this.total = total;
+			this.bytes = 0;
+			this.bytesPerSecond = 0;
+
+			if (!running.contains(this)) {
+				if (running.isEmpty()) {
+					idleText = IDLE;
+				}
+
+				running.add(this);
+			}
+
+			refresh();
+		}
+
+		/**
+		 * Update the download progress.
+		 *
+		 * @param bytes The bytes downloaded.
+		 * @param bytesPerSecond The recent speed.
+		 */
+		public void updated(long bytes, long bytesPerSecond) {
+			if (!running.contains(this)) {
+				return;
+			}
+
+			this.bytes = bytes;
+			this.bytesPerSecond = bytesPerSecond;
+
+			refresh();
+		}
+
+		/**
+		 * Mark the download as done transferring. It keeps counting towards the total until removed.
+		 */
+		public void transferred() {
+			if (!running.contains(this)) {
+				return;
+			}
+
+			bytesPerSecond = 0;
+
+			refresh();
+		}
+
+		/**
+		 * Mark the download as decompressing, or done decompressing.
+		 *
+		 * @param text The text to show, or null once done.
+		 */
+		public void decompressing(String text) {
+			if (!running.contains(this)) {
+				return;
+			}
+
+			decompressText = text;
+
+			refresh();
+		}
+
+		/**
+		 * Remove the download once its job is over.
+		 *
+		 * @param failure The text to show once nothing else is running, or null to show the idle text.
+		 */
+		public void remove(String failure) {
+			removed = true;
+
+			boolean shown = running.remove(this);
+
+			if (failure != null) {
+				idleText = failure;
+			}
+
+			// A job cancelled before it started leaves whatever else the label shows alone.
+			if (shown || failure != null) {
+				refresh();
+			}
+		}
+	}
+}
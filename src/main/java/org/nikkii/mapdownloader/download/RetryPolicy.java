@@ -0,0 +1,77 @@
+package org.nikkii.mapdownloader.download;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How often and how patiently a failed download is tried again.
+ *
+ * Delays grow exponentially with every retry, up to a cap, and each delay is picked at random from its upper half so
+ * downloads failing at the same moment don't all come back at once.
+ *
+ * @author Nikki
+ */
+public class RetryPolicy {
+
+	/**
+	 * The policy used by default: three tries per mirror, starting at one second and waiting at most half a minute.
+	 */
+	public static final RetryPolicy DEFAULT = new RetryPolicy(3, 1000, 30000);
+
+	/**
+	 * A policy which never retries.
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+	/**
+	 * The amount of tries on a single mirror before failing over to the next one.
+	 */
+	private final int attemptsPerMirror;
+
+	/**
+	 * The delay before the first retry, in milliseconds.
+	 */
+	private final long baseDelay;
+
+	/**
+	 * The longest delay between retries, in milliseconds.
+	 */
+	private final long maxDelay;
+
+	/**
+	 * Construct a new policy.
+	 *
+	 * @param attemptsPerMirror The amount of tries on a single mirror before failing over to the next one.
+	 * @param baseDelay The delay before the first retry, in milliseconds.
+	 * @param maxDelay The longest delay between retries, in milliseconds.
+	 */
+	public RetryPolicy(int attemptsPerMirror, long baseDelay, long maxDelay) {
+		this.attemptsPerMirror = Math.max(1, attemptsPerMirror);
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Get the amount of tries on a single mirror before failing over to the next one.
+	 *
+	 * @return The attempt count.
+	 */
+	public int getAttemptsPerMirror() {
+		return attemptsPerMirror;
+	}
+
+	/**
+	 * Get the delay before a retry.
+	 *
+	 * @param retry The amount of retries made so far.
+	 * @return The delay in milliseconds.
+	 */
+	public long getDelay(int retry) {
+		long delay = Math.min(maxDelay, baseDelay << Math.min(retry, 20));
+
+		if (delay <= 1) {
+			return delay;
+		}
+
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+}
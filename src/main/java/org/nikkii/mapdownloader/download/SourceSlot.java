@@ -0,0 +1,31 @@
+package org.nikkii.mapdownloader.download;
+
+import org.nikkii.mapdownloader.maps.MapSource;
+
+/**
+ * The slot a running download holds on its source, for schedulers which cap the downloads running from each source.
+ * A download which moves to another source, after racing its mirrors or failing over, has to move its slot along so
+ * the cap still holds.
+ *
+ * @author Nikki
+ */
+public interface SourceSlot {
+
+	/**
+	 * Move the slot to another source if that source has one free. The old source's slot is given back.
+	 *
+	 * @param source The source to move to.
+	 * @return Whether the slot was moved, false if the source is full and the download has to stay where it is.
+	 */
+	boolean tryMoveTo(MapSource source);
+
+	/**
+	 * Move the slot to another source, waiting for one to come free there. The old source's slot is given back before
+	 * waiting, so downloads moving onto each other's sources can't hold each other up.
+	 *
+	 * @param source The source to move to.
+	 * @return Whether the slot was moved, false if the download was cancelled while waiting.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	boolean moveTo(MapSource source) throws InterruptedException;
+}
@@ -13,12 +13,12 @@ public class Map {
 	private final MapSource source;
 
 	/**
-	 * The map file (full name, with .bsp and optionally .bz2)
+	 * The map file (full name, with .bsp and optionally a compression extension like .bz2)
 	 */
 	private final String file;
 
 	/**
-	 * The map name (without bsp and bz2)
+	 * The map name (without bsp and the compression extension)
 	 */
 	private final String name;
 
@@ -51,6 +51,15 @@ public class Map {
 		return source;
 	}
 
+	/**
+	 * Get the map file name.
+	 *
+	 * @return The map file.
+	 */
+	public String getFile() {
+		return file;
+	}
+
 	/**
 	 * Get the map name.
 	 *
@@ -0,0 +1,153 @@
+package org.nikkii.mapdownloader.maps;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.nikkii.mapdownloader.codec.Codec;
+import org.nikkii.mapdownloader.codec.Codecs;
+import org.nikkii.mapdownloader.metrics.Metrics;
+import org.nikkii.mapdownloader.metrics.SourceMetrics;
+import org.nikkii.mapdownloader.net.HttpClient;
+import org.nikkii.mapdownloader.net.HttpConnection;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads the maps a source offers from its directory listing.
+ *
+ * @author Nikki
+ */
+public class MapCatalog {
+
+	/**
+	 * The download sources.
+	 */
+	public static final MapSource[] DEFAULT_SOURCES = new MapSource[] {
+		new MapSource("ProbablyAServer", "http://cdn.probablyaserver.com/tf/maps/", 0),
+		new MapSource("FakkelBrigade", "http://fakkelbrigade.eu/maps/", 1)
+	};
+
+	/**
+	 * The system property overriding the download sources, as comma separated name=url pairs, most preferred first.
+	 */
+	public static final String SOURCES_PROPERTY = "mapdownloader.sources";
+
+	/**
+	 * Orders maps by name, then by source priority.
+	 */
+	public static final Comparator<Map> ORDER = (map1, map2) -> {
+		int comp = map1.getName().compareToIgnoreCase(map2.getName());
+
+		if (comp == 0) {
+			return Integer.compare(map1.getSource().getPriority(), map2.getSource().getPriority());
+		}
+
+		return comp;
+	};
+
+	/**
+	 * The client listings are requested through.
+	 */
+	private final HttpClient client;
+
+	/**
+	 * Construct a new catalog.
+	 *
+	 * @param client The client listings are requested through.
+	 */
+	public MapCatalog(HttpClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Get the download sources, from the system property if it's set. Malformed entries are skipped, and if none are
+	 * left the defaults are used.
+	 *
+	 * @return The sources, most preferred first.
+	 */
+	public static MapSource[] getSources() {
+		String property = System.getProperty(SOURCES_PROPERTY);
+
+		if (property == null) {
+			return DEFAULT_SOURCES;
+		}
+
+		List<MapSource> sources = new ArrayList<>();
+
+		for (String pair : property.split(",")) {
+			try {
+				sources.add(parseSource(pair.trim(), sources.size()));
+			} catch (IllegalArgumentException e) {
+				System.out.println("Ignoring source: " + e.getMessage());
+			}
+		}
+
+		return !sources.isEmpty() ? sources.toArray(new MapSource[sources.size()]) : DEFAULT_SOURCES;
+	}
+
+	/**
+	 * Parse a source given as name=url.
+	 *
+	 * @param value The source.
+	 * @param priority The source priority, lower is preferred.
+	 * @return The source.
+	 * @throws IllegalArgumentException If the source isn't a name=url pair.
+	 */
+	public static MapSource parseSource(String value, int priority) {
+		int split = value.indexOf('=');
+
+		if (split < 1) {
+			throw new IllegalArgumentException("Sources are given as name=url: " + value);
+		}
+
+		String url = value.substring(split + 1);
+
+		return new MapSource(value.substring(0, split), url.endsWith("/") ? url : url + "/", priority);
+	}
+
+	/**
+	 * Load the maps a source offers.
+	 *
+	 * @param source The source.
+	 * @return The maps, in listing order.
+	 * @throws IOException If the listing can't be loaded.
+	 */
+	public List<Map> load(MapSource source) throws IOException {
+		SourceMetrics metrics = Metrics.getDefault().getSource(source);
+
+		long started = System.nanoTime();
+
+		Document document;
+
+		// Go through the shared client, so the list request's connection is kept for the map downloads.
+		try (HttpConnection connection = client.open(new URL(source.getUrl()))) {
+			document = Jsoup.parse(connection.getInputStream(), null, source.getUrl());
+		} catch (IOException e) {
+			metrics.recordCatalogFailure();
+			throw e;
+		}
+
+		List<Map> maps = new ArrayList<>();
+
+		for (Element link : document.select("a")) {
+			String href = link.attr("href");
+
+			// Archives in any format a codec is available for are listed, the decoder itself goes by the magic number.
+			Codec codec = Codecs.forFileName(href);
+
+			if (href.endsWith(".bsp") || codec != null && href.endsWith(".bsp" + codec.getExtension())) {
+				String mapName = href.substring(0, href.indexOf('.'));
+
+				maps.add(new Map(source, href, mapName, codec != null));
+			}
+		}
+
+		metrics.recordCatalogLoad(System.nanoTime() - started, maps.size());
+
+		return maps;
+	}
+}
@@ -0,0 +1,301 @@
+package org.nikkii.mapdownloader.maps;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Properties;
+
+/**
+ * Remembers where each installed map came from and what the server said about it, so a later sync can ask the server
+ * whether the map changed instead of downloading it again. It also holds the SHA-256 of every installed file, so
+ * damaged maps can be found without asking the server at all.
+ *
+ * The index is a properties file kept in the map folder, keyed by map name.
+ *
+ * @author Nikki
+ */
+public class MapIndex {
+
+	/**
+	 * The index file name.
+	 */
+	public static final String FILE_NAME = "mapindex.properties";
+
+	/**
+	 * The index file.
+	 */
+	private final File file;
+
+	/**
+	 * The entries, by map name.
+	 */
+	private final java.util.Map<String, Entry> entries = new HashMap<>();
+
+	/**
+	 * Construct a new index, loading the file if it exists.
+	 *
+	 * @param file The index file.
+	 */
+	public MapIndex(File file) {
+		this.file = file;
+
+		load();
+	}
+
+	/**
+	 * Get the entry for a map.
+	 *
+	 * @param name The map name.
+	 * @return The entry, or null if the map isn't indexed.
+	 */
+	public synchronized Entry get(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Record a map and store the index.
+	 *
+	 * @param name The map name.
+	 * @param entry The entry.
+	 */
+	public void put(String name, Entry entry) {
+		synchronized (this) {
+			entries.put(name, entry);
+		}
+
+		save();
+	}
+
+	/**
+	 * Forget a map and store the index.
+	 *
+	 * @param name The map name.
+	 */
+	public void remove(String name) {
+		synchronized (this) {
+			if (entries.remove(name) == null) {
+				return;
+			}
+		}
+
+		save();
+	}
+
+	/**
+	 * Get every entry.
+	 *
+	 * @return A copy of the entries, by map name.
+	 */
+	public synchronized java.util.Map<String, Entry> getEntries() {
+		return new HashMap<>(entries);
+	}
+
+	/**
+	 * Get the amount of indexed maps.
+	 *
+	 * @return The entry count.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Load the index file. A missing or unreadable file leaves the index empty.
+	 */
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+
+		Properties properties = new Properties();
+
+		try (InputStream input = new FileInputStream(file)) {
+			properties.load(input);
+		} catch (IOException e) {
+			return;
+		}
+
+		for (String key : properties.stringPropertyNames()) {
+			if (!key.endsWith(".url")) {
+				continue;
+			}
+
+			String name = key.substring(0, key.length() - ".url".length());
+
+			try {
+				entries.put(name, new Entry(properties.getProperty(key), properties.getProperty(name + ".etag"), properties.getProperty(name + ".lastModified"),
+					Long.parseLong(properties.getProperty(name + ".length", "-1")), Long.parseLong(properties.getProperty(name + ".size", "-1")),
+					properties.getProperty(name + ".sha256")));
+			} catch (NumberFormatException e) {
+				// Forget the broken entry, the map will be treated as unknown.
+			}
+		}
+	}
+
+	/**
+	 * Store the index, replacing the file in one step so a crash never leaves it half written.
+	 */
+	private void save() {
+		Properties properties = new Properties();
+
+		synchronized (this) {
+			for (java.util.Map.Entry<String, Entry> e : entries.entrySet()) {
+				String name = e.getKey();
+
+				Entry entry = e.getValue();
+
+				properties.setProperty(name + ".url", entry.url);
+
+				if (entry.etag != null) {
+					properties.setProperty(name + ".etag", entry.etag);
+				}
+
+				if (entry.lastModified != null) {
+					properties.setProperty(name + ".lastModified", entry.lastModified);
+				}
+
+				properties.setProperty(name + ".length", Long.toString(entry.length));
+				properties.setProperty(name + ".size", Long.toString(entry.size));
+
+				if (entry.sha256 != null) {
+					properties.setProperty(name + ".sha256", entry.sha256);
+				}
+			}
+		}
+
+		File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+
+		try {
+			synchronized (file) {
+				try (OutputStream output = new FileOutputStream(temp)) {
+					properties.store(output, "Installed map index");
+				}
+
+				try {
+					Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		} catch (IOException e) {
+			// Without the entry the map is just synced the slow way next time.
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * What the server said about an installed map.
+	 */
+	public static class Entry {
+
+		/**
+		 * The url the map was downloaded from.
+		 */
+		private final String url;
+
+		/**
+		 * The ETag header, or null if the server didn't send one.
+		 */
+		private final String etag;
+
+		/**
+		 * The Last-Modified header, or null if the server didn't send one.
+		 */
+		private final String lastModified;
+
+		/**
+		 * The remote file length, or -1 if unknown.
+		 */
+		private final long length;
+
+		/**
+		 * The installed file size, or -1 if unknown.
+		 */
+		private final long size;
+
+		/**
+		 * The SHA-256 of the installed file, or null if unknown.
+		 */
+		private final String sha256;
+
+		/**
+		 * Construct a new entry.
+		 *
+		 * @param url The url the map was downloaded from.
+		 * @param etag The ETag header.
+		 * @param lastModified The Last-Modified header.
+		 * @param length The remote file length.
+		 * @param size The installed file size.
+		 * @param sha256 The SHA-256 of the installed file, in hex.
+		 */
+		public Entry(String url, String etag, String lastModified, long length, long size, String sha256) {
+			this.url = url;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.size = size;
+			this.sha256 = sha256;
+		}
+
+		/**
+		 * Get the url the map was downloaded from.
+		 *
+		 * @return The url.
+		 */
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * Get the ETag header.
+		 *
+		 * @return The ETag, or null if the server didn't send one.
+		 */
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * Get the Last-Modified header.
+		 *
+		 * @return The date, or null if the server didn't send one.
+		 */
+		public String getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Get the remote file length.
+		 *
+		 * @return The length, or -1 if unknown.
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Get the installed file size.
+		 *
+		 * @return The size, or -1 if unknown.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Get the SHA-256 of the installed file.
+		 *
+		 * @return The digest in hex, or null if unknown.
+		 */
+		public String getSha256() {
+			return sha256;
+		}
+	}
+}
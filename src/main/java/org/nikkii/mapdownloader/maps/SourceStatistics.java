@@ -0,0 +1,314 @@
+package org.nikkii.mapdownloader.maps;
+
+import org.nikkii.mapdownloader.util.FormatUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Remembers how well each source performed, across restarts, and ranks mirrors by how quickly they're expected to
+ * deliver a map.
+ *
+ * Throughput, time to first byte and error rate are kept as exponentially weighted moving averages, so recent
+ * downloads count more than old ones and a source which got faster (or slower) is noticed after a few maps.
+ *
+ * @author Nikki
+ */
+public class SourceStatistics {
+
+	/**
+	 * The weight of a new sample in the moving averages.
+	 */
+	private static final double ALPHA = 0.3;
+
+	/**
+	 * The map size used to weigh time to first byte against throughput when ranking.
+	 */
+	private static final long TYPICAL_LENGTH = 20 * 1024 * 1024;
+
+	/**
+	 * The file the statistics are stored in.
+	 */
+	private final File file;
+
+	/**
+	 * The statistics for each source, by source name.
+	 */
+	private final java.util.Map<String, Entry> entries = new HashMap<>();
+
+	/**
+	 * Construct new statistics, loading any stored in the file.
+	 *
+	 * @param file The file the statistics are stored in.
+	 */
+	public SourceStatistics(File file) {
+		this.file = file;
+
+		load();
+	}
+
+	/**
+	 * Get the default statistics file, in the user's home directory.
+	 *
+	 * @return The file.
+	 */
+	public static File getDefaultFile() {
+		return new File(System.getProperty("user.home"), ".mapdownloader" + File.separator + "sources.properties");
+	}
+
+	/**
+	 * Record a finished download.
+	 *
+	 * @param source The source.
+	 * @param timeToFirstByte The time until the first byte arrived, in milliseconds.
+	 * @param throughput The throughput, in bytes per second.
+	 */
+	public void recordSuccess(MapSource source, long timeToFirstByte, long throughput) {
+		synchronized (this) {
+			getEntry(source).add(timeToFirstByte, throughput, false);
+		}
+
+		save();
+	}
+
+	/**
+	 * Record a failed download.
+	 *
+	 * @param source The source.
+	 */
+	public void recordFailure(MapSource source) {
+		synchronized (this) {
+			getEntry(source).add(-1, -1, true);
+		}
+
+		save();
+	}
+
+	/**
+	 * Sort mirrors by expected completion time, fastest first. Sources without a finished download are assumed to be as
+	 * fast as the best known source so they get tried, slowed down by their error rate like every other source, so one
+	 * which only ever failed ranks behind the rest. Ties fall back to the configured priority.
+	 *
+	 * @param mirrors The mirrors to sort.
+	 * @return The sorted mirrors.
+	 */
+	public synchronized List<Map> rank(List<Map> mirrors) {
+		final java.util.Map<MapSource, Double> expected = new HashMap<>();
+
+		double best = Double.MAX_VALUE;
+
+		for (Map mirror : mirrors) {
+			Entry entry = entries.get(mirror.getSource().getName());
+
+			if (entry != null && entry.throughput > 0) {
+				double time = entry.getExpectedTime(TYPICAL_LENGTH, 0);
+
+				expected.put(mirror.getSource(), time);
+
+				best = Math.min(best, time);
+			}
+		}
+
+		// Any value works when nothing was measured, only the error rates tell the sources apart then.
+		double unknown = best < Double.MAX_VALUE ? best : 1;
+
+		for (Map mirror : mirrors) {
+			Entry entry = entries.get(mirror.getSource().getName());
+
+			if (!expected.containsKey(mirror.getSource())) {
+				expected.put(mirror.getSource(), entry != null ? entry.getExpectedTime(TYPICAL_LENGTH, unknown) : unknown);
+			}
+		}
+
+		List<Map> ranked = new ArrayList<>(mirrors);
+
+		ranked.sort(Comparator.<Map>comparingDouble(mirror -> expected.get(mirror.getSource()))
+			.thenComparingInt(mirror -> mirror.getSource().getPriority()));
+
+		return ranked;
+	}
+
+	/**
+	 * Describe a source's statistics.
+	 *
+	 * @param source The source.
+	 * @return A short summary, or null if nothing was recorded for it yet.
+	 */
+	public synchronized String describe(MapSource source) {
+		Entry entry = entries.get(source.getName());
+
+		if (entry == null) {
+			return null;
+		}
+
+		return FormatUtil.humanReadableByteCount((long) entry.throughput, false) + "/s, " + Math.round(entry.timeToFirstByte) + " ms to first byte, "
+			+ Math.round(entry.errorRate * 100) + "% errors over " + entry.samples + " downloads";
+	}
+
+	/**
+	 * Get the entry for a source, creating it if needed.
+	 *
+	 * @param source The source.
+	 * @return The entry.
+	 */
+	private Entry getEntry(MapSource source) {
+		Entry entry = entries.get(source.getName());
+
+		if (entry == null) {
+			entries.put(source.getName(), entry = new Entry());
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Load the stored statistics. A missing or unreadable file leaves the statistics empty.
+	 */
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+
+		Properties properties = new Properties();
+
+		try (InputStream input = new FileInputStream(file)) {
+			properties.load(input);
+		} catch (IOException e) {
+			return;
+		}
+
+		for (String key : properties.stringPropertyNames()) {
+			if (!key.endsWith(".samples")) {
+				continue;
+			}
+
+			String name = key.substring(0, key.length() - ".samples".length());
+
+			try {
+				Entry entry = new Entry();
+				entry.samples = Integer.parseInt(properties.getProperty(key));
+				entry.throughput = Double.parseDouble(properties.getProperty(name + ".throughput", "0"));
+				entry.timeToFirstByte = Double.parseDouble(properties.getProperty(name + ".ttfb", "0"));
+				entry.errorRate = Double.parseDouble(properties.getProperty(name + ".errorRate", "0"));
+
+				entries.put(name, entry);
+			} catch (NumberFormatException e) {
+				// Skip the broken source, keep the rest.
+			}
+		}
+	}
+
+	/**
+	 * Store the statistics, replacing the file in one step so a crash never leaves it half written.
+	 */
+	private void save() {
+		Properties properties = new Properties();
+
+		synchronized (this) {
+			for (java.util.Map.Entry<String, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+
+				properties.setProperty(e.getKey() + ".samples", Integer.toString(entry.samples));
+				properties.setProperty(e.getKey() + ".throughput", Double.toString(entry.throughput));
+				properties.setProperty(e.getKey() + ".ttfb", Double.toString(entry.timeToFirstByte));
+				properties.setProperty(e.getKey() + ".errorRate", Double.toString(entry.errorRate));
+			}
+		}
+
+		File directory = file.getAbsoluteFile().getParentFile();
+
+		if (!directory.exists()) {
+			directory.mkdirs();
+		}
+
+		File temp = new File(directory, file.getName() + ".tmp");
+
+		try {
+			synchronized (file) {
+				try (OutputStream output = new FileOutputStream(temp)) {
+					properties.store(output, "Map source statistics");
+				}
+
+				try {
+					Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		} catch (IOException e) {
+			// Statistics are only a hint, losing an update is fine.
+		}
+	}
+
+	/**
+	 * The moving averages for a single source.
+	 */
+	private static class Entry {
+
+		/**
+		 * The amount of downloads recorded.
+		 */
+		private int samples;
+
+		/**
+		 * The average throughput, in bytes per second.
+		 */
+		private double throughput;
+
+		/**
+		 * The average time to first byte, in milliseconds.
+		 */
+		private double timeToFirstByte;
+
+		/**
+		 * The share of downloads which failed, from 0 to 1.
+		 */
+		private double errorRate;
+
+		/**
+		 * Add a sample.
+		 *
+		 * @param timeToFirstByte The time to first byte, ignored for failures.
+		 * @param throughput The throughput, ignored for failures.
+		 * @param failed Whether the download failed.
+		 */
+		private void add(long timeToFirstByte, long throughput, boolean failed) {
+			if (!failed) {
+				// Start the averages at the first sample, instead of dragging them up from zero.
+				boolean first = this.throughput <= 0;
+
+				this.throughput = first ? throughput : ALPHA * throughput + (1 - ALPHA) * this.throughput;
+				this.timeToFirstByte = first ? timeToFirstByte : ALPHA * timeToFirstByte + (1 - ALPHA) * this.timeToFirstByte;
+			}
+
+			errorRate = ALPHA * (failed ? 1 : 0) + (1 - ALPHA) * errorRate;
+
+			samples++;
+		}
+
+		/**
+		 * Get the expected time to download a file, counting the retries failures cost.
+		 *
+		 * @param length The file length.
+		 * @param unknown The time to assume before the first successful download, in milliseconds.
+		 * @return The expected time in milliseconds.
+		 */
+		private double getExpectedTime(long length, double unknown) {
+			double time = throughput > 0 ? timeToFirstByte + length * 1000.0 / throughput : unknown;
+
+			return time / Math.max(0.05, 1 - errorRate);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package org.nikkii.mapdownloader.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts bytes, and how fast they're coming in.
+ *
+ * Marking is cheap enough for read loops. The rate is worked out when it's read, over the time since the last reading
+ * at least a second ago, so readers polling at a steady pace see the rate over their polling period.
+ *
+ * @author Nikki
+ */
+public class Meter {
+
+	/**
+	 * The shortest period a rate is measured over, in milliseconds.
+	 */
+	private static final long MIN_PERIOD = 1000;
+
+	/**
+	 * The total count.
+	 */
+	private final LongAdder count = new LongAdder();
+
+	/**
+	 * When the rate was last measured.
+	 */
+	private long rateTime = System.currentTimeMillis();
+
+	/**
+	 * The count when the rate was last measured.
+	 */
+	private long rateCount = 0;
+
+	/**
+	 * The last measured rate, per second.
+	 */
+	private long rate = 0;
+
+	/**
+	 * Add to the count.
+	 *
+	 * @param amount The amount.
+	 */
+	public void mark(long amount) {
+		count.add(amount);
+	}
+
+	/**
+	 * Get the total count.
+	 *
+	 * @return The count.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Get the rate the count went up at since it was last measured.
+	 *
+	 * @return The rate per second.
+	 */
+	public synchronized long getRate() {
+		long now = System.currentTimeMillis();
+
+		long elapsed = now - rateTime;
+
+		if (elapsed >= MIN_PERIOD) {
+			long current = count.sum();
+
+			rate = (current - rateCount) * 1000 / elapsed;
+			rateCount = current;
+			rateTime = now;
+		}
+
+		return rate;
+	}
+}
@@ -0,0 +1,375 @@
+package org.nikkii.mapdownloader.metrics;
+
+import org.nikkii.mapdownloader.download.DownloadScheduler;
+import org.nikkii.mapdownloader.maps.MapSource;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the download engine is doing, for JMX clients and the {@link PrometheusExporter}.
+ *
+ * The engine records into the default instance as it works. It's registered with the platform MBean server as
+ * {@code org.nikkii.mapdownloader:type=Engine}, and each source as {@code org.nikkii.mapdownloader:type=Source,name=...}
+ * once it's first seen.
+ *
+ * @author Nikki
+ */
+public class Metrics implements MetricsMBean {
+
+	/**
+	 * The JMX domain the metrics are registered under.
+	 */
+	public static final String DOMAIN = "org.nikkii.mapdownloader";
+
+	/**
+	 * The metrics used by default.
+	 */
+	private static final Metrics DEFAULT = new Metrics(true);
+
+	/**
+	 * Whether the metrics are registered with the platform MBean server.
+	 */
+	private final boolean register;
+
+	/**
+	 * The metrics of every source seen so far, by source name.
+	 */
+	private final ConcurrentMap<String, SourceMetrics> sources = new ConcurrentHashMap<>();
+
+	/**
+	 * The schedulers whose jobs are counted.
+	 */
+	private final List<DownloadScheduler> schedulers = new CopyOnWriteArrayList<>();
+
+	/**
+	 * The amount of failovers.
+	 */
+	private final LongAdder failovers = new LongAdder();
+
+	/**
+	 * The amount of cache hits.
+	 */
+	private final LongAdder cacheHits = new LongAdder();
+
+	/**
+	 * The amount of cache misses.
+	 */
+	private final LongAdder cacheMisses = new LongAdder();
+
+	/**
+	 * The amount of maps updated from the installed version.
+	 */
+	private final LongAdder deltaUpdates = new LongAdder();
+
+	/**
+	 * The amount of bytes delta updates copied from the installed version instead of downloading.
+	 */
+	private final LongAdder deltaReusedBytes = new LongAdder();
+
+	/**
+	 * The amount of bytes decompressed.
+	 */
+	private final LongAdder decompressedBytes = new LongAdder();
+
+	/**
+	 * The time spent decompressing, in nanoseconds.
+	 */
+	private final LongAdder decompressNanos = new LongAdder();
+
+	/**
+	 * The map list filter times.
+	 */
+	private final Timing filters = new Timing();
+
+	/**
+	 * Construct a new set of metrics.
+	 *
+	 * @param register Whether to register the metrics with the platform MBean server.
+	 */
+	public Metrics(boolean register) {
+		this.register = register;
+
+		if (register) {
+			register(() -> new ObjectName(DOMAIN + ":type=Engine"), this);
+		}
+	}
+
+	/**
+	 * Get the metrics used by default.
+	 *
+	 * @return The metrics.
+	 */
+	public static Metrics getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Get the metrics of a source, creating them the first time the source is seen.
+	 *
+	 * @param source The source.
+	 * @return The source metrics.
+	 */
+	public SourceMetrics getSource(MapSource source) {
+		SourceMetrics metrics = sources.get(source.getName());
+
+		if (metrics != null) {
+			return metrics;
+		}
+
+		SourceMetrics created = new SourceMetrics(source.getName());
+
+		metrics = sources.putIfAbsent(source.getName(), created);
+
+		if (metrics != null) {
+			return metrics;
+		}
+
+		if (register) {
+			register(() -> new ObjectName(DOMAIN + ":type=Source,name=" + ObjectName.quote(source.getName())), created);
+		}
+
+		return created;
+	}
+
+	/**
+	 * Get the metrics of every source seen so far.
+	 *
+	 * @return The source metrics.
+	 */
+	public List<SourceMetrics> getSources() {
+		return new ArrayList<>(sources.values());
+	}
+
+	/**
+	 * Count a scheduler's jobs from now on.
+	 *
+	 * @param scheduler The scheduler.
+	 */
+	public void addScheduler(DownloadScheduler scheduler) {
+		schedulers.add(scheduler);
+	}
+
+	/**
+	 * Stop counting a scheduler's jobs.
+	 *
+	 * @param scheduler The scheduler.
+	 */
+	public void removeScheduler(DownloadScheduler scheduler) {
+		schedulers.remove(scheduler);
+	}
+
+	/**
+	 * Count a download moving on to another mirror.
+	 */
+	public void recordFailover() {
+		failovers.increment();
+	}
+
+	/**
+	 * Count an archive cache lookup.
+	 *
+	 * @param hit Whether the cache had the archive.
+	 */
+	public void recordCacheLookup(boolean hit) {
+		(hit ? cacheHits : cacheMisses).increment();
+	}
+
+	/**
+	 * Record a map updated from the installed version.
+	 *
+	 * @param reusedBytes The amount of bytes copied from the installed version.
+	 */
+	public void recordDeltaUpdate(long reusedBytes) {
+		deltaUpdates.increment();
+		deltaReusedBytes.add(reusedBytes);
+	}
+
+	/**
+	 * Record a finished decompression.
+	 *
+	 * @param bytes The amount of bytes decompressed.
+	 * @param nanos The time taken, in nanoseconds.
+	 */
+	public void recordDecompression(long bytes, long nanos) {
+		decompressedBytes.add(bytes);
+		decompressNanos.add(nanos);
+	}
+
+	/**
+	 * Record the map list being filtered.
+	 *
+	 * @param nanos The time taken, in nanoseconds.
+	 */
+	public void recordFilter(long nanos) {
+		filters.record(nanos);
+	}
+
+	@Override
+	public int getActiveJobs() {
+		int active = 0;
+
+		for (DownloadScheduler scheduler : schedulers) {
+			active += scheduler.getActive();
+		}
+
+		return active;
+	}
+
+	@Override
+	public int getQueuedJobs() {
+		int queued = 0;
+
+		for (DownloadScheduler scheduler : schedulers) {
+			queued += scheduler.getQueued();
+		}
+
+		return queued;
+	}
+
+	@Override
+	public long getBytesDownloaded() {
+		long bytes = 0;
+
+		for (SourceMetrics source : sources.values()) {
+			bytes += source.getBytesDownloaded();
+		}
+
+		return bytes;
+	}
+
+	@Override
+	public long getBytesPerSecond() {
+		long rate = 0;
+
+		for (SourceMetrics source : sources.values()) {
+			rate += source.getBytesPerSecond();
+		}
+
+		return rate;
+	}
+
+	@Override
+	public long getRetries() {
+		long retries = 0;
+
+		for (SourceMetrics source : sources.values()) {
+			retries += source.getRetries();
+		}
+
+		return retries;
+	}
+
+	@Override
+	public long getFailovers() {
+		return failovers.sum();
+	}
+
+	@Override
+	public long getDeltaUpdates() {
+		return deltaUpdates.sum();
+	}
+
+	@Override
+	public long getDeltaReusedBytes() {
+		return deltaReusedBytes.sum();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	@Override
+	public double getCacheHitRate() {
+		long hits = cacheHits.sum();
+		long lookups = hits + cacheMisses.sum();
+
+		return lookups > 0 ? (double) hits / lookups : 0;
+	}
+
+	@Override
+	public long getDecompressedBytes() {
+		return decompressedBytes.sum();
+	}
+
+	@Override
+	public long getDecompressBytesPerSecond() {
+		long nanos = decompressNanos.sum();
+
+		return nanos > 0 ? (long) (decompressedBytes.sum() * 1e9 / nanos) : 0;
+	}
+
+	/**
+	 * Get the time spent decompressing.
+	 *
+	 * @return The time in nanoseconds.
+	 */
+	public long getDecompressNanos() {
+		return decompressNanos.sum();
+	}
+
+	@Override
+	public long getFilterRuns() {
+		return filters.getCount();
+	}
+
+	@Override
+	public double getFilterAverageMillis() {
+		return filters.getAverage() / 1e6;
+	}
+
+	@Override
+	public double getFilterMaxMillis() {
+		return filters.getMax() / 1e6;
+	}
+
+	/**
+	 * Get the map list filter times.
+	 *
+	 * @return The filter times.
+	 */
+	public Timing getFilters() {
+		return filters;
+	}
+
+	/**
+	 * Register an MBean with the platform MBean server. Metrics are optional, so failures are only logged.
+	 *
+	 * @param name Creates the MBean's name.
+	 * @param bean The MBean.
+	 */
+	private static void register(ObjectNameFactory name, Object bean) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(bean, name.create());
+		} catch (JMException | SecurityException e) {
+			System.out.println("Unable to register metrics: " + e);
+		}
+	}
+
+	/**
+	 * Creates an MBean name, which may throw.
+	 */
+	private interface ObjectNameFactory {
+
+		/**
+		 * Create the name.
+		 *
+		 * @return The name.
+		 * @throws JMException If the name is malformed.
+		 */
+		ObjectName create() throws JMException;
+	}
+}
@@ -0,0 +1,121 @@
+package org.nikkii.mapdownloader.metrics;
+
+/**
+ * The management interface of {@link Metrics}.
+ *
+ * @author Nikki
+ */
+public interface MetricsMBean {
+
+	/**
+	 * Get the amount of downloads running.
+	 *
+	 * @return The job count.
+	 */
+	int getActiveJobs();
+
+	/**
+	 * Get the amount of downloads waiting for a slot.
+	 *
+	 * @return The job count.
+	 */
+	int getQueuedJobs();
+
+	/**
+	 * Get the amount of bytes downloaded from every source.
+	 *
+	 * @return The byte count.
+	 */
+	long getBytesDownloaded();
+
+	/**
+	 * Get the current download speed over every source.
+	 *
+	 * @return The speed in bytes per second.
+	 */
+	long getBytesPerSecond();
+
+	/**
+	 * Get the amount of downloads which were tried again.
+	 *
+	 * @return The retry count.
+	 */
+	long getRetries();
+
+	/**
+	 * Get the amount of downloads which moved on to another mirror.
+	 *
+	 * @return The failover count.
+	 */
+	long getFailovers();
+
+	/**
+	 * Get the amount of maps updated from the installed version.
+	 *
+	 * @return The update count.
+	 */
+	long getDeltaUpdates();
+
+	/**
+	 * Get the amount of bytes delta updates copied from the installed version instead of downloading.
+	 *
+	 * @return The byte count.
+	 */
+	long getDeltaReusedBytes();
+
+	/**
+	 * Get the amount of downloads installed from the archive cache.
+	 *
+	 * @return The hit count.
+	 */
+	long getCacheHits();
+
+	/**
+	 * Get the amount of downloads the archive cache couldn't serve.
+	 *
+	 * @return The miss count.
+	 */
+	long getCacheMisses();
+
+	/**
+	 * Get the share of downloads installed from the archive cache.
+	 *
+	 * @return The hit rate between 0 and 1, or 0 if the cache was never asked.
+	 */
+	double getCacheHitRate();
+
+	/**
+	 * Get the amount of bytes decompressed.
+	 *
+	 * @return The byte count.
+	 */
+	long getDecompressedBytes();
+
+	/**
+	 * Get how fast maps decompress while a decompressor is running.
+	 *
+	 * @return The speed in bytes per second.
+	 */
+	long getDecompressBytesPerSecond();
+
+	/**
+	 * Get the amount of times the map list was filtered.
+	 *
+	 * @return The filter count.
+	 */
+	long getFilterRuns();
+
+	/**
+	 * Get how long filtering the map list takes on average.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	double getFilterAverageMillis();
+
+	/**
+	 * Get the longest time filtering the map list took.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	double getFilterMaxMillis();
+}
@@ -0,0 +1,242 @@
+package org.nikkii.mapdownloader.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Serves the metrics in the Prometheus text format on {@code http://localhost:port/metrics}.
+ *
+ * Only the loopback interface is bound, so the metrics aren't exposed to the network.
+ *
+ * @author Nikki
+ */
+public class PrometheusExporter {
+
+	/**
+	 * The system property holding the port to serve on.
+	 */
+	public static final String PORT_PROPERTY = "mapdownloader.metrics.port";
+
+	/**
+	 * The metrics to serve.
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * The server.
+	 */
+	private final HttpServer server;
+
+	/**
+	 * Construct a new exporter. It doesn't serve anything until started.
+	 *
+	 * @param metrics The metrics to serve.
+	 * @param port The port to serve on, or 0 for any free port.
+	 * @throws IOException If the port can't be bound.
+	 */
+	public PrometheusExporter(Metrics metrics, int port) throws IOException {
+		this.metrics = metrics;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.server.createContext("/metrics", this::handle);
+	}
+
+	/**
+	 * Start the exporter configured by system properties.
+	 *
+	 * @return The running exporter, or null if no port is set or it can't be bound.
+	 */
+	public static PrometheusExporter fromSystemProperties() {
+		String port = System.getProperty(PORT_PROPERTY);
+
+		if (port == null) {
+			return null;
+		}
+
+		try {
+			PrometheusExporter exporter = new PrometheusExporter(Metrics.getDefault(), Integer.parseInt(port));
+
+			exporter.start();
+
+			return exporter;
+		} catch (NumberFormatException | IOException e) {
+			System.out.println("Unable to serve metrics on port " + port + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Start serving.
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stop serving.
+	 */
+	public void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * Get the port being served on.
+	 *
+	 * @return The port.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Answer a scrape.
+	 *
+	 * @param exchange The request.
+	 * @throws IOException If the response can't be sent.
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = format().getBytes(StandardCharsets.UTF_8);
+
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Write out the metrics.
+	 *
+	 * @return The metrics in the Prometheus text format.
+	 */
+	public String format() {
+		StringBuilder out = new StringBuilder();
+
+		List<SourceMetrics> sources = metrics.getSources();
+
+		gauge(out, "mapdownloader_jobs_active", "Downloads running.", metrics.getActiveJobs());
+		gauge(out, "mapdownloader_jobs_queued", "Downloads waiting for a slot.", metrics.getQueuedJobs());
+
+		perSource(out, "mapdownloader_downloaded_bytes_total", "counter", "Bytes downloaded.", sources, SourceMetrics::getBytesDownloaded);
+		perSource(out, "mapdownloader_download_bytes_per_second", "gauge", "Current download speed.", sources, SourceMetrics::getBytesPerSecond);
+		perSource(out, "mapdownloader_retries_total", "counter", "Downloads tried again.", sources, SourceMetrics::getRetries);
+		perSource(out, "mapdownloader_catalog_load_seconds", "gauge", "Time the last listing took to load.", sources, source -> source.getCatalogLoadMillis() / 1000);
+		perSource(out, "mapdownloader_catalog_maps", "gauge", "Maps in the last listing.", sources, SourceMetrics::getCatalogMaps);
+		perSource(out, "mapdownloader_catalog_failures_total", "counter", "Listings which failed to load.", sources, SourceMetrics::getCatalogFailures);
+
+		counter(out, "mapdownloader_failovers_total", "Downloads moved on to another mirror.", metrics.getFailovers());
+		counter(out, "mapdownloader_cache_hits_total", "Downloads installed from the archive cache.", metrics.getCacheHits());
+		counter(out, "mapdownloader_cache_misses_total", "Downloads the archive cache couldn't serve.", metrics.getCacheMisses());
+		counter(out, "mapdownloader_delta_updates_total", "Maps updated from the installed version.", metrics.getDeltaUpdates());
+		counter(out, "mapdownloader_delta_reused_bytes_total", "Bytes delta updates copied instead of downloading.", metrics.getDeltaReusedBytes());
+
+		counter(out, "mapdownloader_decompressed_bytes_total", "Bytes decompressed.", metrics.getDecompressedBytes());
+		counter(out, "mapdownloader_decompress_seconds_total", "Time spent decompressing.", metrics.getDecompressNanos() / 1e9);
+
+		Timing filters = metrics.getFilters();
+
+		counter(out, "mapdownloader_filter_runs_total", "Times the map list was filtered.", filters.getCount());
+		counter(out, "mapdownloader_filter_seconds_total", "Time spent filtering the map list.", filters.getTotal() / 1e9);
+		gauge(out, "mapdownloader_filter_max_seconds", "Longest time filtering the map list took.", filters.getMax() / 1e9);
+
+		return out.toString();
+	}
+
+	/**
+	 * Write out a counter.
+	 *
+	 * @param out The output.
+	 * @param name The metric name.
+	 * @param help The metric description.
+	 * @param value The value.
+	 */
+	private static void counter(StringBuilder out, String name, String help, double value) {
+		header(out, name, "counter", help);
+		sample(out, name, null, value);
+	}
+
+	/**
+	 * Write out a gauge.
+	 *
+	 * @param out The output.
+	 * @param name The metric name.
+	 * @param help The metric description.
+	 * @param value The value.
+	 */
+	private static void gauge(StringBuilder out, String name, String help, double value) {
+		header(out, name, "gauge", help);
+		sample(out, name, null, value);
+	}
+
+	/**
+	 * Write out a metric with a sample for every source.
+	 *
+	 * @param out The output.
+	 * @param name The metric name.
+	 * @param type The metric type.
+	 * @param help The metric description.
+	 * @param sources The sources.
+	 * @param value Reads a source's value.
+	 */
+	private static void perSource(StringBuilder out, String name, String type, String help, List<SourceMetrics> sources, ToDoubleFunction<SourceMetrics> value) {
+		header(out, name, type, help);
+
+		for (SourceMetrics source : sources) {
+			sample(out, name, source.getName(), value.applyAsDouble(source));
+		}
+	}
+
+	/**
+	 * Write out a metric's help and type lines.
+	 *
+	 * @param out The output.
+	 * @param name The metric name.
+	 * @param type The metric type.
+	 * @param help The metric description.
+	 */
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Write out a sample.
+	 *
+	 * @param out The output.
+	 * @param name The metric name.
+	 * @param source The source label, or null for none.
+	 * @param value The value.
+	 */
+	private static void sample(StringBuilder out, String name, String source, double value) {
+		out.append(name);
+
+		if (source != null) {
+			String escaped = source.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+
+			out.append("{source=\"").append(escaped).append("\"}");
+		}
+
+		out.append(' ');
+
+		// Whole numbers are written without a fraction, they're byte and event counts.
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			out.append((long) value);
+		} else {
+			out.append(value);
+		}
+
+		out.append('\n');
+	}
+}
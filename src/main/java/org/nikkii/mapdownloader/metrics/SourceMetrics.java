@@ -0,0 +1,119 @@
+package org.nikkii.mapdownloader.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a single source.
+ *
+ * @author Nikki
+ */
+public class SourceMetrics implements SourceMetricsMBean {
+
+	/**
+	 * The source name.
+	 */
+	private final String name;
+
+	/**
+	 * The bytes downloaded from the source.
+	 */
+	private final Meter bytes = new Meter();
+
+	/**
+	 * The amount of retries.
+	 */
+	private final LongAdder retries = new LongAdder();
+
+	/**
+	 * The listing load times.
+	 */
+	private final Timing catalogLoads = new Timing();
+
+	/**
+	 * The amount of listing failures.
+	 */
+	private final LongAdder catalogFailures = new LongAdder();
+
+	/**
+	 * The amount of maps in the last listing.
+	 */
+	private volatile int catalogMaps = 0;
+
+	/**
+	 * Construct the metrics of a source.
+	 *
+	 * @param name The source name.
+	 */
+	public SourceMetrics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Count bytes downloaded from the source.
+	 *
+	 * @param count The byte count.
+	 */
+	public void recordBytes(long count) {
+		bytes.mark(count);
+	}
+
+	/**
+	 * Count a download being tried again.
+	 */
+	public void recordRetry() {
+		retries.increment();
+	}
+
+	/**
+	 * Record the listing being loaded.
+	 *
+	 * @param nanos The time taken, in nanoseconds.
+	 * @param maps The amount of maps listed.
+	 */
+	public void recordCatalogLoad(long nanos, int maps) {
+		catalogLoads.record(nanos);
+		catalogMaps = maps;
+	}
+
+	/**
+	 * Count the listing failing to load.
+	 */
+	public void recordCatalogFailure() {
+		catalogFailures.increment();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getBytesDownloaded() {
+		return bytes.getCount();
+	}
+
+	@Override
+	public long getBytesPerSecond() {
+		return bytes.getRate();
+	}
+
+	@Override
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	@Override
+	public double getCatalogLoadMillis() {
+		return catalogLoads.getLast() / 1e6;
+	}
+
+	@Override
+	public int getCatalogMaps() {
+		return catalogMaps;
+	}
+
+	@Override
+	public long getCatalogFailures() {
+		return catalogFailures.sum();
+	}
+}
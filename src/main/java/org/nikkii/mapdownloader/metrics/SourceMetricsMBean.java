@@ -0,0 +1,58 @@
+package org.nikkii.mapdownloader.metrics;
+
+/**
+ * The management interface of {@link SourceMetrics}.
+ *
+ * @author Nikki
+ */
+public interface SourceMetricsMBean {
+
+	/**
+	 * Get the source name.
+	 *
+	 * @return The name.
+	 */
+	String getName();
+
+	/**
+	 * Get the amount of bytes downloaded from the source.
+	 *
+	 * @return The byte count.
+	 */
+	long getBytesDownloaded();
+
+	/**
+	 * Get the current download speed from the source.
+	 *
+	 * @return The speed in bytes per second.
+	 */
+	long getBytesPerSecond();
+
+	/**
+	 * Get the amount of downloads from the source which were tried again.
+	 *
+	 * @return The retry count.
+	 */
+	long getRetries();
+
+	/**
+	 * Get how long the source's listing took to load the last time.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	double getCatalogLoadMillis();
+
+	/**
+	 * Get the amount of maps in the source's listing the last time it loaded.
+	 *
+	 * @return The map count.
+	 */
+	int getCatalogMaps();
+
+	/**
+	 * Get the amount of times the source's listing failed to load.
+	 *
+	 * @return The failure count.
+	 */
+	long getCatalogFailures();
+}
@@ -0,0 +1,86 @@
+package org.nikkii.mapdownloader.metrics;
+
+/**
+ * Keeps track of how long an operation takes.
+ *
+ * @author Nikki
+ */
+public class Timing {
+
+	/**
+	 * The amount of times the operation ran.
+	 */
+	private long count = 0;
+
+	/**
+	 * The total time taken, in nanoseconds.
+	 */
+	private long total = 0;
+
+	/**
+	 * The longest time taken, in nanoseconds.
+	 */
+	private long max = 0;
+
+	/**
+	 * The last time taken, in nanoseconds.
+	 */
+	private long last = 0;
+
+	/**
+	 * Record a run of the operation.
+	 *
+	 * @param nanos The time taken, in nanoseconds.
+	 */
+	public synchronized void record(long nanos) {
+		count++;
+		total += nanos;
+		max = Math.max(max, nanos);
+		last = nanos;
+	}
+
+	/**
+	 * Get the amount of times the operation ran.
+	 *
+	 * @return The count.
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the total time taken.
+	 *
+	 * @return The time in nanoseconds.
+	 */
+	public synchronized long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Get the longest time taken.
+	 *
+	 * @return The time in nanoseconds.
+	 */
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * Get the last time taken.
+	 *
+	 * @return The time in nanoseconds.
+	 */
+	public synchronized long getLast() {
+		return last;
+	}
+
+	/**
+	 * Get the average time taken.
+	 *
+	 * @return The time in nanoseconds, or 0 if the operation never ran.
+	 */
+	public synchronized long getAverage() {
+		return count > 0 ? total / count : 0;
+	}
+}
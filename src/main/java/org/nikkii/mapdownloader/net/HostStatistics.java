@@ -0,0 +1,150 @@
+package org.nikkii.mapdownloader.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request and connection counters for a single host.
+ *
+ * HttpURLConnection doesn't say whether a request went over a cached connection, so reuse is counted the way the JDK
+ * keep-alive cache works: a response read to the end and closed hands its connection back, and the next request to
+ * the host takes it.
+ *
+ * @author Nikki
+ */
+public class HostStatistics {
+
+	/**
+	 * The host name and port.
+	 */
+	private final String host;
+
+	/**
+	 * The amount of requests made.
+	 */
+	private final AtomicLong requests = new AtomicLong();
+
+	/**
+	 * The amount of requests which had to open a new connection.
+	 */
+	private final AtomicLong opened = new AtomicLong();
+
+	/**
+	 * The amount of requests which went over a kept alive connection.
+	 */
+	private final AtomicLong reused = new AtomicLong();
+
+	/**
+	 * The amount of response body bytes read.
+	 */
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * The amount of idle connections in the keep-alive cache.
+	 */
+	private int idle = 0;
+
+	/**
+	 * Construct new statistics.
+	 *
+	 * @param host The host name and port.
+	 */
+	public HostStatistics(String host) {
+		this.host = host;
+	}
+
+	/**
+	 * Count a new request, taking an idle connection if there is one.
+	 */
+	synchronized void requestStarted() {
+		requests.incrementAndGet();
+
+		if (idle > 0) {
+			idle--;
+			reused.incrementAndGet();
+		} else {
+			opened.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Count a finished request.
+	 *
+	 * @param keptAlive Whether the connection went back to the keep-alive cache.
+	 * @param cacheSize The most idle connections the cache holds per host.
+	 */
+	synchronized void requestFinished(boolean keptAlive, int cacheSize) {
+		if (keptAlive && idle < cacheSize) {
+			idle++;
+		}
+	}
+
+	/**
+	 * Count response body bytes.
+	 *
+	 * @param count The amount of bytes read.
+	 */
+	void bytesRead(long count) {
+		bytes.addAndGet(count);
+	}
+
+	/**
+	 * Get the host name and port.
+	 *
+	 * @return The host.
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Get the amount of requests made.
+	 *
+	 * @return The request count.
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Get the amount of requests which had to open a new connection.
+	 *
+	 * @return The opened connection count.
+	 */
+	public long getOpened() {
+		return opened.get();
+	}
+
+	/**
+	 * Get the amount of requests which went over a kept alive connection.
+	 *
+	 * @return The reused connection count.
+	 */
+	public long getReused() {
+		return reused.get();
+	}
+
+	/**
+	 * Get the amount of response body bytes read.
+	 *
+	 * @return The byte count.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Get the share of requests which went over a kept alive connection.
+	 *
+	 * @return The reuse ratio, from 0 to 1.
+	 */
+	public double getReuseRatio() {
+		long total = requests.get();
+
+		return total > 0 ? (double) reused.get() / total : 0;
+	}
+
+	@Override
+	public String toString() {
+		return host + ": " + getRequests() + " requests, " + getOpened() + " connections opened, " + getReused() + " reused (" + Math.round(getReuseRatio() * 100) + "%)";
+	}
+}
@@ -0,0 +1,193 @@
+package org.nikkii.mapdownloader.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The HTTP client shared by every download and map list request.
+ *
+ * Connections are kept alive by the JDK's keep-alive cache, which only takes a connection back if its response was
+ * read to the end and closed rather than disconnected. This client makes sure that happens, and limits how many
+ * connections each host may have open at once so the cache can hold all of them.
+ *
+ * @author Nikki
+ */
+public class HttpClient {
+
+	/**
+	 * The default amount of connections per host.
+	 */
+	public static final int DEFAULT_HOST_LIMIT = 8;
+
+	/**
+	 * The connect and read timeout, so a stalled connection fails instead of hanging forever.
+	 */
+	private static final int TIMEOUT = 30000;
+
+	/**
+	 * The User-Agent sent with every request.
+	 */
+	private static final String USER_AGENT = "Java Downloader";
+
+	/**
+	 * The shared client.
+	 */
+	private static final HttpClient DEFAULT = new HttpClient(DEFAULT_HOST_LIMIT);
+
+	/**
+	 * The default connection limit for hosts without their own.
+	 */
+	private final int defaultHostLimit;
+
+	/**
+	 * The connection permits for each host.
+	 */
+	private final Map<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+	/**
+	 * The connection limits for each host.
+	 */
+	private final Map<String, Integer> limits = new ConcurrentHashMap<>();
+
+	/**
+	 * The statistics for each host.
+	 */
+	private final Map<String, HostStatistics> statistics = new ConcurrentHashMap<>();
+
+	/**
+	 * Construct a new client.
+	 *
+	 * @param defaultHostLimit The default amount of connections per host.
+	 */
+	public HttpClient(int defaultHostLimit) {
+		this.defaultHostLimit = defaultHostLimit;
+
+		// The keep-alive cache holds 5 idle connections per host unless told otherwise, keep all of ours.
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections", Integer.toString(defaultHostLimit));
+		}
+	}
+
+	/**
+	 * Get the shared client.
+	 *
+	 * @return The client.
+	 */
+	public static HttpClient getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Prepare a request, waiting for a free connection to the host. The request is sent once the response is asked
+	 * for, and the connection must be closed when done.
+	 *
+	 * @param url The url.
+	 * @return The connection.
+	 * @throws IOException If the url isn't http, or the thread is interrupted while waiting.
+	 */
+	public HttpConnection open(URL url) throws IOException {
+		String host = getHostKey(url);
+
+		Semaphore semaphore = permits.computeIfAbsent(host, key -> new Semaphore(getHostLimit(key)));
+
+		try {
+			semaphore.acquire();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+
+		try {
+			URLConnection connection = url.openConnection();
+
+			if (!(connection instanceof HttpURLConnection)) {
+				throw new IOException("Not an http url: " + url);
+			}
+
+			connection.setConnectTimeout(TIMEOUT);
+			connection.setReadTimeout(TIMEOUT);
+			connection.setRequestProperty("User-Agent", USER_AGENT);
+
+			HostStatistics hostStatistics = getStatistics(host);
+			hostStatistics.requestStarted();
+
+			return new HttpConnection(this, hostStatistics, (HttpURLConnection) connection);
+		} catch (IOException | RuntimeException e) {
+			semaphore.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Give back a closed connection's permit.
+	 *
+	 * @param connection The closed connection.
+	 * @param hostStatistics The host statistics.
+	 * @param keptAlive Whether the connection went back to the keep-alive cache.
+	 */
+	void release(HttpConnection connection, HostStatistics hostStatistics, boolean keptAlive) {
+		String host = getHostKey(connection.getUrl());
+
+		hostStatistics.requestFinished(keptAlive, getHostLimit(host));
+
+		permits.get(host).release();
+	}
+
+	/**
+	 * Set the connection limit for a host. Only applies to hosts which haven't been connected to yet.
+	 *
+	 * @param url Any url on the host.
+	 * @param limit The maximum amount of connections open at once.
+	 */
+	public void setHostLimit(URL url, int limit) {
+		limits.put(getHostKey(url), Math.max(1, limit));
+	}
+
+	/**
+	 * Get the statistics for every host connected to.
+	 *
+	 * @return The statistics.
+	 */
+	public List<HostStatistics> getStatistics() {
+		return new ArrayList<>(statistics.values());
+	}
+
+	/**
+	 * Get the statistics for a host.
+	 *
+	 * @param host The host key.
+	 * @return The statistics.
+	 */
+	private HostStatistics getStatistics(String host) {
+		return statistics.computeIfAbsent(host, HostStatistics::new);
+	}
+
+	/**
+	 * Get the connection limit for a host.
+	 *
+	 * @param host The host key.
+	 * @return The limit.
+	 */
+	private int getHostLimit(String host) {
+		Integer limit = limits.get(host);
+
+		return limit != null ? limit : defaultHostLimit;
+	}
+
+	/**
+	 * Get the key connections to a url's host are grouped by.
+	 *
+	 * @param url The url.
+	 * @return The host and port.
+	 */
+	private static String getHostKey(URL url) {
+		return url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+	}
+}
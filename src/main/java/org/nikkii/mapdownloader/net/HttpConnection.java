@@ -0,0 +1,258 @@
+package org.nikkii.mapdownloader.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * A request made through an {@link HttpClient}.
+ *
+ * Closing the connection closes the response body instead of disconnecting, so a fully read response hands its
+ * connection back to the keep-alive cache for the next request to the host.
+ *
+ * @author Nikki
+ */
+public class HttpConnection implements AutoCloseable {
+
+	/**
+	 * The client which made the request.
+	 */
+	private final HttpClient client;
+
+	/**
+	 * The host statistics.
+	 */
+	private final HostStatistics statistics;
+
+	/**
+	 * The underlying connection.
+	 */
+	private final HttpURLConnection connection;
+
+	/**
+	 * The response body, once requested.
+	 */
+	private CountingInputStream input;
+
+	/**
+	 * Whether the connection has been closed.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Whether the request failed, leaving the connection in an unknown state.
+	 */
+	private boolean failed = false;
+
+	/**
+	 * Construct a new connection.
+	 *
+	 * @param client The client which made the request.
+	 * @param statistics The host statistics.
+	 * @param connection The underlying connection.
+	 */
+	HttpConnection(HttpClient client, HostStatistics statistics, HttpURLConnection connection) {
+		this.client = client;
+		this.statistics = statistics;
+		this.connection = connection;
+	}
+
+	/**
+	 * Set a request header. Only valid before the response is read.
+	 *
+	 * @param name The header name.
+	 * @param value The header value.
+	 */
+	public void setHeader(String name, String value) {
+		connection.setRequestProperty(name, value);
+	}
+
+	/**
+	 * Set the request method.
+	 *
+	 * @param method The method, like GET or HEAD.
+	 * @throws IOException If the method isn't valid.
+	 */
+	public void setMethod(String method) throws IOException {
+		connection.setRequestMethod(method);
+	}
+
+	/**
+	 * Get the response code, sending the request if it hasn't been sent yet.
+	 *
+	 * @return The response code.
+	 * @throws IOException If the request fails.
+	 */
+	public int getResponseCode() throws IOException {
+		try {
+			return connection.getResponseCode();
+		} catch (IOException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * Get a response header.
+	 *
+	 * @param name The header name.
+	 * @return The header value, or null if it wasn't sent.
+	 */
+	public String getHeader(String name) {
+		return connection.getHeaderField(name);
+	}
+
+	/**
+	 * Get the response Content-Length.
+	 *
+	 * @return The content length, or -1 if unknown.
+	 */
+	public long getContentLength() {
+		return connection.getContentLengthLong();
+	}
+
+	/**
+	 * Get the response body.
+	 *
+	 * @return The response body stream.
+	 * @throws IOException If the request fails.
+	 */
+	public InputStream getInputStream() throws IOException {
+		if (input == null) {
+			try {
+				input = new CountingInputStream(connection.getInputStream(), connection.getContentLengthLong());
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+
+		return input;
+	}
+
+	/**
+	 * Get the url of the request.
+	 *
+	 * @return The url.
+	 */
+	public URL getUrl() {
+		return connection.getURL();
+	}
+
+	/**
+	 * Close the response, returning the connection to the keep-alive cache if the body was read to the end. A
+	 * connection which can't be reused is disconnected, so its socket doesn't stay open until it's collected.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+
+		boolean keptAlive, disconnect = false;
+
+		try {
+			if (input != null) {
+				// Closing the body drains a nearly finished one back into the cache, or closes the socket.
+				keptAlive = input.finished;
+				input.close();
+			} else if (failed) {
+				keptAlive = false;
+				disconnect = true;
+			} else {
+				// Nothing was read, which is fine for a body-less response. Anything else can't be reused.
+				keptAlive = "HEAD".equals(connection.getRequestMethod()) || connection.getContentLengthLong() == 0;
+
+				InputStream error = connection.getErrorStream();
+
+				if (error != null) {
+					error.close();
+				} else if (!keptAlive) {
+					// An unread body, like a whole file sent in reply to a range request.
+					disconnect = true;
+				}
+			}
+		} catch (IOException e) {
+			keptAlive = false;
+			disconnect = true;
+		}
+
+		if (disconnect) {
+			connection.disconnect();
+		}
+
+		client.release(this, statistics, keptAlive);
+	}
+
+	/**
+	 * A stream which counts the bytes read from it and notices when the body ends.
+	 */
+	private class CountingInputStream extends FilterInputStream {
+
+		/**
+		 * The amount of bytes left in the body, or -1 if unknown.
+		 */
+		private long remaining;
+
+		/**
+		 * Whether the body was read to the end.
+		 */
+		private boolean finished = false;
+
+		/**
+		 * Construct a new counting stream.
+		 *
+		 * @param input The stream to read from.
+		 * @param length The body length, or -1 if unknown.
+		 */
+		public CountingInputStream(InputStream input, long length) {
+			super(input);
+			this.remaining = length;
+			this.finished = length == 0;
+		}
+
+		/**
+		 * Count bytes read from the body.
+		 *
+		 * @param count The amount of bytes read.
+		 */
+		private void count(int count) {
+			statistics.bytesRead(count);
+
+			// A body of known length is done once it's all read, whether or not anyone reads past the end.
+			if (remaining > 0 && (remaining -= count) == 0) {
+				finished = true;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int value = super.read();
+
+			if (value < 0) {
+				finished = true;
+			} else {
+				count(1);
+			}
+
+			return value;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+
+			if (read < 0) {
+				finished = true;
+			} else {
+				count(read);
+			}
+
+			return read;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package org.nikkii.mapdownloader.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for the SHA-256 digests used to identify archives and verify installed maps.
+ *
+ * @author Nikki
+ */
+public class DigestUtil {
+
+	/**
+	 * Create a SHA-256 digest.
+	 *
+	 * @return The digest.
+	 */
+	public static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM has to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Hash a file.
+	 *
+	 * @param file The file.
+	 * @return The SHA-256 of the file, in hex.
+	 * @throws IOException If the file can't be read.
+	 */
+	public static String sha256(File file) throws IOException {
+		MessageDigest digest = newSha256();
+
+		try (InputStream input = new FileInputStream(file)) {
+			byte[] buffer = new byte[65536];
+
+			int read;
+
+			while ((read = input.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Convert bytes to lowercase hex.
+	 *
+	 * @param bytes The bytes.
+	 * @return The hex string.
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+
+		for (byte b : bytes) {
+			builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,135 @@
+package org.nikkii.mapdownloader.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes a file whose final size is roughly known in advance.
+ *
+ * The file is sized up front, so the filesystem can reserve it in one piece instead of growing it a few kilobytes at a
+ * time, and writes are gathered into large blocks. Closing the stream trims the file to what was actually written, so
+ * a wrong guess costs nothing but the reservation.
+ *
+ * @author Nikki
+ */
+public class PreallocatedOutputStream extends OutputStream {
+
+	/**
+	 * The size of the blocks written to the file.
+	 */
+	private static final int BLOCK_SIZE = 1024 * 1024;
+
+	/**
+	 * The file being written.
+	 */
+	private final RandomAccessFile file;
+
+	/**
+	 * The bytes waiting to be written.
+	 */
+	private final byte[] buffer = new byte[BLOCK_SIZE];
+
+	/**
+	 * The amount of bytes in the buffer.
+	 */
+	private int buffered = 0;
+
+	/**
+	 * The amount of bytes written so far, including the buffer.
+	 */
+	private long written = 0;
+
+	/**
+	 * Whether the stream was closed.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Open a file for writing, replacing its contents.
+	 *
+	 * @param file The file.
+	 * @param expectedLength The expected length of the file, or -1 if unknown.
+	 * @throws IOException If the file can't be opened.
+	 */
+	public PreallocatedOutputStream(File file, long expectedLength) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+
+		try {
+			this.file.setLength(Math.max(0, expectedLength));
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (buffered == buffer.length) {
+			flushBuffer();
+		}
+
+		buffer[buffered++] = (byte) b;
+		written++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len >= buffer.length) {
+			// Already a full block, no point copying it.
+			flushBuffer();
+			file.write(b, off, len);
+		} else {
+			if (len > buffer.length - buffered) {
+				flushBuffer();
+			}
+
+			System.arraycopy(b, off, buffer, buffered, len);
+			buffered += len;
+		}
+
+		written += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+	}
+
+	/**
+	 * Write the rest of the buffer and trim the file to the bytes written.
+	 *
+	 * @throws IOException If the file can't be written.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+
+		try {
+			flushBuffer();
+
+			if (file.length() != written) {
+				file.setLength(written);
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Write the buffered bytes to the file.
+	 *
+	 * @throws IOException If the file can't be written.
+	 */
+	private void flushBuffer() throws IOException {
+		if (buffered > 0) {
+			file.write(buffer, 0, buffered);
+			buffered = 0;
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package org.nikkii.mapdownloader.util;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The executors every background task runs on.
+ *
+ * Blocking I/O - downloads, their segments, mirror probes, streaming decompression and the map folder watcher - runs on
+ * the I/O executor, which starts a virtual thread per task when the JVM has them and falls back to a cached pool of
+ * daemon threads otherwise. CPU heavy work, like decoding bzip2 blocks, runs on a pool bounded to the amount of
+ * processors.
+ *
+ * Both executors are shut down when the JVM exits, after running the registered shutdown tasks.
+ *
+ * @author Nikki
+ */
+public class TaskExecutors {
+
+	/**
+	 * The system property overriding the size of the CPU pool.
+	 */
+	public static final String CPU_THREADS_PROPERTY = "mapdownloader.cpu.threads";
+
+	/**
+	 * How long the shutdown tasks together may take.
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 5000;
+
+	/**
+	 * The amount of I/O tasks submitted.
+	 */
+	private static final AtomicLong ioSubmitted = new AtomicLong();
+
+	/**
+	 * The amount of I/O tasks which started running.
+	 */
+	private static final AtomicLong ioStarted = new AtomicLong();
+
+	/**
+	 * The amount of I/O tasks which finished.
+	 */
+	private static final AtomicLong ioCompleted = new AtomicLong();
+
+	/**
+	 * The tasks to run when the JVM exits, before the executors are stopped.
+	 */
+	private static final List<Runnable> shutdownTasks = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Whether the I/O executor uses virtual threads.
+	 */
+	private static boolean virtual = false;
+
+	/**
+	 * The executor for blocking I/O.
+	 */
+	private static final ExecutorService IO = new CountingExecutorService(createIoExecutor());
+
+	/**
+	 * The pool for CPU heavy work.
+	 */
+	private static final ForkJoinPool CPU = new ForkJoinPool(getCpuThreads(), pool -> {
+		ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+		thread.setName("cpu-" + thread.getPoolIndex());
+		return thread;
+	}, null, false);
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(TaskExecutors::shutdown, "executor-shutdown"));
+	}
+
+	/**
+	 * Get the executor for blocking I/O.
+	 *
+	 * @return The executor.
+	 */
+	public static ExecutorService getIo() {
+		return IO;
+	}
+
+	/**
+	 * Get the pool for CPU heavy work.
+	 *
+	 * @return The pool.
+	 */
+	public static ForkJoinPool getCpu() {
+		return CPU;
+	}
+
+	/**
+	 * Run a blocking task on the I/O executor, on a thread named after it.
+	 *
+	 * @param name The task name.
+	 * @param task The task.
+	 */
+	public static void execute(String name, Runnable task) {
+		IO.execute(named(name, task));
+	}
+
+	/**
+	 * Name the thread a task runs on while it runs.
+	 *
+	 * @param name The task name.
+	 * @param task The task.
+	 * @return The wrapped task.
+	 */
+	public static Runnable named(final String name, final Runnable task) {
+		return () -> {
+			Thread thread = Thread.currentThread();
+
+			String original = thread.getName();
+
+			thread.setName(name);
+
+			try {
+				task.run();
+			} finally {
+				thread.setName(original);
+			}
+		};
+	}
+
+	/**
+	 * Name the thread a task runs on while it runs.
+	 *
+	 * @param name The task name.
+	 * @param task The task.
+	 * @param <T> The result type.
+	 * @return The wrapped task.
+	 */
+	public static <T> Callable<T> named(final String name, final Callable<T> task) {
+		return () -> {
+			Thread thread = Thread.currentThread();
+
+			String original = thread.getName();
+
+			thread.setName(name);
+
+			try {
+				return task.call();
+			} finally {
+				thread.setName(original);
+			}
+		};
+	}
+
+	/**
+	 * Add a task to run when the JVM exits, like saving state. Tasks run in the order they were added, before the
+	 * executors are stopped.
+	 *
+	 * @param task The task.
+	 */
+	public static void addShutdownTask(Runnable task) {
+		shutdownTasks.add(task);
+	}
+
+	/**
+	 * Check whether the I/O executor uses virtual threads.
+	 *
+	 * @return Whether threads are virtual.
+	 */
+	public static boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Get the amount of I/O tasks waiting for a thread.
+	 *
+	 * @return The queued task count.
+	 */
+	public static long getIoQueued() {
+		return ioSubmitted.get() - ioStarted.get();
+	}
+
+	/**
+	 * Get the amount of I/O tasks running.
+	 *
+	 * @return The running task count.
+	 */
+	public static long getIoActive() {
+		return ioStarted.get() - ioCompleted.get();
+	}
+
+	/**
+	 * Get the amount of I/O tasks which finished.
+	 *
+	 * @return The completed task count.
+	 */
+	public static long getIoCompleted() {
+		return ioCompleted.get();
+	}
+
+	/**
+	 * Get the amount of CPU tasks waiting for a thread.
+	 *
+	 * @return The queued task count.
+	 */
+	public static long getCpuQueued() {
+		return CPU.getQueuedSubmissionCount() + CPU.getQueuedTaskCount();
+	}
+
+	/**
+	 * Get the amount of CPU threads busy.
+	 *
+	 * @return The active thread count.
+	 */
+	public static int getCpuActive() {
+		return CPU.getActiveThreadCount();
+	}
+
+	/**
+	 * Describe the executors' load.
+	 *
+	 * @return A short summary.
+	 */
+	public static String describe() {
+		return "io (" + (virtual ? "virtual" : "platform") + "): " + getIoActive() + " running, " + getIoQueued() + " queued, " + getIoCompleted()
+			+ " done; cpu (" + CPU.getParallelism() + " threads): " + getCpuActive() + " active, " + getCpuQueued() + " queued";
+	}
+
+	/**
+	 * Run the shutdown tasks and stop both executors.
+	 */
+	private static void shutdown() {
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+
+		for (Runnable task : shutdownTasks) {
+			if (System.currentTimeMillis() >= deadline) {
+				break;
+			}
+
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+
+		IO.shutdownNow();
+		CPU.shutdownNow();
+	}
+
+	/**
+	 * Create the executor for blocking I/O, using virtual threads if the JVM has them. They're looked up reflectively,
+	 * since we still build for Java 8.
+	 *
+	 * @return The executor.
+	 */
+	private static ExecutorService createIoExecutor() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "io-", 0L);
+
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+			ExecutorService executor = (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+
+			virtual = true;
+
+			return executor;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// No virtual threads, idle platform threads are kept for a minute and reused.
+			AtomicInteger counter = new AtomicInteger();
+
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "io-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Get the size of the CPU pool.
+	 *
+	 * @return The amount of threads.
+	 */
+	private static int getCpuThreads() {
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		try {
+			threads = Integer.parseInt(System.getProperty(CPU_THREADS_PROPERTY, Integer.toString(threads)));
+		} catch (NumberFormatException e) {
+			// Keep the processor count.
+		}
+
+		return Math.max(1, threads);
+	}
+
+	/**
+	 * An executor which counts the tasks passing through it.
+	 */
+	private static class CountingExecutorService extends AbstractExecutorService {
+
+		/**
+		 * The executor running the tasks.
+		 */
+		private final ExecutorService delegate;
+
+		/**
+		 * Construct a new counting executor.
+		 *
+		 * @param delegate The executor running the tasks.
+		 */
+		public CountingExecutorService(ExecutorService delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			ioSubmitted.incrementAndGet();
+
+			try {
+				delegate.execute(() -> {
+					ioStarted.incrementAndGet();
+
+					try {
+						command.run();
+					} finally {
+						ioCompleted.incrementAndGet();
+					}
+				});
+			} catch (RuntimeException e) {
+				ioSubmitted.decrementAndGet();
+				throw e;
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			delegate.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return delegate.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return delegate.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return delegate.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return delegate.awaitTermination(timeout, unit);
+		}
+	}
+}
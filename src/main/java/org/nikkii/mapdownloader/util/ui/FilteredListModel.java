@@ -1,5 +1,7 @@
 package org.nikkii.mapdownloader.util.ui;
 
+import org.nikkii.mapdownloader.metrics.Metrics;
+
 import javax.swing.AbstractListModel;
 import javax.swing.ListModel;
 import javax.swing.event.ListDataEvent;
@@ -68,6 +70,8 @@ public class FilteredListModel<T> extends AbstractListModel implements ListDataL
 			return;
 		}
 
+		long started = System.nanoTime();
+
 		synchronized(source) {
 			indices.clear();
 
@@ -89,6 +93,8 @@ public class FilteredListModel<T> extends AbstractListModel implements ListDataL
 				}
 			}
 
+			Metrics.getDefault().recordFilter(System.nanoTime() - started);
+
 			fireContentsChanged(this, 0, getSize() - 1);
 		}
 	}
@@ -0,0 +1,261 @@
+package org.nikkii.mapdownloader.cli;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nikkii.mapdownloader.download.TestFiles;
+import org.nikkii.mapdownloader.server.FastDlServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the events and exit codes of command line runs against a local fastdl server.
+ *
+ * @author Nikki
+ */
+public class MapDownloaderCliTest {
+
+	/**
+	 * The length of the maps used by the tests.
+	 */
+	private static final int LENGTH = 256 * 1024;
+
+	/**
+	 * The folder maps are installed in.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The folder the server serves.
+	 */
+	@Rule
+	public TemporaryFolder served = new TemporaryFolder();
+
+	/**
+	 * The home folder the source statistics are kept in, so the real ones are left alone.
+	 */
+	@Rule
+	public TemporaryFolder home = new TemporaryFolder();
+
+	/**
+	 * The server.
+	 */
+	private FastDlServer server;
+
+	/**
+	 * The home folder before the test.
+	 */
+	private String userHome;
+
+	@Before
+	public void setUp() throws IOException {
+		userHome = System.getProperty("user.home");
+		System.setProperty("user.home", home.getRoot().getPath());
+
+		server = new FastDlServer(served.getRoot(), FastDlServer.Style.NGINX);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+
+		System.setProperty("user.home", userHome);
+	}
+
+	/**
+	 * Put a map on the server.
+	 *
+	 * @param name The map name.
+	 * @param data The map.
+	 * @return The served file.
+	 * @throws IOException If the file can't be written.
+	 */
+	private File serve(String name, byte[] data) throws IOException {
+		return TestFiles.write(new File(served.getRoot(), name + ".bsp"), data);
+	}
+
+	/**
+	 * Get the file a map is installed as.
+	 *
+	 * @param name The map name.
+	 * @return The file.
+	 */
+	private File installed(String name) {
+		return new File(folder.getRoot(), name + ".bsp");
+	}
+
+	/**
+	 * Run the command line downloader against the server.
+	 *
+	 * @param events Filled with the printed event lines.
+	 * @param args The arguments after the map folder and source.
+	 * @return The exit code.
+	 * @throws Exception If the run fails.
+	 */
+	private int run(List<String> events, String... args) throws Exception {
+		List<String> line = new ArrayList<>(Arrays.asList("--dir", folder.getRoot().getPath(), "--source", "local=" + server.getUrl()));
+
+		line.addAll(Arrays.asList(args));
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		MapDownloaderCli cli = new MapDownloaderCli(new PrintStream(output, true, "UTF-8"));
+
+		cli.parse(line.toArray(new String[0]));
+
+		int code = cli.run();
+
+		events.addAll(Arrays.asList(new String(output.toByteArray(), StandardCharsets.UTF_8).split("\\R")));
+
+		return code;
+	}
+
+	/**
+	 * Check that an event was printed.
+	 *
+	 * @param events The printed event lines.
+	 * @param fields The event name and fields.
+	 */
+	private static void assertEvent(List<String> events, Object... fields) {
+		StringBuilder line = new StringBuilder();
+
+		for (Object field : fields) {
+			line.append(line.length() > 0 ? "\t" : "").append(field);
+		}
+
+		assertTrue(line + " wasn't printed in " + events, events.contains(line.toString()));
+	}
+
+	/**
+	 * Find the event line starting with an event name and field.
+	 *
+	 * @param events The printed event lines.
+	 * @param event The event name.
+	 * @param name The first field.
+	 * @return The line.
+	 */
+	private static String findEvent(List<String> events, String event, String name) {
+		for (String line : events) {
+			if (line.startsWith(event + "\t" + name + "\t")) {
+				return line;
+			}
+		}
+
+		throw new AssertionError(event + " " + name + " wasn't printed in " + events);
+	}
+
+	@Test
+	public void downloadsNamedMaps() throws Exception {
+		byte[] data = TestFiles.bsp(LENGTH, 1);
+
+		serve("first", TestFiles.bsp(LENGTH, 2));
+		serve("second", data);
+
+		TestFiles.write(installed("first"), TestFiles.bsp(LENGTH, 2));
+
+		List<String> events = new ArrayList<>();
+
+		assertEquals(MapDownloaderCli.EXIT_OK, run(events, "first", "second.bsp"));
+
+		assertEvent(events, "source", "local", 2);
+		assertEvent(events, "skipped", "first", "installed");
+		assertEvent(events, "queued", "second", "local");
+		assertEvent(events, "finished", "second", "local", LENGTH);
+		assertEvent(events, "summary", "requested=2", "changed=0", "finished=1", "skipped=1", "missing=0", "failed=0");
+
+		assertArrayEquals(data, Files.readAllBytes(installed("second").toPath()));
+	}
+
+	@Test
+	public void failsWhenMapIsMissing() throws Exception {
+		serve("there", TestFiles.bsp(LENGTH, 3));
+
+		List<String> events = new ArrayList<>();
+
+		assertEquals(MapDownloaderCli.EXIT_FAILED, run(events, "there", "nowhere"));
+
+		assertEvent(events, "missing", "nowhere");
+		assertEvent(events, "finished", "there", "local", LENGTH);
+		assertEvent(events, "summary", "requested=2", "changed=0", "finished=1", "skipped=0", "missing=1", "failed=0");
+	}
+
+	@Test
+	public void failsWhenMapIsDamaged() throws Exception {
+		serve("cut", Arrays.copyOf(TestFiles.bsp(LENGTH, 4), LENGTH / 2));
+
+		List<String> events = new ArrayList<>();
+
+		assertEquals(MapDownloaderCli.EXIT_FAILED, run(events, "cut"));
+
+		String failed = findEvent(events, "failed", "cut");
+
+		assertTrue(failed, failed.contains("is damaged"));
+		assertEvent(events, "summary", "requested=1", "changed=0", "finished=0", "skipped=0", "missing=0", "failed=1");
+		assertFalse(installed("cut").exists());
+	}
+
+	@Test
+	public void countsChangedMapsSeparately() throws Exception {
+		File file = serve("changing", TestFiles.bsp(LENGTH, 5));
+
+		assertEquals(MapDownloaderCli.EXIT_OK, run(new ArrayList<>(), "changing"));
+
+		byte[] data = TestFiles.bsp(LENGTH + 1024, 6);
+
+		TestFiles.write(file, data);
+		file.setLastModified(file.lastModified() + 60000);
+
+		List<String> events = new ArrayList<>();
+
+		// The changed map wasn't named, it's downloaded again because of the sync.
+		assertEquals(MapDownloaderCli.EXIT_OK, run(events, "--sync"));
+
+		assertEvent(events, "queued", "changing", "local");
+		assertEvent(events, "finished", "changing", "local", LENGTH + 1024);
+		assertEvent(events, "summary", "requested=0", "changed=1", "finished=1", "skipped=0", "missing=0", "failed=0");
+
+		assertArrayEquals(data, Files.readAllBytes(installed("changing").toPath()));
+	}
+
+	@Test
+	public void rejectsBadArguments() throws IOException {
+		assertUsage("No map folder given", "first");
+		assertUsage("No maps given", "--dir", folder.getRoot().getPath());
+		assertUsage("Unknown option --bogus", "--bogus", "1", "first");
+		assertUsage("Bad value for --workers: many", "--workers", "many", "first");
+	}
+
+	/**
+	 * Check that parsing arguments fails, which the command line exits with {@link MapDownloaderCli#EXIT_USAGE} for.
+	 *
+	 * @param message The expected error message.
+	 * @param args The arguments.
+	 * @throws IOException If a mapcycle file can't be read.
+	 */
+	private static void assertUsage(String message, String... args) throws IOException {
+		try {
+			new MapDownloaderCli(new PrintStream(new ByteArrayOutputStream())).parse(args);
+			fail("Parsed bad arguments");
+		} catch (IllegalArgumentException e) {
+			assertEquals(message, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package org.nikkii.mapdownloader.codec;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nikkii.mapdownloader.download.TestFiles;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests detecting and decoding every codec.
+ *
+ * @author Nikki
+ */
+public class CodecsTest {
+
+	/**
+	 * The pool parallel decoders run on.
+	 */
+	private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+	/**
+	 * The folder holding the archives.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@AfterClass
+	public static void shutDown() {
+		POOL.shutdownNow();
+	}
+
+	/**
+	 * Build data which compresses, like a map does.
+	 *
+	 * @param length The amount of bytes.
+	 * @return The data.
+	 */
+	private static byte[] data(int length) {
+		byte[] data = TestFiles.random(length, 1);
+
+		// Runs of zeros every other kilobyte.
+		for (int i = 0; i < length; i += 2048) {
+			Arrays.fill(data, i, Math.min(length, i + 1024), (byte) 0);
+		}
+
+		return data;
+	}
+
+	/**
+	 * Compress data with a compressing stream.
+	 *
+	 * @param data The data.
+	 * @param compressor Wraps the archive stream in the compressing stream.
+	 * @return The archive.
+	 * @throws IOException If the data can't be compressed.
+	 */
+	private static byte[] compress(byte[] data, Compressor compressor) throws IOException {
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+
+		try (OutputStream output = compressor.wrap(archive)) {
+			output.write(data);
+		}
+
+		return archive.toByteArray();
+	}
+
+	/**
+	 * Detect and decode an archive, checking it names the expected codec.
+	 *
+	 * @param archive The archive.
+	 * @param name The expected codec name.
+	 * @return The decoded data.
+	 * @throws IOException If the archive can't be decoded.
+	 */
+	private static byte[] decode(byte[] archive, String name) throws IOException {
+		assertEquals(name, Codecs.detect(archive, Math.min(archive.length, Codecs.HEADER_LENGTH)).getName());
+
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+
+		try (InputStream input = Codecs.decode(new ByteArrayInputStream(archive))) {
+			byte[] buffer = new byte[8192];
+
+			int read;
+
+			while ((read = input.read(buffer)) >= 0) {
+				decoded.write(buffer, 0, read);
+			}
+		}
+
+		return decoded.toByteArray();
+	}
+
+	@Test
+	public void decodesBzip2() throws IOException {
+		byte[] data = data(300 * 1024);
+
+		assertArrayEquals(data, decode(compress(data, BZip2CompressorOutputStream::new), "bzip2"));
+	}
+
+	@Test
+	public void decodesGzip() throws IOException {
+		byte[] data = data(300 * 1024);
+
+		assertArrayEquals(data, decode(compress(data, GZIPOutputStream::new), "gzip"));
+	}
+
+	@Test
+	public void decodesXz() throws IOException {
+		byte[] data = data(300 * 1024);
+
+		assertArrayEquals(data, decode(compress(data, output -> new XZOutputStream(output, new LZMA2Options())), "xz"));
+	}
+
+	@Test
+	public void decodesXzBlocksInParallel() throws IOException {
+		byte[] data = data(2 * 1024 * 1024);
+
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+
+		try (XZOutputStream output = new XZOutputStream(archive, new LZMA2Options())) {
+			for (int offset = 0; offset < data.length; offset += 256 * 1024) {
+				output.write(data, offset, Math.min(256 * 1024, data.length - offset));
+				output.endBlock();
+			}
+		}
+
+		File file = TestFiles.write(folder.newFile("map.bsp.xz"), archive.toByteArray());
+
+		Codec codec = Codecs.detect(file);
+
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+
+		assertTrue(codec.decodeParallel(file, decoded, bytes -> { }, POOL));
+		assertArrayEquals(data, decoded.toByteArray());
+	}
+
+	@Test
+	public void decodesZstd() throws IOException {
+		Codec codec = Codecs.forFileName("map.bsp.zst");
+
+		Assume.assumeTrue("zstd-jni has no native library here", codec != null);
+
+		byte[] data = data(300 * 1024);
+
+		assertArrayEquals(data, decode(compress(data, ZstdOutputStream::new), "zstd"));
+	}
+
+	@Test
+	public void findsCodecByFileName() {
+		assertEquals("bzip2", Codecs.forFileName("map.bsp.bz2").getName());
+		assertEquals("gzip", Codecs.forFileName("map.bsp.gz").getName());
+		assertEquals("xz", Codecs.forFileName("map.bsp.xz").getName());
+		assertNull(Codecs.forFileName("map.bsp"));
+	}
+
+	@Test
+	public void closesStreamOfUnknownFormat() {
+		byte[] page = "<html><body>404 Not Found</body></html>".getBytes();
+
+		assertNull(Codecs.detect(page, page.length));
+
+		assertDecodeFails(page, "Unknown compression format");
+		assertDecodeFails(new byte[0], "Unknown compression format");
+	}
+
+	@Test
+	public void closesStreamOfBrokenHeader() throws IOException {
+		byte[] archive = compress(data(64 * 1024), BZip2CompressorOutputStream::new);
+
+		// The magic number is there, the block after it isn't.
+		assertDecodeFails(Arrays.copyOf(archive, 6), null);
+	}
+
+	/**
+	 * Check that decoding fails and closes the stream it was given.
+	 *
+	 * @param archive The archive.
+	 * @param message The expected error message, or null for any.
+	 */
+	private static void assertDecodeFails(byte[] archive, String message) {
+		final boolean[] closed = new boolean[1];
+
+		InputStream input = new FilterInputStream(new ByteArrayInputStream(archive)) {
+			@Override
+			public void close() throws IOException {
+				closed[0] = true;
+				super.close();
+			}
+		};
+
+		try {
+			Codecs.decode(input).close();
+			fail("Decoded a broken archive");
+		} catch (IOException e) {
+			if (message != null) {
+				assertEquals(message, e.getMessage());
+			}
+		}
+
+		assertTrue("The stream wasn't closed", closed[0]);
+	}
+
+	/**
+	 * Wraps a stream in a compressing stream.
+	 */
+	private interface Compressor {
+
+		/**
+		 * Wrap a stream.
+		 *
+		 * @param output The archive stream.
+		 * @return The compressing stream.
+		 * @throws IOException If the stream can't be created.
+		 */
+		OutputStream wrap(OutputStream output) throws IOException;
+	}
+}
@@ -0,0 +1,185 @@
+package org.nikkii.mapdownloader.codec;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the parallel bzip2 decoder writes exactly what the sequential one does.
+ *
+ * @author Nikki
+ */
+public class ParallelBZip2DecoderTest {
+
+	/**
+	 * The pool to decode on.
+	 */
+	private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+	/**
+	 * The folder compressed files are written to.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@AfterClass
+	public static void shutDown() {
+		POOL.shutdownNow();
+	}
+
+	/**
+	 * Build data which compresses somewhat, like a map does.
+	 *
+	 * @param length The amount of bytes.
+	 * @param seed The random seed.
+	 * @return The data.
+	 */
+	private static byte[] data(int length, long seed) {
+		Random random = new Random(seed);
+
+		byte[] data = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (random.nextInt(8) == 0 ? random.nextInt() : i >> 4);
+		}
+
+		return data;
+	}
+
+	/**
+	 * Compress data as a single stream with the smallest block size, so it spans several blocks.
+	 *
+	 * @param data The data.
+	 * @return The stream.
+	 * @throws IOException Never.
+	 */
+	private static byte[] compress(byte[] data) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+		try (OutputStream output = new BZip2CompressorOutputStream(compressed, 1)) {
+			output.write(data);
+		}
+
+		return compressed.toByteArray();
+	}
+
+	/**
+	 * Decode a file in parallel.
+	 *
+	 * @param compressed The compressed file contents.
+	 * @return The decoded data.
+	 * @throws IOException If the file can't be decoded in parallel.
+	 */
+	private byte[] decodeParallel(byte[] compressed) throws IOException {
+		File file = folder.newFile();
+
+		Files.write(file.toPath(), compressed);
+
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+
+		new ParallelBZip2Decoder(POOL).decode(file, decoded, written -> { });
+
+		return decoded.toByteArray();
+	}
+
+	/**
+	 * Decode data sequentially.
+	 *
+	 * @param compressed The compressed data.
+	 * @return The decoded data.
+	 * @throws IOException If the data can't be decoded.
+	 */
+	private static byte[] decodeSequential(byte[] compressed) throws IOException {
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+
+		try (InputStream input = new Bzip2Codec().decode(new ByteArrayInputStream(compressed))) {
+			byte[] buffer = new byte[65536];
+
+			int read;
+
+			while ((read = input.read(buffer)) != -1) {
+				decoded.write(buffer, 0, read);
+			}
+		}
+
+		return decoded.toByteArray();
+	}
+
+	@Test
+	public void matchesSequentialDecoder() throws IOException {
+		byte[] data = data(700 * 1024, 1);
+
+		byte[] compressed = compress(data);
+
+		assertArrayEquals(data, decodeSequential(compressed));
+		assertArrayEquals(data, decodeParallel(compressed));
+	}
+
+	@Test
+	public void decodesAcrossScanChunks() throws IOException {
+		// Random bytes don't compress, so the file spans several of the chunks read and scanned on their own.
+		byte[] data = new byte[10 * 1024 * 1024];
+
+		new Random(2).nextBytes(data);
+
+		byte[] compressed = compress(data);
+
+		assertTrue(compressed.length > 8 * 1024 * 1024);
+		assertArrayEquals(data, decodeParallel(compressed));
+	}
+
+	@Test
+	public void decodesConcatenatedStreams() throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+		for (int i = 0; i < 3; i++) {
+			byte[] part = data(250 * 1024 + i * 1000, i);
+
+			data.write(part);
+			compressed.write(compress(part));
+		}
+
+		assertArrayEquals(data.toByteArray(), decodeSequential(compressed.toByteArray()));
+		assertArrayEquals(data.toByteArray(), decodeParallel(compressed.toByteArray()));
+	}
+
+	@Test
+	public void decodesEmptyStream() throws IOException {
+		assertEquals(0, decodeParallel(compress(new byte[0])).length);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsDataAfterLastStream() throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+		compressed.write(compress(data(100 * 1024, 1)));
+		compressed.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+
+		decodeParallel(compressed.toByteArray());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsTruncatedStream() throws IOException {
+		byte[] compressed = compress(data(300 * 1024, 1));
+
+		decodeParallel(Arrays.copyOf(compressed, compressed.length - 100));
+	}
+}
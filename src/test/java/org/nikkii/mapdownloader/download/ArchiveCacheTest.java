@@ -0,0 +1,86 @@
+package org.nikkii.mapdownloader.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests storing and finding archives in the cache.
+ *
+ * @author Nikki
+ */
+public class ArchiveCacheTest {
+
+	/**
+	 * The folder holding the cache and the downloads.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void findsStoredArchive() throws IOException {
+		ArchiveCache cache = new ArchiveCache(folder.newFolder("cache"), Long.MAX_VALUE);
+
+		byte[] data = TestFiles.random(64 * 1024, 1);
+
+		cache.store(TestFiles.write(folder.newFile("map.bsp.bz2"), data), "http://example.com/map.bsp.bz2", "\"1\"", null);
+
+		File archive = cache.lookup("http://example.com/map.bsp.bz2", data.length, "\"1\"", null);
+
+		assertNotNull(archive);
+		assertArrayEquals(data, Files.readAllBytes(archive.toPath()));
+
+		assertNull(cache.lookup("http://example.com/map.bsp.bz2", data.length, "\"2\"", null));
+		assertNull(cache.lookup("http://example.com/other.bsp.bz2", data.length, "\"1\"", null));
+	}
+
+	@Test
+	public void leavesStoredFileAlone() throws IOException {
+		ArchiveCache cache = new ArchiveCache(folder.newFolder("cache"), Long.MAX_VALUE);
+
+		byte[] data = TestFiles.random(64 * 1024, 2);
+
+		File installed = TestFiles.write(folder.newFile("map.bsp"), data);
+
+		installed.setLastModified(1000000000000L);
+
+		cache.store(installed, "http://example.com/map.bsp", null, null);
+
+		assertNotNull(cache.lookup("http://example.com/map.bsp", data.length, null, null));
+
+		// Marking the archive as used must not touch the installed map.
+		assertEquals(1000000000000L, installed.lastModified());
+
+		// Nor may changing the installed map damage the archive.
+		TestFiles.write(installed, TestFiles.random(data.length, 3));
+
+		File archive = cache.lookup("http://example.com/map.bsp", data.length, null, null);
+
+		assertNotNull(archive);
+		assertArrayEquals(data, Files.readAllBytes(archive.toPath()));
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() throws IOException {
+		ArchiveCache cache = new ArchiveCache(folder.newFolder("cache"), 100 * 1024);
+
+		cache.store(TestFiles.write(folder.newFile("old"), TestFiles.random(60 * 1024, 4)), "http://example.com/old", null, null);
+
+		// File times may only count whole seconds.
+		new File(folder.getRoot(), "cache/objects").listFiles()[0].setLastModified(System.currentTimeMillis() - 60000);
+
+		cache.store(TestFiles.write(folder.newFile("new"), TestFiles.random(60 * 1024, 5)), "http://example.com/new", null, null);
+
+		assertNull(cache.lookup("http://example.com/old", -1, null, null));
+		assertNotNull(cache.lookup("http://example.com/new", -1, null, null));
+	}
+}
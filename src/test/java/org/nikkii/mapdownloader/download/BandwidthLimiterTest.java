@@ -0,0 +1,143 @@
+package org.nikkii.mapdownloader.download;
+
+import org.junit.After;
+import org.junit.Test;
+import org.nikkii.mapdownloader.maps.MapSource;
+
+import java.io.InterruptedIOException;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the bandwidth limiter's rates, schedule and parsing.
+ *
+ * @author Nikki
+ */
+public class BandwidthLimiterTest {
+
+	@After
+	public void tearDown() {
+		BandwidthLimiter.getDefault().setRate(0);
+		BandwidthLimiter.getDefault().clearSchedule();
+	}
+
+	/**
+	 * Get a limiter of its own, below the unlimited global one.
+	 *
+	 * @return The limiter.
+	 */
+	private static BandwidthLimiter newLimiter() {
+		return BandwidthLimiter.getDefault().getSourceLimiter(new MapSource("test", "http://localhost/", 0));
+	}
+
+	/**
+	 * Read through a limiter in chunks and time it.
+	 *
+	 * @param limiter The limiter.
+	 * @param bytes The amount of bytes to read.
+	 * @return The time taken in milliseconds.
+	 * @throws InterruptedIOException If interrupted.
+	 */
+	private static long read(BandwidthLimiter limiter, long bytes) throws InterruptedIOException {
+		long start = System.nanoTime();
+
+		for (long read = 0; read < bytes; read += 64 * 1024) {
+			limiter.consume(64 * 1024);
+		}
+
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	@Test
+	public void parsesRates() {
+		assertEquals(100, BandwidthLimiter.parseRate("100"));
+		assertEquals(512 * 1024, BandwidthLimiter.parseRate("512k"));
+		assertEquals(5 * 1024 * 1024, BandwidthLimiter.parseRate(" 5M "));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsBadRates() {
+		BandwidthLimiter.parseRate("fast");
+	}
+
+	@Test
+	public void unlimitedDoesNotWait() throws InterruptedIOException {
+		assertTrue(read(newLimiter(), 64 * 1024 * 1024) < 500);
+	}
+
+	@Test
+	public void limitsRate() throws InterruptedIOException {
+		BandwidthLimiter limiter = newLimiter();
+
+		limiter.setRate(4 * 1024 * 1024);
+
+		// A quarter of a second's worth may go at once, the rest is paced.
+		long elapsed = read(limiter, 4 * 1024 * 1024);
+
+		assertTrue("took " + elapsed + "ms", elapsed >= 600 && elapsed < 3000);
+	}
+
+	@Test
+	public void sourceLimitsStackWithGlobalLimit() throws InterruptedIOException {
+		BandwidthLimiter.getDefault().setRate(2 * 1024 * 1024);
+
+		BandwidthLimiter limiter = newLimiter();
+
+		limiter.setRate(64 * 1024 * 1024);
+
+		// The slower global limit wins.
+		long elapsed = read(limiter, 2 * 1024 * 1024);
+
+		assertTrue("took " + elapsed + "ms", elapsed >= 600 && elapsed < 3000);
+	}
+
+	@Test
+	public void shrinksChunksToRate() {
+		BandwidthLimiter limiter = newLimiter();
+
+		assertEquals(65536, limiter.getChunkSize(65536));
+
+		limiter.setRate(100 * 1024);
+
+		assertEquals(10 * 1024, limiter.getChunkSize(65536));
+	}
+
+	@Test
+	public void scheduledRateTakesOver() {
+		BandwidthLimiter limiter = newLimiter();
+
+		limiter.setRate(1000);
+
+		LocalTime now = LocalTime.now();
+
+		// A window around now, which may run past midnight.
+		limiter.setSchedule(now.minusHours(1).withNano(0) + "-" + now.plusHours(1).withNano(0) + "=2k");
+
+		assertEquals(2048, limiter.getCurrentRate());
+
+		limiter.clearSchedule();
+
+		assertEquals(1000, limiter.getCurrentRate());
+	}
+
+	@Test
+	public void keepsScheduleOnBadInput() {
+		BandwidthLimiter limiter = newLimiter();
+
+		limiter.setSchedule("18:00-23:30=512k, 23:30-06:00=0");
+
+		assertEquals("18:00-23:30=524288,23:30-06:00=0", limiter.getSchedule());
+
+		try {
+			limiter.setSchedule("18:00-23:30=512k,25:00-06:00=0");
+
+			fail("Accepted a bad time");
+		} catch (IllegalArgumentException e) {
+			assertEquals("18:00-23:30=524288,23:30-06:00=0", limiter.getSchedule());
+		}
+	}
+}
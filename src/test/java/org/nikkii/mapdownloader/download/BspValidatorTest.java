@@ -0,0 +1,146 @@
+package org.nikkii.mapdownloader.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests checking map headers.
+ *
+ * @author Nikki
+ */
+public class BspValidatorTest {
+
+	/**
+	 * The length of the maps used by the tests.
+	 */
+	private static final int LENGTH = 64 * 1024;
+
+	/**
+	 * The folder holding the maps.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Write a map and check it.
+	 *
+	 * @param data The map.
+	 * @return What's wrong with it, or null.
+	 * @throws IOException If it can't be written or read.
+	 */
+	private String check(byte[] data) throws IOException {
+		return BspValidator.check(TestFiles.write(folder.newFile(), data));
+	}
+
+	/**
+	 * Change a lump's directory entry.
+	 *
+	 * @param data The map.
+	 * @param lump The lump.
+	 * @param offset The new offset.
+	 * @param length The new length.
+	 * @return The map.
+	 */
+	private static byte[] setLump(byte[] data, int lump, int offset, int length) {
+		ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).putInt(8 + lump * 16, offset).putInt(8 + lump * 16 + 4, length);
+
+		return data;
+	}
+
+	@Test
+	public void acceptsSoundMap() throws IOException {
+		assertNull(check(TestFiles.bsp(LENGTH, 1)));
+
+		// Empty lumps may point anywhere.
+		assertNull(check(setLump(TestFiles.bsp(LENGTH, 2), 5, 0, 0)));
+	}
+
+	@Test
+	public void rejectsTruncatedMap() throws IOException {
+		byte[] data = TestFiles.bsp(LENGTH, 3);
+
+		String problem = check(Arrays.copyOf(data, LENGTH - 100));
+
+		assertTrue(problem, problem.startsWith("truncated to " + (LENGTH - 100) + " bytes, lump 63"));
+	}
+
+	@Test
+	public void rejectsMapShorterThanHeader() throws IOException {
+		String problem = check(Arrays.copyOf(TestFiles.bsp(LENGTH, 4), 100));
+
+		assertEquals("truncated to 100 bytes, shorter than the header", problem);
+	}
+
+	@Test
+	public void rejectsBadLumpTable() throws IOException {
+		assertEquals("lump 3 has a negative offset or length", check(setLump(TestFiles.bsp(LENGTH, 5), 3, -1, 10)));
+		assertEquals("lump 4 has a negative offset or length", check(setLump(TestFiles.bsp(LENGTH, 6), 4, 2000, -10)));
+		assertEquals("lump 7 overlaps the header", check(setLump(TestFiles.bsp(LENGTH, 7), 7, 16, 100)));
+
+		String problem = check(setLump(TestFiles.bsp(LENGTH, 8), 9, LENGTH - 10, 100));
+
+		assertTrue(problem, problem.startsWith("truncated to " + LENGTH + " bytes, lump 9"));
+	}
+
+	@Test
+	public void rejectsOtherFiles() throws IOException {
+		byte[] data = TestFiles.bsp(LENGTH, 9);
+		data[0] = 'X';
+
+		assertEquals("not a BSP file", check(data));
+
+		data = TestFiles.bsp(LENGTH, 10);
+		ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).putInt(4, BspValidator.MAX_VERSION + 1);
+
+		assertEquals("unsupported BSP version " + (BspValidator.MAX_VERSION + 1), check(data));
+	}
+
+	@Test
+	public void validateThrowsForDamagedMap() throws IOException {
+		File file = TestFiles.write(folder.newFile("damaged.bsp"), Arrays.copyOf(TestFiles.bsp(LENGTH, 11), LENGTH / 2));
+
+		try {
+			BspValidator.validate(file);
+			fail("Validated a truncated map");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("damaged.bsp is damaged: truncated"));
+		}
+	}
+
+	@Test
+	public void scansFolder() throws IOException, InterruptedException {
+		File maps = folder.newFolder("maps");
+
+		for (int i = 0; i < 40; i++) {
+			TestFiles.write(new File(maps, "map" + i + ".bsp"), TestFiles.bsp(LENGTH, i));
+		}
+
+		TestFiles.write(new File(maps, "cut.bsp"), Arrays.copyOf(TestFiles.bsp(LENGTH, 50), LENGTH / 2));
+		TestFiles.write(new File(maps, "bogus.bsp"), TestFiles.random(LENGTH, 51));
+
+		// Anything but maps is left alone.
+		TestFiles.write(new File(maps, "readme.txt"), new byte[10]);
+
+		BspValidator.Result result = new BspValidator(maps).scan();
+
+		assertEquals(40, result.getValid());
+		assertEquals(0, result.getFailed());
+		assertEquals(2, result.getDamaged().size());
+		assertEquals("not a BSP file", result.getDamaged().get("bogus"));
+		assertTrue(result.getDamaged().get("cut").startsWith("truncated"));
+		assertFalse(result.getDamaged().containsKey("readme"));
+	}
+}
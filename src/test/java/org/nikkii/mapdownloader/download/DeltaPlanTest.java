@@ -0,0 +1,231 @@
+package org.nikkii.mapdownloader.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests finding the blocks of a new map version in the installed one, and rebuilding the new version from them.
+ *
+ * @author Nikki
+ */
+public class DeltaPlanTest {
+
+	/**
+	 * The block size used by every test.
+	 */
+	private static final int BLOCK_SIZE = 4096;
+
+	/**
+	 * The folder holding the versions.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Plan an update from one version to another.
+	 *
+	 * @param installed The installed version.
+	 * @param updated The new version.
+	 * @return The plan.
+	 * @throws IOException If the versions can't be written or read.
+	 */
+	private DeltaPlan plan(byte[] installed, byte[] updated) throws IOException {
+		MapSignature signature = MapSignature.create(TestFiles.write(folder.newFile(), updated), BLOCK_SIZE);
+
+		return DeltaPlan.create(signature, TestFiles.write(folder.newFile(), installed));
+	}
+
+	/**
+	 * Rebuild the new version from the plan, copying the reused ranges and "downloading" the rest, and check the ranges
+	 * cover the file in order.
+	 *
+	 * @param plan The plan.
+	 * @param ranges The ranges from the plan.
+	 * @param updated The new version.
+	 * @return The amount of bytes downloaded.
+	 * @throws IOException If the file can't be written.
+	 */
+	private long rebuild(DeltaPlan plan, List<PartialDownload.Range> ranges, byte[] updated) throws IOException {
+		File output = folder.newFile();
+
+		long downloaded = 0, next = 0;
+
+		try (FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE)) {
+			for (PartialDownload.Range range : ranges) {
+				assertEquals(next, range.getStart());
+
+				next = range.getEnd() + 1;
+
+				if (!range.isComplete()) {
+					int length = (int) (range.getEnd() - range.getStart() + 1);
+
+					channel.write(ByteBuffer.wrap(updated, (int) range.getStart(), length), range.getStart());
+
+					downloaded += length;
+				}
+			}
+
+			plan.copyReused(ranges, channel);
+		}
+
+		assertEquals(updated.length, next);
+		assertArrayEquals(updated, Files.readAllBytes(output.toPath()));
+
+		return downloaded;
+	}
+
+	/**
+	 * Join byte arrays.
+	 *
+	 * @param parts The arrays.
+	 * @return The joined array.
+	 */
+	private static byte[] join(byte[]... parts) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		for (byte[] part : parts) {
+			output.write(part, 0, part.length);
+		}
+
+		return output.toByteArray();
+	}
+
+	@Test
+	public void reusesUnchangedFile() throws IOException {
+		byte[] data = TestFiles.random(64 * BLOCK_SIZE, 1);
+
+		DeltaPlan plan = plan(data, data);
+
+		assertEquals(data.length, plan.getReusedBytes());
+
+		List<PartialDownload.Range> ranges = plan.getRanges(4);
+
+		assertEquals(1, ranges.size());
+		assertEquals(0, rebuild(plan, ranges, data));
+	}
+
+	@Test
+	public void findsMovedBlocks() throws IOException {
+		byte[] first = TestFiles.random(40 * BLOCK_SIZE, 2), second = TestFiles.random(24 * BLOCK_SIZE, 3);
+
+		byte[] installed = join(first, second), updated = join(second, first);
+
+		DeltaPlan plan = plan(installed, updated);
+
+		assertEquals(updated.length, plan.getReusedBytes());
+		assertEquals(0, rebuild(plan, plan.getRanges(4), updated));
+	}
+
+	@Test
+	public void findsBlocksAfterInsertion() throws IOException {
+		byte[] head = TestFiles.random(30 * BLOCK_SIZE + 123, 4), tail = TestFiles.random(34 * BLOCK_SIZE - 123, 5);
+
+		// An insertion which isn't a whole block shifts everything after it off the block grid.
+		byte[] installed = join(head, tail), updated = join(head, TestFiles.random(1000, 6), tail);
+
+		DeltaPlan plan = plan(installed, updated);
+
+		List<PartialDownload.Range> ranges = plan.getRanges(4);
+
+		long downloaded = rebuild(plan, ranges, updated);
+
+		// The blocks around the insertion and the short last block are all that's left to download.
+		assertTrue("downloaded " + downloaded, downloaded <= 3 * BLOCK_SIZE);
+		assertEquals(updated.length - downloaded, plan.getReusedBytes());
+	}
+
+	@Test
+	public void reusesShortenedFile() throws IOException {
+		byte[] installed = TestFiles.random(64 * BLOCK_SIZE, 7);
+		byte[] updated = Arrays.copyOf(installed, 40 * BLOCK_SIZE + 500);
+
+		DeltaPlan plan = plan(installed, updated);
+
+		assertEquals(40 * BLOCK_SIZE, plan.getReusedBytes());
+
+		List<PartialDownload.Range> ranges = plan.getRanges(4);
+
+		// The short last block is checksummed with padding, so it's downloaded.
+		assertEquals(500, rebuild(plan, ranges, updated));
+		assertEquals(2, ranges.size());
+	}
+
+	@Test
+	public void downloadsEverythingFromUnrelatedFile() throws IOException {
+		byte[] updated = TestFiles.random(16 * BLOCK_SIZE, 8);
+
+		DeltaPlan plan = plan(TestFiles.random(16 * BLOCK_SIZE, 9), updated);
+
+		assertEquals(0, plan.getReusedBytes());
+		assertEquals(updated.length, rebuild(plan, plan.getRanges(4), updated));
+	}
+
+	@Test
+	public void limitsDownloadedRanges() throws IOException {
+		byte[] installed = TestFiles.random(256 * BLOCK_SIZE, 10);
+		byte[] updated = installed.clone();
+
+		// A changed byte every 32 blocks, far enough apart that every gap is worth reusing.
+		for (int i = 0; i < 8; i++) {
+			updated[i * 32 * BLOCK_SIZE + 7] ^= 1;
+		}
+
+		DeltaPlan plan = plan(installed, updated);
+
+		List<PartialDownload.Range> ranges = plan.getRanges(3);
+
+		int downloads = 0;
+
+		for (PartialDownload.Range range : ranges) {
+			if (!range.isComplete()) {
+				downloads++;
+			}
+		}
+
+		assertTrue("downloads " + downloads, downloads <= 3);
+
+		rebuild(plan, ranges, updated);
+
+		// Each merge gives up a gap, but every changed block is still downloaded.
+		assertEquals(8 * BLOCK_SIZE, rebuild(plan, plan.getRanges(8), updated));
+	}
+
+	@Test
+	public void readsWrittenSignature() throws IOException {
+		byte[] data = TestFiles.random(10 * BLOCK_SIZE + 17, 11);
+
+		MapSignature signature = MapSignature.create(TestFiles.write(folder.newFile(), data), BLOCK_SIZE);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		signature.write(output);
+
+		MapSignature read = MapSignature.read(new ByteArrayInputStream(output.toByteArray()));
+
+		assertEquals(signature.getLength(), read.getLength());
+		assertEquals(signature.getDigest(), read.getDigest());
+		assertEquals(11, read.getBlockCount());
+		assertEquals(17, read.getBlockLength(10));
+
+		for (int i = 0; i < read.getBlockCount(); i++) {
+			assertEquals(signature.getWeak(i), read.getWeak(i));
+			assertEquals(signature.getStrong(i), read.getStrong(i));
+		}
+	}
+}
@@ -0,0 +1,458 @@
+package org.nikkii.mapdownloader.download;
+
+import org.junit.After;
+import org.junit.Test;
+import org.nikkii.mapdownloader.maps.Map;
+import org.nikkii.mapdownloader.maps.MapSource;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests how the scheduler runs jobs, with downloads which wait to be released instead of downloading.
+ *
+ * @author Nikki
+ */
+public class DownloadSchedulerTest {
+
+	/**
+	 * The first source.
+	 */
+	private static final MapSource FIRST = new MapSource("first", "http://first.example.com/", 0);
+
+	/**
+	 * The second source.
+	 */
+	private static final MapSource SECOND = new MapSource("second", "http://second.example.com/", 1);
+
+	/**
+	 * The executor the jobs run on.
+	 */
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	/**
+	 * The scheduler, allowing four downloads at once and one per source.
+	 */
+	private final DownloadScheduler scheduler = new DownloadScheduler(executor, 4, 1);
+
+	/**
+	 * A scheduler allowing one download at once and two per source, to see which job goes next.
+	 */
+	private final DownloadScheduler single = new DownloadScheduler(executor, 1, 2);
+
+	@After
+	public void tearDown() {
+		scheduler.shutdown();
+		single.shutdown();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void takesSourcesInTurn() throws InterruptedException {
+		BlockingDownloader running = new BlockingDownloader(FIRST, "running", null);
+
+		single.submit(running);
+
+		assertTrue(running.awaitStarted());
+
+		BlockingDownloader firstA = new BlockingDownloader(FIRST, "firsta", null);
+		BlockingDownloader firstB = new BlockingDownloader(FIRST, "firstb", null);
+		BlockingDownloader second = new BlockingDownloader(SECOND, "second", null);
+
+		single.submit(firstA);
+		DownloadJob last = single.submit(firstB);
+		single.submit(second);
+
+		assertEquals(3, single.getQueued());
+
+		running.release();
+
+		assertTrue(firstA.awaitStarted());
+
+		firstA.release();
+
+		// The second source's job goes before the first source's next one, though it was queued after it.
+		assertTrue(second.awaitStarted());
+		assertFalse(firstB.awaitStarted(200));
+
+		second.release();
+
+		assertTrue(firstB.awaitStarted());
+
+		firstB.release();
+
+		assertTrue(last.await(5, TimeUnit.SECONDS));
+		assertFalse(single.isBusy());
+	}
+
+	@Test
+	public void capsDownloadsPerSource() throws InterruptedException {
+		BlockingDownloader running = new BlockingDownloader(FIRST, "running", null);
+		BlockingDownloader queued = new BlockingDownloader(FIRST, "queued", null);
+		BlockingDownloader other = new BlockingDownloader(SECOND, "other", null);
+
+		scheduler.submit(running);
+		DownloadJob waiting = scheduler.submit(queued);
+		scheduler.submit(other);
+
+		// Workers are free, but the first source's one slot is taken.
+		assertTrue(running.awaitStarted());
+		assertTrue(other.awaitStarted());
+		assertFalse(queued.awaitStarted(200));
+		assertEquals(2, scheduler.getActive());
+		assertEquals(DownloadJob.State.QUEUED, waiting.getState());
+
+		scheduler.setSourceLimit(FIRST, 2);
+
+		assertTrue(queued.awaitStarted());
+
+		running.release();
+		queued.release();
+		other.release();
+
+		assertTrue(waiting.await(5, TimeUnit.SECONDS));
+		assertEquals(DownloadJob.State.FINISHED, waiting.getState());
+	}
+
+	@Test
+	public void capsDownloadsOverall() throws InterruptedException {
+		BlockingDownloader[] downloaders = new BlockingDownloader[5];
+
+		DownloadJob[] jobs = new DownloadJob[downloaders.length];
+
+		for (int i = 0; i < downloaders.length; i++) {
+			MapSource source = new MapSource("source" + i, "http://source" + i + ".example.com/", i);
+
+			downloaders[i] = new BlockingDownloader(source, "map" + i, null);
+			jobs[i] = scheduler.submit(downloaders[i]);
+		}
+
+		for (int i = 0; i < 4; i++) {
+			assertTrue(downloaders[i].awaitStarted());
+		}
+
+		// Every source has a slot free, but only four workers.
+		assertFalse(downloaders[4].awaitStarted(200));
+		assertEquals(4, scheduler.getActive());
+		assertEquals(1, scheduler.getQueued());
+
+		downloaders[0].release();
+
+		assertTrue(downloaders[4].awaitStarted());
+
+		for (int i = 1; i < downloaders.length; i++) {
+			downloaders[i].release();
+		}
+
+		for (DownloadJob job : jobs) {
+			assertTrue(job.await(5, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void cancelsQueuedJob() throws InterruptedException {
+		BlockingDownloader running = new BlockingDownloader(FIRST, "running", null);
+		BlockingDownloader queued = new BlockingDownloader(FIRST, "queued", null);
+
+		DownloadJob first = scheduler.submit(running);
+		DownloadJob job = scheduler.submit(queued);
+
+		assertTrue(running.awaitStarted());
+
+		job.cancel();
+
+		// Dropped from the queue at once, without running.
+		assertTrue(job.isDone());
+		assertEquals(DownloadJob.State.CANCELLED, job.getState());
+		assertEquals(0, scheduler.getQueued());
+
+		running.release();
+
+		assertTrue(first.await(5, TimeUnit.SECONDS));
+		assertFalse(queued.awaitStarted(200));
+		assertFalse(queued.isCancelled());
+	}
+
+	@Test
+	public void cancelsRunningJob() throws InterruptedException {
+		BlockingDownloader running = new BlockingDownloader(FIRST, "running", null);
+
+		DownloadJob job = scheduler.submit(running);
+
+		assertTrue(running.awaitStarted());
+
+		job.cancel();
+
+		assertTrue(job.await(5, TimeUnit.SECONDS));
+		assertEquals(DownloadJob.State.CANCELLED, job.getState());
+		assertTrue(running.isCancelled());
+
+		// The source's slot came free.
+		BlockingDownloader next = new BlockingDownloader(FIRST, "next", null);
+
+		scheduler.submit(next);
+
+		assertTrue(next.awaitStarted());
+
+		next.release();
+	}
+
+	@Test
+	public void movesSlotWithDownload() throws InterruptedException {
+		BlockingDownloader moving = new BlockingDownloader(FIRST, "moving", SECOND);
+
+		scheduler.submit(moving);
+
+		assertTrue(moving.awaitStarted());
+		assertTrue(moving.moved);
+
+		BlockingDownloader onFirst = new BlockingDownloader(FIRST, "onfirst", null);
+		BlockingDownloader onSecond = new BlockingDownloader(SECOND, "onsecond", null);
+
+		scheduler.submit(onFirst);
+		DownloadJob waiting = scheduler.submit(onSecond);
+
+		// The first source's slot went back, the second source's is taken by the download which moved there.
+		assertTrue(onFirst.awaitStarted());
+		assertEquals(1, scheduler.getQueued());
+		assertEquals(DownloadJob.State.QUEUED, waiting.getState());
+
+		moving.release();
+
+		assertTrue(onSecond.awaitStarted());
+
+		onFirst.release();
+		onSecond.release();
+
+		assertTrue(waiting.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void keepsSlotWhenSourceIsFull() throws InterruptedException {
+		BlockingDownloader onSecond = new BlockingDownloader(SECOND, "onsecond", null);
+
+		scheduler.submit(onSecond);
+
+		assertTrue(onSecond.awaitStarted());
+
+		BlockingDownloader moving = new BlockingDownloader(FIRST, "moving", SECOND);
+
+		scheduler.submit(moving);
+
+		assertTrue(moving.awaitStarted());
+		assertFalse(moving.moved);
+
+		// The download stayed, and still holds the first source's slot.
+		BlockingDownloader onFirst = new BlockingDownloader(FIRST, "onfirst", null);
+
+		DownloadJob waiting = scheduler.submit(onFirst);
+
+		assertEquals(DownloadJob.State.QUEUED, waiting.getState());
+
+		moving.release();
+
+		assertTrue(onFirst.awaitStarted());
+
+		onFirst.release();
+		onSecond.release();
+
+		assertTrue(waiting.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void failoverWaitsForSlot() throws InterruptedException {
+		BlockingDownloader onSecond = new BlockingDownloader(SECOND, "onsecond", null);
+
+		scheduler.submit(onSecond);
+
+		assertTrue(onSecond.awaitStarted());
+
+		BlockingDownloader failing = new BlockingDownloader(FIRST, "failing", SECOND, true);
+
+		scheduler.submit(failing);
+
+		// The failing download gave its slot back while it waits for the second source.
+		BlockingDownloader onFirst = new BlockingDownloader(FIRST, "onfirst", null);
+
+		scheduler.submit(onFirst);
+
+		assertTrue(onFirst.awaitStarted());
+		assertFalse(failing.awaitStarted(200));
+
+		BlockingDownloader queued = new BlockingDownloader(SECOND, "queued", null);
+
+		DownloadJob waiting = scheduler.submit(queued);
+
+		onSecond.release();
+
+		// The waiting download goes before the job queued after it.
+		assertTrue(failing.awaitStarted());
+		assertTrue(failing.moved);
+		assertEquals(DownloadJob.State.QUEUED, waiting.getState());
+
+		failing.release();
+
+		assertTrue(queued.awaitStarted());
+
+		onFirst.release();
+		queued.release();
+
+		assertTrue(waiting.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void cancelsDownloadWaitingForSlot() throws InterruptedException {
+		BlockingDownloader onSecond = new BlockingDownloader(SECOND, "onsecond", null);
+
+		scheduler.submit(onSecond);
+
+		assertTrue(onSecond.awaitStarted());
+
+		BlockingDownloader failing = new BlockingDownloader(FIRST, "failing", SECOND, true);
+
+		DownloadJob job = scheduler.submit(failing);
+
+		assertFalse(failing.awaitStarted(200));
+
+		job.cancel();
+
+		assertTrue(job.await(5, TimeUnit.SECONDS));
+		assertEquals(DownloadJob.State.CANCELLED, job.getState());
+		assertFalse(failing.moved);
+
+		onSecond.release();
+
+		// Neither source lost a slot to the cancelled download.
+		BlockingDownloader onFirst = new BlockingDownloader(FIRST, "onfirst", null);
+		BlockingDownloader next = new BlockingDownloader(SECOND, "next", null);
+
+		scheduler.submit(onFirst);
+		scheduler.submit(next);
+
+		assertTrue(onFirst.awaitStarted());
+		assertTrue(next.awaitStarted());
+
+		onFirst.release();
+		next.release();
+	}
+
+	/**
+	 * A download which waits to be released or cancelled instead of downloading, after moving to another source if
+	 * asked to.
+	 */
+	static class BlockingDownloader extends MapDownloader {
+
+		/**
+		 * Released once the download runs.
+		 */
+		private final CountDownLatch started = new CountDownLatch(1);
+
+		/**
+		 * Released to let the download finish.
+		 */
+		private final CountDownLatch finish = new CountDownLatch(1);
+
+		/**
+		 * The source to move to once running, or null to stay.
+		 */
+		private final MapSource moveTo;
+
+		/**
+		 * Whether to wait for a slot on the other source, like failing over does, instead of giving up on moving.
+		 */
+		private final boolean waitToMove;
+
+		/**
+		 * The slot handed over by the scheduler.
+		 */
+		private SourceSlot slot;
+
+		/**
+		 * Whether the download moved to the other source.
+		 */
+		volatile boolean moved = false;
+
+		/**
+		 * Construct a new blocking download.
+		 *
+		 * @param source The source of the map.
+		 * @param name The map name.
+		 * @param moveTo The source to move to once running, or null to stay.
+		 */
+		BlockingDownloader(MapSource source, String name, MapSource moveTo) {
+			this(source, name, moveTo, false);
+		}
+
+		/**
+		 * Construct a new blocking download.
+		 *
+		 * @param source The source of the map.
+		 * @param name The map name.
+		 * @param moveTo The source to move to once running, or null to stay.
+		 * @param waitToMove Whether to wait for a slot on the other source.
+		 */
+		BlockingDownloader(MapSource source, String name, MapSource moveTo, boolean waitToMove) {
+			super(new Map(source, name + ".bsp", name, false), new File(name + ".bsp"));
+			this.moveTo = moveTo;
+			this.waitToMove = waitToMove;
+		}
+
+		@Override
+		void setSourceSlot(SourceSlot slot) {
+			super.setSourceSlot(slot);
+			this.slot = slot;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (moveTo != null) {
+					moved = waitToMove ? slot.moveTo(moveTo) : slot.tryMoveTo(moveTo);
+				}
+
+				started.countDown();
+
+				while (!isCancelled() && !finish.await(10, TimeUnit.MILLISECONDS)) {
+					// Waiting to be released.
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Wait for the download to run.
+		 *
+		 * @return Whether it ran within five seconds.
+		 * @throws InterruptedException If interrupted while waiting.
+		 */
+		boolean awaitStarted() throws InterruptedException {
+			return awaitStarted(5000);
+		}
+
+		/**
+		 * Wait for the download to run.
+		 *
+		 * @param timeout The time to wait in milliseconds.
+		 * @return Whether it ran in time.
+		 * @throws InterruptedException If interrupted while waiting.
+		 */
+		boolean awaitStarted(long timeout) throws InterruptedException {
+			return started.await(timeout, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Let the download finish.
+		 */
+		void release() {
+			finish.countDown();
+		}
+	}
+}
@@ -0,0 +1,575 @@
+package org.nikkii.mapdownloader.download;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nikkii.mapdownloader.maps.Map;
+import org.nikkii.mapdownloader.maps.MapIndex;
+import org.nikkii.mapdownloader.maps.MapSource;
+import org.nikkii.mapdownloader.maps.SourceStatistics;
+import org.nikkii.mapdownloader.server.FastDlServer;
+import org.nikkii.mapdownloader.util.DigestUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests downloads against a local fastdl server.
+ *
+ * @author Nikki
+ */
+public class MapDownloaderTest {
+
+	/**
+	 * The folder maps are installed in.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The folder the server serves.
+	 */
+	@Rule
+	public TemporaryFolder served = new TemporaryFolder();
+
+	/**
+	 * The server.
+	 */
+	private FastDlServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new FastDlServer(served.getRoot(), FastDlServer.Style.NGINX);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	/**
+	 * Put a file on the server.
+	 *
+	 * @param path The path, relative to the served folder.
+	 * @param data The file contents.
+	 * @return The file.
+	 * @throws IOException If the file can't be written.
+	 */
+	private File serve(String path, byte[] data) throws IOException {
+		File file = new File(served.getRoot(), path);
+
+		file.getParentFile().mkdirs();
+
+		return TestFiles.write(file, data);
+	}
+
+	/**
+	 * Create a downloader for a map on the server, which fails at once instead of retrying.
+	 *
+	 * @param name The map name.
+	 * @param file The file name on the server.
+	 * @param mirrors The amount of mirrors serving the map.
+	 * @return The downloader.
+	 */
+	private MapDownloader newDownloader(String name, String file, int mirrors) {
+		List<Map> maps = new ArrayList<>();
+
+		for (int i = 0; i < mirrors; i++) {
+			maps.add(new Map(new MapSource("test" + i, server.getUrl() + "mirror" + i + "/", i), file, name, !file.endsWith(".bsp")));
+		}
+
+		MapDownloader downloader = new MapDownloader(maps.get(0), new File(folder.getRoot(), name + ".bsp"));
+
+		downloader.setMirrors(maps);
+		downloader.setRaceMirrors(1);
+		downloader.setRetryPolicy(RetryPolicy.NONE);
+		downloader.setDeltaUpdates(false);
+
+		return downloader;
+	}
+
+	/**
+	 * Download a map from the server, failing at once instead of retrying.
+	 *
+	 * @param name The map name.
+	 * @param segments The amount of segments to split the download into.
+	 * @return The downloader, after it finished.
+	 */
+	private MapDownloader download(String name, int segments) {
+		MapDownloader downloader = newDownloader(name, name + ".bsp", 1);
+
+		downloader.setSegments(segments);
+
+		downloader.run();
+
+		return downloader;
+	}
+
+	/**
+	 * Check that a map was installed with the right contents and nothing was left behind.
+	 *
+	 * @param downloader The downloader.
+	 * @param data The expected contents.
+	 * @throws IOException If the map can't be read.
+	 */
+	private void assertInstalled(MapDownloader downloader, byte[] data) throws IOException {
+		assertNull(downloader.getError());
+
+		File installed = new File(folder.getRoot(), downloader.getMap().getName() + ".bsp");
+
+		assertArrayEquals(data, Files.readAllBytes(installed.toPath()));
+		assertEquals(1, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void downloadsInSegments() throws IOException {
+		byte[] data = TestFiles.bsp(5 * 1024 * 1024, 1);
+
+		serve("mirror0/segmented.bsp", data);
+
+		assertInstalled(download("segmented", 4), data);
+		assertEquals(4, server.getRequests("GET"));
+	}
+
+	@Test
+	public void downloadsWhenHeadIsRefused() throws IOException {
+		byte[] data = TestFiles.bsp(3 * 1024 * 1024, 2);
+
+		serve("mirror0/nohead.bsp", data);
+		server.getFaults().setRefuseHead(true);
+
+		MapDownloader downloader = download("nohead", 4);
+
+		assertInstalled(downloader, data);
+		assertEquals(data.length, downloader.getFileSize());
+		assertEquals(1, server.getRequests("GET"));
+	}
+
+	@Test
+	public void downloadsWithoutAnyLength() throws IOException {
+		byte[] data = TestFiles.bsp(300 * 1024, 3);
+
+		serve("mirror0/nolength.bsp", data);
+		server.getFaults().setRefuseHead(true).setChunked(true);
+
+		assertInstalled(download("nolength", 4), data);
+	}
+
+	@Test
+	public void timesStagedDownloadFromRequest() throws IOException {
+		serve("mirror0/staged.bsp", TestFiles.bsp(300 * 1024, 11));
+
+		assertTimeToFirstByte(newDownloader("staged", "staged.bsp", 1));
+	}
+
+	@Test
+	public void timesStreamingDownloadFromRequest() throws IOException {
+		serve("mirror0/streamed.bsp.bz2", bzip2(TestFiles.bsp(300 * 1024, 12)));
+
+		assertTimeToFirstByte(newDownloader("streamed", "streamed.bsp.bz2", 1));
+	}
+
+	/**
+	 * Download a map from a server which waits before every response, and check the wait counts towards the time to
+	 * first byte recorded for the source.
+	 *
+	 * @param downloader The downloader.
+	 */
+	private void assertTimeToFirstByte(MapDownloader downloader) {
+		final long[] timeToFirstByte = { -1 };
+
+		downloader.setSegments(1);
+		downloader.setStatistics(new SourceStatistics(new File(served.getRoot(), "sources.properties")) {
+			@Override
+			public void recordSuccess(MapSource source, long time, long throughput) {
+				timeToFirstByte[0] = time;
+			}
+		});
+
+		server.getFaults().setLatency(300);
+
+		downloader.run();
+
+		assertNull(downloader.getError());
+		assertTrue("time to first byte " + timeToFirstByte[0], timeToFirstByte[0] >= 300);
+	}
+
+	@Test
+	public void hashesSingleStream() throws IOException {
+		assertDigestRecorded("single", 1);
+	}
+
+	@Test
+	public void hashesSegments() throws IOException {
+		assertDigestRecorded("segments", 4);
+	}
+
+	@Test
+	public void hashesStreamWhenRangesAreIgnored() throws IOException {
+		server.getFaults().setIgnoreRange(true);
+
+		assertDigestRecorded("ignored", 4);
+	}
+
+	/**
+	 * Download a map and check the digest recorded in the index is the map's.
+	 *
+	 * @param name The map name.
+	 * @param segments The amount of segments to split the download into.
+	 * @throws IOException If the map can't be served or read.
+	 */
+	private void assertDigestRecorded(String name, int segments) throws IOException {
+		byte[] data = TestFiles.bsp(3 * 1024 * 1024, 17);
+
+		File archive = serve("mirror0/" + name + ".bsp", data);
+
+		MapIndex index = new MapIndex(new File(served.getRoot(), "index.properties"));
+
+		MapDownloader downloader = newDownloader(name, name + ".bsp", 1);
+
+		downloader.setSegments(segments);
+		downloader.setIndex(index);
+
+		downloader.run();
+
+		assertInstalled(downloader, data);
+		assertEquals(DigestUtil.sha256(archive), index.get(name).getSha256());
+	}
+
+	@Test
+	public void plansEvenSegments() {
+		long length = 10 * MapDownloader.MIN_SEGMENT_LENGTH + 3;
+
+		List<PartialDownload.Range> ranges = MapDownloader.planRanges(length, 4, true);
+
+		assertEquals(4, ranges.size());
+
+		long next = 0;
+
+		for (PartialDownload.Range range : ranges) {
+			assertEquals(next, range.getStart());
+			assertEquals(range.getStart(), range.getPosition());
+			assertTrue(range.getEnd() - range.getStart() + 1 >= MapDownloader.MIN_SEGMENT_LENGTH);
+
+			next = range.getEnd() + 1;
+		}
+
+		assertEquals(length, next);
+	}
+
+	@Test
+	public void plansNoSmallerThanMinimumSegment() {
+		List<PartialDownload.Range> ranges = MapDownloader.planRanges(3 * MapDownloader.MIN_SEGMENT_LENGTH, 8, true);
+
+		assertEquals(3, ranges.size());
+		assertEquals(3 * MapDownloader.MIN_SEGMENT_LENGTH - 1, ranges.get(2).getEnd());
+
+		// Too short for two segments.
+		assertEquals(1, MapDownloader.planRanges(MapDownloader.MIN_SEGMENT_LENGTH * 2 - 1, 8, true).size());
+	}
+
+	@Test
+	public void plansSingleRangeWithoutRangeSupport() {
+		List<PartialDownload.Range> ranges = MapDownloader.planRanges(10 * MapDownloader.MIN_SEGMENT_LENGTH, 4, false);
+
+		assertEquals(1, ranges.size());
+		assertEquals(0, ranges.get(0).getStart());
+		assertEquals(10 * MapDownloader.MIN_SEGMENT_LENGTH - 1, ranges.get(0).getEnd());
+
+		assertEquals(1, MapDownloader.planRanges(10 * MapDownloader.MIN_SEGMENT_LENGTH, 1, true).size());
+	}
+
+	@Test
+	public void plansOpenRangeWithoutLength() {
+		List<PartialDownload.Range> ranges = MapDownloader.planRanges(-1, 4, true);
+
+		assertEquals(1, ranges.size());
+		assertEquals(0, ranges.get(0).getStart());
+		assertEquals(-1, ranges.get(0).getEnd());
+		assertFalse(ranges.get(0).isComplete());
+	}
+
+	@Test
+	public void resumesPartialDownload() throws IOException {
+		byte[] data = TestFiles.bsp(4 * 1024 * 1024, 6);
+
+		File archive = serve("mirror0/resumed.bsp", data);
+
+		MapDownloader downloader = newDownloader("resumed", "resumed.bsp", 1);
+
+		downloader.setSegments(4);
+
+		// Leave the first half of every segment downloaded, as an earlier run cut short would.
+		PartialDownload partial = new PartialDownload(new File(folder.getRoot(), "resumed.bsp.part"));
+
+		partial.reset(downloader.getMap().getUrl(), data.length, FastDlServer.getETag(archive), null, MapDownloader.planRanges(data.length, 4, true));
+
+		try (RandomAccessFile file = new RandomAccessFile(partial.getFile(), "rw")) {
+			for (PartialDownload.Range range : partial.getRanges()) {
+				long half = (range.getEnd() - range.getStart() + 1) / 2;
+
+				file.seek(range.getStart());
+				file.write(data, (int) range.getStart(), (int) half);
+
+				range.setPosition(range.getStart() + half);
+			}
+		}
+
+		partial.save();
+
+		downloader.run();
+
+		assertInstalled(downloader, data);
+		assertEquals(data.length - partial.getCompleted(), server.getBytesSent());
+	}
+
+	@Test
+	public void resumesDroppedSegment() throws IOException {
+		byte[] data = TestFiles.bsp(4 * 1024 * 1024, 8);
+
+		serve("mirror0/dropped.bsp", data);
+		server.getFaults().setDrop(256 * 1024, 1);
+
+		MapDownloader downloader = newDownloader("dropped", "dropped.bsp", 1);
+
+		// One segment, so no other requests are cancelled with bytes still in flight.
+		downloader.setSegments(1);
+		downloader.setRetryPolicy(new RetryPolicy(3, 0, 0));
+
+		downloader.run();
+
+		assertInstalled(downloader, data);
+
+		// The retry picks up where the body was cut off instead of starting over.
+		assertEquals(2, server.getRequests("GET"));
+		assertEquals(data.length, server.getBytesSent());
+	}
+
+	@Test
+	public void retriesOnSameMirror() throws IOException {
+		byte[] data = TestFiles.bsp(2 * 1024 * 1024, 13);
+
+		serve("mirror0/flaky.bsp", data);
+		serve("mirror1/flaky.bsp", data);
+		server.getFaults().setDrop(256 * 1024, 2);
+
+		MapDownloader downloader = newDownloader("flaky", "flaky.bsp", 2);
+
+		downloader.setSegments(1);
+		downloader.setRetryPolicy(new RetryPolicy(3, 0, 0));
+
+		downloader.run();
+
+		assertInstalled(downloader, data);
+		assertEquals("test0", downloader.getMap().getSource().getName());
+		assertEquals(3, server.getRequests("GET"));
+	}
+
+	@Test
+	public void failsOverToNextMirror() throws IOException {
+		byte[] data = TestFiles.bsp(2 * 1024 * 1024, 14);
+
+		serve("mirror0/failover.bsp", data);
+		serve("mirror1/failover.bsp", data);
+		server.getFaults().setDrop(256 * 1024, 2);
+
+		MapDownloader downloader = newDownloader("failover", "failover.bsp", 2);
+
+		RecordingSlot slot = new RecordingSlot(true);
+
+		downloader.setSegments(1);
+		downloader.setRetryPolicy(new RetryPolicy(2, 0, 0));
+		downloader.setSourceSlot(slot);
+
+		downloader.run();
+
+		assertInstalled(downloader, data);
+		assertEquals("test1", downloader.getMap().getSource().getName());
+		assertEquals(Arrays.asList(downloader.getMap().getSource()), slot.getMoves());
+
+		// The second mirror carries on from where the first one was cut off.
+		assertEquals(3, server.getRequests("GET"));
+		assertEquals(data.length, server.getBytesSent());
+	}
+
+	@Test
+	public void failsOverAtOnceWhenMapIsMissing() throws IOException {
+		byte[] data = TestFiles.bsp(300 * 1024, 15);
+
+		serve("mirror1/moved.bsp", data);
+
+		MapDownloader downloader = newDownloader("moved", "moved.bsp", 2);
+
+		downloader.setRetryPolicy(new RetryPolicy(3, 0, 0));
+
+		downloader.run();
+
+		assertInstalled(downloader, data);
+		assertEquals("test1", downloader.getMap().getSource().getName());
+	}
+
+	@Test
+	public void givesUpWhenMoveIsCancelled() throws IOException {
+		serve("mirror0/stuck.bsp", TestFiles.bsp(300 * 1024, 16));
+		serve("mirror1/stuck.bsp", TestFiles.bsp(300 * 1024, 16));
+		server.getFaults().setDrop(64 * 1024, 1);
+
+		MapDownloader downloader = newDownloader("stuck", "stuck.bsp", 2);
+
+		downloader.setSegments(1);
+		downloader.setRetryPolicy(new RetryPolicy(1, 0, 0));
+
+		// Cancelled while waiting for a slot on the next mirror's source.
+		downloader.setSourceSlot(new RecordingSlot(false));
+
+		downloader.run();
+
+		assertNotNull(downloader.getError());
+		assertEquals("test0", downloader.getMap().getSource().getName());
+		assertEquals(1, server.getRequests("GET"));
+	}
+
+	@Test
+	public void failsWhenBodyIsShorterThanLength() throws IOException {
+		serve("mirror0/promised.bsp", TestFiles.bsp(1024 * 1024, 9));
+
+		// The server promises more than it sends, and drops the connection after the body.
+		server.getFaults().setLengthDelta(1000);
+
+		MapDownloader downloader = download("promised", 4);
+
+		assertNotNull(downloader.getError());
+		assertFalse(new File(folder.getRoot(), "promised.bsp").exists());
+	}
+
+	@Test
+	public void failsWhenBodyIsLongerThanLength() throws IOException {
+		serve("mirror0/cut.bsp", TestFiles.bsp(1024 * 1024, 10));
+
+		// The server sends less than the file and says that's all of it, which only the map's header can tell.
+		server.getFaults().setLengthDelta(-1000);
+
+		MapDownloader downloader = download("cut", 4);
+
+		assertNotNull(downloader.getError());
+		assertTrue(downloader.getError().getMessage(), downloader.getError().getMessage().contains("is damaged"));
+		assertFalse(new File(folder.getRoot(), "cut.bsp").exists());
+	}
+
+	@Test
+	public void failsOnTruncatedMap() throws IOException {
+		byte[] data = TestFiles.bsp(200 * 1024, 4);
+
+		serve("mirror0/truncated.bsp", Arrays.copyOf(data, data.length / 2));
+
+		MapDownloader downloader = download("truncated", 1);
+
+		assertNotNull(downloader.getError());
+		assertFalse(new File(folder.getRoot(), "truncated.bsp").exists());
+	}
+
+	/**
+	 * Compress a map with bzip2.
+	 *
+	 * @param data The map.
+	 * @return The archive.
+	 * @throws IOException If the map can't be compressed.
+	 */
+	private static byte[] bzip2(byte[] data) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+		try (OutputStream output = new BZip2CompressorOutputStream(compressed)) {
+			output.write(data);
+		}
+
+		return compressed.toByteArray();
+	}
+
+	@Test
+	public void decompressesWhileStreaming() throws IOException {
+		byte[] data = TestFiles.bsp(2 * 1024 * 1024, 8);
+
+		serve("mirror0/streamed.bsp.bz2", bzip2(data));
+
+		MapDownloader downloader = newDownloader("streamed", "streamed.bsp.bz2", 1);
+
+		downloader.setSegments(1);
+
+		downloader.run();
+
+		// Installed from a single request, without the archive left behind.
+		assertInstalled(downloader, data);
+		assertEquals(1, server.getRequests("GET"));
+	}
+
+	@Test
+	public void decompressesChunkedStream() throws IOException {
+		byte[] data = TestFiles.bsp(2 * 1024 * 1024, 9);
+
+		serve("mirror0/chunked.bsp.bz2", bzip2(data));
+		server.getFaults().setChunked(true);
+
+		MapDownloader downloader = newDownloader("chunked", "chunked.bsp.bz2", 1);
+
+		downloader.setSegments(1);
+
+		downloader.run();
+
+		assertInstalled(downloader, data);
+	}
+
+	@Test(timeout = 30000)
+	public void failsStreamingBodyWhichIsntArchive() throws IOException {
+		// Far more than the pipe between the download and the decompressor holds.
+		serve("mirror0/garbage.bsp.bz2", TestFiles.random(16 * 1024 * 1024, 7));
+
+		MapDownloader downloader = newDownloader("garbage", "garbage.bsp.bz2", 1);
+
+		downloader.setSegments(1);
+
+		downloader.run();
+
+		assertNotNull(downloader.getError());
+		assertEquals("Unknown compression format", downloader.getError().getMessage());
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void streamingRetriesOncePerFailure() throws IOException {
+		byte[] archive = bzip2(TestFiles.bsp(2 * 1024 * 1024, 5));
+
+		serve("mirror0/dropped.bsp.bz2", archive);
+		serve("mirror1/dropped.bsp.bz2", archive);
+		server.getFaults().setDrop(64 * 1024, -1);
+
+		MapDownloader downloader = newDownloader("dropped", "dropped.bsp.bz2", 2);
+
+		downloader.setSegments(1);
+		downloader.setRetryPolicy(new RetryPolicy(3, 0, 0));
+
+		downloader.run();
+
+		assertNotNull(downloader.getError());
+
+		// Three tries on each mirror, each one continuing the stream where the last one dropped.
+		assertEquals(6, server.getRequests("GET"));
+	}
+}
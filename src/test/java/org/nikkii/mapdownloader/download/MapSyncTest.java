@@ -0,0 +1,216 @@
+package org.nikkii.mapdownloader.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nikkii.mapdownloader.maps.Map;
+import org.nikkii.mapdownloader.maps.MapIndex;
+import org.nikkii.mapdownloader.maps.MapSource;
+import org.nikkii.mapdownloader.net.HttpClient;
+import org.nikkii.mapdownloader.server.FastDlServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests checking installed maps for changes against a local fastdl server.
+ *
+ * @author Nikki
+ */
+public class MapSyncTest {
+
+	/**
+	 * The length of the maps used by the tests.
+	 */
+	private static final int LENGTH = 64 * 1024;
+
+	/**
+	 * The folder maps are installed in.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The folder the server serves.
+	 */
+	@Rule
+	public TemporaryFolder served = new TemporaryFolder();
+
+	/**
+	 * The server.
+	 */
+	private FastDlServer server;
+
+	/**
+	 * The server's source.
+	 */
+	private MapSource source;
+
+	/**
+	 * The index of installed maps.
+	 */
+	private MapIndex index;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new FastDlServer(served.getRoot(), FastDlServer.Style.NGINX);
+		server.start();
+
+		source = new MapSource("local", server.getUrl(), 0);
+
+		index = new MapIndex(folder.newFile(MapIndex.FILE_NAME));
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	/**
+	 * Put a map on the server and install the same map.
+	 *
+	 * @param name The map name.
+	 * @param seed The random seed of the map.
+	 * @return The listed map.
+	 * @throws IOException If the files can't be written.
+	 */
+	private Map install(String name, long seed) throws IOException {
+		byte[] data = TestFiles.bsp(LENGTH, seed);
+
+		TestFiles.write(new File(served.getRoot(), name + ".bsp"), data);
+		TestFiles.write(new File(folder.getRoot(), name + ".bsp"), data);
+
+		return new Map(source, name + ".bsp", name, false);
+	}
+
+	/**
+	 * Index a map the way a download of the served file would.
+	 *
+	 * @param map The map.
+	 * @param lastModified The stored Last-Modified value, or null.
+	 * @param withETag Whether the served file's ETag is stored.
+	 */
+	private void index(Map map, String lastModified, boolean withETag) {
+		File file = new File(served.getRoot(), map.getFile());
+
+		String etag = withETag ? FastDlServer.getETag(file) : null;
+
+		index.put(map.getName(), new MapIndex.Entry(map.getUrl(), etag, lastModified, file.length(), file.length(), null));
+	}
+
+	/**
+	 * Check the maps.
+	 *
+	 * @param maps The listed maps.
+	 * @return The result.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	private MapSync.Result sync(Map... maps) throws InterruptedException {
+		return new MapSync(new HttpClient(4), index, folder.getRoot(), 4).sync(Arrays.asList(maps));
+	}
+
+	@Test
+	public void skipsUnchangedMaps() throws Exception {
+		Map first = install("first", 1), second = install("second", 2);
+
+		index(first, null, true);
+		index(second, null, true);
+
+		MapSync.Result result = sync(first, second);
+
+		assertEquals(Collections.emptyList(), result.getChanged());
+		assertEquals(2, result.getUnchanged());
+		assertEquals(2, server.getRequests("HEAD"));
+
+		// Both answers were a 304, without a body.
+		assertEquals(0, server.getBytesSent());
+	}
+
+	@Test
+	public void findsMapsChangedOnServer() throws Exception {
+		Map map = install("changed", 3);
+
+		index(map, null, true);
+
+		File file = new File(served.getRoot(), "changed.bsp");
+
+		TestFiles.write(file, TestFiles.bsp(LENGTH, 4));
+		file.setLastModified(file.lastModified() + 60000);
+
+		MapSync.Result result = sync(map);
+
+		assertEquals(Collections.singletonList(map), result.getChanged());
+		assertEquals(0, result.getUnchanged());
+	}
+
+	@Test
+	public void comparesLastModifiedWithoutETag() throws Exception {
+		Map map = install("dated", 5);
+
+		index(map, "Thu, 01 Jan 1970 00:00:00 GMT", false);
+
+		assertEquals(Collections.singletonList(map), sync(map).getChanged());
+	}
+
+	@Test
+	public void findsResizedMapsWithoutAsking() throws Exception {
+		Map map = install("resized", 6);
+
+		index(map, null, true);
+
+		TestFiles.write(new File(folder.getRoot(), "resized.bsp"), TestFiles.bsp(LENGTH / 2, 6));
+
+		assertEquals(Collections.singletonList(map), sync(map).getChanged());
+		assertEquals(0, server.getRequests());
+	}
+
+	@Test
+	public void countsMapsWithoutEntryAsUnknown() throws Exception {
+		Map map = install("unknown", 7);
+
+		// Listed by two sources, still counted once.
+		MapSource other = new MapSource("other", "http://other.example.com/", 1);
+
+		MapSync.Result result = sync(map, new Map(other, "unknown.bsp", "unknown", false));
+
+		assertEquals(1, result.getUnknown());
+		assertTrue(result.getChanged().isEmpty());
+		assertEquals(0, server.getRequests());
+	}
+
+	@Test
+	public void checksOnlySourceMapCameFrom() throws Exception {
+		Map map = install("mirrored", 8);
+
+		index(map, null, true);
+
+		MapSource other = new MapSource("other", "http://other.example.com/", 1);
+
+		MapSync.Result result = sync(new Map(other, "mirrored.bsp", "mirrored", false), map);
+
+		assertEquals(1, result.getUnchanged());
+		assertEquals(1, server.getRequests());
+	}
+
+	@Test
+	public void countsMapsGoneFromServerAsFailed() throws Exception {
+		Map map = install("gone", 9);
+
+		index(map, null, true);
+
+		assertTrue(new File(served.getRoot(), "gone.bsp").delete());
+
+		MapSync.Result result = sync(map);
+
+		assertEquals(1, result.getFailed());
+		assertTrue(result.getChanged().isEmpty());
+		assertEquals(0, result.getUnchanged());
+	}
+}
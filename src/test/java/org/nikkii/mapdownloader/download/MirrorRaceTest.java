@@ -0,0 +1,232 @@
+package org.nikkii.mapdownloader.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nikkii.mapdownloader.maps.Map;
+import org.nikkii.mapdownloader.maps.MapSource;
+import org.nikkii.mapdownloader.net.HttpClient;
+import org.nikkii.mapdownloader.server.FastDlServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests racing mirrors on two local fastdl servers, one for each source.
+ *
+ * @author Nikki
+ */
+public class MirrorRaceTest {
+
+	/**
+	 * The amount of bytes each mirror has to deliver in the races run directly.
+	 */
+	private static final int PROBE_LENGTH = 64 * 1024;
+
+	/**
+	 * The folder maps are installed in.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The folder the first server serves.
+	 */
+	@Rule
+	public TemporaryFolder firstRoot = new TemporaryFolder();
+
+	/**
+	 * The folder the second server serves.
+	 */
+	@Rule
+	public TemporaryFolder secondRoot = new TemporaryFolder();
+
+	/**
+	 * The first server.
+	 */
+	private FastDlServer first;
+
+	/**
+	 * The second server.
+	 */
+	private FastDlServer second;
+
+	/**
+	 * The first server's source.
+	 */
+	private MapSource firstSource;
+
+	/**
+	 * The second server's source.
+	 */
+	private MapSource secondSource;
+
+	@Before
+	public void setUp() throws IOException {
+		first = new FastDlServer(firstRoot.getRoot(), FastDlServer.Style.NGINX);
+		first.start();
+
+		second = new FastDlServer(secondRoot.getRoot(), FastDlServer.Style.APACHE);
+		second.start();
+
+		firstSource = new MapSource("first", first.getUrl(), 0);
+		secondSource = new MapSource("second", second.getUrl(), 1);
+	}
+
+	@After
+	public void tearDown() {
+		first.stop();
+		second.stop();
+	}
+
+	/**
+	 * Get the mirrors of a map, the first server's first.
+	 *
+	 * @param name The map name.
+	 * @return The mirrors.
+	 */
+	private List<Map> mirrors(String name) {
+		return Arrays.asList(new Map(firstSource, name + ".bsp", name, false), new Map(secondSource, name + ".bsp", name, false));
+	}
+
+	/**
+	 * Put a map on a server.
+	 *
+	 * @param root The folder the server serves.
+	 * @param name The map name.
+	 * @param data The map.
+	 * @throws IOException If the file can't be written.
+	 */
+	private static void serve(TemporaryFolder root, String name, byte[] data) throws IOException {
+		TestFiles.write(new File(root.getRoot(), name + ".bsp"), data);
+	}
+
+	/**
+	 * Create a downloader for a map on both servers, which races them and fails at once instead of retrying.
+	 *
+	 * @param name The map name.
+	 * @return The downloader.
+	 */
+	private MapDownloader newDownloader(String name) {
+		List<Map> mirrors = mirrors(name);
+
+		MapDownloader downloader = new MapDownloader(mirrors.get(0), new File(folder.getRoot(), name + ".bsp"));
+
+		downloader.setMirrors(mirrors);
+		downloader.setRaceMirrors(2);
+		downloader.setSegments(1);
+		downloader.setRetryPolicy(RetryPolicy.NONE);
+		downloader.setDeltaUpdates(false);
+
+		return downloader;
+	}
+
+	@Test
+	public void picksMirrorWhichAnswersFirst() throws IOException {
+		byte[] data = TestFiles.bsp(1024 * 1024, 1);
+
+		serve(firstRoot, "race", data);
+		serve(secondRoot, "race", data);
+
+		first.getFaults().setLatency(1000);
+
+		MirrorRace.Result winner = new MirrorRace(new HttpClient(4), PROBE_LENGTH).race(mirrors("race"), 2);
+
+		assertSame(secondSource, winner.getMirror().getSource());
+		assertEquals(PROBE_LENGTH, winner.getBytes());
+	}
+
+	@Test
+	public void skipsMirrorWithoutMap() throws IOException {
+		serve(secondRoot, "missing", TestFiles.bsp(1024 * 1024, 2));
+
+		MirrorRace.Result winner = new MirrorRace(new HttpClient(4), PROBE_LENGTH).race(mirrors("missing"), 2);
+
+		assertSame(secondSource, winner.getMirror().getSource());
+	}
+
+	@Test
+	public void givesUpWhenNoMirrorHasMap() {
+		assertNull(new MirrorRace(new HttpClient(4), PROBE_LENGTH).race(mirrors("nowhere"), 2));
+	}
+
+	@Test
+	public void racesOnlyLargeMaps() throws IOException {
+		byte[] data = TestFiles.bsp(1024 * 1024, 3);
+
+		serve(firstRoot, "small", data);
+		serve(secondRoot, "small", data);
+
+		first.getFaults().setLatency(300);
+
+		MapDownloader downloader = newDownloader("small");
+
+		downloader.run();
+
+		assertNull(downloader.getError());
+		assertArrayEquals(data, Files.readAllBytes(new File(folder.getRoot(), "small.bsp").toPath()));
+
+		// The faster mirror isn't worth a race for a map this small.
+		assertSame(firstSource, downloader.getMap().getSource());
+		assertEquals(0, second.getRequests());
+	}
+
+	@Test
+	public void racesLargeMaps() throws IOException {
+		byte[] data = TestFiles.bsp((int) MapDownloader.MIN_RACE_LENGTH, 4);
+
+		serve(firstRoot, "large", data);
+		serve(secondRoot, "large", data);
+
+		first.getFaults().setLatency(300);
+
+		MapDownloader downloader = newDownloader("large");
+
+		RecordingSlot slot = new RecordingSlot(true);
+
+		downloader.setSourceSlot(slot);
+
+		downloader.run();
+
+		assertNull(downloader.getError());
+		assertArrayEquals(data, Files.readAllBytes(new File(folder.getRoot(), "large.bsp").toPath()));
+
+		assertSame(secondSource, downloader.getMap().getSource());
+		assertEquals(Arrays.asList(secondSource), slot.getMoves());
+	}
+
+	@Test
+	public void staysWhenWinnerIsBusy() throws IOException {
+		byte[] data = TestFiles.bsp((int) MapDownloader.MIN_RACE_LENGTH, 5);
+
+		serve(firstRoot, "busy", data);
+		serve(secondRoot, "busy", data);
+
+		first.getFaults().setLatency(300);
+
+		MapDownloader downloader = newDownloader("busy");
+
+		// The second source has no slot free, so the download can't move there.
+		downloader.setSourceSlot(new RecordingSlot(false));
+
+		downloader.run();
+
+		assertNull(downloader.getError());
+		assertSame(firstSource, downloader.getMap().getSource());
+
+		// The winner only sent its probe.
+		assertTrue(first.getBytesSent() >= data.length);
+		assertTrue(second.getBytesSent() <= MirrorRace.DEFAULT_PROBE_LENGTH);
+	}
+}
@@ -0,0 +1,201 @@
+package org.nikkii.mapdownloader.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests saving, loading and resuming partial downloads.
+ *
+ * @author Nikki
+ */
+public class PartialDownloadTest {
+
+	/**
+	 * The url used by every test.
+	 */
+	private static final String URL = "http://example.com/maps/test.bsp";
+
+	/**
+	 * The folder holding the partial files.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Start a partial download of 3000 bytes in three ranges, with some of every range written, and save it.
+	 *
+	 * @param etag The ETag to record.
+	 * @param lastModified The Last-Modified date to record.
+	 * @return The partial download.
+	 * @throws IOException If it can't be saved.
+	 */
+	private PartialDownload save(String etag, String lastModified) throws IOException {
+		PartialDownload partial = new PartialDownload(new File(folder.getRoot(), "test.bsp.part"));
+
+		List<PartialDownload.Range> ranges = Arrays.asList(new PartialDownload.Range(0, 999), new PartialDownload.Range(1000, 1999), new PartialDownload.Range(2000, 2999));
+
+		partial.reset(URL, 3000, etag, lastModified, ranges);
+
+		TestFiles.write(partial.getFile(), new byte[3000]);
+
+		ranges.get(0).setPosition(1000);
+		ranges.get(1).setPosition(1500);
+		ranges.get(2).setPosition(2100);
+
+		partial.setDigest("abcd");
+		partial.save();
+
+		return partial;
+	}
+
+	@Test
+	public void loadsSavedState() throws IOException {
+		PartialDownload saved = save("\"1\"", "Mon, 01 Jan 2024 00:00:00 GMT");
+
+		PartialDownload loaded = PartialDownload.load(saved.getFile());
+
+		assertEquals(URL, loaded.getUrl());
+		assertEquals(3000, loaded.getLength());
+		assertEquals("abcd", loaded.getDigest());
+		assertEquals(3, loaded.getRanges().size());
+		assertEquals(1000 + 500 + 100, loaded.getCompleted());
+		assertFalse(loaded.isComplete());
+
+		for (int i = 0; i < 3; i++) {
+			PartialDownload.Range expected = saved.getRanges().get(i), actual = loaded.getRanges().get(i);
+
+			assertEquals(expected.getStart(), actual.getStart());
+			assertEquals(expected.getEnd(), actual.getEnd());
+			assertEquals(expected.getPosition(), actual.getPosition());
+		}
+
+		assertTrue(loaded.getRanges().get(0).isComplete());
+	}
+
+	@Test
+	public void resumesOnlyMatchingFile() throws IOException {
+		PartialDownload partial = PartialDownload.load(save("\"1\"", "Mon, 01 Jan 2024 00:00:00 GMT").getFile());
+
+		assertTrue(partial.canResume(URL, 3000, "\"1\"", null));
+		assertFalse(partial.canResume(URL, 3000, "\"2\"", "Mon, 01 Jan 2024 00:00:00 GMT"));
+		assertFalse(partial.canResume(URL, 3001, "\"1\"", null));
+		assertFalse(partial.canResume(URL + "?", 3000, "\"1\"", null));
+
+		// Without a length there's no telling whether the file changed.
+		assertFalse(partial.canResume(URL, -1, "\"1\"", null));
+	}
+
+	@Test
+	public void resumesOnLastModifiedWithoutETag() throws IOException {
+		PartialDownload partial = PartialDownload.load(save(null, "Mon, 01 Jan 2024 00:00:00 GMT").getFile());
+
+		assertTrue(partial.canResume(URL, 3000, "\"1\"", "Mon, 01 Jan 2024 00:00:00 GMT"));
+		assertFalse(partial.canResume(URL, 3000, null, "Tue, 02 Jan 2024 00:00:00 GMT"));
+
+		// The length alone can't tell a changed map apart.
+		assertFalse(PartialDownload.load(save(null, null).getFile()).canResume(URL, 3000, null, null));
+	}
+
+	@Test
+	public void failsOverOnLength() throws IOException {
+		PartialDownload partial = PartialDownload.load(save("\"1\"", null).getFile());
+
+		assertTrue(partial.canFailOver(3000));
+		assertFalse(partial.canFailOver(2999));
+		assertFalse(partial.canFailOver(-1));
+
+		partial.failOver("http://mirror.example.com/test.bsp", "\"other\"", null);
+
+		assertEquals("http://mirror.example.com/test.bsp", partial.getUrl());
+		assertTrue(partial.canResume("http://mirror.example.com/test.bsp", 3000, "\"other\"", null));
+	}
+
+	@Test
+	public void startsOverWithoutData() throws IOException {
+		PartialDownload saved = save("\"1\"", null);
+
+		saved.getFile().delete();
+
+		PartialDownload partial = PartialDownload.load(saved.getFile());
+
+		assertTrue(partial.getRanges().isEmpty());
+		assertFalse(partial.canResume(URL, 3000, "\"1\"", null));
+		assertFalse(partial.canFailOver(3000));
+	}
+
+	@Test
+	public void startsOverWithDamagedState() throws IOException {
+		PartialDownload saved = save("\"1\"", null);
+
+		Files.write(new File(saved.getFile().getPath() + ".state").toPath(), "url=x\nranges=2\nrange.0=0,zero\n".getBytes(StandardCharsets.ISO_8859_1));
+
+		assertTrue(PartialDownload.load(saved.getFile()).getRanges().isEmpty());
+	}
+
+	@Test
+	public void resetDiscardsData() throws IOException {
+		PartialDownload partial = save("\"1\"", null);
+
+		partial.reset(URL, 4000, "\"2\"", null, Collections.singletonList(new PartialDownload.Range(0, 3999)));
+
+		assertFalse(partial.getFile().exists());
+		assertNull(partial.getDigest());
+		assertTrue(PartialDownload.load(partial.getFile()).getRanges().isEmpty());
+	}
+
+	@Test
+	public void keepsOpenRange() throws IOException {
+		PartialDownload partial = new PartialDownload(new File(folder.getRoot(), "open.bsp.part"));
+
+		PartialDownload.Range range = new PartialDownload.Range(0, -1);
+
+		partial.reset(URL, -1, null, null, Collections.singletonList(range));
+
+		TestFiles.write(partial.getFile(), new byte[500]);
+
+		range.setPosition(500);
+
+		// An open range is only complete once the stream tells where it ends.
+		assertFalse(partial.isComplete());
+
+		partial.save();
+
+		PartialDownload loaded = PartialDownload.load(partial.getFile());
+
+		assertEquals(-1, loaded.getLength());
+		assertEquals(-1, loaded.getRanges().get(0).getEnd());
+		assertFalse(loaded.canResume(URL, -1, null, null));
+
+		range.setEnd(499);
+
+		assertTrue(partial.isComplete());
+	}
+
+	@Test
+	public void completeRemovesStateOnly() throws IOException {
+		PartialDownload partial = save("\"1\"", null);
+
+		partial.complete();
+
+		assertTrue(partial.getFile().exists());
+		assertFalse(new File(partial.getFile().getPath() + ".state").exists());
+
+		partial.discard();
+
+		assertFalse(partial.getFile().exists());
+	}
+}
@@ -0,0 +1,135 @@
+package org.nikkii.mapdownloader.download;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.swing.JLabel;
+import javax.swing.JProgressBar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests showing several downloads on one label and progress bar.
+ *
+ * @author Nikki
+ */
+public class ProgressSummaryTest {
+
+	/**
+	 * The status label.
+	 */
+	private JLabel label;
+
+	/**
+	 * The progress bar.
+	 */
+	private JProgressBar progressBar;
+
+	/**
+	 * The summary under test.
+	 */
+	private ProgressSummary summary;
+
+	@Before
+	public void setUp() {
+		label = new JLabel();
+		progressBar = new JProgressBar();
+		summary = new ProgressSummary(label, progressBar);
+	}
+
+	@Test
+	public void combinesRunningDownloads() {
+		ProgressSummary.Entry first = summary.add("first");
+		ProgressSummary.Entry second = summary.add("second");
+
+		first.started(1000);
+		second.started(3000);
+
+		first.updated(1000, 0);
+		second.updated(1000, 0);
+
+		assertEquals(2, summary.getRunning());
+		assertTrue(label.getText().startsWith("Downloading 2 maps"));
+		assertEquals(50, progressBar.getValue());
+	}
+
+	@Test
+	public void keepsShowingOthersWhenOneFinishes() {
+		ProgressSummary.Entry first = summary.add("first");
+		ProgressSummary.Entry second = summary.add("second");
+
+		first.started(1000);
+		second.started(1000);
+		second.updated(250, 0);
+
+		first.transferred();
+		first.remove(null);
+
+		assertEquals(1, summary.getRunning());
+		assertTrue(label.getText().startsWith("Downloading second"));
+		assertEquals(25, progressBar.getValue());
+
+		second.remove(null);
+
+		assertEquals("Status: Idle.", label.getText());
+		assertEquals(0, progressBar.getValue());
+	}
+
+	@Test
+	public void spinsOnlyWhenEverythingDecompresses() {
+		ProgressSummary.Entry first = summary.add("first");
+		ProgressSummary.Entry second = summary.add("second");
+
+		first.started(1000);
+		second.started(1000);
+
+		first.decompressing("Decompressing first...");
+
+		assertFalse(progressBar.isIndeterminate());
+
+		second.decompressing("Decompressing second...");
+
+		assertTrue(progressBar.isIndeterminate());
+
+		first.remove(null);
+
+		assertEquals("Decompressing second...", label.getText());
+	}
+
+	@Test
+	public void showsFailureOnceIdle() {
+		ProgressSummary.Entry first = summary.add("first");
+		ProgressSummary.Entry second = summary.add("second");
+
+		first.started(1000);
+		second.started(1000);
+
+		first.remove("Failed to download first: gone");
+
+		assertTrue(label.getText().startsWith("Downloading second"));
+
+		second.remove(null);
+
+		assertEquals("Failed to download first: gone", label.getText());
+	}
+
+	@Test
+	public void ignoresUpdatesAfterRemoval() {
+		ProgressSummary.Entry entry = summary.add("late");
+
+		label.setText("Sync: done");
+
+		// A job cancelled while queued leaves the label alone.
+		entry.remove(null);
+
+		assertEquals("Sync: done", label.getText());
+
+		entry.started(1000);
+		entry.updated(500, 0);
+
+		assertEquals(0, summary.getRunning());
+		assertEquals("Sync: done", label.getText());
+	}
+}
@@ -0,0 +1,56 @@
+package org.nikkii.mapdownloader.download;
+
+import org.nikkii.mapdownloader.maps.MapSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A source slot for downloads run without a scheduler, which records where the download moves to.
+ *
+ * @author Nikki
+ */
+public class RecordingSlot implements SourceSlot {
+
+	/**
+	 * Whether every source has a slot free.
+	 */
+	private final boolean free;
+
+	/**
+	 * The sources the slot moved to.
+	 */
+	private final List<MapSource> moves = new ArrayList<>();
+
+	/**
+	 * Construct a new slot.
+	 *
+	 * @param free Whether every source has a slot free, false to refuse every move like a cancelled wait does.
+	 */
+	public RecordingSlot(boolean free) {
+		this.free = free;
+	}
+
+	@Override
+	public synchronized boolean tryMoveTo(MapSource source) {
+		if (free) {
+			moves.add(source);
+		}
+
+		return free;
+	}
+
+	@Override
+	public boolean moveTo(MapSource source) {
+		return tryMoveTo(source);
+	}
+
+	/**
+	 * Get the sources the slot moved to.
+	 *
+	 * @return The sources, in order.
+	 */
+	public synchronized List<MapSource> getMoves() {
+		return new ArrayList<>(moves);
+	}
+}
@@ -0,0 +1,81 @@
+package org.nikkii.mapdownloader.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Builds the file contents used by the tests.
+ *
+ * @author Nikki
+ */
+public final class TestFiles {
+
+	/**
+	 * Build random bytes.
+	 *
+	 * @param length The amount of bytes.
+	 * @param seed The random seed.
+	 * @return The bytes.
+	 */
+	public static byte[] random(int length, long seed) {
+		byte[] data = new byte[length];
+
+		new Random(seed).nextBytes(data);
+
+		return data;
+	}
+
+	/**
+	 * Build a map with a sound BSP header, its 64 lumps evenly filling the rest of the file with random bytes.
+	 *
+	 * @param length The file length, at least {@link BspValidator#HEADER_LENGTH} plus 64.
+	 * @param seed The random seed.
+	 * @return The map.
+	 */
+	public static byte[] bsp(int length, long seed) {
+		byte[] data = random(length, seed);
+
+		ByteBuffer header = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+
+		header.put(new byte[] { 'V', 'B', 'S', 'P' });
+		header.putInt(BspValidator.MAX_VERSION);
+
+		int lumpLength = (length - BspValidator.HEADER_LENGTH) / 64;
+
+		for (int i = 0; i < 64; i++) {
+			header.putInt(BspValidator.HEADER_LENGTH + i * lumpLength);
+			header.putInt(lumpLength);
+			header.putInt(0);
+			header.putInt(0);
+		}
+
+		header.putInt(1);
+
+		return data;
+	}
+
+	/**
+	 * Write bytes to a file.
+	 *
+	 * @param file The file.
+	 * @param data The bytes.
+	 * @return The file.
+	 * @throws IOException If the file can't be written.
+	 */
+	public static File write(File file, byte[] data) throws IOException {
+		Files.write(file.toPath(), data);
+
+		return file;
+	}
+
+	/**
+	 * Not constructed.
+	 */
+	private TestFiles() {
+
+	}
+}
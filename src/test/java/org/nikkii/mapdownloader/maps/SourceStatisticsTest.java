@@ -0,0 +1,107 @@
+package org.nikkii.mapdownloader.maps;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests how sources are ranked from their statistics.
+ *
+ * @author Nikki
+ */
+public class SourceStatisticsTest {
+
+	/**
+	 * The folder the statistics are stored in.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The sources, the first one preferred by configuration.
+	 */
+	private final MapSource first = new MapSource("first", "http://first/", 0), second = new MapSource("second", "http://second/", 1), third = new MapSource("third", "http://third/", 2);
+
+	/**
+	 * The statistics.
+	 */
+	private SourceStatistics statistics;
+
+	@Before
+	public void setUp() {
+		statistics = new SourceStatistics(new File(folder.getRoot(), "sources.properties"));
+	}
+
+	/**
+	 * Rank the mirrors of a map on every source.
+	 *
+	 * @return The source names, best first.
+	 */
+	private List<String> rank() {
+		List<Map> mirrors = new ArrayList<>();
+
+		for (MapSource source : new MapSource[] { first, second, third }) {
+			mirrors.add(new Map(source, "map.bsp.bz2", "map", true));
+		}
+
+		List<String> names = new ArrayList<>();
+
+		for (Map mirror : statistics.rank(mirrors)) {
+			names.add(mirror.getSource().getName());
+		}
+
+		return names;
+	}
+
+	@Test
+	public void ranksByPriorityWithoutStatistics() {
+		assertEquals(Arrays.asList("first", "second", "third"), rank());
+	}
+
+	@Test
+	public void ranksFasterSourceFirst() {
+		statistics.recordSuccess(first, 100, 1024 * 1024);
+		statistics.recordSuccess(second, 100, 10 * 1024 * 1024);
+
+		// The unmeasured source is assumed to be as fast as the best one, and loses the tie on priority.
+		assertEquals(Arrays.asList("second", "third", "first"), rank());
+	}
+
+	@Test
+	public void ranksFailingSourceLast() {
+		statistics.recordFailure(first);
+		statistics.recordFailure(first);
+		statistics.recordSuccess(second, 100, 1024 * 1024);
+
+		assertEquals(Arrays.asList("second", "third", "first"), rank());
+	}
+
+	@Test
+	public void ranksFailingSourceLastWithoutMeasurements() {
+		statistics.recordFailure(first);
+
+		assertEquals(Arrays.asList("second", "third", "first"), rank());
+	}
+
+	@Test
+	public void keepsStatisticsAcrossRestarts() {
+		statistics.recordSuccess(first, 100, 1024 * 1024);
+		statistics.recordSuccess(third, 100, 10 * 1024 * 1024);
+
+		statistics = new SourceStatistics(new File(folder.getRoot(), "sources.properties"));
+
+		assertNotNull(statistics.describe(third));
+		assertNull(statistics.describe(second));
+		assertEquals(Arrays.asList("second", "third", "first"), rank());
+	}
+}
@@ -0,0 +1,113 @@
+package org.nikkii.mapdownloader.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nikkii.mapdownloader.server.FastDlServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that connections are reused or released.
+ *
+ * @author Nikki
+ */
+public class HttpConnectionTest {
+
+	/**
+	 * The size of the served map, far more than the socket buffers hold.
+	 */
+	private static final int BODY_LENGTH = 64 * 1024 * 1024;
+
+	/**
+	 * The folder the server serves.
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The server.
+	 */
+	private FastDlServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(folder.newFile("map.bsp"), "rw")) {
+			file.setLength(BODY_LENGTH);
+		}
+
+		server = new FastDlServer(folder.getRoot(), FastDlServer.Style.NGINX);
+		server.start();
+
+		// Sends the whole map for every request, like a server which doesn't support ranges.
+		server.getFaults().setIgnoreRange(true);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	/**
+	 * Get the map's url.
+	 *
+	 * @return The url.
+	 * @throws IOException Never.
+	 */
+	private URL getUrl() throws IOException {
+		return new URL(server.getUrl() + "map.bsp");
+	}
+
+	/**
+	 * Wait for the server to notice a client went away in the middle of a body.
+	 *
+	 * @return Whether it did within ten seconds.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	private boolean awaitAborted() throws InterruptedException {
+		for (int i = 0; i < 100 && server.getAborted() == 0; i++) {
+			Thread.sleep(100);
+		}
+
+		return server.getAborted() > 0;
+	}
+
+	@Test
+	public void disconnectsUnreadBody() throws Exception {
+		HttpClient client = new HttpClient(1);
+
+		try (HttpConnection connection = client.open(getUrl())) {
+			connection.setHeader("Range", "bytes=100-");
+
+			assertEquals(200, connection.getResponseCode());
+		}
+
+		assertTrue("The socket was left open", awaitAborted());
+
+		// The only permit was given back.
+		try (HttpConnection connection = client.open(getUrl())) {
+			connection.setMethod("HEAD");
+
+			assertEquals(200, connection.getResponseCode());
+		}
+	}
+
+	@Test
+	public void disconnectsPartlyReadBody() throws Exception {
+		try (HttpConnection connection = new HttpClient(1).open(getUrl())) {
+			InputStream input = connection.getInputStream();
+
+			input.read(new byte[1024]);
+		}
+
+		assertTrue("The socket was left open", awaitAborted());
+	}
+}
@@ -0,0 +1,768 @@
+package org.nikkii.mapdownloader.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand in for a fastdl host, serving a directory the way Apache and nginx do: directory listings, range requests,
+ * validators and all. {@link Faults} make it misbehave on purpose, so the engine's throughput and its handling of slow,
+ * flaky and broken servers can be tested without the real hosts.
+ *
+ * Run it on its own and point the downloader at it with {@code -Dmapdownloader.sources=local=http://127.0.0.1:port/},
+ * or start it from a test or a benchmark.
+ *
+ * @author Nikki
+ */
+public class FastDlServer {
+
+	/**
+	 * The directory listing formats.
+	 */
+	public enum Style {
+		/**
+		 * nginx autoindex, a preformatted list of links.
+		 */
+		NGINX,
+
+		/**
+		 * Apache mod_autoindex, a table with sorting links in the header.
+		 */
+		APACHE
+	}
+
+	/**
+	 * The size of the pieces file bodies are sent in.
+	 */
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	/**
+	 * The usage text.
+	 */
+	private static final String USAGE = String.join(System.lineSeparator(),
+		"Usage: FastDlServer --dir <folder> [options]",
+		"  --port <port>          Port to listen on, default 8080.",
+		"  --bind <address>       Address to listen on, default loopback.",
+		"  --style <nginx|apache> Directory listing format, default nginx.",
+		"  --latency <ms>         Delay before every response.",
+		"  --bandwidth <rate>     Speed of each response in bytes per second, k and m suffixes allowed.",
+		"  --drop-after <bytes>   Cut file responses off after this many body bytes.",
+		"  --drop-count <n>       Only cut off the first n responses.",
+		"  --ignore-range         Answer range requests with the whole file.",
+		"  --refuse-head          Answer HEAD requests with 405.",
+		"  --chunked              Send file bodies chunked, without a Content-Length.",
+		"  --length-delta <n>     Add n to the Content-Length of file responses.");
+
+	/**
+	 * The directory served.
+	 */
+	private final File root;
+
+	/**
+	 * The directory listing format.
+	 */
+	private final Style style;
+
+	/**
+	 * The faults injected.
+	 */
+	private final Faults faults = new Faults();
+
+	/**
+	 * The amount of requests answered.
+	 */
+	private final AtomicInteger requests = new AtomicInteger();
+
+	/**
+	 * The amount of requests answered, by method.
+	 */
+	private final Map<String, AtomicInteger> methods = new ConcurrentHashMap<>();
+
+	/**
+	 * The amount of file body bytes sent.
+	 */
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	/**
+	 * The amount of file responses the client went away in the middle of.
+	 */
+	private final AtomicInteger aborted = new AtomicInteger();
+
+	/**
+	 * The server, once started.
+	 */
+	private HttpServer server;
+
+	/**
+	 * The threads answering requests, once started.
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * Construct a new server. It doesn't serve anything until started.
+	 *
+	 * @param root The directory to serve.
+	 * @param style The directory listing format.
+	 */
+	public FastDlServer(File root, Style style) {
+		this.root = root.getAbsoluteFile();
+		this.style = style;
+	}
+
+	public static void main(String[] args) throws IOException {
+		File root = null;
+		int port = 8080;
+		InetAddress bind = InetAddress.getLoopbackAddress();
+		Style style = Style.NGINX;
+		long latency = 0;
+		long bandwidth = 0;
+		long dropAfter = -1;
+		int dropCount = -1;
+		boolean ignoreRange = false;
+		boolean refuseHead = false;
+		boolean chunked = false;
+		long lengthDelta = 0;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+
+				if (arg.equals("--ignore-range")) {
+					ignoreRange = true;
+					continue;
+				}
+
+				if (arg.equals("--refuse-head")) {
+					refuseHead = true;
+					continue;
+				}
+
+				if (arg.equals("--chunked")) {
+					chunked = true;
+					continue;
+				}
+
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for " + arg);
+				}
+
+				String value = args[++i];
+
+				switch (arg) {
+					case "--dir":
+						root = new File(value);
+						break;
+					case "--port":
+						port = Integer.parseInt(value);
+						break;
+					case "--bind":
+						bind = InetAddress.getByName(value);
+						break;
+					case "--style":
+						style = Style.valueOf(value.toUpperCase(Locale.ROOT));
+						break;
+					case "--latency":
+						latency = Long.parseLong(value);
+						break;
+					case "--bandwidth":
+						bandwidth = parseRate(value);
+						break;
+					case "--drop-after":
+						dropAfter = Long.parseLong(value);
+						break;
+					case "--drop-count":
+						dropCount = Integer.parseInt(value);
+						break;
+					case "--length-delta":
+						lengthDelta = Long.parseLong(value);
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+
+			if (root == null || !root.isDirectory()) {
+				throw new IllegalArgumentException("No directory to serve");
+			}
+		} catch (IllegalArgumentException e) {
+			// Bad numbers and styles end up here too.
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		FastDlServer server = new FastDlServer(root, style);
+
+		server.getFaults()
+			.setLatency(latency)
+			.setBandwidth(bandwidth)
+			.setDrop(dropAfter, dropCount)
+			.setIgnoreRange(ignoreRange)
+			.setRefuseHead(refuseHead)
+			.setChunked(chunked)
+			.setLengthDelta(lengthDelta);
+
+		server.start(new InetSocketAddress(bind, port));
+
+		System.out.println("Serving " + root + " at " + server.getUrl());
+	}
+
+	/**
+	 * Start serving on any free loopback port.
+	 *
+	 * @throws IOException If the server can't be started.
+	 */
+	public void start() throws IOException {
+		start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	}
+
+	/**
+	 * Start serving.
+	 *
+	 * @param address The address to listen on.
+	 * @throws IOException If the address can't be bound.
+	 */
+	public void start(InetSocketAddress address) throws IOException {
+		executor = Executors.newCachedThreadPool();
+
+		server = HttpServer.create(address, 0);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	/**
+	 * Stop serving, cutting off any responses still being sent.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Get the url of the served directory.
+	 *
+	 * @return The url, ending in a slash.
+	 */
+	public String getUrl() {
+		InetSocketAddress address = server.getAddress();
+
+		String host = address.getAddress().isAnyLocalAddress() ? "127.0.0.1" : address.getAddress().getHostAddress();
+
+		return "http://" + host + ":" + address.getPort() + "/";
+	}
+
+	/**
+	 * Get the faults injected, which can be changed at any time.
+	 *
+	 * @return The faults.
+	 */
+	public Faults getFaults() {
+		return faults;
+	}
+
+	/**
+	 * Get the amount of requests answered so far.
+	 *
+	 * @return The request count.
+	 */
+	public int getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Get the amount of requests answered so far with a method.
+	 *
+	 * @param method The method.
+	 * @return The request count.
+	 */
+	public int getRequests(String method) {
+		AtomicInteger count = methods.get(method);
+
+		return count != null ? count.get() : 0;
+	}
+
+	/**
+	 * Get the amount of file body bytes sent so far.
+	 *
+	 * @return The byte count.
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Get the amount of file responses the client went away in the middle of, as opposed to ones cut off on purpose.
+	 *
+	 * @return The response count.
+	 */
+	public int getAborted() {
+		return aborted.get();
+	}
+
+	/**
+	 * Get the ETag a file is served with, built from its modification time and length like nginx does.
+	 *
+	 * @param file The file.
+	 * @return The ETag, quotes included.
+	 */
+	public static String getETag(File file) {
+		return "\"" + Long.toHexString(file.lastModified() / 1000) + "-" + Long.toHexString(file.length()) + "\"";
+	}
+
+	/**
+	 * Answer a request.
+	 *
+	 * @param exchange The request.
+	 * @throws IOException If the response can't be sent. The server only drops the connection when the handler
+	 *         throws, so responses cut off on purpose have to end up here too.
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		methods.computeIfAbsent(exchange.getRequestMethod(), key -> new AtomicInteger()).incrementAndGet();
+
+		boolean cutOff = false;
+
+		try {
+			long latency = faults.getLatency();
+
+			if (latency > 0) {
+				Thread.sleep(latency);
+			}
+
+			String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), "UTF-8");
+
+			File file = new File(root, path).getCanonicalFile();
+
+			if (exchange.getRequestMethod().equals("HEAD") && faults.isRefuseHead()) {
+				exchange.sendResponseHeaders(405, -1);
+			} else if (!file.toPath().startsWith(root.getCanonicalFile().toPath()) || !file.exists() || (file.isFile() && path.endsWith("/"))) {
+				exchange.sendResponseHeaders(404, -1);
+			} else if (file.isDirectory() && !path.endsWith("/")) {
+				exchange.getResponseHeaders().set("Location", path + "/");
+				exchange.sendResponseHeaders(301, -1);
+			} else if (file.isDirectory()) {
+				sendListing(exchange, path, file);
+			} else {
+				sendFile(exchange, file);
+			}
+		} catch (CutOff e) {
+			cutOff = true;
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} finally {
+			// Closing would end a chunked body cleanly, so a response cut off is left for the server to drop.
+			if (!cutOff) {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * Send a directory listing.
+	 *
+	 * @param exchange The request.
+	 * @param path The directory path, ending in a slash.
+	 * @param directory The directory.
+	 * @throws IOException If the response can't be sent.
+	 */
+	private void sendListing(HttpExchange exchange, String path, File directory) throws IOException {
+		File[] files = directory.listFiles();
+
+		if (files == null) {
+			files = new File[0];
+		}
+
+		Arrays.sort(files);
+
+		String listing = style == Style.APACHE ? formatApache(path, files) : formatNginx(path, files);
+
+		byte[] body = listing.getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			exchange.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+			exchange.sendResponseHeaders(200, -1);
+			return;
+		}
+
+		exchange.sendResponseHeaders(200, body.length);
+
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(body);
+		}
+	}
+
+	/**
+	 * Send a file, or the requested range of it, injecting the configured faults.
+	 *
+	 * @param exchange The request.
+	 * @param file The file.
+	 * @throws IOException If the response can't be sent, including when it's cut off on purpose.
+	 * @throws InterruptedException If interrupted while throttling.
+	 */
+	private void sendFile(HttpExchange exchange, File file) throws IOException, InterruptedException {
+		long length = file.length();
+
+		String etag = getETag(file);
+		String lastModified = formatHttpDate(file.lastModified());
+
+		exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+		exchange.getResponseHeaders().set("ETag", etag);
+		exchange.getResponseHeaders().set("Last-Modified", lastModified);
+		exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+
+		if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			exchange.sendResponseHeaders(304, -1);
+			return;
+		}
+
+		long start = 0;
+		long end = length - 1;
+
+		int status = 200;
+
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+
+		boolean rangeValid = ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModified);
+
+		if (range != null && rangeValid && !faults.isIgnoreRange()) {
+			long[] bounds = parseRange(range, length);
+
+			if (bounds == null) {
+				exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+				exchange.sendResponseHeaders(416, -1);
+				return;
+			}
+
+			start = bounds[0];
+			end = bounds[1];
+
+			status = 206;
+
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+		}
+
+		long bodyLength = end - start + 1;
+
+		long declared = Math.max(0, bodyLength + faults.getLengthDelta());
+
+		boolean chunked = faults.isChunked();
+
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			if (!chunked) {
+				exchange.getResponseHeaders().set("Content-Length", Long.toString(declared));
+			}
+
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+
+		// 0 asks for chunked encoding, -1 for no body at all.
+		exchange.sendResponseHeaders(status, chunked ? 0 : declared > 0 ? declared : -1);
+
+		if (!chunked && declared == 0) {
+			return;
+		}
+
+		long send = chunked ? bodyLength : Math.min(bodyLength, declared);
+
+		long drop = faults.nextDrop();
+
+		boolean dropping = drop >= 0 && drop < send;
+
+		if (dropping) {
+			send = drop;
+		}
+
+		OutputStream output = exchange.getResponseBody();
+
+		try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+			input.seek(start);
+
+			byte[] buffer = new byte[CHUNK_SIZE];
+
+			long started = System.nanoTime();
+			long sent = 0;
+
+			while (sent < send) {
+				int read = input.read(buffer, 0, (int) Math.min(buffer.length, send - sent));
+
+				if (read < 0) {
+					break;
+				}
+
+				long bandwidth = faults.getBandwidth();
+
+				try {
+					output.write(buffer, 0, read);
+
+					if (bandwidth > 0) {
+						output.flush();
+					}
+				} catch (IOException e) {
+					// The client went away.
+					aborted.incrementAndGet();
+					throw e;
+				}
+
+				sent += read;
+
+				bytesSent.addAndGet(read);
+
+				if (bandwidth > 0) {
+					long due = sent * 1000 / bandwidth - (System.nanoTime() - started) / 1000000;
+
+					if (due > 0) {
+						Thread.sleep(due);
+					}
+				}
+			}
+		}
+
+		if (dropping) {
+			output.flush();
+
+			throw new CutOff();
+		}
+
+		// Closing short of the promised length throws, which makes the server drop the connection.
+		output.close();
+	}
+
+	/**
+	 * Parse a single range of a Range header.
+	 *
+	 * @param header The header.
+	 * @param length The file length.
+	 * @return The first and last byte, or null if the range can't be satisfied.
+	 */
+	private static long[] parseRange(String header, long length) {
+		if (!header.startsWith("bytes=") || header.indexOf(',') != -1) {
+			return null;
+		}
+
+		String spec = header.substring(6).trim();
+
+		int dash = spec.indexOf('-');
+
+		if (dash < 0) {
+			return null;
+		}
+
+		try {
+			long start;
+			long end;
+
+			if (dash == 0) {
+				// The last n bytes.
+				long suffix = Long.parseLong(spec.substring(1));
+
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			} else {
+				start = Long.parseLong(spec.substring(0, dash));
+				end = dash == spec.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+			}
+
+			return start <= end && start < length ? new long[] { start, end } : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Format a directory listing like nginx's autoindex.
+	 *
+	 * @param path The directory path.
+	 * @param files The directory contents.
+	 * @return The listing.
+	 */
+	private static String formatNginx(String path, File[] files) {
+		SimpleDateFormat format = new SimpleDateFormat("dd-MMM-yyyy HH:mm", Locale.ENGLISH);
+
+		StringBuilder out = new StringBuilder();
+
+		out.append("<html>\r\n<head><title>Index of ").append(escape(path)).append("</title></head>\r\n<body>\r\n");
+		out.append("<h1>Index of ").append(escape(path)).append("</h1><hr><pre><a href=\"../\">../</a>\r\n");
+
+		for (File file : files) {
+			String name = file.isDirectory() ? file.getName() + "/" : file.getName();
+
+			out.append("<a href=\"").append(encode(name)).append("\">").append(escape(name)).append("</a>");
+
+			for (int i = name.length(); i < 51; i++) {
+				out.append(' ');
+			}
+
+			out.append(format.format(new Date(file.lastModified())));
+
+			String size = file.isDirectory() ? "-" : Long.toString(file.length());
+
+			for (int i = size.length(); i < 20; i++) {
+				out.append(' ');
+			}
+
+			out.append(size).append("\r\n");
+		}
+
+		out.append("</pre><hr></body>\r\n</html>\r\n");
+
+		return out.toString();
+	}
+
+	/**
+	 * Format a directory listing like Apache's mod_autoindex.
+	 *
+	 * @param path The directory path.
+	 * @param files The directory contents.
+	 * @return The listing.
+	 */
+	private static String formatApache(String path, File[] files) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.ENGLISH);
+
+		String title = escape(path.length() > 1 ? path.substring(0, path.length() - 1) : path);
+
+		StringBuilder out = new StringBuilder();
+
+		out.append("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 3.2 Final//EN\">\n<html>\n <head>\n  <title>Index of ").append(title).append("</title>\n </head>\n <body>\n");
+		out.append("<h1>Index of ").append(title).append("</h1>\n  <table>\n");
+		out.append("   <tr><th valign=\"top\"><img src=\"/icons/blank.gif\" alt=\"[ICO]\"></th><th><a href=\"?C=N;O=D\">Name</a></th>")
+			.append("<th><a href=\"?C=M;O=A\">Last modified</a></th><th><a href=\"?C=S;O=A\">Size</a></th><th><a href=\"?C=D;O=A\">Description</a></th></tr>\n");
+		out.append("   <tr><th colspan=\"5\"><hr></th></tr>\n");
+		out.append("<tr><td valign=\"top\"><img src=\"/icons/back.gif\" alt=\"[PARENTDIR]\"></td><td><a href=\"../\">Parent Directory</a></td>")
+			.append("<td>&nbsp;</td><td align=\"right\">  - </td><td>&nbsp;</td></tr>\n");
+
+		for (File file : files) {
+			String name = file.isDirectory() ? file.getName() + "/" : file.getName();
+
+			out.append("<tr><td valign=\"top\"><img src=\"/icons/").append(file.isDirectory() ? "folder" : "unknown").append(".gif\" alt=\"[")
+				.append(file.isDirectory() ? "DIR" : "   ").append("]\"></td><td><a href=\"").append(encode(name)).append("\">").append(escape(name))
+				.append("</a></td><td align=\"right\">").append(format.format(new Date(file.lastModified()))).append("  </td><td align=\"right\">")
+				.append(file.isDirectory() ? "  - " : formatSize(file.length())).append("</td><td>&nbsp;</td></tr>\n");
+		}
+
+		out.append("   <tr><th colspan=\"5\"><hr></th></tr>\n</table>\n</body></html>\n");
+
+		return out.toString();
+	}
+
+	/**
+	 * Format a size the way Apache does.
+	 *
+	 * @param size The size in bytes.
+	 * @return The formatted size.
+	 */
+	private static String formatSize(long size) {
+		if (size < 1024) {
+			return Long.toString(size);
+		}
+
+		if (size < 1024 * 1024) {
+			return (size + 512) / 1024 + "K";
+		}
+
+		return (size + 512 * 1024) / (1024 * 1024) + "M";
+	}
+
+	/**
+	 * Format a date for an HTTP header.
+	 *
+	 * @param time The time in milliseconds.
+	 * @return The date.
+	 */
+	private static String formatHttpDate(long time) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+		return format.format(new Date(time));
+	}
+
+	/**
+	 * Escape text for HTML.
+	 *
+	 * @param text The text.
+	 * @return The escaped text.
+	 */
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	/**
+	 * Encode a file name for a link.
+	 *
+	 * @param name The name.
+	 * @return The encoded name.
+	 */
+	private static String encode(String name) {
+		try {
+			return URLEncoder.encode(name, "UTF-8").replace("+", "%20").replace("%2F", "/");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Parse a rate, which may end in k or m.
+	 *
+	 * @param value The rate.
+	 * @return The rate in bytes per second.
+	 */
+	private static long parseRate(String value) {
+		String lower = value.toLowerCase(Locale.ROOT);
+
+		long multiplier = 1;
+
+		if (lower.endsWith("k")) {
+			multiplier = 1024;
+		} else if (lower.endsWith("m")) {
+			multiplier = 1024 * 1024;
+		}
+
+		if (multiplier > 1) {
+			lower = lower.substring(0, lower.length() - 1);
+		}
+
+		return (long) (Double.parseDouble(lower) * multiplier);
+	}
+
+	/**
+	 * Thrown to cut a response off on purpose. The server drops the connection when a handler throws.
+	 */
+	private static final class CutOff extends IOException {
+
+		/**
+		 * Construct a new cut off.
+		 */
+		CutOff() {
+			super("Response cut off on purpose");
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package org.nikkii.mapdownloader.server;
+
+/**
+ * The misbehaviour a {@link FastDlServer} injects. Every setting can be changed while the server runs and applies to
+ * the next request.
+ *
+ * @author Nikki
+ */
+public class Faults {
+
+	/**
+	 * The delay before every response, in milliseconds.
+	 */
+	private volatile long latency = 0;
+
+	/**
+	 * The speed each response is sent at, in bytes per second, or 0 for unlimited.
+	 */
+	private volatile long bandwidth = 0;
+
+	/**
+	 * The amount of body bytes sent before a file response is cut off, or -1 to send everything.
+	 */
+	private volatile long dropAfter = -1;
+
+	/**
+	 * The amount of responses left to cut off, or -1 for every one.
+	 */
+	private int dropCount = -1;
+
+	/**
+	 * Whether range requests are answered with the whole file.
+	 */
+	private volatile boolean ignoreRange = false;
+
+	/**
+	 * The amount added to the Content-Length of file responses, so the header doesn't match the body.
+	 */
+	private volatile long lengthDelta = 0;
+
+	/**
+	 * Whether HEAD requests are answered with 405, like hosts which only allow GET.
+	 */
+	private volatile boolean refuseHead = false;
+
+	/**
+	 * Whether file bodies are sent chunked, without a Content-Length.
+	 */
+	private volatile boolean chunked = false;
+
+	/**
+	 * Get the delay before every response.
+	 *
+	 * @return The delay in milliseconds.
+	 */
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Set the delay before every response.
+	 *
+	 * @param latency The delay in milliseconds.
+	 * @return This object, for chaining.
+	 */
+	public Faults setLatency(long latency) {
+		this.latency = Math.max(0, latency);
+		return this;
+	}
+
+	/**
+	 * Get the speed each response is sent at.
+	 *
+	 * @return The speed in bytes per second, or 0 for unlimited.
+	 */
+	public long getBandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 * Set the speed each response is sent at.
+	 *
+	 * @param bandwidth The speed in bytes per second, or 0 for unlimited.
+	 * @return This object, for chaining.
+	 */
+	public Faults setBandwidth(long bandwidth) {
+		this.bandwidth = Math.max(0, bandwidth);
+		return this;
+	}
+
+	/**
+	 * Cut file responses off partway through.
+	 *
+	 * @param dropAfter The amount of body bytes sent first, or -1 to stop cutting responses off.
+	 * @param dropCount The amount of responses to cut off, or -1 for every one.
+	 * @return This object, for chaining.
+	 */
+	public synchronized Faults setDrop(long dropAfter, int dropCount) {
+		this.dropAfter = dropAfter;
+		this.dropCount = dropCount;
+		return this;
+	}
+
+	/**
+	 * Set whether range requests are answered with the whole file, like servers without range support.
+	 *
+	 * @param ignoreRange The ignore flag.
+	 * @return This object, for chaining.
+	 */
+	public Faults setIgnoreRange(boolean ignoreRange) {
+		this.ignoreRange = ignoreRange;
+		return this;
+	}
+
+	/**
+	 * Check whether range requests are answered with the whole file.
+	 *
+	 * @return The ignore flag.
+	 */
+	public boolean isIgnoreRange() {
+		return ignoreRange;
+	}
+
+	/**
+	 * Set the amount added to the Content-Length of file responses. A positive amount promises bytes that never come,
+	 * a negative one cuts the body short without the client being able to tell.
+	 *
+	 * @param lengthDelta The amount, 0 for honest responses.
+	 * @return This object, for chaining.
+	 */
+	public Faults setLengthDelta(long lengthDelta) {
+		this.lengthDelta = lengthDelta;
+		return this;
+	}
+
+	/**
+	 * Get the amount added to the Content-Length of file responses.
+	 *
+	 * @return The amount.
+	 */
+	public long getLengthDelta() {
+		return lengthDelta;
+	}
+
+	/**
+	 * Set whether HEAD requests are answered with 405, like hosts which only allow GET.
+	 *
+	 * @param refuseHead The refuse flag.
+	 * @return This object, for chaining.
+	 */
+	public Faults setRefuseHead(boolean refuseHead) {
+		this.refuseHead = refuseHead;
+		return this;
+	}
+
+	/**
+	 * Check whether HEAD requests are answered with 405.
+	 *
+	 * @return The refuse flag.
+	 */
+	public boolean isRefuseHead() {
+		return refuseHead;
+	}
+
+	/**
+	 * Set whether file bodies are sent chunked, without a Content-Length, like dynamically generated responses.
+	 *
+	 * @param chunked The chunked flag.
+	 * @return This object, for chaining.
+	 */
+	public Faults setChunked(boolean chunked) {
+		this.chunked = chunked;
+		return this;
+	}
+
+	/**
+	 * Check whether file bodies are sent chunked.
+	 *
+	 * @return The chunked flag.
+	 */
+	public boolean isChunked() {
+		return chunked;
+	}
+
+	/**
+	 * Take the cut off point for the next file response, counting the response against the drop count.
+	 *
+	 * @return The amount of body bytes to send before cutting the response off, or -1 to send everything.
+	 */
+	synchronized long nextDrop() {
+		if (dropAfter < 0 || dropCount == 0) {
+			return -1;
+		}
+
+		if (dropCount > 0) {
+			dropCount--;
+		}
+
+		return dropAfter;
+	}
+
+	/**
+	 * Turn every fault off.
+	 *
+	 * @return This object, for chaining.
+	 */
+	public synchronized Faults reset() {
+		latency = 0;
+		bandwidth = 0;
+		dropAfter = -1;
+		dropCount = -1;
+		ignoreRange = false;
+		lengthDelta = 0;
+		refuseHead = false;
+		chunked = false;
+		return this;
+	}
+}